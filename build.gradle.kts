@@ -42,6 +42,8 @@ dependencies {
 tasks {
     "test"(Test::class) {
         maxHeapSize = "128m"
+        // Memtables are kept off-heap
+        jvmArgs("-XX:MaxDirectMemorySize=256m")
         useJUnitPlatform()
     }
 }
@@ -50,6 +52,6 @@ application {
     // Define the main class for the application
     mainClassName = "ru.mail.polis.ClusterNode"
 
-    // And limit Xmx
-    applicationDefaultJvmArgs = listOf("-Xmx128m")
+    // And limit Xmx; memtables are kept off-heap, so direct memory is limited separately
+    applicationDefaultJvmArgs = listOf("-Xmx128m", "-XX:MaxDirectMemorySize=256m")
 }
@@ -18,6 +18,7 @@ package ru.mail.polis;
 
 import org.jetbrains.annotations.NotNull;
 import ru.mail.polis.kirpichenkov.KVDaoImpl;
+import ru.mail.polis.kirpichenkov.LsmKVDao;
 
 import java.io.File;
 import java.io.IOException;
@@ -29,6 +30,11 @@ import java.io.IOException;
  */
 final class KVDaoFactory {
     private static final long MAX_HEAP = 128 * 1024 * 1024;
+    /**
+     * System property selecting the storage engine:
+     * {@code files} for a file per key or {@code lsm} for the log-structured engine
+     */
+    private static final String ENGINE_PROPERTY = "kv.dao";
 
     private KVDaoFactory() {
         // Not instantiatable
@@ -54,6 +60,14 @@ final class KVDaoFactory {
             throw new IllegalArgumentException("Path is not a directory: " + data);
         }
 
-        return new KVDaoImpl(data);
+        final String engine = System.getProperty(ENGINE_PROPERTY, "lsm");
+        switch (engine) {
+            case "files":
+                return new KVDaoImpl(data);
+            case "lsm":
+                return new LsmKVDao(data);
+            default:
+                throw new IllegalArgumentException("Unknown storage engine: " + engine);
+        }
     }
 }
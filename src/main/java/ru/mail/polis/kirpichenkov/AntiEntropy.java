@@ -0,0 +1,467 @@
+package ru.mail.polis.kirpichenkov;
+
+import one.nio.http.HttpClient;
+import one.nio.http.Request;
+import one.nio.http.Response;
+import one.nio.net.ConnectionString;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Anti-entropy: finds the keys on which this node and its peers silently diverged by comparing
+ * their {@link RangeTrees}, and takes the newer versions of them.
+ * <p>
+ * Every round one of the peers is asked for the root hashes of the trees of the token ranges both
+ * nodes replicate, then for the leaf hashes of the trees which differ, and then for the keys and
+ * versions of the differing leaves only. Values are fetched only for the keys newer on the peer or
+ * missing here, in batches of bounded size; tombstones need no fetch. A key is written here with
+ * the peer's version. The peers run the same rounds, so newer versions travel both ways.
+ * <p>
+ * The replicas of a token range are its first {@code kv.antiEntropy.replicas} nodes on the ring,
+ * all the nodes by default, as for the requests which don't choose the replicas. A key missing here
+ * is taken as well, since this node replicates its range, so the replicas of a range end up with
+ * the same keys and equal trees. Keys written to the other nodes are never compared.
+ *
+ * @author Pavel Kirpichenkov
+ */
+class AntiEntropy implements Closeable {
+  private static final Logger logger = LogManager.getLogger(AntiEntropy.class);
+  /** Pause between the rounds, 0 to disable anti-entropy */
+  static final long INTERVAL_MILLIS = Long.getLong("kv.antiEntropy.intervalMillis", 60_000);
+  static final int TREE_DEPTH = Integer.getInteger("kv.antiEntropy.treeDepth", 12);
+  /** Replicas of a token range, 0 for all the nodes */
+  private static final int REPLICAS = Integer.getInteger("kv.antiEntropy.replicas", 0);
+  /** Timeout of the calls, which scan the whole storage of the peer */
+  private static final long TIMEOUT_MILLIS = Long.getLong("kv.antiEntropy.timeoutMillis", 60_000);
+  private static final int LEAVES_PER_REQUEST = 256;
+  private static final int KEYS_PER_REQUEST = 1024;
+  /** Size of the values in a response after which the rest of the keys are left to the next one */
+  private static final int VALUES_BYTES = 1024 * 1024;
+  private static final int NO_VALUE = -1;
+  static final String TREE_PATH = "/v0/internal/tree";
+  static final String KEYS_PATH = "/v0/internal/keys";
+  static final String VALUES_PATH = "/v0/internal/values";
+  private final InternalDao dao;
+  private final RangeTrees trees;
+  private final String me;
+  private final List<String> peers = new ArrayList<>();
+  private final LongAdder rounds = new LongAdder();
+  private final LongAdder differingLeaves = new LongAdder();
+  private final LongAdder received = new LongAdder();
+  private final LongAdder fetched = new LongAdder();
+  private final LongAdder repaired = new LongAdder();
+  private final ScheduledExecutorService scheduler = new ScheduledThreadPoolExecutor(1, task -> {
+    Thread thread = new Thread(task, "anti-entropy");
+    thread.setDaemon(true);
+    return thread;
+  });
+  private int nextPeer;
+
+  /**
+   * @param trees trees of the storage, kept up to date by the dao
+   * @param me url of this node
+   * @param peers urls of the other nodes, only the ones sharing token ranges with this node are
+   *     asked
+   */
+  AntiEntropy(
+      @NotNull final InternalDao dao,
+      @NotNull final RangeTrees trees,
+      @NotNull final String me,
+      @NotNull final List<String> peers
+  ) {
+    this.dao = dao;
+    this.trees = trees;
+    this.me = me;
+    for (String peer : peers) {
+      if (!trees.shared(me, peer).isEmpty()) {
+        this.peers.add(peer);
+      }
+    }
+    if (!this.peers.isEmpty()) {
+      scheduler.scheduleWithFixedDelay(
+          this::round,
+          INTERVAL_MILLIS,
+          INTERVAL_MILLIS,
+          TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /** Empty trees for the token ranges of the ring */
+  @NotNull
+  static RangeTrees trees(@NotNull final HashRing ring) {
+    int nodes = ring.getNodes().size();
+    return new RangeTrees(ring, REPLICAS > 0 ? Math.min(REPLICAS, nodes) : nodes, TREE_DEPTH);
+  }
+
+  /**
+   * Hashes of the tree level given by the {@code level} parameter, as 64-bit numbers, for each of
+   * the trees listed in the {@code trees} parameter in turn
+   */
+  @NotNull
+  static Response treeResponse(
+      @NotNull final RangeTrees trees,
+      @NotNull final Request request
+  ) {
+    int level;
+    List<Integer> indexes;
+    try {
+      level = Integer.parseInt(request.getParameter("level=", ""));
+      indexes = parseList(request.getParameter("trees=", ""), trees.size());
+    } catch (IllegalArgumentException ex) {
+      return new Response(Response.BAD_REQUEST, Response.EMPTY);
+    }
+    if (level < 0 || level > trees.getDepth()) {
+      return new Response(Response.BAD_REQUEST, Response.EMPTY);
+    }
+    ByteBuffer body = ByteBuffer.allocate(indexes.size() * (Long.BYTES << level));
+    for (int tree : indexes) {
+      for (long hash : trees.get(tree).level(level)) {
+        body.putLong(hash);
+      }
+    }
+    return Response.ok(body.array());
+  }
+
+  /**
+   * Keys of the {@code tree} parameter's leaves listed in the {@code leaves} parameter with their
+   * versions, as {@code [key length][key][version][1 for a tombstone, 0 for a value]} records. The
+   * storage is scanned for them, but the values aren't read.
+   */
+  @NotNull
+  static Response keysResponse(
+      @NotNull final InternalDao dao,
+      @NotNull final RangeTrees trees,
+      @NotNull final Request request
+  ) throws IOException
+  {
+    int tree;
+    BitSet leaves = new BitSet();
+    try {
+      tree = parseList(request.getParameter("tree=", ""), trees.size()).get(0);
+      for (int leaf : parseList(request.getParameter("leaves=", ""), 1 << trees.getDepth())) {
+        leaves.set(leaf);
+      }
+    } catch (IllegalArgumentException ex) {
+      return new Response(Response.BAD_REQUEST, Response.EMPTY);
+    }
+    MerkleTree leafTree = trees.get(tree);
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    dao.scan((keyBuffer, cell) -> {
+      byte[] key = new byte[keyBuffer.remaining()];
+      keyBuffer.duplicate().get(key);
+      if (trees.treeOf(key) != tree || !leaves.get(leafTree.leaf(key))) {
+        return;
+      }
+      out.writeInt(key.length);
+      out.write(key);
+      out.writeLong(cell.getTimestamp());
+      out.writeBoolean(cell.isTombstone());
+    });
+    return Response.ok(bytes.toByteArray());
+  }
+
+  /**
+   * Values of the keys in the body, given as {@code [key length][key]} records, answered with
+   * {@code [key length][key][version][value length or -1][value]} records in the same order. A key
+   * missing here gets {@link ReplicationProtocol#NO_VERSION}. Once the values take
+   * {@link #VALUES_BYTES}, the rest of the keys are left unanswered, to be asked again.
+   */
+  @NotNull
+  static Response valuesResponse(
+      @NotNull final InternalDao dao,
+      @NotNull final Request request
+  ) throws IOException
+  {
+    List<byte[]> keys = new ArrayList<>();
+    try {
+      ByteBuffer body = ByteBuffer.wrap(request.getBody() == null ? new byte[0] : request.getBody());
+      while (body.hasRemaining()) {
+        byte[] key = ReplicationProtocol.getValue(body);
+        if (key == null) {
+          throw new IOException("Record without key");
+        }
+        keys.add(key);
+      }
+    } catch (IOException | RuntimeException ex) {
+      return new Response(Response.BAD_REQUEST, Response.EMPTY);
+    }
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    for (byte[] key : keys) {
+      if (bytes.size() >= VALUES_BYTES) {
+        break;
+      }
+      Result result = dao.get(key);
+      if (result.getStatus() == Result.Status.ERROR) {
+        throw new IOException("Can't read a key");
+      }
+      out.writeInt(key.length);
+      out.write(key);
+      if (result.getStatus() == Result.Status.ABSENT) {
+        out.writeLong(ReplicationProtocol.NO_VERSION);
+        out.writeInt(NO_VALUE);
+        continue;
+      }
+      out.writeLong(NanoClock.toEpochNanos(result.getTimestamp()));
+      byte[] value = result.getStatus() == Result.Status.OK ? result.getBody() : null;
+      if (value == null) {
+        out.writeInt(NO_VALUE);
+      } else {
+        out.writeInt(value.length);
+        out.write(value);
+      }
+    }
+    return Response.ok(bytes.toByteArray());
+  }
+
+  @Override
+  public void close() {
+    scheduler.shutdownNow();
+    logger.info("anti-entropy: {}", this);
+  }
+
+  @NotNull
+  @Override
+  public String toString() {
+    return String.format(
+        "%d rounds, %d differing leaves, %d keys received, %d values fetched, %d repaired",
+        rounds.sum(),
+        differingLeaves.sum(),
+        received.sum(),
+        fetched.sum(),
+        repaired.sum());
+  }
+
+  /** Exchange with the next peer, on the scheduler or, in the tests, on the calling thread */
+  void round() {
+    String peer = peers.get(nextPeer);
+    nextPeer = (nextPeer + 1) % peers.size();
+    HttpClient client = new HttpClient(new ConnectionString(peer + "?timeout=" + TIMEOUT_MILLIS));
+    try {
+      exchange(client, trees.shared(me, peer));
+      rounds.increment();
+    } catch (Exception ex) {
+      logger.debug("Anti-entropy with {} failed", peer, ex);
+    } finally {
+      client.close();
+    }
+  }
+
+  /** @param shared indexes of the trees both nodes keep */
+  private void exchange(
+      @NotNull final HttpClient client,
+      @NotNull final List<Integer> shared
+  ) throws Exception
+  {
+    long[] roots = fetchLevel(client, shared, 0);
+    if (roots.length != shared.size()) {
+      throw new IOException("Peer has other trees, check the topology");
+    }
+    List<Integer> differingTrees = new ArrayList<>();
+    for (int ix = 0; ix < shared.size(); ix++) {
+      if (roots[ix] != trees.get(shared.get(ix)).level(0)[0]) {
+        differingTrees.add(shared.get(ix));
+      }
+    }
+    if (differingTrees.isEmpty()) {
+      return;
+    }
+    int depth = trees.getDepth();
+    long[] remote = fetchLevel(client, differingTrees, depth);
+    if (remote.length != differingTrees.size() << depth) {
+      logger.warn("Peer has trees of another depth, check kv.antiEntropy.treeDepth");
+      return;
+    }
+    for (int ix = 0; ix < differingTrees.size(); ix++) {
+      int tree = differingTrees.get(ix);
+      long[] local = trees.get(tree).level(depth);
+      List<Integer> differing = new ArrayList<>();
+      for (int leaf = 0; leaf < local.length; leaf++) {
+        if (local[leaf] != remote[(ix << depth) + leaf]) {
+          differing.add(leaf);
+        }
+      }
+      differingLeaves.add(differing.size());
+      for (int from = 0; from < differing.size(); from += LEAVES_PER_REQUEST) {
+        List<Integer> batch = differing.subList(
+            from,
+            Math.min(differing.size(), from + LEAVES_PER_REQUEST));
+        String path = KEYS_PATH + "?tree=" + tree + "&leaves=" + joinList(batch);
+        fetchValues(client, newerKeys(fetch(client, path)));
+      }
+    }
+  }
+
+  /**
+   * Compare the keys and versions of the peer with the local ones. Tombstones newer on the peer
+   * are written at once.
+   *
+   * @return keys with values newer on the peer, or missing here
+   */
+  @NotNull
+  private List<byte[]> newerKeys(@NotNull final byte[] keys) throws IOException {
+    List<byte[]> newer = new ArrayList<>();
+    ByteBuffer records = ByteBuffer.wrap(keys);
+    while (records.hasRemaining()) {
+      byte[] key = ReplicationProtocol.getValue(records);
+      long version = records.getLong();
+      boolean tombstone = records.get() != 0;
+      if (key == null) {
+        throw new IOException("Record without key");
+      }
+      received.increment();
+      Result local = dao.get(key);
+      if (local.getStatus() == Result.Status.ERROR
+          || local.getStatus() != Result.Status.ABSENT
+          && NanoClock.toEpochNanos(local.getTimestamp()) >= version) {
+        continue;
+      }
+      if (tombstone) {
+        apply(key, version, null);
+      } else {
+        newer.add(key);
+      }
+    }
+    return newer;
+  }
+
+  /** Fetch the values of the keys from the peer in batches, and write each batch before the next */
+  private void fetchValues(
+      @NotNull final HttpClient client,
+      @NotNull final List<byte[]> keys
+  ) throws Exception
+  {
+    int from = 0;
+    while (from < keys.size()) {
+      List<byte[]> batch = keys.subList(from, Math.min(keys.size(), from + KEYS_PER_REQUEST));
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      DataOutputStream out = new DataOutputStream(bytes);
+      for (byte[] key : batch) {
+        out.writeInt(key.length);
+        out.write(key);
+      }
+      ByteBuffer records = ByteBuffer.wrap(post(client, VALUES_PATH, bytes.toByteArray()));
+      int answered = 0;
+      while (records.hasRemaining()) {
+        byte[] key = ReplicationProtocol.getValue(records);
+        long version = records.getLong();
+        byte[] value = ReplicationProtocol.getValue(records);
+        if (key == null) {
+          throw new IOException("Record without key");
+        }
+        answered++;
+        if (version != ReplicationProtocol.NO_VERSION) {
+          fetched.increment();
+          apply(key, version, value);
+        }
+      }
+      if (answered == 0) {
+        throw new IOException("Peer answered none of " + batch.size() + " keys");
+      }
+      from += answered;
+    }
+  }
+
+  /** Write the version of the peer, unless the key has got a newer one meanwhile */
+  private void apply(
+      @NotNull final byte[] key,
+      final long version,
+      @Nullable final byte[] value
+  ) {
+    Result result = value == null ? dao.remove(key, version) : dao.upsert(key, value, version);
+    if (result.getStatus() != Result.Status.ERROR) {
+      repaired.increment();
+    }
+  }
+
+  @NotNull
+  private static long[] fetchLevel(
+      @NotNull final HttpClient client,
+      @NotNull final List<Integer> trees,
+      final int level
+  ) throws Exception
+  {
+    String path = TREE_PATH + "?level=" + level + "&trees=" + joinList(trees);
+    ByteBuffer body = ByteBuffer.wrap(fetch(client, path));
+    long[] hashes = new long[body.remaining() / Long.BYTES];
+    body.asLongBuffer().get(hashes);
+    return hashes;
+  }
+
+  @NotNull
+  private static byte[] fetch(
+      @NotNull final HttpClient client,
+      @NotNull final String path
+  ) throws Exception
+  {
+    return body(path, client.get(path, Collaboration.INTERNAL_HEADER));
+  }
+
+  @NotNull
+  private static byte[] post(
+      @NotNull final HttpClient client,
+      @NotNull final String path,
+      @NotNull final byte[] body
+  ) throws Exception
+  {
+    return body(path, client.post(path, body, Collaboration.INTERNAL_HEADER));
+  }
+
+  @NotNull
+  private static byte[] body(
+      @NotNull final String path,
+      @NotNull final Response response
+  ) throws IOException
+  {
+    if (response.getStatus() != Collaboration.STATUS_OK) {
+      throw new IOException("Peer answered " + response.getStatus() + " to " + path);
+    }
+    return response.getBody();
+  }
+
+  @NotNull
+  private static String joinList(@NotNull final List<Integer> numbers) {
+    StringBuilder list = new StringBuilder();
+    for (Integer number : numbers) {
+      list.append(list.length() == 0 ? "" : ",").append(number);
+    }
+    return list.toString();
+  }
+
+  /**
+   * @param list comma separated numbers
+   * @param limit bound of the numbers, exclusive
+   * @throws IllegalArgumentException if the list is empty or malformed, or a number is out of bounds
+   */
+  @NotNull
+  private static List<Integer> parseList(
+      @NotNull final String list,
+      final int limit
+  ) {
+    List<Integer> numbers = new ArrayList<>();
+    for (String item : list.split(",")) {
+      int number = Integer.parseInt(item);
+      if (number < 0 || number >= limit) {
+        throw new IllegalArgumentException("Out of bounds: " + number);
+      }
+      numbers.add(number);
+    }
+    return numbers;
+  }
+}
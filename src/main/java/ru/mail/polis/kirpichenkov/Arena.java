@@ -0,0 +1,79 @@
+package ru.mail.polis.kirpichenkov;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Append-only region of off-heap memory made of {@link SlabPool} slabs. Space is handed out by
+ * bumping a pointer; an allocation is addressed by a single {@code long} of the slab number and
+ * the offset in it, so that indexes over the arena don't keep buffer objects on the heap.
+ * <p>
+ * Allocation is synchronized, but the allocated regions don't overlap, so they are filled without
+ * any locking.
+ *
+ * @author Pavel Kirpichenkov
+ */
+class Arena {
+  private final SlabPool pool;
+  private final List<ByteBuffer> slabs = new CopyOnWriteArrayList<>();
+  private ByteBuffer current;
+  private int position;
+  private volatile long allocated;
+
+  Arena(@NotNull final SlabPool pool) {
+    this.pool = pool;
+  }
+
+  /**
+   * Reserve space. Chunks bigger than a slab get a dedicated buffer, which is not pooled.
+   *
+   * @return address of the chunk
+   */
+  synchronized long allocate(final int size) {
+    allocated += size;
+    if (size > SlabPool.SLAB_SIZE) {
+      slabs.add(ByteBuffer.allocateDirect(size));
+      return address(slabs.size() - 1, 0);
+    }
+    if (current == null || position + size > current.capacity()) {
+      current = pool.acquire();
+      slabs.add(current);
+      position = 0;
+    }
+    long address = address(slabs.size() - 1, position);
+    position += size;
+    return address;
+  }
+
+  /** @return independent view of the arena memory starting at the address */
+  @NotNull
+  ByteBuffer view(final long address) {
+    ByteBuffer view = slabs.get((int) (address >>> Integer.SIZE)).duplicate();
+    view.position((int) address);
+    return view;
+  }
+
+  /** Bytes allocated so far, including the space of overwritten entries */
+  long allocated() {
+    return allocated;
+  }
+
+  /** Return the memory to the pool; nothing may read the arena afterwards */
+  synchronized void release() {
+    for (ByteBuffer slab : slabs) {
+      pool.release(slab);
+    }
+    slabs.clear();
+    current = null;
+  }
+
+  private static long address(
+      final int slab,
+      final int offset
+  ) {
+    return ((long) slab << Integer.SIZE) | offset;
+  }
+}
@@ -0,0 +1,76 @@
+package ru.mail.polis.kirpichenkov;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Runs a maintenance task of the storage, like flush or compaction, on a dedicated background
+ * thread, so that request threads don't wait for it. Requests made while a run is queued are
+ * merged into it.
+ *
+ * @author Pavel Kirpichenkov
+ */
+class BackgroundScheduler {
+  private static final Logger logger = LogManager.getLogger(BackgroundScheduler.class);
+  private final ExecutorService executor;
+  private final Task task;
+  private final AtomicBoolean scheduled = new AtomicBoolean();
+
+  /** Task that does all the work pending at the moment it starts */
+  interface Task {
+    void run() throws IOException;
+  }
+
+  /** @param name name of the thread */
+  BackgroundScheduler(
+      @NotNull final String name,
+      @NotNull final Task task
+  ) {
+    this.task = task;
+    this.executor = Executors.newSingleThreadExecutor(runnable -> {
+      Thread thread = new Thread(runnable, name);
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  /** Ask for a run unless one is already waiting to start */
+  void schedule() {
+    if (!scheduled.compareAndSet(false, true)) {
+      return;
+    }
+    try {
+      executor.execute(() -> {
+        scheduled.set(false);
+        try {
+          task.run();
+        } catch (IOException | RuntimeException ex) {
+          logger.error("Background task failed", ex);
+        }
+      });
+    } catch (RejectedExecutionException ex) {
+      // Closed already, the work is left to the next start
+      scheduled.set(false);
+    }
+  }
+
+  /** Stop accepting runs and wait for the current one to finish */
+  void close() throws IOException {
+    executor.shutdown();
+    try {
+      executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting for background task");
+    }
+  }
+}
@@ -0,0 +1,128 @@
+package ru.mail.polis.kirpichenkov;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Bloom filter over the keys of a single table, so that lookups of absent keys are answered
+ * without touching the disk. Probe positions are derived from one 64-bit {@link Murmur3} hash
+ * with double hashing.
+ *
+ * @author Pavel Kirpichenkov
+ */
+class BloomFilter {
+  private static final double LN2 = Math.log(2);
+  private static final int MAX_HASH_FUNCTIONS = 16;
+
+  private final long[] bits;
+  private final long bitCount;
+  private final int hashFunctions;
+
+  private BloomFilter(
+      @NotNull final long[] bits,
+      final int hashFunctions
+  ) {
+    this.bits = bits;
+    this.bitCount = (long) bits.length * Long.SIZE;
+    this.hashFunctions = hashFunctions;
+  }
+
+  /**
+   * Create an empty filter sized for the expected number of keys
+   *
+   * @param expectedKeys number of keys to be added
+   * @param falsePositiveRate desired probability of {@link #mightContain} returning true for an
+   *     absent key, between 0 and 1 exclusive
+   */
+  @NotNull
+  static BloomFilter create(
+      final int expectedKeys,
+      final double falsePositiveRate
+  ) {
+    if (falsePositiveRate <= 0 || falsePositiveRate >= 1) {
+      throw new IllegalArgumentException("False positive rate must be in (0, 1)");
+    }
+    long keys = Math.max(1, expectedKeys);
+    long bitCount = (long) Math.ceil(-keys * Math.log(falsePositiveRate) / (LN2 * LN2));
+    int words = (int) Math.max(1, (bitCount + Long.SIZE - 1) / Long.SIZE);
+    int hashFunctions = (int) Math.round((double) words * Long.SIZE / keys * LN2);
+    hashFunctions = Math.max(1, Math.min(MAX_HASH_FUNCTIONS, hashFunctions));
+    return new BloomFilter(new long[words], hashFunctions);
+  }
+
+  static long hash(@NotNull final byte[] key) {
+    return Murmur3.hash64(key);
+  }
+
+  static long hash(@NotNull final ByteBuffer key) {
+    if (key.hasArray()) {
+      return Murmur3.hash64(key.array(), key.arrayOffset() + key.position(), key.remaining(), 0);
+    }
+    byte[] bytes = new byte[key.remaining()];
+    key.duplicate().get(bytes);
+    return Murmur3.hash64(bytes);
+  }
+
+  void add(final long hash) {
+    int h1 = (int) hash;
+    int h2 = (int) (hash >>> 32);
+    for (int ix = 1; ix <= hashFunctions; ix++) {
+      long bit = bitIndex(h1, h2, ix);
+      bits[(int) (bit >>> 6)] |= 1L << bit;
+    }
+  }
+
+  boolean mightContain(final long hash) {
+    int h1 = (int) hash;
+    int h2 = (int) (hash >>> 32);
+    for (int ix = 1; ix <= hashFunctions; ix++) {
+      long bit = bitIndex(h1, h2, ix);
+      if ((bits[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /** Size of the serialized filter */
+  int sizeInBytes() {
+    return Integer.BYTES + Integer.BYTES + bits.length * Long.BYTES;
+  }
+
+  /** Layout: {@code [hash functions][words][bit words]} */
+  void writeTo(@NotNull final DataOutputStream out) throws IOException {
+    out.writeInt(hashFunctions);
+    out.writeInt(bits.length);
+    for (long word : bits) {
+      out.writeLong(word);
+    }
+  }
+
+  @NotNull
+  static BloomFilter readFrom(@NotNull final ByteBuffer in) throws IOException {
+    int hashFunctions = in.getInt();
+    int words = in.getInt();
+    if (hashFunctions < 1 || words < 1 || words > in.remaining() / Long.BYTES) {
+      throw new IOException("Corrupted bloom filter");
+    }
+    long[] bits = new long[words];
+    in.asLongBuffer().get(bits);
+    in.position(in.position() + words * Long.BYTES);
+    return new BloomFilter(bits, hashFunctions);
+  }
+
+  private long bitIndex(
+      final int h1,
+      final int h2,
+      final int ix
+  ) {
+    int combined = h1 + ix * h2;
+    if (combined < 0) {
+      combined = ~combined;
+    }
+    return combined % bitCount;
+  }
+}
@@ -0,0 +1,87 @@
+package ru.mail.polis.kirpichenkov;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Versioned value stored by {@link VersionedKVDao}: either data or a tombstone, together with
+ * the time of the write in nanoseconds since the epoch.
+ * <p>
+ * The value may be a slice of a memory-mapped table, so it is copied to the heap only when it is
+ * really needed with {@link #copyValue()}.
+ *
+ * @author Pavel Kirpichenkov
+ */
+public class Cell {
+  @Nullable
+  private final ByteBuffer value;
+  private final long timestamp;
+
+  private Cell(
+      @Nullable final ByteBuffer value,
+      final long timestamp
+  ) {
+    this.value = value;
+    this.timestamp = timestamp;
+  }
+
+  @NotNull
+  static Cell value(
+      @NotNull final byte[] value,
+      final long timestamp
+  ) {
+    return new Cell(ByteBuffer.wrap(value), timestamp);
+  }
+
+  @NotNull
+  static Cell value(
+      @NotNull final ByteBuffer value,
+      final long timestamp
+  ) {
+    return new Cell(value, timestamp);
+  }
+
+  @NotNull
+  static Cell tombstone(final long timestamp) {
+    return new Cell(null, timestamp);
+  }
+
+  boolean isTombstone() {
+    return value == null;
+  }
+
+  long getTimestamp() {
+    return timestamp;
+  }
+
+  /**
+   * @return view of the stored value, must not be modified
+   * @throws IllegalStateException if this cell is a tombstone
+   */
+  @NotNull
+  ByteBuffer getValue() {
+    if (value == null) {
+      throw new IllegalStateException("Tombstone has no value");
+    }
+    return value.duplicate();
+  }
+
+  /**
+   * @return stored value copied to a new array
+   * @throws IllegalStateException if this cell is a tombstone
+   */
+  @NotNull
+  byte[] copyValue() {
+    ByteBuffer view = getValue();
+    byte[] result = new byte[view.remaining()];
+    view.get(result);
+    return result;
+  }
+
+  /** Approximate number of bytes, occupied by the cell */
+  int sizeInBytes() {
+    return Long.BYTES + (value == null ? 0 : value.remaining());
+  }
+}
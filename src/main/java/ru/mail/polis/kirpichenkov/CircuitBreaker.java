@@ -0,0 +1,104 @@
+package ru.mail.polis.kirpichenkov;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Circuit breaker of the calls to a peer. A closed circuit lets all the calls through. It opens
+ * after a few failures in a row or when the failure detector suspects the peer, and then the calls
+ * fail at once. After a pause, unless the detector still suspects the peer, or as soon as the peer
+ * answers a heartbeat, the circuit is half open: a single probe call goes through, and every
+ * successful probe doubles the number of calls let through at once, until the circuit closes. A
+ * failed probe opens it again.
+ *
+ * @author Pavel Kirpichenkov
+ */
+class CircuitBreaker {
+  private static final int FAILURES_TO_OPEN = Integer.getInteger("kv.circuit.failures", 3);
+  private static final long OPEN_NANOS =
+      TimeUnit.MILLISECONDS.toNanos(Long.getLong("kv.circuit.openMillis", 1000));
+  /** Calls let through at once, after which the circuit closes */
+  private static final int PROBES_TO_CLOSE = 16;
+  private State state = State.CLOSED;
+  private int failures;
+  private long reopenAt;
+  private int probes;
+  private int probing;
+
+  enum State {
+    CLOSED,
+    OPEN,
+    HALF_OPEN
+  }
+
+  /** @return whether the call may go to the peer, if so its outcome must be reported */
+  synchronized boolean allow(final long now) {
+    if (state == State.OPEN && now - reopenAt >= 0) {
+      halfOpen();
+    }
+    switch (state) {
+      case CLOSED:
+        return true;
+      case HALF_OPEN:
+        if (probing < probes) {
+          probing++;
+          return true;
+        }
+        return false;
+      default:
+        return false;
+    }
+  }
+
+  synchronized void success() {
+    failures = 0;
+    if (state == State.HALF_OPEN) {
+      probing = Math.max(0, probing - 1);
+      probes *= 2;
+      if (probes >= PROBES_TO_CLOSE) {
+        state = State.CLOSED;
+      }
+    }
+  }
+
+  synchronized void failure(final long now) {
+    failures++;
+    if (state == State.HALF_OPEN || state == State.CLOSED && failures >= FAILURES_TO_OPEN) {
+      open(now);
+    }
+  }
+
+  /** The failure detector suspects the peer, so no probes until it answers a heartbeat */
+  synchronized void trip(final long now) {
+    open(now);
+  }
+
+  /**
+   * The peer answered a heartbeat, so the probes may start at once. Probes whose outcome never
+   * came are forgotten.
+   */
+  synchronized void alive() {
+    if (state == State.OPEN) {
+      halfOpen();
+    } else if (state == State.HALF_OPEN) {
+      probing = 0;
+    }
+  }
+
+  @NotNull
+  synchronized State getState() {
+    return state;
+  }
+
+  private void open(final long now) {
+    state = State.OPEN;
+    reopenAt = now + OPEN_NANOS;
+  }
+
+  private void halfOpen() {
+    state = State.HALF_OPEN;
+    probes = 1;
+    probing = 0;
+  }
+}
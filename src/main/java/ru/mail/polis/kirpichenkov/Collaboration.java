@@ -1,22 +1,26 @@
 package ru.mail.polis.kirpichenkov;
 
-import one.nio.http.HttpClient;
 import one.nio.http.HttpException;
 import one.nio.http.Request;
 import one.nio.http.Response;
-import one.nio.net.ConnectionString;
 import one.nio.pool.PoolException;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import ru.mail.polis.kirpichenkov.Result.Status;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.time.Instant;
 import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
 
 public class Collaboration {
@@ -26,14 +30,16 @@ public class Collaboration {
   static final String INTERNAL_HEADER =
       String.format("%s: %s", INTERNAL_HEADER_KEY, INTERNAL_HEADER_VALUE);
   static final String TIMESTAMP_HEADER = "X-TIMESTAMP";
+  /** Internal read asking for the digest of the value instead of the value */
+  static final String DIGEST_HEADER = "X-DIGEST: TRUE";
+  private static final String DIGEST_HEADER_KEY = "X-DIGEST";
   static final int STATUS_OK = 200;
   static final int STATUS_CREATED = 201;
   static final int STATUS_ACCEPTED = 202;
   static final int STATUS_NOT_FOUND = 404;
   static final int STATUS_ERROR = 500;
   static final int STATUS_NOT_ENOUGH_REPLICAS = 504;
-  private static final long TIMEOUT = TimeUnit.MILLISECONDS.toMillis(500);
-  private static final Map<String, HttpClient> connections = new HashMap<>();
+  static final long TIMEOUT = TimeUnit.MILLISECONDS.toMillis(500);
 
   @NotNull
   static String entityPath(@NotNull final String id) {
@@ -46,25 +52,61 @@ public class Collaboration {
         .setStatus(Status.ERROR);
   }
 
+  /**
+   * Digest of the result: a value is replaced by its 64-bit hash, anything else is kept as it is
+   */
+  @NotNull
+  static Result digest(@NotNull final Result result) {
+    if (result.getStatus() != Status.OK || result.isDigest()) {
+      return result;
+    }
+    byte[] hash = ByteBuffer.allocate(Long.BYTES).putLong(Murmur3.hash64(result.getBody())).array();
+    return new Result()
+        .setStatus(Status.OK)
+        .setTimestamp(result.getTimestamp())
+        .setBody(hash)
+        .setDigest(true);
+  }
+
+  /**
+   * @param digest digest reply of a replica, see {@link #digest}
+   * @param data reply of the data replica, null if it hasn't answered
+   * @return whether the digest is the hash of the value the data replica answered with
+   */
+  static boolean sameValue(
+      @NotNull final Result digest,
+      @Nullable final Result data
+  ) {
+    return data != null
+        && data.getStatus() == Status.OK
+        && !data.isDigest()
+        && Arrays.equals(digest.getBody(), digest(data).getBody());
+  }
+
+  /**
+   * @param digest whether a read should ask for the digest of the value only
+   * @param version version of a write, {@link ReplicationProtocol#NO_VERSION} to let the peer
+   *     choose it
+   */
   @NotNull
   static Result remote(
       @NotNull final Request request,
       @NotNull final String id,
-      @NotNull final String nodeUrl
+      @NotNull final Peer peer,
+      final boolean digest,
+      final long version
   ) {
+    Instant timestamp = version == ReplicationProtocol.NO_VERSION
+        ? null
+        : NanoClock.fromEpochNanos(version);
     try {
-      HttpClient client = connections.get(nodeUrl);
-      if (client == null) {
-        client = new HttpClient(new ConnectionString(nodeUrl + "?timeout=" + TIMEOUT));
-        connections.put(nodeUrl, client);
-      }
       switch (request.getMethod()) {
         case Request.METHOD_GET:
-          return remoteGet(id, client);
+          return remoteGet(id, peer, digest);
         case Request.METHOD_PUT:
-          return remotePut(id, client, request.getBody());
+          return remotePut(id, peer, request.getBody(), timestamp);
         case Request.METHOD_DELETE:
-          return remoteDelete(id, client);
+          return remoteDelete(id, peer, timestamp);
         default:
           return error();
       }
@@ -77,19 +119,139 @@ public class Collaboration {
     }
   }
 
+  /**
+   * Call the peer with the binary protocol
+   *
+   * @param digest whether a read should ask for the digest of the value only
+   * @param version version of a write, {@link ReplicationProtocol#NO_VERSION} to let the peer
+   *     choose it
+   * @return future of the result, never failing, or null if the peer has to be called over HTTP
+   */
+  @Nullable
+  static CompletableFuture<Result> replicate(
+      @NotNull final Request request,
+      @NotNull final String id,
+      @NotNull final Peer peer,
+      final boolean digest,
+      final long version
+  ) {
+    byte op;
+    switch (request.getMethod()) {
+      case Request.METHOD_GET:
+        op = digest ? ReplicationProtocol.DIGEST : ReplicationProtocol.GET;
+        break;
+      case Request.METHOD_PUT:
+        op = ReplicationProtocol.PUT;
+        break;
+      case Request.METHOD_DELETE:
+        op = ReplicationProtocol.DELETE;
+        break;
+      default:
+        return CompletableFuture.completedFuture(error());
+    }
+    CompletableFuture<Result> result =
+        peer.replicate(op, id.getBytes(), version, request.getBody());
+    if (result == null) {
+      return null;
+    }
+    if (op == ReplicationProtocol.DIGEST) {
+      result = result.thenApply(reply -> reply.setDigest(reply.getStatus() == Status.OK));
+    }
+    return result.exceptionally(ex -> {
+      logger.error("{}: {}", peer::getUrl, () -> ex);
+      return error();
+    });
+  }
+
+  /**
+   * Deliver the write made elsewhere to the peer, keeping its version. Blocks until the peer
+   * answers or the call times out.
+   *
+   * @param op {@link ReplicationProtocol#PUT} or {@link ReplicationProtocol#DELETE}
+   * @param value value, null for a deletion
+   */
+  @NotNull
+  static Result deliver(
+      @NotNull final Peer peer,
+      final byte op,
+      @NotNull final byte[] key,
+      final long version,
+      @Nullable final byte[] value
+  ) {
+    CompletableFuture<Result> replicated = peer.replicate(op, key, version, value);
+    try {
+      if (replicated != null) {
+        return replicated.get();
+      }
+      String id = new String(key);
+      Instant timestamp = NanoClock.fromEpochNanos(version);
+      if (op == ReplicationProtocol.PUT && value != null) {
+        return remotePut(id, peer, value, timestamp);
+      } else if (op == ReplicationProtocol.DELETE) {
+        return remoteDelete(id, peer, timestamp);
+      } else {
+        return error();
+      }
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      return error();
+    } catch (ExecutionException | HttpException | IOException ex) {
+      logger.debug("{}: {}", peer::getUrl, () -> ex);
+      return error();
+    } catch (PoolException ex) {
+      logger.debug("{}; Cause: {}", () -> ex, ex::getCause);
+      return error();
+    }
+  }
+
+  /**
+   * Serve the request with the local storage. Writes of the other nodes carrying a version in the
+   * timestamp header are made with that version, and their reads with the digest header are
+   * answered with the digest.
+   */
   @NotNull
   static Result local(
       @NotNull final Request request,
       @NotNull final String id,
       @NotNull final InternalDao dao
   ) {
+    Instant version =
+        isInternal(request) ? getTimestamp(request.getHeader(TIMESTAMP_HEADER)) : null;
+    return local(
+        request,
+        id,
+        dao,
+        version == null ? ReplicationProtocol.NO_VERSION : NanoClock.toEpochNanos(version));
+  }
+
+  /**
+   * Serve the request with the local storage
+   *
+   * @param version version of a write, {@link ReplicationProtocol#NO_VERSION} for the current
+   *     time
+   */
+  @NotNull
+  static Result local(
+      @NotNull final Request request,
+      @NotNull final String id,
+      @NotNull final InternalDao dao,
+      final long version
+  ) {
+    boolean versioned = version != ReplicationProtocol.NO_VERSION;
     switch (request.getMethod()) {
       case Request.METHOD_GET:
-        return dao.get(id.getBytes());
+        Result result = dao.get(id.getBytes());
+        return isInternal(request) && request.getHeader(DIGEST_HEADER_KEY) != null
+            ? digest(result)
+            : result;
       case Request.METHOD_PUT:
-        return dao.upsert(id.getBytes(), request.getBody());
+        return versioned
+            ? dao.upsert(id.getBytes(), request.getBody(), version)
+            : dao.upsert(id.getBytes(), request.getBody());
       case Request.METHOD_DELETE:
-        return dao.remove(id.getBytes());
+        return versioned
+            ? dao.remove(id.getBytes(), version)
+            : dao.remove(id.getBytes());
       default:
         return error();
     }
@@ -98,17 +260,21 @@ public class Collaboration {
   @NotNull
   private static Result remoteGet(
       @NotNull final String id,
-      @NotNull final HttpClient client
+      @NotNull final Peer peer,
+      final boolean digest
   ) throws InterruptedException, HttpException, PoolException, IOException
   {
-    Response response = client.get(entityPath(id), INTERNAL_HEADER);
+    Response response = digest
+        ? peer.invoke(client -> client.get(entityPath(id), INTERNAL_HEADER, DIGEST_HEADER))
+        : peer.invoke(client -> client.get(entityPath(id), INTERNAL_HEADER));
     Instant timestamp = getTimestampFromHeader(response);
     Result result = new Result()
         .setTimestamp(timestamp);
     if (response.getStatus() == STATUS_OK) {
       result
           .setBody(response.getBody())
-          .setStatus(Status.OK);
+          .setStatus(Status.OK)
+          .setDigest(digest);
     } else if (response.getStatus() == STATUS_NOT_FOUND) {
       if (timestamp.equals(Instant.MIN)) {
         result.setStatus(Status.ABSENT);
@@ -122,11 +288,12 @@ public class Collaboration {
   @NotNull
   private static Result remotePut(
       @NotNull final String id,
-      @NotNull final HttpClient client,
-      final byte[] body
+      @NotNull final Peer peer,
+      final byte[] body,
+      @Nullable final Instant version
   ) throws InterruptedException, HttpException, PoolException, IOException
   {
-    Response response = client.put(entityPath(id), body, INTERNAL_HEADER);
+    Response response = peer.invoke(client -> client.put(entityPath(id), body, headers(version)));
     Instant timestamp = getTimestampFromHeader(response);
     Result result = new Result()
         .setTimestamp(timestamp);
@@ -141,10 +308,11 @@ public class Collaboration {
   @NotNull
   private static Result remoteDelete(
       @NotNull final String id,
-      @NotNull final HttpClient client
+      @NotNull final Peer peer,
+      @Nullable final Instant version
   ) throws InterruptedException, HttpException, PoolException, IOException
   {
-    Response response = client.delete(entityPath(id), INTERNAL_HEADER);
+    Response response = peer.invoke(client -> client.delete(entityPath(id), headers(version)));
     Instant timestamp = getTimestampFromHeader(response);
     Result result = new Result()
         .setTimestamp(timestamp);
@@ -161,20 +329,30 @@ public class Collaboration {
     return header != null && headerValue(header).equals(INTERNAL_HEADER_VALUE);
   }
 
+  /** Headers of an internal write, with the version to make it with if there is one */
+  @NotNull
+  private static String[] headers(@Nullable final Instant version) {
+    return version == null
+        ? new String[] {INTERNAL_HEADER}
+        : new String[] {INTERNAL_HEADER, TIMESTAMP_HEADER + ": " + version};
+  }
+
   @NotNull
   private static Instant getTimestampFromHeader(
       @NotNull final Response response
   ) throws IllegalArgumentException
   {
+    Instant timestamp = getTimestamp(response.getHeader(TIMESTAMP_HEADER));
+    return timestamp == null ? Instant.MIN : timestamp;
+  }
+
+  /** @return timestamp from the raw header value, null if there is none or it is malformed */
+  @Nullable
+  private static Instant getTimestamp(@Nullable final String header) {
     try {
-      String timestamp = response.getHeader(TIMESTAMP_HEADER);
-      if (timestamp != null) {
-        return Instant.parse(headerValue(timestamp));
-      } else {
-        return Instant.MIN;
-      }
-    } catch (DateTimeParseException ex) {
-      return Instant.MIN;
+      return header == null ? null : Instant.parse(headerValue(header));
+    } catch (DateTimeParseException | IllegalArgumentException ex) {
+      return null;
     }
   }
 
@@ -191,17 +369,45 @@ public class Collaboration {
       if (r.getStatus() != Status.ERROR) {
         successCounter += 1;
         if (result.getTimestamp().equals(Instant.MIN)
-            || r.getTimestamp().isAfter(result.getTimestamp())) {
+            || r.getTimestamp().isAfter(result.getTimestamp())
+            || r.getTimestamp().equals(result.getTimestamp()) && result.isDigest() && !r.isDigest()) {
           result = r;
         }
       }
     }
     if (successCounter < acksRequired) {
-      result.setStatus(Status.ERROR);
+      return new Result()
+          .setTimestamp(result.getTimestamp())
+          .setStatus(Status.ERROR);
     }
     return result;
   }
 
+  /**
+   * Find the replicas behind the newest of the replies
+   *
+   * @param replies replies of all the replicas by their urls
+   * @param newest newest of the replies, see {@link #mergeResults}
+   * @return urls of the replicas which answered with older versions
+   */
+  @NotNull
+  static List<String> staleReplicas(
+      @NotNull final Map<String, Result> replies,
+      @NotNull final Result newest
+  ) {
+    List<String> stale = new ArrayList<>();
+    if (newest.getStatus() != Status.OK && newest.getStatus() != Status.DELETED) {
+      return stale;
+    }
+    replies.forEach((nodeUrl, reply) -> {
+      if (reply.getStatus() != Status.ERROR
+          && reply.getTimestamp().isBefore(newest.getTimestamp())) {
+        stale.add(nodeUrl);
+      }
+    });
+    return stale;
+  }
+
   @NotNull
   private static String headerValue(@NotNull final String header) {
     if (!header.startsWith(":")) {
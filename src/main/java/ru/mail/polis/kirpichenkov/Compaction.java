@@ -0,0 +1,87 @@
+package ru.mail.polis.kirpichenkov;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Tables chosen by a {@link CompactionStrategy} to be merged, and where the result goes
+ *
+ * @author Pavel Kirpichenkov
+ */
+class Compaction {
+  private final List<SSTable> inputs;
+  private final int outputLevel;
+  private final long maxTableBytes;
+
+  /**
+   * @param inputs tables to merge; they must not be shadowed by any other table of the same or
+   *     higher level with a sequence in between
+   * @param outputLevel level of the resulting tables
+   * @param maxTableBytes size after which the output is split into the next table
+   */
+  Compaction(
+      @NotNull final List<SSTable> inputs,
+      final int outputLevel,
+      final long maxTableBytes
+  ) {
+    this.inputs = inputs;
+    this.outputLevel = outputLevel;
+    this.maxTableBytes = maxTableBytes;
+  }
+
+  @NotNull
+  List<SSTable> getInputs() {
+    return inputs;
+  }
+
+  int getOutputLevel() {
+    return outputLevel;
+  }
+
+  long getMaxTableBytes() {
+    return maxTableBytes;
+  }
+
+  /** @return smallest key of the tables or null if all of them are empty */
+  @Nullable
+  static ByteBuffer firstKey(@NotNull final List<SSTable> tables) {
+    ByteBuffer result = null;
+    for (SSTable table : tables) {
+      ByteBuffer key = table.firstKey();
+      if (key != null && (result == null || key.compareTo(result) < 0)) {
+        result = key;
+      }
+    }
+    return result;
+  }
+
+  /** @return biggest key of the tables or null if all of them are empty */
+  @Nullable
+  static ByteBuffer lastKey(@NotNull final List<SSTable> tables) {
+    ByteBuffer result = null;
+    for (SSTable table : tables) {
+      ByteBuffer key = table.lastKey();
+      if (key != null && (result == null || key.compareTo(result) > 0)) {
+        result = key;
+      }
+    }
+    return result;
+  }
+
+  /** Whether the table may contain keys from the range; an empty range overlaps nothing */
+  static boolean overlaps(
+      @NotNull final SSTable table,
+      @Nullable final ByteBuffer first,
+      @Nullable final ByteBuffer last
+  ) {
+    ByteBuffer tableFirst = table.firstKey();
+    ByteBuffer tableLast = table.lastKey();
+    if (first == null || last == null || tableFirst == null || tableLast == null) {
+      return false;
+    }
+    return tableFirst.compareTo(last) <= 0 && tableLast.compareTo(first) >= 0;
+  }
+}
@@ -0,0 +1,126 @@
+package ru.mail.polis.kirpichenkov;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Record of a compaction being committed, which makes the switch from the input tables to the
+ * output ones atomic.
+ * <p>
+ * Outputs are written under {@link #PENDING_SUFFIX} names, which are never opened as tables.
+ * Once all of them are complete, the manifest listing inputs and outputs is written; after that
+ * the outputs are renamed to their real names, the inputs are deleted and so is the manifest.
+ * A manifest found on startup means the compaction is committed and has to be finished; pending
+ * outputs without a manifest are leftovers of an aborted compaction.
+ *
+ * @author Pavel Kirpichenkov
+ */
+class CompactionManifest {
+  static final String SUFFIX = ".compaction";
+  static final String PENDING_SUFFIX = ".new";
+  private final File file;
+  private final List<String> inputs;
+  private final List<String> outputs;
+
+  private CompactionManifest(
+      @NotNull final File file,
+      @NotNull final List<String> inputs,
+      @NotNull final List<String> outputs
+  ) {
+    this.file = file;
+    this.inputs = inputs;
+    this.outputs = outputs;
+  }
+
+  /**
+   * Durably record the compaction
+   *
+   * @param inputs names of the input tables
+   * @param outputs real names of the output tables, written under pending names
+   */
+  @NotNull
+  static CompactionManifest write(
+      @NotNull final File file,
+      @NotNull final List<String> inputs,
+      @NotNull final List<String> outputs
+  ) throws IOException
+  {
+    File tmp = new File(file.getParentFile(), file.getName() + SSTable.TMP_SUFFIX);
+    try (FileOutputStream fos = new FileOutputStream(tmp);
+         DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos))) {
+      writeNames(out, inputs);
+      writeNames(out, outputs);
+      out.flush();
+      fos.getFD().sync();
+    }
+    Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+    return new CompactionManifest(file, inputs, outputs);
+  }
+
+  @NotNull
+  static CompactionManifest read(@NotNull final File file) throws IOException {
+    try (DataInputStream in = new DataInputStream(
+        new BufferedInputStream(new FileInputStream(file)))) {
+      List<String> inputs = readNames(in);
+      List<String> outputs = readNames(in);
+      return new CompactionManifest(file, inputs, outputs);
+    }
+  }
+
+  /**
+   * Move the outputs to their real names and delete the inputs and the manifest. Steps already
+   * done before a crash are skipped.
+   */
+  void complete() throws IOException {
+    File dir = file.getParentFile();
+    for (String output : outputs) {
+      File pending = new File(dir, output + PENDING_SUFFIX);
+      if (pending.exists()) {
+        Files.move(
+            pending.toPath(),
+            new File(dir, output).toPath(),
+            StandardCopyOption.ATOMIC_MOVE);
+      }
+    }
+    for (String input : inputs) {
+      Files.deleteIfExists(new File(dir, input).toPath());
+    }
+    Files.delete(file.toPath());
+  }
+
+  private static void writeNames(
+      @NotNull final DataOutputStream out,
+      @NotNull final List<String> names
+  ) throws IOException
+  {
+    out.writeInt(names.size());
+    for (String name : names) {
+      out.writeUTF(name);
+    }
+  }
+
+  @NotNull
+  private static List<String> readNames(@NotNull final DataInputStream in) throws IOException {
+    int count = in.readInt();
+    if (count < 0) {
+      throw new IOException("Corrupted compaction manifest");
+    }
+    List<String> names = new ArrayList<>(count);
+    for (int ix = 0; ix < count; ix++) {
+      names.add(in.readUTF());
+    }
+    return names;
+  }
+}
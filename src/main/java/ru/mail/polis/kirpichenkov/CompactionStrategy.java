@@ -0,0 +1,41 @@
+package ru.mail.polis.kirpichenkov;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.List;
+
+/**
+ * Policy deciding which tables of the {@link LsmKVDao} are merged together.
+ * <p>
+ * Tables are ordered the way reads check them: by level, and inside a level from the biggest
+ * sequence to the smallest. Level 0 tables may overlap each other; whether tables of the higher
+ * levels may overlap is up to the strategy.
+ *
+ * @author Pavel Kirpichenkov
+ */
+interface CompactionStrategy {
+  /**
+   * @param tables all tables in the read order
+   * @return next compaction or null if nothing has to be merged now
+   */
+  @Nullable
+  Compaction pick(@NotNull List<SSTable> tables);
+
+  /**
+   * Strategy configured with the {@code kv.lsm.compaction} property: {@code size-tiered}
+   * (default) or {@code leveled}
+   */
+  @NotNull
+  static CompactionStrategy fromProperties() {
+    String name = System.getProperty("kv.lsm.compaction", "size-tiered");
+    switch (name) {
+      case "size-tiered":
+        return new SizeTieredCompaction();
+      case "leveled":
+        return new LeveledCompaction(Long.getLong("kv.lsm.leveled.tableBytes", 64 * 1024 * 1024));
+      default:
+        throw new IllegalArgumentException("Unknown compaction strategy " + name);
+    }
+  }
+}
@@ -0,0 +1,76 @@
+package ru.mail.polis.kirpichenkov;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters of the replica replies which came after the coordinator had already answered.
+ * Divergent late replies point at the replicas that need repair, and the stale replicas found by
+ * reads are counted as they are repaired, as are the spare replicas asked by hedged reads and the
+ * values fetched again because a digest was newer than the value read.
+ *
+ * @author Pavel Kirpichenkov
+ */
+class CoordinatorMetrics {
+  private final LongAdder requests = new LongAdder();
+  private final LongAdder early = new LongAdder();
+  private final LongAdder late = new LongAdder();
+  private final LongAdder lateDivergent = new LongAdder();
+  private final LongAdder repaired = new LongAdder();
+  private final LongAdder hedges = new LongAdder();
+  private final LongAdder digestMismatches = new LongAdder();
+
+  /**
+   * @param response result sent to the client
+   * @param lateReplies replies received after it was sent
+   */
+  void record(
+      @NotNull final Result response,
+      @NotNull final List<Result> lateReplies
+  ) {
+    requests.increment();
+    if (lateReplies.isEmpty()) {
+      return;
+    }
+    early.increment();
+    late.add(lateReplies.size());
+    for (Result reply : lateReplies) {
+      if (reply.getStatus() != Result.Status.ERROR
+          && !reply.getTimestamp().equals(response.getTimestamp())) {
+        lateDivergent.increment();
+      }
+    }
+  }
+
+  /** Count the stale replicas sent the newest version by read repair */
+  void repaired(final int replicas) {
+    repaired.add(replicas);
+  }
+
+  /** Count the spare replicas asked because of slow ones */
+  void hedged(final int replicas) {
+    hedges.add(replicas);
+  }
+
+  /** Count the value fetched again, because a replica sent the digest of a newer one */
+  void digestMismatch() {
+    digestMismatches.increment();
+  }
+
+  @NotNull
+  @Override
+  public String toString() {
+    return String.format(
+        "%d requests, %d answered before all replies, %d late replies, %d of them divergent, "
+            + "%d replicas repaired, %d hedged reads, %d values fetched after digests",
+        requests.sum(),
+        early.sum(),
+        late.sum(),
+        lateDivergent.sum(),
+        repaired.sum(),
+        hedges.sum(),
+        digestMismatches.sum());
+  }
+}
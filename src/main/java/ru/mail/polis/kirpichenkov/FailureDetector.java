@@ -0,0 +1,59 @@
+package ru.mail.polis.kirpichenkov;
+
+/**
+ * Phi accrual failure detector. Instead of a fixed timeout it tells how suspicious the silence of
+ * a peer is, given the intervals between its recent heartbeats: phi is the minus decimal logarithm
+ * of the probability that a heartbeat is still to come. Intervals are taken as exponentially
+ * distributed, so phi grows linearly with the time since the last heartbeat.
+ *
+ * @author Pavel Kirpichenkov
+ */
+class FailureDetector {
+  private static final int WINDOW = 100;
+  private static final double LOG10_E = Math.log10(Math.E);
+  /** Longer intervals are outages rather than samples of the usual ones */
+  private static final int MAX_INTERVAL_FACTOR = 10;
+  private final long maxInterval;
+  private final long[] intervals = new long[WINDOW];
+  private int count;
+  private int next;
+  private long sum;
+  private long lastHeartbeat;
+
+  /**
+   * @param expectedIntervalNanos interval between the heartbeats assumed until there are some
+   * @param now current time in nanoseconds
+   */
+  FailureDetector(
+      final long expectedIntervalNanos,
+      final long now
+  ) {
+    maxInterval = MAX_INTERVAL_FACTOR * expectedIntervalNanos;
+    add(expectedIntervalNanos);
+    lastHeartbeat = now;
+  }
+
+  synchronized void heartbeat(final long now) {
+    long interval = now - lastHeartbeat;
+    if (interval <= maxInterval) {
+      add(interval);
+    }
+    lastHeartbeat = now;
+  }
+
+  synchronized double phi(final long now) {
+    double mean = (double) sum / count;
+    return (now - lastHeartbeat) / mean * LOG10_E;
+  }
+
+  private void add(final long interval) {
+    if (count == WINDOW) {
+      sum -= intervals[next];
+    } else {
+      count++;
+    }
+    intervals[next] = Math.max(1, interval);
+    sum += intervals[next];
+    next = (next + 1) % WINDOW;
+  }
+}
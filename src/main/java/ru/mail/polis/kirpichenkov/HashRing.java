@@ -0,0 +1,162 @@
+package ru.mail.polis.kirpichenkov;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Consistent hash ring. Every node owns a number of virtual nodes at the points given by the
+ * hash of its url, and a key belongs to the first virtual nodes clockwise from the hash of the
+ * key. So adding or removing a node moves only about 1/N of the keys.
+ * <p>
+ * The ring is immutable: the tokens are kept sorted in an array, next to the indexes of their
+ * nodes, and looked up with binary search.
+ *
+ * @author Pavel Kirpichenkov
+ */
+class HashRing {
+  /** Virtual nodes per node */
+  static final int VIRTUAL_NODES = Integer.getInteger("kv.ring.virtualNodes", 128);
+  /**
+   * The lowest bits of a token hold the index of its node, so that sorting the tokens sorts the
+   * owners along with them
+   */
+  private static final long OWNER_MASK = 0xffff;
+  private final List<String> nodes;
+  private final long[] tokens;
+  private final int[] owners;
+
+  /** @param orderedNodes node urls, in the same order on every node */
+  HashRing(
+      @NotNull final List<String> orderedNodes,
+      final int virtualNodes
+  ) {
+    if (orderedNodes.isEmpty() || orderedNodes.size() > OWNER_MASK || virtualNodes < 1) {
+      throw new IllegalArgumentException("Ring needs nodes and virtual nodes");
+    }
+    this.nodes = Collections.unmodifiableList(new ArrayList<>(orderedNodes));
+    int count = nodes.size() * virtualNodes;
+    long[] points = new long[count];
+    int ix = 0;
+    for (int node = 0; node < nodes.size(); node++) {
+      for (int vnode = 0; vnode < virtualNodes; vnode++) {
+        points[ix++] = token(nodes.get(node), vnode, node);
+      }
+    }
+    Arrays.sort(points);
+    this.tokens = new long[count];
+    this.owners = new int[count];
+    for (ix = 0; ix < count; ix++) {
+      tokens[ix] = points[ix] & ~OWNER_MASK;
+      owners[ix] = (int) (points[ix] & OWNER_MASK);
+    }
+  }
+
+  private static long token(
+      @NotNull final String node,
+      final int vnode,
+      final int index
+  ) {
+    byte[] name = (node + '#' + vnode).getBytes(StandardCharsets.UTF_8);
+    return (Murmur3.hash64(name) & ~OWNER_MASK) | index;
+  }
+
+  @NotNull
+  List<String> getNodes() {
+    return nodes;
+  }
+
+  /**
+   * @param key key to place on the ring
+   * @param count number of distinct nodes
+   * @return nodes responsible for the key, the primary one first
+   */
+  @NotNull
+  List<String> replicas(
+      @NotNull final byte[] key,
+      final int count
+  ) {
+    return rangeReplicas(range(key), count);
+  }
+
+  /** Number of the token ranges, one ending at every token */
+  int rangeCount() {
+    return tokens.length;
+  }
+
+  /** @return index of the token range the key falls into, below {@link #rangeCount()} */
+  int range(@NotNull final byte[] key) {
+    return first(Murmur3.hash64(key) & ~OWNER_MASK);
+  }
+
+  /**
+   * @param range index of the token range, see {@link #range}
+   * @param count number of distinct nodes
+   * @return nodes responsible for the keys of the range, the primary one first
+   */
+  @NotNull
+  List<String> rangeReplicas(
+      final int range,
+      final int count
+  ) {
+    if (count > nodes.size()) {
+      throw new IllegalArgumentException("Not enough nodes");
+    }
+    List<String> result = new ArrayList<>(count);
+    boolean[] taken = new boolean[nodes.size()];
+    int ix = range;
+    while (result.size() < count) {
+      int owner = owners[ix];
+      if (!taken[owner]) {
+        taken[owner] = true;
+        result.add(nodes.get(owner));
+      }
+      ix = ix + 1 == tokens.length ? 0 : ix + 1;
+    }
+    return result;
+  }
+
+  /** Index of the first token not below the hash, wrapping around the ring */
+  private int first(final long hash) {
+    int ix = Arrays.binarySearch(tokens, hash);
+    if (ix < 0) {
+      ix = -ix - 1;
+    }
+    return ix == tokens.length ? 0 : ix;
+  }
+
+  /**
+   * @return share of the ring owned by each node as the primary replica, in the node order;
+   *     the shares sum up to 1
+   */
+  @NotNull
+  double[] ownership() {
+    double[] shares = new double[nodes.size()];
+    double ring = Math.pow(2, Long.SIZE);
+    for (int ix = 0; ix < tokens.length; ix++) {
+      // Difference of the tokens modulo 2^64 is the arc ending at the token
+      long arc = tokens[ix] - tokens[ix == 0 ? tokens.length - 1 : ix - 1];
+      double length = tokens.length == 1 ? ring : arc < 0 ? arc + ring : arc;
+      shares[owners[ix]] += length / ring;
+    }
+    return shares;
+  }
+
+  /** Share of every node and the ratio of the largest share to the fair one */
+  @NotNull
+  String skewReport() {
+    double[] shares = ownership();
+    double max = 0;
+    StringBuilder report = new StringBuilder();
+    for (int ix = 0; ix < shares.length; ix++) {
+      max = Math.max(max, shares[ix]);
+      report.append(String.format("%s %.1f%%, ", nodes.get(ix), shares[ix] * 100));
+    }
+    report.append(String.format("skew %.2f", max * shares.length));
+    return report.toString();
+  }
+}
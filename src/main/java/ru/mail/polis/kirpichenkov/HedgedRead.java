@@ -0,0 +1,132 @@
+package ru.mail.polis.kirpichenkov;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.ToLongFunction;
+
+/**
+ * Read which asks only as many replicas as there are acknowledges required, the fastest ones first.
+ * A spare replica is asked when one of them fails, or when it hasn't answered within the usual
+ * latency of that replica. Once the response is decided the spare replicas left are skipped.
+ *
+ * @author Pavel Kirpichenkov
+ */
+class HedgedRead {
+  private final List<String> nodes;
+  private final int acks;
+  private final QuorumCollector collector;
+  private final Function<String, CompletableFuture<Result>> call;
+  private final ToLongFunction<String> delayNanos;
+  private final ScheduledExecutorService timer;
+  private final Map<String, CompletableFuture<Result>> replies = new ConcurrentHashMap<>();
+  private int asked;
+  private int hedges;
+  private boolean done;
+
+  /**
+   * @param nodes replicas from the fastest to the slowest
+   * @param acks successes required to answer
+   * @param call asks the replica
+   * @param delayNanos time to wait for the replica before asking a spare one
+   * @param timer schedules the spare calls
+   */
+  HedgedRead(
+      @NotNull final List<String> nodes,
+      final int acks,
+      @NotNull final Function<String, CompletableFuture<Result>> call,
+      @NotNull final ToLongFunction<String> delayNanos,
+      @NotNull final ScheduledExecutorService timer
+  ) {
+    this.nodes = nodes;
+    this.acks = acks;
+    this.collector = new QuorumCollector(acks, nodes.size());
+    this.call = call;
+    this.delayNanos = delayNanos;
+    this.timer = timer;
+  }
+
+  /** Ask the fastest replicas */
+  void start() {
+    collector.response().thenRun(this::finish);
+    for (int ix = 0; ix < acks; ix++) {
+      ask();
+    }
+  }
+
+  @NotNull
+  QuorumCollector getCollector() {
+    return collector;
+  }
+
+  /** Replies of the replicas asked so far */
+  @NotNull
+  Map<String, CompletableFuture<Result>> getReplies() {
+    return replies;
+  }
+
+  /** Spare replicas asked because of a slow one */
+  synchronized int getHedges() {
+    return hedges;
+  }
+
+  private void ask() {
+    String node;
+    synchronized (this) {
+      if (done || asked == nodes.size()) {
+        return;
+      }
+      node = nodes.get(asked++);
+    }
+    CompletableFuture<Result> reply = call.apply(node);
+    replies.put(node, reply);
+    ScheduledFuture<?> hedge = null;
+    if (!reply.isDone()) {
+      try {
+        hedge = timer.schedule(() -> hedge(reply), delayNanos.applyAsLong(node), TimeUnit.NANOSECONDS);
+      } catch (RejectedExecutionException ex) {
+        // Shutting down, the replica has until its timeout
+      }
+    }
+    ScheduledFuture<?> scheduled = hedge;
+    reply.thenAccept(result -> {
+      if (scheduled != null) {
+        scheduled.cancel(false);
+      }
+      if (result.getStatus() == Result.Status.ERROR) {
+        ask();
+      }
+      collector.add(result);
+    });
+  }
+
+  private void hedge(@NotNull final CompletableFuture<Result> reply) {
+    if (reply.isDone()) {
+      return;
+    }
+    synchronized (this) {
+      if (done || asked == nodes.size()) {
+        return;
+      }
+      hedges++;
+    }
+    ask();
+  }
+
+  private void finish() {
+    int notAsked;
+    synchronized (this) {
+      done = true;
+      notAsked = nodes.size() - asked;
+    }
+    collector.skip(notAsked);
+  }
+}
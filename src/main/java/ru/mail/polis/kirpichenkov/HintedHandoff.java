@@ -0,0 +1,364 @@
+package ru.mail.polis.kirpichenkov;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32;
+
+/**
+ * Hinted handoff. Writes acknowledged by the quorum, but missed by some replica, are kept in a
+ * local log of that replica, and are delivered in the background as soon as it answers the status
+ * request again. So the replicas converge without a repair.
+ * <p>
+ * Every replica has a file of hints under {@code hints} in the storage directory. Hints are frames
+ * of the {@link ReplicationProtocol}, so they carry the version of the write and are delivered as
+ * versioned writes, which never replace newer values. Before the delivery the file is renamed, so
+ * that new hints go to a new file; a delivery that fails is started over later, which is safe for
+ * the same reason. When the hints take too much space, new ones are dropped.
+ * <p>
+ * Hints are appended without a sync, so a crash may leave a torn frame at the end of the file.
+ * Every frame is followed by its CRC32, and the hints from the first short or broken frame on are
+ * dropped: the files left by a crash are cut there on start, and the delivery ends there.
+ *
+ * @author Pavel Kirpichenkov
+ */
+class HintedHandoff implements Closeable {
+  private static final Logger logger = LogManager.getLogger(HintedHandoff.class);
+  private static final long MAX_BYTES = Long.getLong("kv.hints.maxBytes", 64 * 1024 * 1024);
+  private static final long REPLAY_BYTES_PER_SECOND =
+      Long.getLong("kv.hints.replayBytesPerSecond", 4 * 1024 * 1024);
+  private static final long REPLAY_INTERVAL_MILLIS =
+      Long.getLong("kv.hints.replayIntervalMillis", 1000);
+  static final String DIRECTORY = "hints";
+  private static final String SUFFIX = ".hints";
+  private static final String REPLAY_SUFFIX = ".replay";
+  private final File directory;
+  private final PeerPools peers;
+  private final IoRateLimiter limiter = new IoRateLimiter(REPLAY_BYTES_PER_SECOND);
+  private final ConcurrentMap<String, Hints> replicas = new ConcurrentHashMap<>();
+  private final AtomicLong bytes = new AtomicLong();
+  private final LongAdder stored = new LongAdder();
+  private final LongAdder dropped = new LongAdder();
+  private final LongAdder delivered = new LongAdder();
+  private final ScheduledExecutorService scheduler = new ScheduledThreadPoolExecutor(1, task -> {
+    Thread thread = new Thread(task, "hints");
+    thread.setDaemon(true);
+    return thread;
+  });
+
+  /** Hints of one replica */
+  private class Hints {
+    final String target;
+    final File file;
+    final File replay;
+    @Nullable
+    FileOutputStream out;
+
+    Hints(@NotNull final String target) throws UnsupportedEncodingException {
+      this.target = target;
+      String name = URLEncoder.encode(target, StandardCharsets.UTF_8.name());
+      this.file = new File(directory, name + SUFFIX);
+      this.replay = new File(directory, name + REPLAY_SUFFIX);
+    }
+
+    synchronized void append(@NotNull final byte[] record) throws IOException {
+      if (out == null) {
+        out = new FileOutputStream(file, true);
+      }
+      out.write(record);
+    }
+
+    /** @return file to deliver, null if there are no hints */
+    @Nullable
+    synchronized File takeForReplay() throws IOException {
+      if (replay.exists()) {
+        return replay;
+      }
+      if (out != null) {
+        out.close();
+        out = null;
+      }
+      if (!file.exists()) {
+        return null;
+      }
+      if (!file.renameTo(replay)) {
+        throw new IOException("Can't rename " + file);
+      }
+      return replay;
+    }
+
+    synchronized void close() throws IOException {
+      if (out != null) {
+        out.close();
+        out = null;
+      }
+    }
+  }
+
+  /**
+   * Pick up the hints left from the previous run
+   *
+   * @param basePath storage directory
+   * @param peers pools to deliver the hints with
+   */
+  HintedHandoff(
+      @NotNull final File basePath,
+      @NotNull final PeerPools peers
+  ) throws IOException
+  {
+    this.directory = new File(basePath, DIRECTORY);
+    this.peers = peers;
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Can't create " + directory);
+    }
+    File[] files = directory.listFiles();
+    if (files == null) {
+      throw new IOException("Can't list files in " + directory);
+    }
+    for (File file : files) {
+      String name = file.getName();
+      String suffix = name.endsWith(SUFFIX)
+          ? SUFFIX
+          : name.endsWith(REPLAY_SUFFIX) ? REPLAY_SUFFIX : null;
+      if (suffix == null) {
+        continue;
+      }
+      String target = URLDecoder.decode(
+          name.substring(0, name.length() - suffix.length()),
+          StandardCharsets.UTF_8.name());
+      replicas.computeIfAbsent(target, this::create);
+      if (suffix.equals(SUFFIX)) {
+        // New hints are appended here, and they must not follow a torn one
+        truncateTornTail(file);
+      }
+      bytes.addAndGet(file.length());
+    }
+    scheduler.scheduleWithFixedDelay(
+        this::replay,
+        REPLAY_INTERVAL_MILLIS,
+        REPLAY_INTERVAL_MILLIS,
+        TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Keep the write the replica missed
+   *
+   * @param op {@link ReplicationProtocol#PUT} or {@link ReplicationProtocol#DELETE}
+   * @param version version the write was acknowledged with
+   * @param value value, null for a deletion
+   */
+  void hint(
+      @NotNull final String target,
+      final byte op,
+      @NotNull final byte[] key,
+      final long version,
+      @Nullable final byte[] value
+  ) {
+    byte[] frame = ReplicationProtocol.request(0, op, key, version, value);
+    byte[] record = ByteBuffer.allocate(frame.length + Integer.BYTES)
+        .put(frame)
+        .putInt(checksum(frame))
+        .array();
+    if (bytes.addAndGet(record.length) > MAX_BYTES) {
+      bytes.addAndGet(-record.length);
+      dropped.increment();
+      return;
+    }
+    try {
+      replicas.computeIfAbsent(target, this::create).append(record);
+      stored.increment();
+    } catch (IOException ex) {
+      bytes.addAndGet(-record.length);
+      dropped.increment();
+      logger.error("Can't keep hint for {}", target, ex);
+    }
+  }
+
+  @Override
+  public void close() {
+    scheduler.shutdownNow();
+    try {
+      scheduler.awaitTermination(1, TimeUnit.SECONDS);
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+    }
+    for (Hints replica : replicas.values()) {
+      try {
+        replica.close();
+      } catch (IOException ex) {
+        logger.error("Can't close hints of {}", replica.target, ex);
+      }
+    }
+  }
+
+  @NotNull
+  @Override
+  public String toString() {
+    return String.format(
+        "%d stored, %d dropped, %d delivered, %d bytes pending",
+        stored.sum(),
+        dropped.sum(),
+        delivered.sum(),
+        bytes.get());
+  }
+
+  @NotNull
+  private Hints create(@NotNull final String target) {
+    try {
+      return new Hints(target);
+    } catch (UnsupportedEncodingException ex) {
+      throw new IllegalStateException(ex);
+    }
+  }
+
+  private void replay() {
+    for (Hints replica : replicas.values()) {
+      try {
+        File file = replica.takeForReplay();
+        if (file == null) {
+          continue;
+        }
+        Peer peer = peers.get(replica.target);
+        if (!peer.ping()) {
+          continue;
+        }
+        long length = file.length();
+        if (deliver(peer, file)) {
+          if (!file.delete()) {
+            throw new IOException("Can't delete " + file);
+          }
+          bytes.addAndGet(-length);
+        }
+      } catch (InterruptedIOException ex) {
+        return;
+      } catch (IOException ex) {
+        logger.error("Can't deliver hints to {}", replica.target, ex);
+      }
+      if (Thread.currentThread().isInterrupted()) {
+        return;
+      }
+    }
+  }
+
+  /** @return whether all the intact hints were delivered */
+  private boolean deliver(
+      @NotNull final Peer peer,
+      @NotNull final File file
+  ) throws IOException
+  {
+    try (DataInputStream in =
+             new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+      byte[] frame;
+      while ((frame = next(in, file)) != null) {
+        limiter.acquire(frame.length + Integer.BYTES);
+        ReplicationProtocol.Operation hint = parse(frame);
+        if (hint == null) {
+          logger.warn("Skipping malformed hint in {}", file);
+          continue;
+        }
+        Result result = Collaboration.deliver(peer, hint.op, hint.key, hint.version, hint.value);
+        if (result.getStatus() == Result.Status.ERROR) {
+          return false;
+        }
+        delivered.increment();
+      }
+      return true;
+    }
+  }
+
+  /** @return write of the hint frame, null if it is malformed */
+  @Nullable
+  private static ReplicationProtocol.Operation parse(@NotNull final byte[] frame) {
+    ByteBuffer request = ByteBuffer.wrap(frame);
+    try {
+      // Length and id
+      request.getInt();
+      request.getInt();
+      byte op = request.get();
+      byte[] key = ReplicationProtocol.getValue(request);
+      long version = request.getLong();
+      byte[] value = ReplicationProtocol.getValue(request);
+      return key == null ? null : new ReplicationProtocol.Operation(op, key, version, value);
+    } catch (IOException | BufferUnderflowException ex) {
+      return null;
+    }
+  }
+
+  /** Cut the file after its last intact hint */
+  private static void truncateTornTail(@NotNull final File file) throws IOException {
+    long intact = 0;
+    try (DataInputStream in =
+             new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+      byte[] frame;
+      while ((frame = next(in, file)) != null) {
+        intact += frame.length + Integer.BYTES;
+      }
+    }
+    if (intact < file.length()) {
+      try (RandomAccessFile hints = new RandomAccessFile(file, "rw")) {
+        hints.setLength(intact);
+      }
+    }
+  }
+
+  /**
+   * @return next hint frame with its length, checked against its checksum; null at the end of the
+   *     file or at a torn or broken frame, after which nothing can be trusted
+   */
+  @Nullable
+  private static byte[] next(
+      @NotNull final DataInputStream in,
+      @NotNull final File file
+  ) throws IOException
+  {
+    byte[] header = new byte[Integer.BYTES];
+    try {
+      in.readFully(header);
+    } catch (EOFException ex) {
+      return null;
+    }
+    try {
+      byte[] frame = new byte[Integer.BYTES + ReplicationProtocol.length(header)];
+      System.arraycopy(header, 0, frame, 0, header.length);
+      in.readFully(frame, header.length, frame.length - header.length);
+      if (in.readInt() != checksum(frame)) {
+        throw new IOException("Checksum mismatch");
+      }
+      return frame;
+    } catch (IOException ex) {
+      logger.warn("Dropping torn hints at the end of {}: {}", file, ex.toString());
+      return null;
+    }
+  }
+
+  private static int checksum(@NotNull final byte[] frame) {
+    CRC32 crc = new CRC32();
+    crc.update(frame, 0, frame.length);
+    return (int) crc.getValue();
+  }
+}
@@ -3,31 +3,73 @@ package ru.mail.polis.kirpichenkov;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
-import java.io.File;
 import java.io.IOException;
-import java.nio.file.Files;
-import java.nio.file.NoSuchFileException;
-import java.nio.file.Path;
-import java.nio.file.StandardCopyOption;
-import java.nio.file.attribute.FileTime;
+import java.nio.ByteBuffer;
 import java.time.Instant;
-import java.util.*;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.Lock;
 
 public class InternalDao {
   private static Logger logger = LogManager.getLogger(InternalDao.class);
-  private BasePathGrantingKVDao dao;
-  private final Map<Path, Boolean> filePresenceCache = FilePresenceCache.getInstance();
+  private static final int LOCK_STRIPES = 4096;
+  private static final long CACHE_SIZE = Long.getLong("kv.cache.bytes", 16 * 1024 * 1024);
+  private VersionedKVDao dao;
+  private final NanoClock clock = new NanoClock();
+  private final ValueCache cache = new ValueCache(CACHE_SIZE);
+  private final StripedLocks locks = new StripedLocks(LOCK_STRIPES);
+  /** Storage reads of the keys missing in the cache */
+  private final SingleFlight<ByteBuffer, Cell> reads = new SingleFlight<>(ByteBuffer::hashCode);
+  /** Hash trees of the stored versions, null if they aren't kept */
+  @Nullable
+  private final RangeTrees trees;
 
-  InternalDao(BasePathGrantingKVDao dao) {
+  InternalDao(VersionedKVDao dao) {
     this.dao = dao;
+    this.trees = null;
   }
 
   /**
-   * Get object from storage by key If tombstone exists before get, file considered deleted If file
-   * not found and tombstone exists, file also considered deleted If file not found and tombstone
-   * does not exit, file considered absent If file retrieved successfully retrieved after check, it
-   * is returned If IOError happened, error status is returned
+   * Keep the hash trees of the stored versions, filling them with a scan of the storage first.
+   * From then on every write reads the version it replaces.
+   */
+  InternalDao(
+      @NotNull final VersionedKVDao dao,
+      @NotNull final RangeTrees trees
+  ) throws IOException
+  {
+    this.dao = dao;
+    dao.scan((key, cell) -> {
+      byte[] bytes = new byte[key.remaining()];
+      key.duplicate().get(bytes);
+      trees.add(bytes, cell.getTimestamp());
+    });
+    this.trees = trees;
+  }
+
+  /** Storage reads which shared a concurrent read of the same key */
+  long getCoalescedReads() {
+    return reads.getShared();
+  }
+
+  @Nullable
+  RangeTrees getTrees() {
+    return trees;
+  }
+
+  void scan(@NotNull final VersionedKVDao.CellVisitor visitor) throws IOException {
+    dao.scan(visitor);
+  }
+
+  /**
+   * Get object from storage by key. The stored cell carries both the version and the deletion
+   * mark, so a single lookup tells whether the value is present, deleted or absent. Hot keys are
+   * served from the {@link ValueCache}, and concurrent misses of the same key share one storage
+   * read. If IOError happened, error status is returned
    *
    * @param id key of value we want to retrieve
    * @return Result object with the result of operation
@@ -36,152 +78,218 @@ public class InternalDao {
   public Result get(final byte[] id) {
     Result result = new Result();
     try {
-      if (setResultIfDeleted(result, id)) {
-        return result;
+      Cell cell = cache.get(id);
+      if (cell == null) {
+        cell = reads.read(ByteBuffer.wrap(id), () -> {
+          long stamp = cache.stamp(id);
+          Cell stored = dao.getCell(id);
+          if (stored != null) {
+            cache.put(id, stored, stamp);
+          }
+          return stored;
+        });
       }
-      byte[] value = dao.get(id);
-      Path file = KeyConverter.keyToFile(id, dao.getBasePath()).toPath();
-      Instant timestamp = Files.getLastModifiedTime(file).toInstant();
-      result
-          .setBody(value)
-          .setStatus(Result.Status.OK)
-          .setTimestamp(timestamp);
-    } catch (NoSuchElementException ex) {
-      if (setResultIfDeleted(result, id)) {
-        return result;
-      } else {
+      if (cell == null) {
         result
             .setStatus(Result.Status.ABSENT)
             .setTimestamp(Instant.MIN);
+      } else if (cell.isTombstone()) {
+        result
+            .setStatus(Result.Status.DELETED)
+            .setTimestamp(NanoClock.fromEpochNanos(cell.getTimestamp()));
+      } else {
+        result
+            .setBody(cell.copyValue())
+            .setStatus(Result.Status.OK)
+            .setTimestamp(NanoClock.fromEpochNanos(cell.getTimestamp()));
       }
+      return result;
     } catch (IOException ex) {
       logger.error(ex);
       return error(result);
     }
-    return result;
   }
 
-  private boolean setResultIfDeleted(
-      @NotNull final Result result,
-      final byte[] id
+  @NotNull
+  public Result upsert(
+      final byte[] id,
+      final byte[] body
   ) {
-    File tombstone = KeyConverter.keyToTombstone(id, dao.getBasePath());
-    Path tombPath = tombstone.toPath();
-    synchronized (tombstone.toPath().toString().intern()) {
-      if (!ExistsChecks.exists(tombstone)) {
-        return false;
-      }
-      try {
-        Instant lastModified = Files.getLastModifiedTime(tombPath).toInstant();
-        result
-            .setTimestamp(lastModified)
-            .setStatus(Result.Status.DELETED);
-        return true;
-      } catch (Exception ex) {
-        logger.error(ex);
-        error(result);
-        return true;
-      }
-    }
+    return write(id, body, NanoClock.toEpochNanos(clock.instant()), false);
   }
 
+  /**
+   * Write the value with the given version, unless the key has a newer version already: the write
+   * was made elsewhere and is only delivered here
+   *
+   * @param timestamp version in nanoseconds since the epoch
+   * @return result with the version the key has after the write
+   */
   @NotNull
   public Result upsert(
       final byte[] id,
-      final byte[] body
+      final byte[] body,
+      final long timestamp
   ) {
-    Result result = new Result();
-    Path filePath = KeyConverter.keyToFile(id, dao.getBasePath()).toPath();
-    Path tombstonePath = KeyConverter.keyToTombstone(id, dao.getBasePath()).toPath();
-    synchronized (filePath.toString().intern()) {
-      try {
-        filePresenceCache.remove(filePath);
-        dao.upsert(id, body);
-        Instant now = (new NanoClock()).instant();
-        Files.setLastModifiedTime(filePath, FileTime.from(now));
-        result
-            .setStatus(Result.Status.OK)
-            .setTimestamp(now);
-        checkAndRemoveTombstone(tombstonePath, now);
-        return result;
-      } catch (IOException ex) {
-        logger.error(ex);
-        return error(result);
-      }
-    }
+    return write(id, body, timestamp, true);
   }
 
+  /**
+   * Remove object by writing a tombstone with the current timestamp. The tombstone is written even
+   * if the key is absent locally, so that it shadows older values on the other replicas
+   */
   @NotNull
   public Result remove(final byte[] id) {
-    Result result = new Result();
+    return write(id, null, NanoClock.toEpochNanos(clock.instant()), false);
+  }
+
+  /** Write a tombstone with the given version, unless the key has a newer version already */
+  @NotNull
+  public Result remove(
+      final byte[] id,
+      final long timestamp
+  ) {
+    return write(id, null, timestamp, true);
+  }
+
+  /**
+   * Make the writes of the batch with one storage write, so that a log is appended and synced once
+   * for all of them. The writes carrying a version are skipped if the key has a newer one already,
+   * the others are made with the current time.
+   *
+   * @param operations {@link ReplicationProtocol#PUT} and {@link ReplicationProtocol#DELETE}
+   *     operations, {@link ReplicationProtocol#NO_VERSION} for the current time
+   * @return results in the order of the operations
+   */
+  @NotNull
+  List<Result> write(@NotNull final List<ReplicationProtocol.Operation> operations) {
+    List<byte[]> keys = new ArrayList<>(operations.size());
+    for (ReplicationProtocol.Operation operation : operations) {
+      keys.add(operation.key);
+    }
+    List<Result> results = new ArrayList<>(operations.size());
+    List<Lock> held = locks.getAll(keys);
+    for (Lock lock : held) {
+      lock.lock();
+    }
     try {
-      File fileToRemove = KeyConverter.keyToFile(id, dao.getBasePath());
-      if (!ExistsChecks.exists(fileToRemove)) {
+      long now = NanoClock.toEpochNanos(clock.instant());
+      WriteBatch batch = new WriteBatch();
+      // Versions the batch gives to the keys, the newest of them wins just as for separate writes
+      Map<ByteBuffer, Long> versions = new HashMap<>();
+      List<Runnable> treeUpdates = new ArrayList<>();
+      for (ReplicationProtocol.Operation operation : operations) {
+        Result result = new Result();
+        results.add(result);
+        boolean upsert = operation.op == ReplicationProtocol.PUT && operation.value != null;
+        if (!upsert && operation.op != ReplicationProtocol.DELETE) {
+          error(result);
+          continue;
+        }
+        boolean keepNewer = operation.version != ReplicationProtocol.NO_VERSION;
+        long timestamp = keepNewer ? operation.version : now;
+        Long previous = versions.get(ByteBuffer.wrap(operation.key));
+        if (previous == null && (keepNewer || trees != null)) {
+          Cell current = current(operation.key);
+          previous = current == null ? null : current.getTimestamp();
+        }
+        if (keepNewer && previous != null && previous > timestamp) {
+          result
+              .setStatus(Result.Status.OK)
+              .setTimestamp(NanoClock.fromEpochNanos(previous));
+          continue;
+        }
+        if (upsert) {
+          batch.upsert(operation.key, operation.value, timestamp);
+        } else {
+          batch.remove(operation.key, timestamp);
+        }
+        versions.put(ByteBuffer.wrap(operation.key), timestamp);
+        if (trees != null) {
+          Long replaced = previous;
+          treeUpdates.add(() -> {
+            if (replaced == null) {
+              trees.add(operation.key, timestamp);
+            } else {
+              trees.replace(operation.key, replaced, timestamp);
+            }
+          });
+        }
         result
             .setStatus(Result.Status.OK)
-            .setTimestamp(Instant.now(new NanoClock()));
-        return result;
-      }
-      String prefix = new String(id);
-      Path tmpTombstonePath = Files.createTempFile(prefix, null);
-      Path actualTombstonePath = KeyConverter.keyToTombstone(id, dao.getBasePath()).toPath();
-      Instant now = (new NanoClock()).instant();
-      Files.setLastModifiedTime(tmpTombstonePath, FileTime.from(now));
-      if (checkAndMoveTombstone(tmpTombstonePath, actualTombstonePath, now)) {
-        filePresenceCache.remove(fileToRemove.toPath());
-        dao.remove(id);
-        result
-            .setTimestamp(now)
-            .setStatus(Result.Status.OK);
-        return result;
-      } else {
-        return error(result);
+            .setTimestamp(NanoClock.fromEpochNanos(timestamp));
       }
+      dao.write(batch);
+      treeUpdates.forEach(Runnable::run);
     } catch (IOException ex) {
       logger.error(ex);
-      return error(result);
+      results.clear();
+      for (int ix = 0; ix < operations.size(); ix++) {
+        results.add(error(new Result()));
+      }
+    } finally {
+      for (byte[] key : keys) {
+        cache.invalidate(key);
+        reads.invalidate(ByteBuffer.wrap(key));
+      }
+      for (int ix = held.size() - 1; ix >= 0; ix--) {
+        held.get(ix).unlock();
+      }
     }
+    return results;
   }
 
-  private boolean checkAndMoveTombstone(
-      @NotNull final Path from,
-      @NotNull final Path to,
-      @NotNull final Instant newTimestamp
+  /**
+   * @param body value or null for a tombstone
+   * @param keepNewer whether to skip the write if the stored version is newer
+   */
+  @NotNull
+  private Result write(
+      final byte[] id,
+      @Nullable final byte[] body,
+      final long timestamp,
+      final boolean keepNewer
   ) {
-    synchronized (to.toString().intern()) {
-      try {
-        if (!ExistsChecks.exists(to)) {
-          filePresenceCache.remove(to);
-          Files.move(from, to, StandardCopyOption.ATOMIC_MOVE);
-          return true;
-        } else if (Files.getLastModifiedTime(to).toInstant().isBefore(newTimestamp)) {
-          Files.setLastModifiedTime(to, FileTime.from(newTimestamp));
-          return true;
+    Result result = new Result();
+    Lock lock = locks.get(id);
+    lock.lock();
+    try {
+      Cell current = keepNewer || trees != null ? current(id) : null;
+      if (keepNewer && current != null && current.getTimestamp() > timestamp) {
+        return result
+            .setStatus(Result.Status.OK)
+            .setTimestamp(NanoClock.fromEpochNanos(current.getTimestamp()));
+      }
+      if (body == null) {
+        dao.remove(id, timestamp);
+      } else {
+        dao.upsert(id, body, timestamp);
+      }
+      if (trees != null) {
+        if (current == null) {
+          trees.add(id, timestamp);
         } else {
-          return false;
+          trees.replace(id, current.getTimestamp(), timestamp);
         }
-      } catch (IOException ex) {
-        logger.error(ex);
-        return false;
       }
+      return result
+          .setStatus(Result.Status.OK)
+          .setTimestamp(NanoClock.fromEpochNanos(timestamp));
+    } catch (IOException ex) {
+      logger.error(ex);
+      return error(result);
+    } finally {
+      cache.invalidate(id);
+      reads.invalidate(ByteBuffer.wrap(id));
+      lock.unlock();
     }
   }
 
-  private void checkAndRemoveTombstone(
-      @NotNull final Path path,
-      @NotNull final Instant timestamp
-  ) throws IOException
-  {
-    if (ExistsChecks.exists(path)
-        && Files.getLastModifiedTime(path).toInstant().isBefore(timestamp))
-    {
-      try {
-        filePresenceCache.remove(path);
-        Files.delete(path);
-      } catch (NoSuchFileException ex) {
-        logger.warn(ex);
-      }
-    }
+  /** Stored cell of the key; must be called under the key's lock, so that the cache is current */
+  @Nullable
+  private Cell current(final byte[] id) throws IOException {
+    Cell cached = cache.get(id);
+    return cached != null ? cached : dao.getCell(id);
   }
 
   @NotNull
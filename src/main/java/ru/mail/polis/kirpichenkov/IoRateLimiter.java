@@ -0,0 +1,91 @@
+package ru.mail.polis.kirpichenkov;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token bucket limiting the disk bandwidth of the background writers of a storage, so that
+ * flushes and compactions don't take it from the client requests.
+ * <p>
+ * Writers take the bytes before writing them and sleep while the bucket is in debt. The
+ * configured rate may be lowered temporarily with {@link #backOff()} while the foreground latency
+ * is too high, and is restored step by step with {@link #recover()}.
+ *
+ * @author Pavel Kirpichenkov
+ */
+class IoRateLimiter {
+  /** Bucket capacity in seconds of the rate, so an idle period doesn't allow a long burst */
+  private static final double BURST_SECONDS = 0.1;
+  private static final double MIN_FACTOR = 1.0 / 16;
+  private static final double RECOVERY_STEP = 0.1;
+  private long rate;
+  private double factor = 1;
+  private double available;
+  private long lastRefill = System.nanoTime();
+
+  /** @param rate bytes per second, 0 for no limit */
+  IoRateLimiter(final long rate) {
+    setRate(rate);
+  }
+
+  /** @param rate bytes per second, 0 for no limit */
+  synchronized void setRate(final long rate) {
+    if (rate < 0) {
+      throw new IllegalArgumentException("Negative rate " + rate);
+    }
+    this.rate = rate;
+    this.available = 0;
+    this.lastRefill = System.nanoTime();
+  }
+
+  /** @return configured bytes per second, 0 for no limit */
+  synchronized long getRate() {
+    return rate;
+  }
+
+  /** @return bytes per second allowed at the moment, 0 for no limit */
+  synchronized long getEffectiveRate() {
+    return (long) (rate * factor);
+  }
+
+  /** Halve the effective rate, down to a fraction of the configured one */
+  synchronized void backOff() {
+    refill();
+    factor = Math.max(MIN_FACTOR, factor / 2);
+  }
+
+  /** Move the effective rate one step back to the configured one */
+  synchronized void recover() {
+    refill();
+    factor = Math.min(1, factor + RECOVERY_STEP);
+  }
+
+  /** Take the bytes from the bucket, waiting until the rate allows to write them */
+  void acquire(final int bytes) throws InterruptedIOException {
+    long waitNanos;
+    synchronized (this) {
+      if (rate == 0) {
+        return;
+      }
+      refill();
+      available -= bytes;
+      waitNanos = available >= 0 ? 0 : (long) (-available / (rate * factor) * TimeUnit.SECONDS.toNanos(1));
+    }
+    if (waitNanos > 0) {
+      try {
+        TimeUnit.NANOSECONDS.sleep(waitNanos);
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted while throttled");
+      }
+    }
+  }
+
+  private void refill() {
+    long now = System.nanoTime();
+    double effective = rate * factor;
+    double refilled = available + effective * (now - lastRefill) / TimeUnit.SECONDS.toNanos(1);
+    available = Math.min(refilled, effective * BURST_SECONDS);
+    lastRefill = now;
+  }
+}
@@ -1,23 +1,47 @@
 package ru.mail.polis.kirpichenkov;
 
-import org.apache.commons.io.IOUtils;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.Map;
 import java.util.NoSuchElementException;
-import org.apache.commons.io.FileUtils;
+import java.util.concurrent.TimeUnit;
 
-/** @author Pavel Kirpichenkov */
-public class KVDaoImpl implements BasePathGrantingKVDao {
+/**
+ * Storage keeping every key in its own file. The file starts with a magic number, the version
+ * timestamp and the tombstone flag, followed by the value, so a deleted key is a file with the
+ * flag set. A file is written aside and moved in place, so readers see either the old or the new
+ * content.
+ * <p>
+ * Files of the older format are still read: a file without the magic holds just the value, with
+ * its modification time for the version, and a deleted key is an empty {@code +} file next to it,
+ * see {@link KeyConverter#keyToTombstone}. They are replaced by the next write of the key.
+ *
+ * @author Pavel Kirpichenkov
+ */
+public class KVDaoImpl implements VersionedKVDao {
   private static final Logger logger = LogManager.getLogger();
+  /** Tells the versioned files from the values of the older format */
+  private static final int MAGIC = 0x4b560001;
+  private static final byte FLAG_TOMBSTONE = 1;
+  private static final int HEADER_SIZE = Integer.BYTES + Long.BYTES + Byte.BYTES;
+  private static final String TMP_SUFFIX = ".tmp";
   private final File basePath;
   private final Map<Path, Boolean> filePresenceCache = FilePresenceCache.getInstance();
+  private final NanoClock clock = new NanoClock();
+
   public KVDaoImpl(@NotNull File path) {
     this.basePath = path;
   }
@@ -25,13 +49,11 @@ public class KVDaoImpl implements BasePathGrantingKVDao {
   @NotNull
   @Override
   public byte[] get(@NotNull final byte[] key) throws NoSuchElementException, IOException {
-    File fileToRead = KeyConverter.keyToFile(key, basePath);
-    logger.debug("get {}", fileToRead);
-    if (!ExistsChecks.exists(fileToRead) || !fileToRead.isFile()) {
+    Cell cell = getCell(key);
+    if (cell == null || cell.isTombstone()) {
       throw new NoSuchElementException();
-    } else {
-      return IOUtils.toByteArray(new FileInputStream(fileToRead));
     }
+    return cell.copyValue();
   }
 
   @Override
@@ -40,29 +62,98 @@ public class KVDaoImpl implements BasePathGrantingKVDao {
       @NotNull final byte[] value
   ) throws IOException
   {
-    File fileToWrite = KeyConverter.keyToFile(key, basePath);
-    logger.debug("upsert {}", () -> fileToWrite);
-    File parentDir = fileToWrite.getParentFile();
-    if (!parentDir.exists()) {
-      if (!parentDir.mkdirs() && !parentDir.exists()) {
-        throw new IOException("Can't create path to file " + parentDir.toString());
-      }
-    }
-    filePresenceCache.remove(fileToWrite.toPath());
-    fileToWrite.createNewFile();
-    FileUtils.writeByteArrayToFile(fileToWrite, value);
+    upsert(key, value, NanoClock.toEpochNanos(clock.instant()));
   }
 
   @Override
   public void remove(@NotNull final byte[] key) throws IOException {
-    File fileToRemove = KeyConverter.keyToFile(key, basePath);
-    logger.debug("remove {}", () -> fileToRemove);
-    if (ExistsChecks.exists(fileToRemove)) {
-      filePresenceCache.remove(fileToRemove.toPath());
-      if (!fileToRemove.delete()) {
-        throw new IOException("Can't remove file " + fileToRemove.toString());
-      }
+    remove(key, NanoClock.toEpochNanos(clock.instant()));
+  }
+
+  @Nullable
+  @Override
+  public Cell getCell(@NotNull final byte[] key) throws IOException {
+    File fileToRead = KeyConverter.keyToFile(key, basePath);
+    logger.debug("get {}", fileToRead);
+    if (!ExistsChecks.exists(fileToRead)) {
+      return legacyTombstone(key);
     }
+    byte[] content;
+    long modified;
+    try {
+      modified = Files.getLastModifiedTime(fileToRead.toPath()).toInstant().toEpochMilli();
+      content = Files.readAllBytes(fileToRead.toPath());
+    } catch (NoSuchFileException ex) {
+      filePresenceCache.remove(fileToRead.toPath());
+      return legacyTombstone(key);
+    }
+    ByteBuffer buffer = ByteBuffer.wrap(content);
+    if (content.length < HEADER_SIZE || buffer.getInt() != MAGIC) {
+      return legacyValue(key, content, TimeUnit.MILLISECONDS.toNanos(modified));
+    }
+    long timestamp = buffer.getLong();
+    if ((buffer.get() & FLAG_TOMBSTONE) != 0) {
+      return Cell.tombstone(timestamp);
+    }
+    return Cell.value(buffer.slice(), timestamp);
+  }
+
+  @Override
+  public void upsert(
+      @NotNull final byte[] key,
+      @NotNull final byte[] value,
+      final long timestamp
+  ) throws IOException
+  {
+    ByteBuffer content = ByteBuffer.allocate(HEADER_SIZE + value.length);
+    content.putInt(MAGIC).putLong(timestamp).put((byte) 0).put(value);
+    write(key, content.array());
+  }
+
+  @Override
+  public void remove(
+      @NotNull final byte[] key,
+      final long timestamp
+  ) throws IOException
+  {
+    ByteBuffer content = ByteBuffer.allocate(HEADER_SIZE);
+    content.putInt(MAGIC).putLong(timestamp).put(FLAG_TOMBSTONE);
+    write(key, content.array());
+  }
+
+  /**
+   * Walk the key files, skipping everything else in the directory. A tombstone file of the older
+   * format is visited only if there is no key file next to it.
+   */
+  @Override
+  public void scan(@NotNull final CellVisitor visitor) throws IOException {
+    Path base = basePath.toPath();
+    Files.walkFileTree(base, new SimpleFileVisitor<Path>() {
+      @Override
+      public FileVisitResult visitFile(
+          final Path file,
+          final BasicFileAttributes attrs
+      ) throws IOException
+      {
+        boolean tombstone = KeyConverter.isTombstone(file);
+        Path keyFile = tombstone ? stripSuffix(file) : file;
+        byte[] key = KeyConverter.fileToKey(base.relativize(keyFile));
+        if (key == null || tombstone && ExistsChecks.exists(keyFile)) {
+          return FileVisitResult.CONTINUE;
+        }
+        Cell cell;
+        try {
+          cell = getCell(key);
+        } catch (IOException ex) {
+          logger.debug("Skipped unreadable {}", file, ex);
+          return FileVisitResult.CONTINUE;
+        }
+        if (cell != null) {
+          visitor.visit(ByteBuffer.wrap(key), cell);
+        }
+        return FileVisitResult.CONTINUE;
+      }
+    });
   }
 
   @Override
@@ -73,4 +164,76 @@ public class KVDaoImpl implements BasePathGrantingKVDao {
   public File getBasePath() {
     return basePath;
   }
+
+  /** Cell of the value file of the older format, unless its tombstone file is newer */
+  @NotNull
+  private Cell legacyValue(
+      @NotNull final byte[] key,
+      @NotNull final byte[] value,
+      final long timestamp
+  ) throws IOException
+  {
+    Cell tombstone = legacyTombstone(key);
+    return tombstone != null && tombstone.getTimestamp() >= timestamp
+        ? tombstone
+        : Cell.value(value, timestamp);
+  }
+
+  /** @return tombstone of the older format, null if there is none */
+  @Nullable
+  private Cell legacyTombstone(@NotNull final byte[] key) throws IOException {
+    File tombstone = KeyConverter.keyToTombstone(key, basePath);
+    if (!ExistsChecks.exists(tombstone)) {
+      return null;
+    }
+    try {
+      long modified = Files.getLastModifiedTime(tombstone.toPath()).toInstant().toEpochMilli();
+      return Cell.tombstone(TimeUnit.MILLISECONDS.toNanos(modified));
+    } catch (NoSuchFileException ex) {
+      filePresenceCache.remove(tombstone.toPath());
+      return null;
+    }
+  }
+
+  @NotNull
+  private static Path stripSuffix(@NotNull final Path tombstone) {
+    String name = tombstone.getFileName().toString();
+    return tombstone.resolveSibling(name.substring(0, name.length() - 1));
+  }
+
+  /**
+   * Write the content to a file of its own and move it over the key file, then remove the
+   * tombstone of the older format, which the new file supersedes
+   */
+  private void write(
+      @NotNull final byte[] key,
+      @NotNull final byte[] content
+  ) throws IOException
+  {
+    File fileToWrite = KeyConverter.keyToFile(key, basePath);
+    logger.debug("write {}", () -> fileToWrite);
+    File parentDir = fileToWrite.getParentFile();
+    if (!parentDir.exists()) {
+      if (!parentDir.mkdirs() && !parentDir.exists()) {
+        throw new IOException("Can't create path to file " + parentDir.toString());
+      }
+    }
+    Path tmp = Files.createTempFile(parentDir.toPath(), fileToWrite.getName(), TMP_SUFFIX);
+    try {
+      Files.write(tmp, content);
+      Files.move(
+          tmp,
+          fileToWrite.toPath(),
+          StandardCopyOption.ATOMIC_MOVE,
+          StandardCopyOption.REPLACE_EXISTING);
+    } finally {
+      Files.deleteIfExists(tmp);
+    }
+    filePresenceCache.put(fileToWrite.toPath(), true);
+    Path tombstone = KeyConverter.keyToTombstone(key, basePath).toPath();
+    if (ExistsChecks.exists(tombstone)) {
+      Files.deleteIfExists(tombstone);
+      filePresenceCache.put(tombstone, false);
+    }
+  }
 }
@@ -14,14 +14,14 @@ import java.util.Set;
 /** @author Pavel Kirpichenkov */
 public class KVServiceImpl implements KVService {
   private static final Logger logger = LogManager.getLogger(KVServiceImpl.class);
-  private BasePathGrantingKVDao dao;
+  private VersionedKVDao dao;
   private HttpServerConfig config;
   private Set<String> topology;
   private OneNioHttpServer server;
 
   private KVServiceImpl() {}
 
-  private void setDao(BasePathGrantingKVDao dao) {
+  private void setDao(VersionedKVDao dao) {
     this.dao = dao;
   }
 
@@ -48,10 +48,10 @@ public class KVServiceImpl implements KVService {
   ) {
     HttpServerConfig config = createConfig(port);
     KVServiceImpl kvService = new KVServiceImpl();
-    if (!(dao instanceof BasePathGrantingKVDao)) {
-      throw new RuntimeException("KVDao must implement BasePathGrantingKVDao");
+    if (!(dao instanceof VersionedKVDao)) {
+      throw new RuntimeException("KVDao must implement VersionedKVDao");
     }
-    kvService.setDao((BasePathGrantingKVDao) dao);
+    kvService.setDao((VersionedKVDao) dao);
     kvService.setConfig(config);
     kvService.setTopology(topology);
     return kvService;
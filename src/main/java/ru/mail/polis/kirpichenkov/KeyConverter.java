@@ -1,9 +1,11 @@
 package ru.mail.polis.kirpichenkov;
 
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import javax.xml.bind.DatatypeConverter;
 import java.io.File;
+import java.nio.file.Path;
 
 class KeyConverter {
   private static final int HEX_CHAR_PER_DIR = 4;
@@ -24,6 +26,10 @@ class KeyConverter {
     return new File(pathString(key, basePath));
   }
 
+  /**
+   * Tombstone file of the key, kept by the storage format before versions moved inside the key
+   * files; only read now, see {@link KVDaoImpl}
+   */
   @NotNull
   static File keyToTombstone(
       @NotNull final byte[] key,
@@ -32,6 +38,35 @@ class KeyConverter {
     return new File(pathString(key, basePath) + TOMBSTONE_SUFFIX);
   }
 
+  /** @return whether the file is a tombstone file of {@link #keyToTombstone} */
+  static boolean isTombstone(@NotNull final Path path) {
+    return path.getFileName().toString().endsWith(FILE_SUFFIX + TOMBSTONE_SUFFIX);
+  }
+
+  /**
+   * Convert the path of the key file back to the key
+   *
+   * @param relativePath path of the file relative to the base path
+   * @return key or null, if the file doesn't hold a key
+   */
+  @Nullable
+  static byte[] fileToKey(@NotNull final Path relativePath) {
+    StringBuilder hexKey = new StringBuilder();
+    for (Path part : relativePath) {
+      hexKey.append(part.toString());
+    }
+    if (hexKey.length() <= FILE_SUFFIX.length()
+        || hexKey.lastIndexOf(FILE_SUFFIX) != hexKey.length() - FILE_SUFFIX.length()) {
+      return null;
+    }
+    hexKey.setLength(hexKey.length() - FILE_SUFFIX.length());
+    try {
+      return DatatypeConverter.parseHexBinary(hexKey.toString());
+    } catch (IllegalArgumentException ex) {
+      return null;
+    }
+  }
+
   @NotNull
   private static String pathString(
       @NotNull final byte[] key,
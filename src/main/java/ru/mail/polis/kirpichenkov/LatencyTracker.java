@@ -0,0 +1,119 @@
+package ru.mail.polis.kirpichenkov;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Latency of the recent calls to the local storage. Once in a while the recording thread compares
+ * the 99th percentile with the target and slows the background I/O down with the
+ * {@link IoRateLimiter} when it is over the target, or lets it speed up again otherwise.
+ * <p>
+ * Without a limiter it just keeps the recent latency, e.g. of the calls to a replica.
+ *
+ * @author Pavel Kirpichenkov
+ */
+class LatencyTracker {
+  private static final Logger logger = LogManager.getLogger(LatencyTracker.class);
+  private static final int WINDOW = 1024;
+  private static final long ADJUST_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+  private static final long RECENT_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+  private final AtomicLongArray samples = new AtomicLongArray(WINDOW);
+  private final AtomicLong count = new AtomicLong();
+  private final AtomicLong nextAdjustment = new AtomicLong(System.nanoTime() + ADJUST_INTERVAL_NANOS);
+  @Nullable
+  private final IoRateLimiter limiter;
+  private volatile long targetNanos;
+  private final AtomicLong nextRecent = new AtomicLong(System.nanoTime());
+  private volatile long recent;
+
+  /**
+   * @param limiter limiter to adjust, null to only track the latency
+   * @param targetMillis target of the 99th percentile, 0 for no adjustment
+   */
+  LatencyTracker(
+      @Nullable final IoRateLimiter limiter,
+      final long targetMillis
+  ) {
+    this.limiter = limiter;
+    setTargetMillis(targetMillis);
+  }
+
+  void record(final long nanos) {
+    long index = count.getAndIncrement();
+    samples.set((int) (index % WINDOW), nanos);
+    long now = System.nanoTime();
+    long next = nextAdjustment.get();
+    if (now - next >= 0 && nextAdjustment.compareAndSet(next, now + ADJUST_INTERVAL_NANOS)) {
+      adjust();
+    }
+  }
+
+  /** @return 99th percentile of the recent requests in nanoseconds, 0 if there were none */
+  long p99() {
+    return percentile(0.99);
+  }
+
+  /**
+   * Percentile computed at most every 100 ms, cheap enough to ask for on every request. The
+   * tracker is meant to be asked for a single percentile this way.
+   *
+   * @return percentile of the recent requests in nanoseconds, 0 if there were none
+   */
+  long recentPercentile(final double quantile) {
+    long now = System.nanoTime();
+    long next = nextRecent.get();
+    if (now - next >= 0 && nextRecent.compareAndSet(next, now + RECENT_INTERVAL_NANOS)) {
+      recent = percentile(quantile);
+    }
+    return recent;
+  }
+
+  /**
+   * @param quantile share of the requests, from 0 exclusive to 1 inclusive
+   * @return latency which that share of the recent requests didn't exceed, 0 if there were none
+   */
+  long percentile(final double quantile) {
+    int size = (int) Math.min(count.get(), WINDOW);
+    if (size == 0) {
+      return 0;
+    }
+    long[] values = new long[size];
+    for (int ix = 0; ix < size; ix++) {
+      values[ix] = samples.get(ix);
+    }
+    Arrays.sort(values);
+    return values[Math.max(0, (int) Math.ceil(size * quantile) - 1)];
+  }
+
+  long getTargetMillis() {
+    return TimeUnit.NANOSECONDS.toMillis(targetNanos);
+  }
+
+  /** @param targetMillis target of the 99th percentile, 0 for no adjustment */
+  void setTargetMillis(final long targetMillis) {
+    if (targetMillis < 0) {
+      throw new IllegalArgumentException("Negative latency target " + targetMillis);
+    }
+    this.targetNanos = TimeUnit.MILLISECONDS.toNanos(targetMillis);
+  }
+
+  private void adjust() {
+    long target = targetNanos;
+    if (limiter == null || target == 0 || count.get() == 0) {
+      return;
+    }
+    long p99 = p99();
+    if (p99 > target) {
+      limiter.backOff();
+      logger.debug("p99 {} ns over target, background I/O slowed to {} B/s", p99, limiter.getEffectiveRate());
+    } else {
+      limiter.recover();
+    }
+  }
+}
@@ -0,0 +1,83 @@
+package ru.mail.polis.kirpichenkov;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Keep tables of every level above 0 non-overlapping, and every level {@link #FANOUT} times
+ * bigger than the previous one. A read checks at most one table per such level.
+ * <p>
+ * Level 0 is merged as a whole into level 1, once it has {@link #LEVEL0_TRIGGER} tables. When
+ * a level grows over its limit, its oldest table is merged into the overlapping tables of the
+ * next level.
+ *
+ * @author Pavel Kirpichenkov
+ */
+class LeveledCompaction implements CompactionStrategy {
+  static final int LEVEL0_TRIGGER = 4;
+  static final int FANOUT = 10;
+  private final long tableBytes;
+
+  /** @param tableBytes size of the tables on the levels above 0 */
+  LeveledCompaction(final long tableBytes) {
+    this.tableBytes = tableBytes;
+  }
+
+  @Nullable
+  @Override
+  public Compaction pick(@NotNull final List<SSTable> tables) {
+    List<List<SSTable>> levels = new ArrayList<>();
+    for (SSTable table : tables) {
+      while (levels.size() <= table.getLevel()) {
+        levels.add(new ArrayList<>());
+      }
+      levels.get(table.getLevel()).add(table);
+    }
+    if (levels.isEmpty()) {
+      return null;
+    }
+    List<SSTable> level0 = levels.get(0);
+    if (level0.size() >= LEVEL0_TRIGGER) {
+      return merge(level0, levels, 1);
+    }
+    long limit = tableBytes;
+    for (int level = 1; level < levels.size(); level++) {
+      limit *= FANOUT;
+      List<SSTable> current = levels.get(level);
+      long total = 0;
+      for (SSTable table : current) {
+        total += table.sizeInBytes();
+      }
+      if (total > limit) {
+        // Tables of the level are in the read order, so the last one is the oldest
+        SSTable oldest = current.get(current.size() - 1);
+        return merge(Collections.singletonList(oldest), levels, level + 1);
+      }
+    }
+    return null;
+  }
+
+  @NotNull
+  private Compaction merge(
+      @NotNull final List<SSTable> upper,
+      @NotNull final List<List<SSTable>> levels,
+      final int target
+  ) {
+    List<SSTable> inputs = new ArrayList<>(upper);
+    if (target < levels.size()) {
+      ByteBuffer first = Compaction.firstKey(upper);
+      ByteBuffer last = Compaction.lastKey(upper);
+      for (SSTable table : levels.get(target)) {
+        if (Compaction.overlaps(table, first, last)) {
+          inputs.add(table);
+        }
+      }
+    }
+    return new Compaction(inputs, target, tableBytes);
+  }
+}
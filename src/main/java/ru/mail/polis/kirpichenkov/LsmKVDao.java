@@ -0,0 +1,603 @@
+package ru.mail.polis.kirpichenkov;
+
+import com.sun.management.HotSpotDiagnosticMXBean;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Log-structured storage: writes go to the {@link WriteAheadLog} and the in-memory
+ * {@link MemTable}, which is flushed to an immutable {@link SSTable} when it grows over the
+ * threshold. Reads check the memtable first and then the tables in the read order: by level,
+ * and inside a level from the newest to the oldest.
+ * <p>
+ * Memtable, its log and the table it is flushed to share one generation number, so a log left
+ * after a crash is replayed into the table of the same generation. Tables are merged in the
+ * background by the configured {@link CompactionStrategy}; a compacted table is named
+ * {@code <generation>-<level>-<sequence>.db} and keeps the biggest sequence of its inputs.
+ *
+ * @author Pavel Kirpichenkov
+ */
+public class LsmKVDao implements VersionedKVDao {
+  private static final Logger logger = LogManager.getLogger(LsmKVDao.class);
+  /**
+   * Writers let the active memtable grow to twice the threshold before flushing it themselves, and
+   * the memtable being flushed is kept meanwhile, so a storage may hold four thresholds of direct
+   * memory. The threshold is kept within 1/16 of the direct memory limit, leaving room for a few
+   * storages in one process.
+   */
+  private static final long FLUSH_THRESHOLD = Math.min(
+      Long.getLong("kv.lsm.flushThresholdBytes", 4 * 1024 * 1024),
+      maxDirectMemory() / 16);
+  /** Memtable is flushed earlier if its on-heap index grows over this */
+  private static final long INDEX_THRESHOLD =
+      Long.getLong("kv.lsm.indexThresholdBytes", 16 * 1024 * 1024);
+  /** Disk bandwidth of flushes and compactions together, 0 for no limit */
+  private static final long IO_RATE =
+      Long.getLong("kv.lsm.ioRateBytesPerSecond", 64 * 1024 * 1024);
+  private static final double BLOOM_FALSE_POSITIVE_RATE =
+      Double.parseDouble(System.getProperty("kv.lsm.bloomFalsePositiveRate", "0.01"));
+  /** Tombstones are kept at least this long, so that replicas which missed the delete learn it */
+  private static final long TOMBSTONE_GRACE_NANOS =
+      TimeUnit.SECONDS.toNanos(Long.getLong("kv.lsm.tombstoneGraceSeconds", TimeUnit.DAYS.toSeconds(1)));
+  private static final Pattern TABLE_NAME =
+      Pattern.compile("(\\d+)(?:-(\\d+)-(\\d+))?" + Pattern.quote(SSTable.SUFFIX));
+  private static final Pattern LOG_NAME = Pattern.compile("(\\d+)" + Pattern.quote(WriteAheadLog.SUFFIX));
+  private static final Comparator<SSTable> READ_ORDER = Comparator
+      .comparingInt(SSTable::getLevel)
+      .thenComparing(Comparator.comparingLong(SSTable::getSequence).reversed());
+
+  private final File basePath;
+  private final long flushThreshold;
+  private final SlabPool slabPool;
+  private final NanoClock clock = new NanoClock();
+  private final LsmMetrics metrics = new LsmMetrics();
+  private final IoRateLimiter ioRateLimiter = new IoRateLimiter(IO_RATE);
+  private final CompactionStrategy compactionStrategy;
+  private final BackgroundScheduler flushScheduler;
+  private final BackgroundScheduler compactionScheduler;
+  /** Writers hold the read lock while updating the memtable, flush swaps it under the write lock */
+  private final ReadWriteLock memTableLock = new ReentrantReadWriteLock();
+  private final Object flushMonitor = new Object();
+  /** Guards replacement of the tables list by flushes and compactions */
+  private final Object tablesMonitor = new Object();
+  private volatile MemTable memTable;
+  private WriteAheadLog wal;
+  private int memTableGeneration;
+  /** Memtable being written to disk, still visible to readers */
+  @Nullable
+  private volatile MemTable flushing;
+  /** Tables in the read order */
+  private volatile List<SSTable> ssTables;
+  private final AtomicInteger nextGeneration = new AtomicInteger();
+  private volatile boolean closed;
+
+  public LsmKVDao(@NotNull final File path) throws IOException {
+    this(path, FLUSH_THRESHOLD, CompactionStrategy.fromProperties());
+  }
+
+  LsmKVDao(
+      @NotNull final File path,
+      final long flushThreshold,
+      @NotNull final CompactionStrategy compactionStrategy
+  ) throws IOException
+  {
+    this.basePath = path;
+    this.flushThreshold = flushThreshold;
+    this.compactionStrategy = compactionStrategy;
+    // Enough to reuse the memory of both the active and the flushing memtable
+    this.slabPool = new SlabPool(2 * (int) Math.min(1024, flushThreshold / SlabPool.SLAB_SIZE + 1));
+    recoverCompactions(path);
+    this.ssTables = openTables(path);
+    for (SSTable table : ssTables) {
+      nextGeneration.accumulateAndGet(table.getGeneration() + 1, Math::max);
+    }
+    recoverLogs();
+    this.memTableGeneration = nextGeneration.getAndIncrement();
+    this.memTable = new MemTable(slabPool);
+    this.wal = WriteAheadLog.create(logFile(memTableGeneration));
+    this.flushScheduler = new BackgroundScheduler("flush " + path.getName(), () -> flush(1));
+    this.compactionScheduler = new BackgroundScheduler("compaction " + path.getName(), this::compact);
+    compactionScheduler.schedule();
+  }
+
+  /** @return limit of the direct buffers, the maximum heap size if it isn't set explicitly */
+  private static long maxDirectMemory() {
+    try {
+      HotSpotDiagnosticMXBean vm = ManagementFactory.getPlatformMXBean(HotSpotDiagnosticMXBean.class);
+      long limit = Long.parseLong(vm.getVMOption("MaxDirectMemorySize").getValue());
+      if (limit > 0) {
+        return limit;
+      }
+    } catch (RuntimeException ex) {
+      logger.debug("Can't read the direct memory limit", ex);
+    }
+    return Runtime.getRuntime().maxMemory();
+  }
+
+  @NotNull
+  @Override
+  public byte[] get(@NotNull final byte[] key) throws NoSuchElementException, IOException {
+    Cell cell = getCell(key);
+    if (cell == null || cell.isTombstone()) {
+      throw new NoSuchElementException();
+    }
+    return cell.copyValue();
+  }
+
+  @Override
+  public void upsert(
+      @NotNull final byte[] key,
+      @NotNull final byte[] value
+  ) throws IOException
+  {
+    upsert(key, value, NanoClock.toEpochNanos(clock.instant()));
+  }
+
+  @Override
+  public void remove(@NotNull final byte[] key) throws IOException {
+    remove(key, NanoClock.toEpochNanos(clock.instant()));
+  }
+
+  /**
+   * Find the most recent cell for the key. Order of the checks matters: the flushed memtable is
+   * published in the tables list before it stops being visible as {@link #flushing}.
+   */
+  @Nullable
+  @Override
+  public Cell getCell(@NotNull final byte[] key) throws IOException {
+    Cell cell = memTable.get(key);
+    if (cell != null) {
+      return cell;
+    }
+    MemTable frozen = flushing;
+    if (frozen != null) {
+      cell = frozen.get(key);
+      if (cell != null) {
+        return cell;
+      }
+    }
+    long hash = BloomFilter.hash(key);
+    int checked = 0;
+    for (SSTable table : ssTables) {
+      checked++;
+      cell = table.get(key, hash);
+      if (cell != null) {
+        break;
+      }
+    }
+    metrics.read(checked);
+    return cell;
+  }
+
+  @Override
+  public void upsert(
+      @NotNull final byte[] key,
+      @NotNull final byte[] value,
+      final long timestamp
+  ) throws IOException
+  {
+    memTableLock.readLock().lock();
+    try {
+      wal.upsert(key, value, timestamp);
+      memTable.upsert(key, value, timestamp);
+    } finally {
+      memTableLock.readLock().unlock();
+    }
+    metrics.written(key.length + value.length);
+    flushIfFull();
+  }
+
+  @Override
+  public void remove(
+      @NotNull final byte[] key,
+      final long timestamp
+  ) throws IOException
+  {
+    memTableLock.readLock().lock();
+    try {
+      wal.remove(key, timestamp);
+      memTable.remove(key, timestamp);
+    } finally {
+      memTableLock.readLock().unlock();
+    }
+    metrics.written(key.length);
+    flushIfFull();
+  }
+
+  /** All the writes go to the log with one append and one sync */
+  @Override
+  public void write(@NotNull final WriteBatch batch) throws IOException {
+    if (batch.isEmpty()) {
+      return;
+    }
+    long bytes = 0;
+    memTableLock.readLock().lock();
+    try {
+      wal.write(batch);
+      for (WriteBatch.Mutation mutation : batch) {
+        byte[] value = mutation.getValue();
+        if (value == null) {
+          memTable.remove(mutation.getKey(), mutation.getTimestamp());
+        } else {
+          memTable.upsert(mutation.getKey(), value, mutation.getTimestamp());
+          bytes += value.length;
+        }
+        bytes += mutation.getKey().length;
+      }
+    } finally {
+      memTableLock.readLock().unlock();
+    }
+    metrics.written(bytes);
+    flushIfFull();
+  }
+
+  /**
+   * Merge of the memtable and all the tables. No flush may free the memtable while it is read, so
+   * it is copied to the heap first, and only the copy waits for the flushes. The tables are
+   * immutable and stay mapped while the scan reads them, so the rest of the scan holds nothing.
+   */
+  @Override
+  public void scan(@NotNull final CellVisitor visitor) throws IOException {
+    List<SSTable> tables;
+    List<Map.Entry<ByteBuffer, Cell>> recent = new ArrayList<>();
+    synchronized (flushMonitor) {
+      tables = ssTables;
+      Iterator<Map.Entry<ByteBuffer, Cell>> entries = memTable.iterator();
+      while (entries.hasNext()) {
+        Map.Entry<ByteBuffer, Cell> entry = entries.next();
+        recent.add(new AbstractMap.SimpleImmutableEntry<>(
+            copy(entry.getKey()),
+            copy(entry.getValue())));
+      }
+    }
+    List<Iterator<Map.Entry<ByteBuffer, Cell>>> sources = new ArrayList<>(tables.size() + 1);
+    sources.add(recent.iterator());
+    for (SSTable table : tables) {
+      sources.add(table.iterator());
+    }
+    MergeIterator merged = new MergeIterator(sources, Long.MIN_VALUE);
+    while (merged.hasNext()) {
+      Map.Entry<ByteBuffer, Cell> entry = merged.next();
+      visitor.visit(entry.getKey(), entry.getValue());
+    }
+  }
+
+  @NotNull
+  private static ByteBuffer copy(@NotNull final ByteBuffer buffer) {
+    ByteBuffer copy = ByteBuffer.allocate(buffer.remaining());
+    copy.put(buffer.duplicate());
+    copy.flip();
+    return copy;
+  }
+
+  @NotNull
+  private static Cell copy(@NotNull final Cell cell) {
+    return cell.isTombstone()
+        ? Cell.tombstone(cell.getTimestamp())
+        : Cell.value(cell.copyValue(), cell.getTimestamp());
+  }
+
+  @Override
+  public void close() throws IOException {
+    closed = true;
+    flushScheduler.close();
+    flush(0);
+    compactionScheduler.close();
+    wal.close();
+    if (memTable.isEmpty()) {
+      Files.deleteIfExists(wal.getFile().toPath());
+    }
+    for (SSTable table : ssTables) {
+      table.close();
+    }
+    logger.info("closed {}: {}", basePath, metrics);
+  }
+
+  @Override
+  @NotNull
+  public File getBasePath() {
+    return basePath;
+  }
+
+  @NotNull
+  LsmMetrics getMetrics() {
+    return metrics;
+  }
+
+  /** Limiter shared by the flushes and compactions */
+  @NotNull
+  IoRateLimiter getIoRateLimiter() {
+    return ioRateLimiter;
+  }
+
+  /**
+   * Flush the full memtable in the background. If writers fill it twice over while the previous
+   * flush is still running, the writer flushes it itself, so that the memory stays bounded.
+   */
+  private void flushIfFull() throws IOException {
+    MemTable current = memTable;
+    if (isOver(current, 2)) {
+      flush(2);
+    } else if (isOver(current, 1)) {
+      flushScheduler.schedule();
+    }
+  }
+
+  private boolean isOver(
+      @NotNull final MemTable table,
+      final int times
+  ) {
+    return table.sizeInBytes() >= times * flushThreshold
+        || table.indexSizeInBytes() >= times * INDEX_THRESHOLD;
+  }
+
+  /**
+   * @param times flush only if the memtable is still that many times over the threshold, as it may
+   *     have been flushed already by the time the monitor is taken; 0 to flush any data
+   */
+  private void flush(final int times) throws IOException {
+    synchronized (flushMonitor) {
+      MemTable frozen;
+      WriteAheadLog frozenWal;
+      int generation;
+      memTableLock.writeLock().lock();
+      try {
+        frozen = memTable;
+        if (frozen.isEmpty() || !isOver(frozen, times)) {
+          return;
+        }
+        frozenWal = wal;
+        generation = memTableGeneration;
+        memTableGeneration = nextGeneration.getAndIncrement();
+        wal = WriteAheadLog.create(logFile(memTableGeneration));
+        flushing = frozen;
+        memTable = new MemTable(slabPool);
+      } finally {
+        memTableLock.writeLock().unlock();
+      }
+      SSTable table = writeTable(frozen, generation);
+      synchronized (tablesMonitor) {
+        // The newest level 0 table goes first
+        List<SSTable> tables = new ArrayList<>(ssTables.size() + 1);
+        tables.add(table);
+        tables.addAll(ssTables);
+        ssTables = Collections.unmodifiableList(tables);
+      }
+      flushing = null;
+      frozen.free();
+      frozenWal.close();
+      Files.delete(frozenWal.getFile().toPath());
+      metrics.flushed(table.sizeInBytes());
+      logger.debug("flushed {} bytes to {}", frozen::sizeInBytes, table::getFile);
+    }
+    // The log is gone, so the table may be merged away now
+    compactionScheduler.schedule();
+  }
+
+  /** Compaction round: merge tables while the strategy finds something to merge */
+  private void compact() throws IOException {
+    Compaction compaction;
+    while (!closed && (compaction = compactionStrategy.pick(ssTables)) != null) {
+      compact(compaction);
+    }
+  }
+
+  private void compact(@NotNull final Compaction compaction) throws IOException {
+    List<SSTable> tables = ssTables;
+    List<SSTable> inputs = new ArrayList<>(compaction.getInputs());
+    inputs.sort(READ_ORDER);
+    long sequence = Long.MIN_VALUE;
+    List<String> inputNames = new ArrayList<>(inputs.size());
+    List<Iterator<Map.Entry<ByteBuffer, Cell>>> sources = new ArrayList<>(inputs.size());
+    for (SSTable input : inputs) {
+      sequence = Math.max(sequence, input.getSequence());
+      inputNames.add(input.getFile().getName());
+      sources.add(input.iterator());
+    }
+    long tombstoneExpiry = canDropTombstones(tables, inputs)
+        ? NanoClock.toEpochNanos(clock.instant()) - TOMBSTONE_GRACE_NANOS
+        : Long.MIN_VALUE;
+    MergeIterator merged = new MergeIterator(sources, tombstoneExpiry);
+    long maxTableBytes = Math.min(compaction.getMaxTableBytes(), SSTable.MAX_SIZE / 2);
+    List<String> outputNames = new ArrayList<>();
+    while (merged.hasNext()) {
+      String name = tableName(nextGeneration.getAndIncrement(), compaction.getOutputLevel(), sequence);
+      File pending = new File(basePath, name + CompactionManifest.PENDING_SUFFIX);
+      SSTable.write(merged, pending, BLOOM_FALSE_POSITIVE_RATE, ioRateLimiter, maxTableBytes);
+      outputNames.add(name);
+    }
+    File manifestFile = new File(basePath, nextGeneration.getAndIncrement() + CompactionManifest.SUFFIX);
+    CompactionManifest.write(manifestFile, inputNames, outputNames).complete();
+
+    List<SSTable> outputs = new ArrayList<>(outputNames.size());
+    long written = 0;
+    for (String name : outputNames) {
+      SSTable output = openTable(new File(basePath, name));
+      outputs.add(output);
+      written += output.sizeInBytes();
+    }
+    synchronized (tablesMonitor) {
+      List<SSTable> updated = new ArrayList<>(ssTables);
+      updated.removeAll(inputs);
+      updated.addAll(outputs);
+      updated.sort(READ_ORDER);
+      ssTables = Collections.unmodifiableList(updated);
+    }
+    // Readers may still use the inputs: their mappings outlive the files
+    for (SSTable input : inputs) {
+      input.close();
+    }
+    metrics.compacted(written);
+    logger.info(
+        "compacted {} tables into {} on level {}, {} shadowed cells and {} tombstones dropped; {}",
+        inputs.size(),
+        outputs.size(),
+        compaction.getOutputLevel(),
+        merged.getShadowed(),
+        merged.getExpired(),
+        metrics);
+  }
+
+  /**
+   * Tombstones may be dropped only if no table checked after the inputs may hold an older value
+   * of their keys.
+   */
+  private static boolean canDropTombstones(
+      @NotNull final List<SSTable> tables,
+      @NotNull final List<SSTable> inputs
+  ) {
+    ByteBuffer first = Compaction.firstKey(inputs);
+    ByteBuffer last = Compaction.lastKey(inputs);
+    boolean afterInput = false;
+    for (SSTable table : tables) {
+      if (inputs.contains(table)) {
+        afterInput = true;
+      } else if (afterInput && Compaction.overlaps(table, first, last)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  @NotNull
+  private SSTable writeTable(
+      @NotNull final MemTable source,
+      final int generation
+  ) throws IOException
+  {
+    File file = new File(basePath, tableName(generation, 0, generation));
+    SSTable.write(source.iterator(), file, BLOOM_FALSE_POSITIVE_RATE, ioRateLimiter);
+    return SSTable.open(file, generation, 0, generation);
+  }
+
+  @NotNull
+  private File logFile(final int generation) {
+    return new File(basePath, generation + WriteAheadLog.SUFFIX);
+  }
+
+  @NotNull
+  private static String tableName(
+      final int generation,
+      final int level,
+      final long sequence
+  ) {
+    if (level == 0 && sequence == generation) {
+      return generation + SSTable.SUFFIX;
+    }
+    return generation + "-" + level + "-" + sequence + SSTable.SUFFIX;
+  }
+
+  /**
+   * Turn logs left by a crash into tables. A log whose table already exists was flushed
+   * before the crash, so it is just removed.
+   */
+  private void recoverLogs() throws IOException {
+    File[] files = basePath.listFiles();
+    if (files == null) {
+      throw new IOException("Can't list files in " + basePath);
+    }
+    List<Integer> generations = new ArrayList<>();
+    for (File file : files) {
+      Matcher matcher = LOG_NAME.matcher(file.getName());
+      if (file.isFile() && matcher.matches()) {
+        generations.add(Integer.parseInt(matcher.group(1)));
+      }
+    }
+    Collections.sort(generations);
+    List<SSTable> tables = new ArrayList<>(ssTables);
+    for (int generation : generations) {
+      File log = logFile(generation);
+      boolean flushed = tables
+          .stream()
+          .anyMatch(table -> table.getGeneration() == generation);
+      if (!flushed) {
+        MemTable recovered = new MemTable(slabPool);
+        int records = WriteAheadLog.replay(log, recovered);
+        logger.info("replayed {} records from {}", records, log);
+        if (!recovered.isEmpty()) {
+          tables.add(writeTable(recovered, generation));
+        }
+        recovered.free();
+      }
+      Files.delete(log.toPath());
+      nextGeneration.accumulateAndGet(generation + 1, Math::max);
+    }
+    tables.sort(READ_ORDER);
+    ssTables = Collections.unmodifiableList(tables);
+  }
+
+  /** Finish compactions committed before a crash */
+  private static void recoverCompactions(@NotNull final File path) throws IOException {
+    File[] files = path.listFiles();
+    if (files == null) {
+      throw new IOException("Can't list files in " + path);
+    }
+    for (File file : files) {
+      if (file.getName().endsWith(CompactionManifest.SUFFIX)) {
+        logger.info("finishing compaction {}", file);
+        CompactionManifest.read(file).complete();
+      }
+    }
+  }
+
+  @NotNull
+  private static List<SSTable> openTables(@NotNull final File path) throws IOException {
+    List<SSTable> tables = new ArrayList<>();
+    File[] files = path.listFiles();
+    if (files == null) {
+      throw new IOException("Can't list files in " + path);
+    }
+    for (File file : files) {
+      if (file.getName().endsWith(SSTable.TMP_SUFFIX)
+          || file.getName().endsWith(CompactionManifest.PENDING_SUFFIX)) {
+        // Leftover of an interrupted flush or compaction
+        Files.deleteIfExists(file.toPath());
+        continue;
+      }
+      if (file.isFile() && TABLE_NAME.matcher(file.getName()).matches()) {
+        tables.add(openTable(file));
+      }
+    }
+    tables.sort(READ_ORDER);
+    return Collections.unmodifiableList(tables);
+  }
+
+  @NotNull
+  private static SSTable openTable(@NotNull final File file) throws IOException {
+    Matcher matcher = TABLE_NAME.matcher(file.getName());
+    if (!matcher.matches()) {
+      throw new IOException("Unexpected table name " + file);
+    }
+    int generation = Integer.parseInt(matcher.group(1));
+    if (matcher.group(2) == null) {
+      return SSTable.open(file, generation, 0, generation);
+    }
+    return SSTable.open(
+        file,
+        generation,
+        Integer.parseInt(matcher.group(2)),
+        Long.parseLong(matcher.group(3)));
+  }
+}
@@ -0,0 +1,64 @@
+package ru.mail.polis.kirpichenkov;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters of the {@link LsmKVDao}, giving its read and write amplification
+ *
+ * @author Pavel Kirpichenkov
+ */
+class LsmMetrics {
+  private final LongAdder reads = new LongAdder();
+  private final LongAdder tableReads = new LongAdder();
+  private final LongAdder userBytes = new LongAdder();
+  private final LongAdder flushedBytes = new LongAdder();
+  private final LongAdder compactedBytes = new LongAdder();
+  private final LongAdder compactions = new LongAdder();
+
+  /** @param tables number of tables the lookup had to check */
+  void read(final int tables) {
+    reads.increment();
+    tableReads.add(tables);
+  }
+
+  void written(final long bytes) {
+    userBytes.add(bytes);
+  }
+
+  void flushed(final long bytes) {
+    flushedBytes.add(bytes);
+  }
+
+  void compacted(final long bytes) {
+    compactions.increment();
+    compactedBytes.add(bytes);
+  }
+
+  /** Average number of tables checked by a lookup */
+  double readAmplification() {
+    long count = reads.sum();
+    return count == 0 ? 0 : (double) tableReads.sum() / count;
+  }
+
+  /** Bytes written to tables per byte of keys and values written by the users */
+  double writeAmplification() {
+    long written = userBytes.sum();
+    return written == 0 ? 0 : (double) (flushedBytes.sum() + compactedBytes.sum()) / written;
+  }
+
+  long getCompactions() {
+    return compactions.sum();
+  }
+
+  @NotNull
+  @Override
+  public String toString() {
+    return String.format(
+        "read amplification %.2f, write amplification %.2f, %d compactions",
+        readAmplification(),
+        writeAmplification(),
+        getCompactions());
+  }
+}
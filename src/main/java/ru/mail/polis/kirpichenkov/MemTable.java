@@ -0,0 +1,165 @@
+package ru.mail.polis.kirpichenkov;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.ByteBuffer;
+import java.util.AbstractMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Sorted in-memory write buffer of the LSM engine.
+ * <p>
+ * Keys and values live off-heap in an {@link Arena}, every entry as
+ * {@code [timestamp][value length or -1 for a tombstone][key length][key][value]}. The heap keeps
+ * only the skip list of key views and entry addresses. Overwritten entries stay in the arena until
+ * the memtable is flushed and {@link #free() freed}.
+ *
+ * @author Pavel Kirpichenkov
+ */
+class MemTable {
+  /** Rough per-entry heap overhead of the skip list node, key view and boxed address */
+  private static final int ENTRY_OVERHEAD = 128;
+  private static final int HEADER_SIZE = Long.BYTES + 2 * Integer.BYTES;
+  private static final int TOMBSTONE = -1;
+  private final NavigableMap<ByteBuffer, Long> index = new ConcurrentSkipListMap<>();
+  private final AtomicInteger entries = new AtomicInteger();
+  private final Arena arena;
+  /** Readers copying values out of the arena hold the read lock, {@link #free()} takes the write lock */
+  private final ReadWriteLock freeLock = new ReentrantReadWriteLock();
+  private boolean freed;
+
+  MemTable(@NotNull final SlabPool pool) {
+    this.arena = new Arena(pool);
+  }
+
+  void upsert(
+      @NotNull final byte[] key,
+      @NotNull final byte[] value,
+      final long timestamp
+  ) {
+    put(key, value, timestamp);
+  }
+
+  void remove(
+      @NotNull final byte[] key,
+      final long timestamp
+  ) {
+    put(key, null, timestamp);
+  }
+
+  /**
+   * @return found cell with the value copied to the heap, because the arena memory is reused after
+   *     {@link #free()}; null if the key is absent or the memtable is already freed
+   */
+  @Nullable
+  Cell get(@NotNull final byte[] key) {
+    freeLock.readLock().lock();
+    try {
+      if (freed) {
+        return null;
+      }
+      Long address = index.get(ByteBuffer.wrap(key));
+      if (address == null) {
+        return null;
+      }
+      Cell cell = read(address);
+      return cell.isTombstone() ? cell : Cell.value(cell.copyValue(), cell.getTimestamp());
+    } finally {
+      freeLock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Cells are views of the arena memory, valid until {@link #free()}
+   *
+   * @return entries in ascending key order
+   */
+  @NotNull
+  Iterator<Map.Entry<ByteBuffer, Cell>> iterator() {
+    Iterator<Map.Entry<ByteBuffer, Long>> iterator = index.entrySet().iterator();
+    return new Iterator<Map.Entry<ByteBuffer, Cell>>() {
+      @Override
+      public boolean hasNext() {
+        return iterator.hasNext();
+      }
+
+      @Override
+      public Map.Entry<ByteBuffer, Cell> next() {
+        Map.Entry<ByteBuffer, Long> entry = iterator.next();
+        return new AbstractMap.SimpleImmutableEntry<>(entry.getKey(), read(entry.getValue()));
+      }
+    };
+  }
+
+  /** Off-heap bytes taken by the entries */
+  long sizeInBytes() {
+    return arena.allocated();
+  }
+
+  /** Approximate heap bytes taken by the index */
+  long indexSizeInBytes() {
+    return (long) entries.get() * ENTRY_OVERHEAD;
+  }
+
+  boolean isEmpty() {
+    return index.isEmpty();
+  }
+
+  /**
+   * Return the off-heap memory to the pool. Readers that come later find nothing here, so the
+   * memtable must already be visible as a table.
+   */
+  void free() {
+    freeLock.writeLock().lock();
+    try {
+      freed = true;
+      arena.release();
+    } finally {
+      freeLock.writeLock().unlock();
+    }
+  }
+
+  private void put(
+      @NotNull final byte[] key,
+      @Nullable final byte[] value,
+      final long timestamp
+  ) {
+    int valueLength = value == null ? 0 : value.length;
+    long address = arena.allocate(HEADER_SIZE + key.length + valueLength);
+    ByteBuffer view = arena.view(address);
+    view.putLong(timestamp);
+    view.putInt(value == null ? TOMBSTONE : value.length);
+    view.putInt(key.length);
+    int keyOffset = view.position();
+    view.put(key);
+    if (value != null) {
+      view.put(value);
+    }
+    view.position(keyOffset);
+    view.limit(keyOffset + key.length);
+    if (index.put(view.slice(), address) == null) {
+      entries.incrementAndGet();
+    }
+  }
+
+  @NotNull
+  private Cell read(final long address) {
+    ByteBuffer view = arena.view(address);
+    long timestamp = view.getLong();
+    int valueLength = view.getInt();
+    if (valueLength == TOMBSTONE) {
+      return Cell.tombstone(timestamp);
+    }
+    int keyLength = view.getInt();
+    view.position(view.position() + keyLength);
+    view.limit(view.position() + valueLength);
+    return Cell.value(view.slice(), timestamp);
+  }
+}
@@ -0,0 +1,120 @@
+package ru.mail.polis.kirpichenkov;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+/**
+ * Merge of sorted cell sources into one sorted stream with a single cell per key. Sources are
+ * given from the newest to the oldest, and the cell of the newest source shadows the others.
+ * <p>
+ * Tombstones written before the expiry time are dropped as well. That is only safe when no
+ * source outside of the merge may still hold an older value of the key.
+ *
+ * @author Pavel Kirpichenkov
+ */
+class MergeIterator implements Iterator<Map.Entry<ByteBuffer, Cell>> {
+  private final PriorityQueue<Source> heads = new PriorityQueue<>();
+  private final long tombstoneExpiry;
+  private Map.Entry<ByteBuffer, Cell> next;
+  private long shadowed;
+  private long expired;
+
+  /**
+   * @param sources sorted sources from the newest to the oldest
+   * @param tombstoneExpiry tombstones with smaller timestamps are dropped,
+   *     {@link Long#MIN_VALUE} to keep them all
+   */
+  MergeIterator(
+      @NotNull final List<Iterator<Map.Entry<ByteBuffer, Cell>>> sources,
+      final long tombstoneExpiry
+  ) {
+    this.tombstoneExpiry = tombstoneExpiry;
+    for (int ix = 0; ix < sources.size(); ix++) {
+      Iterator<Map.Entry<ByteBuffer, Cell>> iterator = sources.get(ix);
+      if (iterator.hasNext()) {
+        heads.add(new Source(ix, iterator));
+      }
+    }
+    advance();
+  }
+
+  @Override
+  public boolean hasNext() {
+    return next != null;
+  }
+
+  @Override
+  public Map.Entry<ByteBuffer, Cell> next() {
+    if (next == null) {
+      throw new NoSuchElementException();
+    }
+    Map.Entry<ByteBuffer, Cell> result = next;
+    advance();
+    return result;
+  }
+
+  /** Number of cells skipped because a newer source had the same key */
+  long getShadowed() {
+    return shadowed;
+  }
+
+  /** Number of dropped tombstones */
+  long getExpired() {
+    return expired;
+  }
+
+  private void advance() {
+    next = null;
+    while (next == null && !heads.isEmpty()) {
+      Source newest = heads.poll();
+      Map.Entry<ByteBuffer, Cell> entry = newest.current;
+      newest.move(heads);
+      while (!heads.isEmpty() && heads.peek().current.getKey().equals(entry.getKey())) {
+        heads.poll().move(heads);
+        shadowed++;
+      }
+      Cell cell = entry.getValue();
+      if (cell.isTombstone() && cell.getTimestamp() < tombstoneExpiry) {
+        expired++;
+      } else {
+        next = entry;
+      }
+    }
+  }
+
+  /** Source with its current entry, ordered by the key and then from the newest to the oldest */
+  private static class Source implements Comparable<Source> {
+    private final int age;
+    private final Iterator<Map.Entry<ByteBuffer, Cell>> iterator;
+    private Map.Entry<ByteBuffer, Cell> current;
+
+    Source(
+        final int age,
+        @NotNull final Iterator<Map.Entry<ByteBuffer, Cell>> iterator
+    ) {
+      this.age = age;
+      this.iterator = iterator;
+      this.current = iterator.next();
+    }
+
+    /** Take the next entry and return to the queue, unless exhausted */
+    void move(@NotNull final PriorityQueue<Source> queue) {
+      if (iterator.hasNext()) {
+        current = iterator.next();
+        queue.add(this);
+      }
+    }
+
+    @Override
+    public int compareTo(@NotNull final Source other) {
+      int cmp = current.getKey().compareTo(other.current.getKey());
+      return cmp != 0 ? cmp : Integer.compare(age, other.age);
+    }
+  }
+}
@@ -0,0 +1,91 @@
+package ru.mail.polis.kirpichenkov;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Hash tree over the key and version pairs of the storage. Keys are spread over the leaves by the
+ * top bits of the same hash the {@link HashRing} uses, and a leaf keeps the XOR of the hashes of
+ * its pairs, so a write updates its leaf in place: the old pair is XORed out and the new one in.
+ * Inner nodes are hashed from their children on demand.
+ * <p>
+ * Replicas holding the same versions of the same keys have equal trees, and the leaves that differ
+ * tell which keys to compare.
+ *
+ * @author Pavel Kirpichenkov
+ */
+class MerkleTree {
+  private final int depth;
+  private final AtomicLongArray leaves;
+
+  /** @param depth number of levels below the root, the tree has 2^depth leaves */
+  MerkleTree(final int depth) {
+    if (depth < 0 || depth > 24) {
+      throw new IllegalArgumentException("Unsupported depth " + depth);
+    }
+    this.depth = depth;
+    this.leaves = new AtomicLongArray(1 << depth);
+  }
+
+  int getDepth() {
+    return depth;
+  }
+
+  /** Index of the leaf the key belongs to */
+  int leaf(@NotNull final byte[] key) {
+    return depth == 0 ? 0 : (int) (Murmur3.hash64(key) >>> (Long.SIZE - depth));
+  }
+
+  /** Account the key with the version */
+  void add(
+      @NotNull final byte[] key,
+      final long version
+  ) {
+    leaves.accumulateAndGet(leaf(key), pairHash(key, version), (a, b) -> a ^ b);
+  }
+
+  /** Replace the old version of the key with the new one */
+  void replace(
+      @NotNull final byte[] key,
+      final long oldVersion,
+      final long newVersion
+  ) {
+    long change = pairHash(key, oldVersion) ^ pairHash(key, newVersion);
+    leaves.accumulateAndGet(leaf(key), change, (a, b) -> a ^ b);
+  }
+
+  /**
+   * @param level level from 0 for the root to the depth for the leaves
+   * @return hashes of the nodes of the level from left to right
+   */
+  @NotNull
+  long[] level(final int level) {
+    if (level < 0 || level > depth) {
+      throw new IllegalArgumentException("No level " + level);
+    }
+    long[] hashes = new long[leaves.length()];
+    for (int ix = 0; ix < hashes.length; ix++) {
+      hashes[ix] = leaves.get(ix);
+    }
+    ByteBuffer pair = ByteBuffer.allocate(2 * Long.BYTES);
+    for (int size = hashes.length; size > 1 << level; size /= 2) {
+      for (int ix = 0; ix < size / 2; ix++) {
+        pair.clear();
+        pair.putLong(hashes[2 * ix]).putLong(hashes[2 * ix + 1]);
+        hashes[ix] = Murmur3.hash64(pair.array());
+      }
+    }
+    long[] result = new long[1 << level];
+    System.arraycopy(hashes, 0, result, 0, result.length);
+    return result;
+  }
+
+  private static long pairHash(
+      @NotNull final byte[] key,
+      final long version
+  ) {
+    return Murmur3.hash64(key, 0, key.length, version);
+  }
+}
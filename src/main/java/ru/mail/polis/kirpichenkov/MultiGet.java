@@ -0,0 +1,75 @@
+package ru.mail.polis.kirpichenkov;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * Read of many keys at once, see {@link MultiKeyRequest}. The response lists the keys in the
+ * order of the request:
+ * <pre>
+ * [key length: int][key][status: int][value length or -1: int][value]...
+ * </pre>
+ * where the status is the one a single key read would get: 200, 404 or 504.
+ *
+ * @author Pavel Kirpichenkov
+ */
+final class MultiGet extends MultiKeyRequest {
+  private static final int NO_VALUE = -1;
+
+  /**
+   * @param keys keys to read
+   * @param acks successes required for every key
+   * @param nodes replica nodes of a key
+   */
+  MultiGet(
+      @NotNull final List<String> keys,
+      final int acks,
+      @NotNull final Function<String, Collection<String>> nodes
+  ) {
+    super(keys, acks, nodes);
+  }
+
+  @NotNull
+  @Override
+  ReplicationProtocol.Operation getOperation(final int ix) {
+    return new ReplicationProtocol.Operation(
+        ReplicationProtocol.GET,
+        getKey(ix).getBytes(StandardCharsets.UTF_8),
+        ReplicationProtocol.NO_VERSION,
+        null);
+  }
+
+  @Override
+  void encode(
+      final int ix,
+      @NotNull final Result result,
+      @NotNull final DataOutputStream out
+  ) throws IOException
+  {
+    out.writeInt(status(result));
+    if (result.getStatus() == Result.Status.OK) {
+      out.writeInt(result.getBody().length);
+      out.write(result.getBody());
+    } else {
+      out.writeInt(NO_VALUE);
+    }
+  }
+
+  private static int status(@NotNull final Result result) {
+    switch (result.getStatus()) {
+      case OK:
+        return Collaboration.STATUS_OK;
+      case ABSENT:
+      case DELETED:
+        return Collaboration.STATUS_NOT_FOUND;
+      default:
+        return Collaboration.STATUS_NOT_ENOUGH_REPLICAS;
+    }
+  }
+}
@@ -0,0 +1,145 @@
+package ru.mail.polis.kirpichenkov;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+
+/**
+ * Request of many keys at once. The keys are grouped by the nodes holding their replicas, every
+ * node is asked for all of its keys in one call, and the replies are merged per key by a
+ * {@link QuorumCollector} of its own, just like for a single key.
+ * <p>
+ * The response lists the keys in the order of the request, each followed by its result in the
+ * format of the subclass:
+ * <pre>
+ * [key length: int][key][result]...
+ * </pre>
+ *
+ * @author Pavel Kirpichenkov
+ */
+abstract class MultiKeyRequest {
+  private final List<String> keys;
+  private final List<QuorumCollector> collectors;
+  private final List<Map<String, CompletableFuture<Result>>> replies;
+  private final Map<String, List<Integer>> groups = new LinkedHashMap<>();
+
+  /**
+   * @param keys keys of the request
+   * @param acks successes required for every key
+   * @param nodes replica nodes of a key
+   */
+  MultiKeyRequest(
+      @NotNull final List<String> keys,
+      final int acks,
+      @NotNull final Function<String, Collection<String>> nodes
+  ) {
+    this.keys = keys;
+    this.collectors = new ArrayList<>(keys.size());
+    this.replies = new ArrayList<>(keys.size());
+    for (int ix = 0; ix < keys.size(); ix++) {
+      Collection<String> replicas = nodes.apply(keys.get(ix));
+      collectors.add(new QuorumCollector(acks, replicas.size()));
+      replies.add(new HashMap<>());
+      for (String node : replicas) {
+        groups.computeIfAbsent(node, key -> new ArrayList<>()).add(ix);
+      }
+    }
+  }
+
+  /** Operation to send the nodes for the key */
+  @NotNull
+  abstract ReplicationProtocol.Operation getOperation(int ix);
+
+  /** Write what follows the key in the response */
+  abstract void encode(
+      int ix,
+      @NotNull Result result,
+      @NotNull DataOutputStream out
+  ) throws IOException;
+
+  /** Indexes of the keys to ask every node for */
+  @NotNull
+  Map<String, List<Integer>> getGroups() {
+    return groups;
+  }
+
+  /**
+   * Take the replies of the node, which must be given for every group before the call completes
+   *
+   * @param indexes indexes of the keys the node was asked for
+   * @param results future of the results in the same order, an error for all of them if it fails
+   */
+  void reply(
+      @NotNull final String node,
+      @NotNull final List<Integer> indexes,
+      @NotNull final CompletableFuture<List<Result>> results
+  ) {
+    for (int position = 0; position < indexes.size(); position++) {
+      int ix = indexes.get(position);
+      int at = position;
+      CompletableFuture<Result> reply = results.handle((list, ex) ->
+          ex == null ? list.get(at) : Collaboration.error());
+      replies.get(ix).put(node, reply);
+      reply.thenAccept(collectors.get(ix)::add);
+    }
+  }
+
+  @NotNull
+  String getKey(final int ix) {
+    return keys.get(ix);
+  }
+
+  int size() {
+    return keys.size();
+  }
+
+  @NotNull
+  QuorumCollector getCollector(final int ix) {
+    return collectors.get(ix);
+  }
+
+  /** Replies of the nodes for the key */
+  @NotNull
+  Map<String, CompletableFuture<Result>> getReplies(final int ix) {
+    return replies.get(ix);
+  }
+
+  /** @return future of the response body, completed once every key has its merged result */
+  @NotNull
+  CompletableFuture<byte[]> response() {
+    CompletableFuture<?>[] responses = new CompletableFuture<?>[collectors.size()];
+    for (int ix = 0; ix < responses.length; ix++) {
+      responses[ix] = collectors.get(ix).response();
+    }
+    return CompletableFuture.allOf(responses).thenApply(done -> encode());
+  }
+
+  @NotNull
+  private byte[] encode() {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (DataOutputStream out = new DataOutputStream(bytes)) {
+      for (int ix = 0; ix < keys.size(); ix++) {
+        byte[] key = keys.get(ix).getBytes(StandardCharsets.UTF_8);
+        Result result = collectors.get(ix).response().join();
+        out.writeInt(key.length);
+        out.write(key);
+        encode(ix, result, out);
+      }
+    } catch (IOException ex) {
+      throw new UncheckedIOException(ex);
+    }
+    return bytes.toByteArray();
+  }
+}
@@ -0,0 +1,124 @@
+package ru.mail.polis.kirpichenkov;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * Write of many keys at once, see {@link MultiKeyRequest}. The request body lists the writes:
+ * <pre>
+ * [key length: int][key][value length or -1 for a deletion: int][value]...
+ * </pre>
+ * and the response lists the keys in the same order:
+ * <pre>
+ * [key length: int][key][status: int]...
+ * </pre>
+ * where the status is the one a single key write would get: 201, 202 or 504.
+ *
+ * @author Pavel Kirpichenkov
+ */
+final class MultiPut extends MultiKeyRequest {
+  private static final int DELETION = -1;
+  private final List<ReplicationProtocol.Operation> operations;
+
+  /**
+   * @param operations writes in the order of the request
+   * @param acks successes required for every key
+   * @param nodes replica nodes of a key
+   */
+  MultiPut(
+      @NotNull final List<ReplicationProtocol.Operation> operations,
+      final int acks,
+      @NotNull final Function<String, Collection<String>> nodes
+  ) {
+    super(keys(operations), acks, nodes);
+    this.operations = operations;
+  }
+
+  /**
+   * Read the writes from the request body, all with the same version
+   *
+   * @throws IllegalArgumentException if the body is malformed or has an empty key
+   */
+  @NotNull
+  static List<ReplicationProtocol.Operation> parse(
+      @NotNull final byte[] body,
+      final long version
+  ) throws IllegalArgumentException
+  {
+    List<ReplicationProtocol.Operation> operations = new ArrayList<>();
+    ByteBuffer buffer = ByteBuffer.wrap(body);
+    while (buffer.hasRemaining()) {
+      byte[] key = bytes(buffer, length(buffer));
+      if (key.length == 0) {
+        throw new IllegalArgumentException("Empty key of write " + operations.size());
+      }
+      int length = length(buffer);
+      if (length == DELETION) {
+        operations.add(new ReplicationProtocol.Operation(ReplicationProtocol.DELETE, key, version, null));
+      } else {
+        byte[] value = bytes(buffer, length);
+        operations.add(new ReplicationProtocol.Operation(ReplicationProtocol.PUT, key, version, value));
+      }
+    }
+    return operations;
+  }
+
+  @NotNull
+  @Override
+  ReplicationProtocol.Operation getOperation(final int ix) {
+    return operations.get(ix);
+  }
+
+  @Override
+  void encode(
+      final int ix,
+      @NotNull final Result result,
+      @NotNull final DataOutputStream out
+  ) throws IOException
+  {
+    if (result.getStatus() == Result.Status.ERROR) {
+      out.writeInt(Collaboration.STATUS_NOT_ENOUGH_REPLICAS);
+    } else if (operations.get(ix).op == ReplicationProtocol.PUT) {
+      out.writeInt(Collaboration.STATUS_CREATED);
+    } else {
+      out.writeInt(Collaboration.STATUS_ACCEPTED);
+    }
+  }
+
+  private static int length(@NotNull final ByteBuffer buffer) {
+    if (buffer.remaining() < Integer.BYTES) {
+      throw new IllegalArgumentException("Truncated length");
+    }
+    return buffer.getInt();
+  }
+
+  @NotNull
+  private static byte[] bytes(
+      @NotNull final ByteBuffer buffer,
+      final int length
+  ) {
+    if (length < 0 || length > buffer.remaining()) {
+      throw new IllegalArgumentException("Malformed length " + length);
+    }
+    byte[] bytes = new byte[length];
+    buffer.get(bytes);
+    return bytes;
+  }
+
+  @NotNull
+  private static List<String> keys(@NotNull final List<ReplicationProtocol.Operation> operations) {
+    List<String> keys = new ArrayList<>(operations.size());
+    for (ReplicationProtocol.Operation operation : operations) {
+      keys.add(new String(operation.key, StandardCharsets.UTF_8));
+    }
+    return keys;
+  }
+}
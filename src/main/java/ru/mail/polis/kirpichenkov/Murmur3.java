@@ -0,0 +1,104 @@
+package ru.mail.polis.kirpichenkov;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * MurmurHash3 x64 128-bit variant, of which the first 64 bits are returned
+ *
+ * @author Pavel Kirpichenkov
+ */
+final class Murmur3 {
+  private static final long C1 = 0x87c37b91114253d5L;
+  private static final long C2 = 0x4cf5ad432745937fL;
+  private static final int BLOCK_SIZE = 16;
+
+  private Murmur3() {
+    // Not instantiatable
+  }
+
+  static long hash64(@NotNull final byte[] data) {
+    return hash64(data, 0, data.length, 0);
+  }
+
+  static long hash64(
+      @NotNull final byte[] data,
+      final int offset,
+      final int length,
+      final long seed
+  ) {
+    long h1 = seed;
+    long h2 = seed;
+    int blocks = length / BLOCK_SIZE;
+    for (int ix = 0; ix < blocks; ix++) {
+      int position = offset + ix * BLOCK_SIZE;
+      long k1 = getLong(data, position);
+      long k2 = getLong(data, position + Long.BYTES);
+
+      h1 ^= mixK1(k1);
+      h1 = Long.rotateLeft(h1, 27);
+      h1 += h2;
+      h1 = h1 * 5 + 0x52dce729;
+
+      h2 ^= mixK2(k2);
+      h2 = Long.rotateLeft(h2, 31);
+      h2 += h1;
+      h2 = h2 * 5 + 0x38495ab5;
+    }
+
+    int tail = offset + blocks * BLOCK_SIZE;
+    int rest = length - blocks * BLOCK_SIZE;
+    long k1 = 0;
+    long k2 = 0;
+    for (int ix = rest - 1; ix >= Long.BYTES; ix--) {
+      k2 ^= (data[tail + ix] & 0xffL) << ((ix - Long.BYTES) * Byte.SIZE);
+    }
+    for (int ix = Math.min(rest, Long.BYTES) - 1; ix >= 0; ix--) {
+      k1 ^= (data[tail + ix] & 0xffL) << (ix * Byte.SIZE);
+    }
+    h1 ^= mixK1(k1);
+    h2 ^= mixK2(k2);
+
+    h1 ^= length;
+    h2 ^= length;
+    h1 += h2;
+    h2 += h1;
+    h1 = fmix64(h1);
+    h2 = fmix64(h2);
+    h1 += h2;
+    return h1;
+  }
+
+  private static long getLong(
+      @NotNull final byte[] data,
+      final int position
+  ) {
+    long result = 0;
+    for (int ix = Long.BYTES - 1; ix >= 0; ix--) {
+      result = (result << Byte.SIZE) | (data[position + ix] & 0xffL);
+    }
+    return result;
+  }
+
+  private static long mixK1(long k1) {
+    k1 *= C1;
+    k1 = Long.rotateLeft(k1, 31);
+    k1 *= C2;
+    return k1;
+  }
+
+  private static long mixK2(long k2) {
+    k2 *= C2;
+    k2 = Long.rotateLeft(k2, 33);
+    k2 *= C1;
+    return k2;
+  }
+
+  private static long fmix64(long k) {
+    k ^= k >>> 33;
+    k *= 0xff51afd7ed558ccdL;
+    k ^= k >>> 33;
+    k *= 0xc4ceb9fe1a85ec53L;
+    k ^= k >>> 33;
+    return k;
+  }
+}
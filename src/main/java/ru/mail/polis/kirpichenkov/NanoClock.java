@@ -5,6 +5,7 @@ import org.jetbrains.annotations.NotNull;
 import java.time.Clock;
 import java.time.Instant;
 import java.time.ZoneId;
+import java.util.concurrent.TimeUnit;
 
 public class NanoClock extends Clock {
   private final Clock clock;
@@ -41,6 +42,16 @@ public class NanoClock extends Clock {
     return new NanoClock(clock.withZone(zone));
   }
 
+  /** Convert instant to nanoseconds since the epoch, the form versions are stored in */
+  public static long toEpochNanos(@NotNull final Instant instant) {
+    return TimeUnit.SECONDS.toNanos(instant.getEpochSecond()) + instant.getNano();
+  }
+
+  @NotNull
+  public static Instant fromEpochNanos(final long nanos) {
+    return Instant.ofEpochSecond(0, nanos);
+  }
+
   private long getSystemNanos() {
     return System.nanoTime();
   }
@@ -1,27 +1,92 @@
 package ru.mail.polis.kirpichenkov;
 
 import one.nio.http.*;
+import one.nio.net.Socket;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.javatuples.Pair;
 import org.javatuples.Triplet;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
+import java.io.File;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.*;
+import java.util.function.Supplier;
 
 import static ru.mail.polis.kirpichenkov.Collaboration.entityPath;
 
 public class OneNioHttpServer extends HttpServer {
   private static final Logger logger = LogManager.getLogger(OneNioHttpServer.class);
+  private static final long LATENCY_TARGET_MILLIS = Long.getLong("kv.lsm.ioLatencyTargetMillis", 100);
+  /** Share of the reads which repair the stale replicas they find */
+  private static final double READ_REPAIR_CHANCE =
+      Double.parseDouble(System.getProperty("kv.readRepair.chance", "1.0"));
+  /** Whether reads with fewer acknowledges than replicas ask only the fastest replicas at first */
+  private static final boolean HEDGED_READS =
+      Boolean.parseBoolean(System.getProperty("kv.hedge.enabled", "true"));
+  /** Percentile of a replica's latency after which a spare replica is asked */
+  private static final double HEDGE_PERCENTILE =
+      Double.parseDouble(System.getProperty("kv.hedge.percentile", "0.95"));
+  private static final long MIN_HEDGE_NANOS =
+      TimeUnit.MILLISECONDS.toNanos(Long.getLong("kv.hedge.minDelayMillis", 1));
+  /** Whether only one replica of a read sends the value, and the others send its digest */
+  private static final boolean DIGEST_READS =
+      Boolean.parseBoolean(System.getProperty("kv.digestReads", "true"));
+  /** Most keys of one multi-get */
+  private static final int MAX_MULTI_GET_KEYS = Integer.getInteger("kv.multiGet.maxKeys", 10000);
+  /** Most writes of one bulk write */
+  private static final int MAX_MULTI_PUT_KEYS = Integer.getInteger("kv.multiPut.maxKeys", 10000);
+  /** Largest request body, bulk writes included */
+  private static final int MAX_BODY_BYTES = Integer.getInteger("kv.http.maxBodyBytes", 16 * 1024 * 1024);
+  /** Whether concurrent reads of the same key with the same replicas share one round */
+  private static final boolean COALESCE_READS =
+      Boolean.parseBoolean(System.getProperty("kv.coalesceReads", "true"));
+  private VersionedKVDao storage;
   private InternalDao dao;
+  /** Background I/O limiter of the storage, null if the storage has none */
+  @Nullable
+  private IoRateLimiter ioRateLimiter;
+  /**
+   * Latency of the calls to the local storage, to rank this node among the replicas and to back the
+   * background I/O off when the storage gets slow
+   */
+  private LatencyTracker localLatency;
+  /** Replica rounds of the reads in flight, by the key, acknowledges and replicas */
+  private final SingleFlight<Triplet<String, Integer, Integer>, Result> reads =
+      new SingleFlight<>(key -> key.getValue0().hashCode());
+  private final CoordinatorMetrics coordinatorMetrics = new CoordinatorMetrics();
+  /** Versions of the writes */
+  private final NanoClock clock = new NanoClock();
+  private final PeerPools peers = new PeerPools(Collaboration.TIMEOUT);
   private List<String> topology;
+  private HashRing ring;
   private String me;
-  private ExecutorService threadPool;
+  /**
+   * Operations with the local storage. Kept apart from the remote calls, so that requests of the
+   * other nodes never wait for this node's own calls to them.
+   */
+  private ExecutorService localPool;
+  /** Server of the binary calls from the other nodes, null if it couldn't start */
+  @Nullable
+  private ReplicationServer replication;
+  private File basePath;
+  /** Writes missed by the other nodes, null if the hints can't be kept */
+  @Nullable
+  private HintedHandoff hints;
+  /** Rounds of the tree exchange with the other nodes, null if disabled */
+  @Nullable
+  private AntiEntropy antiEntropy;
 
   OneNioHttpServer(
       @NotNull final HttpServerConfig config,
@@ -32,23 +97,102 @@ public class OneNioHttpServer extends HttpServer {
 
   @Override
   public void start() {
+    dao = createInternalDao(storage, ring);
     super.start();
-    threadPool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+    int processors = Runtime.getRuntime().availableProcessors();
+    localPool = Executors.newFixedThreadPool(Math.max(2, processors));
+    ReplicationServer server = new ReplicationServer(dao, localPool);
+    try {
+      server.start();
+      replication = server;
+      logger.info("replication port {}", server.getPort());
+    } catch (IOException ex) {
+      logger.error("Can't start replication server, other nodes will use HTTP", ex);
+    }
+    try {
+      hints = new HintedHandoff(basePath, peers);
+    } catch (IOException ex) {
+      logger.error("Can't keep hints, missed writes will stay missed", ex);
+    }
+    RangeTrees trees = dao.getTrees();
+    if (trees != null) {
+      List<String> others = new ArrayList<>(topology);
+      others.remove(me);
+      antiEntropy = new AntiEntropy(dao, trees, me, others);
+    }
+  }
+
+  @Override
+  public HttpSession createSession(@NotNull final Socket socket) {
+    return new HttpSession(socket, this) {
+      @Override
+      protected int getMaxRequestBodyLength() {
+        return MAX_BODY_BYTES;
+      }
+    };
   }
 
   @Override
   public void stop() {
     super.stop();
-    threadPool.shutdown();
+    if (replication != null) {
+      replication.close();
+    }
+    if (antiEntropy != null) {
+      antiEntropy.close();
+    }
+    if (hints != null) {
+      hints.close();
+      logger.info("hints: {}", hints);
+    }
+    localPool.shutdown();
+    try {
+      // A response may go out before the local write it didn't wait for, e.g. when a peer failed
+      // at once; let the write finish before the storage is closed
+      localPool.awaitTermination(1, TimeUnit.SECONDS);
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+    }
+    for (Peer peer : peers.all()) {
+      logger.info("peer {}", peer);
+    }
+    peers.close();
+    logger.info("coordinator: {}", coordinatorMetrics);
+    logger.info("coalesced reads: {} replica rounds, {} storage reads", reads.getShared(), dao.getCoalescedReads());
   }
 
-  public void setDao(@NotNull final BasePathGrantingKVDao dao) {
-    this.dao = new InternalDao(dao);
+  /** The storage is wrapped when the server starts, once the ring is known */
+  public void setDao(@NotNull final VersionedKVDao dao) {
+    this.storage = dao;
+    this.basePath = dao.getBasePath();
+    this.ioRateLimiter = dao instanceof LsmKVDao ? ((LsmKVDao) dao).getIoRateLimiter() : null;
+    this.localLatency = new LatencyTracker(ioRateLimiter, LATENCY_TARGET_MILLIS);
+  }
+
+  @NotNull
+  private static InternalDao createInternalDao(
+      @NotNull final VersionedKVDao dao,
+      @NotNull final HashRing ring
+  ) {
+    if (AntiEntropy.INTERVAL_MILLIS <= 0) {
+      return new InternalDao(dao);
+    }
+    try {
+      return new InternalDao(dao, AntiEntropy.trees(ring));
+    } catch (IOException ex) {
+      logger.error("Can't build the hash trees, anti-entropy is disabled", ex);
+      return new InternalDao(dao);
+    }
   }
 
   public void setTopology(@NotNull final Set<String> topology) {
     this.topology = TopologyUtil.ordered(topology);
+    ring = new HashRing(this.topology, HashRing.VIRTUAL_NODES);
+    logger.info("ring: {}", ring.skewReport());
     me = findMe(topology);
+    List<String> others = new ArrayList<>(topology);
+    others.remove(me);
+    peers.warmUp(others);
   }
 
   /**
@@ -89,6 +233,24 @@ public class OneNioHttpServer extends HttpServer {
       case "/v0/entity":
         handleEntity(request, session);
         break;
+      case "/v0/entities":
+        handleEntities(request, session);
+        break;
+      case "/v0/admin/io":
+        handleAdminIo(request, session);
+        break;
+      case "/v0/replication":
+        handleReplication(session);
+        break;
+      case AntiEntropy.TREE_PATH:
+        handleTree(request, session);
+        break;
+      case AntiEntropy.KEYS_PATH:
+        handleKeys(request, session);
+        break;
+      case AntiEntropy.VALUES_PATH:
+        handleValues(request, session);
+        break;
       default:
         sendBadRequest(session);
     }
@@ -110,7 +272,7 @@ public class OneNioHttpServer extends HttpServer {
     String id = params.getValue0();
     int acks = params.getValue1();
     int from = params.getValue2();
-    Collection<String> nodes = TopologyUtil.nodes(topology, id, from);
+    Collection<String> nodes = TopologyUtil.nodes(ring, id, from);
     if (Collaboration.isInternal(request)) {
       logger.debug("internal");
       handleAlone(request, session, id);
@@ -132,87 +294,602 @@ public class OneNioHttpServer extends HttpServer {
       throws IllegalArgumentException
   {
     String id = getId(request);
-    String replicas = getReplicas(request);
     if (id.isEmpty()) {
       throw new IllegalArgumentException("Empty Id");
     }
+    Pair<Integer, Integer> ackFrom = processReplicas(request);
+    return Triplet.with(id, ackFrom.getValue0(), ackFrom.getValue1());
+  }
 
-    int acks;
-    int from;
+  /**
+   * @return minimal required number of acknowledges and total number of replicas, a quorum of all
+   *     the nodes by default
+   * @throws IllegalArgumentException if the replicas parameter is malformed
+   */
+  @NotNull
+  private Pair<Integer, Integer> processReplicas(@NotNull final Request request)
+      throws IllegalArgumentException
+  {
+    String replicas = getReplicas(request);
     if (replicas.isEmpty()) {
-      from = topology.size();
-      acks = TopologyUtil.quorum(from);
-    } else {
-      Pair<Integer, Integer> ackFrom = TopologyUtil.parseReplicas(replicas);
-      acks = ackFrom.getValue0();
-      from = ackFrom.getValue1();
+      int from = topology.size();
+      return Pair.with(TopologyUtil.quorum(from), from);
+    }
+    return TopologyUtil.parseReplicas(replicas);
+  }
+
+  /**
+   * Read many keys at once: the {@code id} parameters of a GET, or the lines of a POST body, or
+   * write them with a PUT. Every replica node is asked for all of its keys in one batch, and the
+   * response is sent when every key has its result, see {@link MultiGet} and {@link MultiPut} for
+   * the formats.
+   */
+  private void handleEntities(
+      @NotNull final Request request,
+      @NotNull final HttpSession session
+  ) throws IOException
+  {
+    if (request.getMethod() == Request.METHOD_PUT) {
+      handleBulkWrite(request, session);
+      return;
+    }
+    if (request.getMethod() != Request.METHOD_GET && request.getMethod() != Request.METHOD_POST) {
+      session.sendResponse(notAllowed());
+      return;
+    }
+    List<String> keys;
+    Pair<Integer, Integer> ackFrom;
+    try {
+      keys = getKeys(request);
+      ackFrom = processReplicas(request);
+    } catch (IllegalArgumentException ex) {
+      logger.debug(ex);
+      sendBadRequest(session);
+      return;
     }
-    return Triplet.with(id, acks, from);
+    int acks = ackFrom.getValue0();
+    int from = ackFrom.getValue1();
+    MultiGet multiGet = new MultiGet(keys, acks, key -> TopologyUtil.nodes(ring, key, from));
+    callAll(multiGet);
+    for (int ix = 0; ix < multiGet.size(); ix++) {
+      QuorumCollector collector = multiGet.getCollector(ix);
+      collector.lateReplies().thenAcceptBoth(
+          collector.response(),
+          (late, mergeResult) -> coordinatorMetrics.record(mergeResult, late));
+      if (from > 1 && ThreadLocalRandom.current().nextDouble() < READ_REPAIR_CHANCE) {
+        String id = multiGet.getKey(ix);
+        Map<String, CompletableFuture<Result>> replies = multiGet.getReplies(ix);
+        collector.lateReplies().thenAcceptBoth(
+            collector.response(),
+            (late, mergeResult) -> repair(id, replies, mergeResult));
+      }
+    }
+    multiGet.response().whenComplete((body, ex) -> send(session, multiResponse(body, ex)));
   }
 
+  /**
+   * Write many keys at once, all with the same version given here, so that every replica makes its
+   * writes with one storage write. Writes which fail on some replicas are hinted with that version.
+   */
+  private void handleBulkWrite(
+      @NotNull final Request request,
+      @NotNull final HttpSession session
+  ) throws IOException
+  {
+    List<ReplicationProtocol.Operation> operations;
+    Pair<Integer, Integer> ackFrom;
+    try {
+      if (request.getBody() == null) {
+        throw new IllegalArgumentException("No writes");
+      }
+      operations = MultiPut.parse(request.getBody(), NanoClock.toEpochNanos(clock.instant()));
+      if (operations.isEmpty() || operations.size() > MAX_MULTI_PUT_KEYS) {
+        throw new IllegalArgumentException(operations.size() + " writes requested");
+      }
+      ackFrom = processReplicas(request);
+    } catch (IllegalArgumentException ex) {
+      logger.debug(ex);
+      sendBadRequest(session);
+      return;
+    }
+    int acks = ackFrom.getValue0();
+    int from = ackFrom.getValue1();
+    MultiPut multiPut = new MultiPut(operations, acks, key -> TopologyUtil.nodes(ring, key, from));
+    callAll(multiPut);
+    for (int ix = 0; ix < multiPut.size(); ix++) {
+      QuorumCollector collector = multiPut.getCollector(ix);
+      ReplicationProtocol.Operation operation = multiPut.getOperation(ix);
+      Map<String, CompletableFuture<Result>> replies = multiPut.getReplies(ix);
+      collector.lateReplies().thenAcceptBoth(collector.response(), (late, mergeResult) -> {
+        coordinatorMetrics.record(mergeResult, late);
+        hint(operation, replies, mergeResult);
+      });
+    }
+    multiPut.response().whenComplete((body, ex) -> {
+      List<Triplet<String, Integer, Integer>> written = new ArrayList<>(multiPut.size());
+      for (int ix = 0; ix < multiPut.size(); ix++) {
+        written.add(Triplet.with(multiPut.getKey(ix), acks, from));
+      }
+      sendWritten(session, multiResponse(body, ex), written);
+    });
+  }
+
+  @NotNull
+  private Response multiResponse(
+      @Nullable final byte[] body,
+      @Nullable final Throwable ex
+  ) {
+    if (ex != null || body == null) {
+      logger.error("Can't encode multi-key response", ex);
+      return serverError();
+    }
+    Response response = new Response(Response.OK, body);
+    response.addHeader("Content-Type: application/octet-stream");
+    return response;
+  }
+
+  /**
+   * @return keys of the multi-get
+   * @throws IllegalArgumentException if there are none or too many of them
+   */
+  @NotNull
+  private static List<String> getKeys(@NotNull final Request request) throws IllegalArgumentException {
+    List<String> keys = new ArrayList<>();
+    Iterator<String> ids = request.getParameters("id=");
+    while (ids.hasNext()) {
+      keys.add(ids.next());
+    }
+    if (request.getMethod() == Request.METHOD_POST && request.getBody() != null) {
+      for (String line : new String(request.getBody(), StandardCharsets.UTF_8).split("\n")) {
+        if (!line.trim().isEmpty()) {
+          keys.add(line.trim());
+        }
+      }
+    }
+    if (keys.isEmpty() || keys.contains("")) {
+      throw new IllegalArgumentException("No keys");
+    }
+    if (keys.size() > MAX_MULTI_GET_KEYS) {
+      throw new IllegalArgumentException(keys.size() + " keys requested");
+    }
+    return keys;
+  }
+
+  /** Ask every node for all of its keys at once */
+  private void callAll(@NotNull final MultiKeyRequest multi) {
+    multi.getGroups().forEach((nodeUrl, indexes) -> {
+      List<ReplicationProtocol.Operation> operations = new ArrayList<>(indexes.size());
+      for (int ix : indexes) {
+        operations.add(multi.getOperation(ix));
+      }
+      multi.reply(nodeUrl, indexes, callAll(operations, nodeUrl));
+    });
+  }
+
+  /**
+   * Make the reads or the writes on the node: this one in a single task on the storage pool,
+   * another one with a binary batch if it is connected, or key by key over HTTP otherwise
+   *
+   * @param operations reads only or writes only
+   * @return future of the results in the order of the operations, failing if the node can't be
+   *     asked
+   */
+  @NotNull
+  private CompletableFuture<List<Result>> callAll(
+      @NotNull final List<ReplicationProtocol.Operation> operations,
+      @NotNull final String nodeUrl
+  ) {
+    if (nodeUrl.equals(me)) {
+      try {
+        return CompletableFuture.supplyAsync(() -> {
+          if (operations.get(0).op != ReplicationProtocol.GET) {
+            return dao.write(operations);
+          }
+          List<Result> results = new ArrayList<>(operations.size());
+          for (ReplicationProtocol.Operation operation : operations) {
+            results.add(dao.get(operation.key));
+          }
+          return results;
+        }, localPool);
+      } catch (RejectedExecutionException ex) {
+        CompletableFuture<List<Result>> failed = new CompletableFuture<>();
+        failed.completeExceptionally(ex);
+        return failed;
+      }
+    }
+    Peer peer = peers.get(nodeUrl);
+    if (!peer.allow()) {
+      logger.debug("Skipping {}, taken for dead", nodeUrl);
+      CompletableFuture<List<Result>> failed = new CompletableFuture<>();
+      failed.completeExceptionally(new IOException(nodeUrl + " is taken for dead"));
+      return failed;
+    }
+    CompletableFuture<List<Result>> batch = peer.batch(operations);
+    if (batch != null) {
+      return batch;
+    }
+    Request get = new Request(Request.METHOD_GET, "/v0/entity", true);
+    List<CompletableFuture<Result>> results = new ArrayList<>(operations.size());
+    for (ReplicationProtocol.Operation operation : operations) {
+      results.add(async(peer.getCalls(), () -> operation.op == ReplicationProtocol.GET
+          ? Collaboration.remote(
+              get,
+              new String(operation.key, StandardCharsets.UTF_8),
+              peer,
+              false,
+              ReplicationProtocol.NO_VERSION)
+          : Collaboration.deliver(peer, operation.op, operation.key, operation.version, operation.value)));
+    }
+    return CompletableFuture.allOf(results.toArray(new CompletableFuture<?>[0])).thenApply(done -> {
+      List<Result> list = new ArrayList<>(results.size());
+      for (CompletableFuture<Result> result : results) {
+        list.add(result.join());
+      }
+      return list;
+    });
+  }
+
+  /**
+   * Ask the replicas and respond as soon as there are enough acknowledges, or as soon as there
+   * can't be enough of them. Nothing here blocks: the replicas are called on the thread pools, and
+   * the response is sent from the callback, so the selector thread is free to serve other
+   * connections meanwhile. Replies coming after the response only go to the metrics.
+   * <p>
+   * A read which needs fewer acknowledges than there are replicas is a {@link HedgedRead}: spare
+   * replicas are only asked when the fastest ones fail or are slower than usual.
+   * <p>
+   * Only the data replica of a read, this node or else the fastest one, sends the value, and the
+   * others send its digest. The value is fetched again only from a replica with a newer version
+   * whose digest differs from the hash of the value the data replica sent.
+   * <p>
+   * Concurrent reads of the same key and replicas share one round, unless a write of the key
+   * through this node has finished since the round started.
+   */
   private void collaborate(
       @NotNull final Request request,
       @NotNull final HttpSession session,
       @NotNull final String id,
       @NotNull final Collection<String> nodes,
       final int acksRequired
-  ) throws IOException
-  {
+  ) {
     logger.debug("I am {}", me);
-    List<Result> results = new ArrayList<>();
-    CompletionService<Result> completionService = new ExecutorCompletionService<>(threadPool);
-    for (String nodeUrl : nodes) {
-      Callable<Result> task = () -> {
-        Result result;
-        if (nodeUrl.equals(me)) {
-          result = Collaboration.local(request, id, dao);
-          logger.debug("Local {} {}{} {}",
-              () -> methodToString(request),
-              () -> nodeUrl,
-              () -> entityPath(id),
-              () -> result.getStatus().name());
-        } else {
-          result = Collaboration.remote(request, id, nodeUrl);
-          logger.debug("Remote {} {}{} {}",
+    Triplet<String, Integer, Integer> key = Triplet.with(id, acksRequired, nodes.size());
+    CompletableFuture<Result> result = request.getMethod() == Request.METHOD_GET && COALESCE_READS
+        ? reads.share(key, () -> replicaRound(request, id, nodes, acksRequired))
+        : replicaRound(request, id, nodes, acksRequired);
+    result.whenComplete((mergeResult, ex) -> {
+      Response response;
+      if (ex != null) {
+        logger.error("Can't collaborate on {}", id, ex);
+        response = serverError();
+      } else if (mergeResult.getStatus() == Result.Status.ERROR) {
+        response = notEnoughReplicas();
+      } else {
+        response = resultToResponse(request.getMethod(), mergeResult);
+      }
+      if (request.getMethod() == Request.METHOD_GET) {
+        send(session, response);
+      } else {
+        sendWritten(session, response, Collections.singletonList(key));
+      }
+    });
+  }
+
+  /**
+   * Ask the replicas, keeping the hints of the failed writes and repairing the stale replicas of
+   * the reads in the background. Writes go to every replica with the same version.
+   *
+   * @return future of the merged result
+   */
+  @NotNull
+  private CompletableFuture<Result> replicaRound(
+      @NotNull final Request request,
+      @NotNull final String id,
+      @NotNull final Collection<String> nodes,
+      final int acksRequired
+  ) {
+    boolean read = request.getMethod() == Request.METHOD_GET;
+    boolean digests = DIGEST_READS && read && nodes.size() > 1;
+    // A write is stamped here, so that all the replicas keep the same version of it
+    long version = read ? ReplicationProtocol.NO_VERSION : NanoClock.toEpochNanos(clock.instant());
+    QuorumCollector collector;
+    Map<String, CompletableFuture<Result>> replies;
+    String dataNode;
+    if (HEDGED_READS && read && acksRequired < nodes.size()) {
+      List<String> fastest = new ArrayList<>(nodes);
+      fastest.sort(Comparator.comparingLong(this::expectedLatency));
+      dataNode = fastest.get(0);
+      HedgedRead hedged = new HedgedRead(
+          fastest,
+          acksRequired,
+          nodeUrl -> call(request, id, nodeUrl, digests && !nodeUrl.equals(dataNode), version),
+          this::hedgeDelay,
+          peers.getTimer());
+      hedged.start();
+      collector = hedged.getCollector();
+      replies = hedged.getReplies();
+      collector.lateReplies().thenRun(() -> coordinatorMetrics.hedged(hedged.getHedges()));
+    } else {
+      dataNode = nodes.contains(me) ? me : nodes.iterator().next();
+      collector = new QuorumCollector(acksRequired, nodes.size());
+      replies = new HashMap<>();
+      for (String nodeUrl : nodes) {
+        CompletableFuture<Result> reply =
+            call(request, id, nodeUrl, digests && !nodeUrl.equals(dataNode), version);
+        reply.thenAccept(collector::add);
+        replies.put(nodeUrl, reply);
+      }
+    }
+    CompletableFuture<Result> resolved = digests
+        ? collector.response().thenCompose(mergeResult ->
+            fetchValue(request, id, replies, replies.get(dataNode), mergeResult))
+        : collector.response();
+    collector.lateReplies().thenAcceptBoth(
+        collector.response(),
+        (late, mergeResult) -> coordinatorMetrics.record(mergeResult, late));
+    if (request.getMethod() != Request.METHOD_GET) {
+      collector.lateReplies().thenAcceptBoth(
+          collector.response(),
+          (late, mergeResult) -> hint(request, id, replies, version, mergeResult));
+    } else if (nodes.size() > 1 && ThreadLocalRandom.current().nextDouble() < READ_REPAIR_CHANCE) {
+      collector.lateReplies().thenAcceptBoth(resolved, (late, value) -> repair(id, replies, value));
+    }
+    return resolved;
+  }
+
+  /**
+   * Check the digests against the value of the data replica. The value is fetched only if the
+   * newest reply is a digest of another value, from the replica which sent it; a newer digest of
+   * the same value just gives its version to the value the data replica sent.
+   *
+   * @param dataReply reply of the replica asked for the value
+   * @return future of the merged result with the value, an error if it can't be fetched
+   */
+  @NotNull
+  private CompletableFuture<Result> fetchValue(
+      @NotNull final Request request,
+      @NotNull final String id,
+      @NotNull final Map<String, CompletableFuture<Result>> replies,
+      @NotNull final CompletableFuture<Result> dataReply,
+      @NotNull final Result mergeResult
+  ) {
+    Result data = dataReply.getNow(null);
+    if (data != null && data.getStatus() != Result.Status.ERROR) {
+      for (CompletableFuture<Result> reply : replies.values()) {
+        Result result = reply.getNow(null);
+        if (result != null && result.isDigest() && !Collaboration.sameValue(result, data)) {
+          coordinatorMetrics.digestMismatch();
+          break;
+        }
+      }
+    }
+    if (mergeResult.getStatus() != Result.Status.OK || !mergeResult.isDigest()) {
+      return CompletableFuture.completedFuture(mergeResult);
+    }
+    if (Collaboration.sameValue(mergeResult, data)) {
+      return CompletableFuture.completedFuture(new Result()
+          .setStatus(Result.Status.OK)
+          .setTimestamp(mergeResult.getTimestamp())
+          .setBody(data.getBody()));
+    }
+    for (Map.Entry<String, CompletableFuture<Result>> reply : replies.entrySet()) {
+      if (reply.getValue().getNow(null) == mergeResult) {
+        logger.debug("Fetching {}{} after digests", reply::getKey, () -> entityPath(id));
+        return call(request, id, reply.getKey(), false, ReplicationProtocol.NO_VERSION).thenApply(value ->
+            value.getStatus() == Result.Status.ERROR
+                || value.getTimestamp().isBefore(mergeResult.getTimestamp())
+                ? Collaboration.error()
+                : value);
+      }
+    }
+    return CompletableFuture.completedFuture(Collaboration.error());
+  }
+
+  /** @return usual latency of the node in nanoseconds, the longest for a peer taken for dead */
+  private long expectedLatency(@NotNull final String nodeUrl) {
+    if (nodeUrl.equals(me)) {
+      return localLatency.recentPercentile(HEDGE_PERCENTILE);
+    }
+    Peer peer = peers.get(nodeUrl);
+    return peer.isAvailable() ? peer.getLatency().recentPercentile(HEDGE_PERCENTILE) : Long.MAX_VALUE;
+  }
+
+  /** @return time to wait for the node before asking a spare replica, within the call timeout */
+  private long hedgeDelay(@NotNull final String nodeUrl) {
+    long timeout = TimeUnit.MILLISECONDS.toNanos(Collaboration.TIMEOUT);
+    return Math.min(timeout, Math.max(MIN_HEDGE_NANOS, expectedLatency(nodeUrl)));
+  }
+
+  /**
+   * Read repair: once all the replicas have answered, send the newest value or tombstone to the
+   * ones which answered with older versions. The repair is made with the version of the newest
+   * reply, so it never replaces a value written meanwhile. Only a value the coordinator has is sent,
+   * a newer one known by its digest only is left to the anti-entropy.
+   *
+   * @param response merged result sent to the client, with the value
+   */
+  private void repair(
+      @NotNull final String id,
+      @NotNull final Map<String, CompletableFuture<Result>> replies,
+      @NotNull final Result response
+  ) {
+    Map<String, Result> results = new HashMap<>();
+    replies.forEach((nodeUrl, reply) -> results.put(nodeUrl, reply.join()));
+    Result newest = Collaboration.mergeResults(results.values(), 1);
+    if (newest.isDigest()) {
+      if (response.getStatus() != Result.Status.OK || response.isDigest()
+          || !response.getTimestamp().equals(newest.getTimestamp())) {
+        return;
+      }
+      newest = response;
+    }
+    List<String> stale = Collaboration.staleReplicas(results, newest);
+    if (stale.isEmpty()) {
+      return;
+    }
+    coordinatorMetrics.repaired(stale.size());
+    byte[] key = id.getBytes();
+    byte[] value = newest.getStatus() == Result.Status.OK ? newest.getBody() : null;
+    long version = NanoClock.toEpochNanos(newest.getTimestamp());
+    for (String nodeUrl : stale) {
+      logger.debug("Repair {}{}", () -> nodeUrl, () -> entityPath(id));
+      if (nodeUrl.equals(me)) {
+        async(localPool, () -> value == null
+            ? dao.remove(key, version)
+            : dao.upsert(key, value, version));
+      } else {
+        byte op = value == null ? ReplicationProtocol.DELETE : ReplicationProtocol.PUT;
+        Peer peer = peers.get(nodeUrl);
+        async(peer.getCalls(), () -> Collaboration.deliver(peer, op, key, version, value));
+      }
+    }
+  }
+
+  /**
+   * Keep hints of the acknowledged write for the replicas which failed it, with the version the
+   * write was acknowledged with
+   */
+  private void hint(
+      @NotNull final Request request,
+      @NotNull final String id,
+      @NotNull final Map<String, CompletableFuture<Result>> replies,
+      final long version,
+      @NotNull final Result mergeResult
+  ) {
+    byte op = request.getMethod() == Request.METHOD_PUT
+        ? ReplicationProtocol.PUT
+        : ReplicationProtocol.DELETE;
+    hint(
+        new ReplicationProtocol.Operation(op, id.getBytes(), version, request.getBody()),
+        replies,
+        mergeResult);
+  }
+
+  private void hint(
+      @NotNull final ReplicationProtocol.Operation operation,
+      @NotNull final Map<String, CompletableFuture<Result>> replies,
+      @NotNull final Result mergeResult
+  ) {
+    if (hints == null || mergeResult.getStatus() == Result.Status.ERROR) {
+      return;
+    }
+    replies.forEach((nodeUrl, reply) -> {
+      if (!nodeUrl.equals(me) && reply.join().getStatus() == Result.Status.ERROR) {
+        hints.hint(nodeUrl, operation.op, operation.key, operation.version, operation.value);
+      }
+    });
+  }
+
+  /**
+   * Call the node: this one on the storage pool, another one with the binary protocol if it is
+   * connected, or over HTTP otherwise, the last two on the threads of the peer
+   *
+   * @param digest whether a read should get the digest of the value only
+   * @param version version of a write, {@link ReplicationProtocol#NO_VERSION} for a read
+   */
+  @NotNull
+  private CompletableFuture<Result> call(
+      @NotNull final Request request,
+      @NotNull final String id,
+      @NotNull final String nodeUrl,
+      final boolean digest,
+      final long version
+  ) {
+    if (nodeUrl.equals(me)) {
+      long localStart = System.nanoTime();
+      return async(localPool, () -> digest
+          ? Collaboration.digest(Collaboration.local(request, id, dao, version))
+          : Collaboration.local(request, id, dao, version))
+          .whenComplete((result, ex) -> localLatency.record(System.nanoTime() - localStart))
+          .whenComplete((result, ex) -> logger.debug("Local {} {}{} {}",
               () -> methodToString(request),
               () -> nodeUrl,
               () -> entityPath(id),
-              () -> result.getStatus().name());
-        }
-        return result;
-      };
-      completionService.submit(task);
-    }
-    int receivedResultsCounter = 0;
-    while (receivedResultsCounter < nodes.size()) {
-      try{
-        Future<Result> wrappedResult = completionService.take();
-        results.add(wrappedResult.get());
-      } catch (InterruptedException | ExecutionException ex) {
-        logger.error("{}\nCause: {}", () -> ex, ex::getCause);
-        results.add(Collaboration.error());
-      } finally{
-        receivedResultsCounter++;
-        logger.debug("Received: {}", receivedResultsCounter);
-      }
+              () -> result.getStatus().name()));
     }
-    Result mergeResult = Collaboration.mergeResults(results, acksRequired);
-    Response response =
-        mergeResult.getStatus() == Result.Status.ERROR
-            ? notEnoughReplicas()
-            : resultToResponse(request.getMethod(), mergeResult);
-    session.sendResponse(response);
+    Peer peer = peers.get(nodeUrl);
+    if (!peer.allow()) {
+      logger.debug("Skipping {}, taken for dead", nodeUrl);
+      return CompletableFuture.completedFuture(Collaboration.error());
+    }
+    CompletableFuture<Result> replicated = Collaboration.replicate(request, id, peer, digest, version);
+    CompletableFuture<Result> result = replicated != null
+        ? replicated
+        : async(peer.getCalls(), () -> Collaboration.remote(request, id, peer, digest, version));
+    return result.whenComplete((r, ex) -> logger.debug("Remote {} {}{} {}",
+        () -> methodToString(request),
+        () -> nodeUrl,
+        () -> entityPath(id),
+        () -> r.getStatus().name()));
   }
 
   private void handleAlone(
       @NotNull final Request request,
       @NotNull final HttpSession session,
       @NotNull final String id
-  ) throws IOException
-  {
-    Result result = Collaboration.local(request, id, dao);
-    Response response = resultToResponse(request.getMethod(), result);
-    session.sendResponse(response);
+  ) {
+    long localStart = System.nanoTime();
+    async(localPool, () -> Collaboration.local(request, id, dao)).whenComplete((result, ex) -> {
+      localLatency.record(System.nanoTime() - localStart);
+      if (ex != null) {
+        logger.error("Can't process {} alone", id, ex);
+        send(session, serverError());
+      } else {
+        send(session, resultToResponse(request.getMethod(), result));
+      }
+    });
+  }
+
+  /**
+   * Run the task on the executor
+   *
+   * @return future, completed with an error result if the task fails or can't be run
+   */
+  @NotNull
+  private CompletableFuture<Result> async(
+      @NotNull final ExecutorService executor,
+      @NotNull final Supplier<Result> task
+  ) {
+    try {
+      return CompletableFuture
+          .supplyAsync(task, executor)
+          .exceptionally(ex -> {
+            logger.error("{}\nCause: {}", () -> ex, ex::getCause);
+            return Collaboration.error();
+          });
+    } catch (RejectedExecutionException ex) {
+      logger.debug("Server is stopping", ex);
+      return CompletableFuture.completedFuture(Collaboration.error());
+    }
+  }
+
+  /**
+   * Send the response to a write once the shared reads of the written keys are dropped, so that the
+   * reads the client makes after the response don't share the rounds started before the write
+   *
+   * @param keys keys of the shared reads, by the key, acknowledges and replicas
+   */
+  private void sendWritten(
+      @NotNull final HttpSession session,
+      @NotNull final Response response,
+      @NotNull final Collection<Triplet<String, Integer, Integer>> keys
+  ) {
+    for (Triplet<String, Integer, Integer> key : keys) {
+      reads.invalidate(key);
+    }
+    send(session, response);
+  }
+
+  /** Send the response from any thread */
+  private void send(
+      @NotNull final HttpSession session,
+      @NotNull final Response response
+  ) {
+    try {
+      session.sendResponse(response);
+    } catch (IOException ex) {
+      logger.debug("Can't send response", ex);
+    }
   }
 
   @NotNull
@@ -282,6 +959,144 @@ public class OneNioHttpServer extends HttpServer {
     }
   }
 
+  /**
+   * Send a level of the hash trees to the anti-entropy of another node. Like the keys and values,
+   * it is only served to the nodes of the cluster, not to the clients
+   */
+  private void handleTree(
+      @NotNull final Request request,
+      @NotNull final HttpSession session
+  ) throws IOException
+  {
+    if (!Collaboration.isInternal(request)) {
+      sendBadRequest(session);
+      return;
+    }
+    RangeTrees trees = dao.getTrees();
+    if (trees == null) {
+      session.sendResponse(notFound());
+    } else {
+      session.sendResponse(AntiEntropy.treeResponse(trees, request));
+    }
+  }
+
+  /** The keys are found by a scan of the storage, so they are served on the storage pool */
+  private void handleKeys(
+      @NotNull final Request request,
+      @NotNull final HttpSession session
+  ) throws IOException
+  {
+    RangeTrees trees = dao.getTrees();
+    handleAntiEntropy(request, session, () -> AntiEntropy.keysResponse(dao, trees, request));
+  }
+
+  /** The values are read from the storage, so they are served on the storage pool */
+  private void handleValues(
+      @NotNull final Request request,
+      @NotNull final HttpSession session
+  ) throws IOException
+  {
+    if (request.getMethod() != Request.METHOD_POST) {
+      session.sendResponse(notAllowed());
+      return;
+    }
+    handleAntiEntropy(request, session, () -> AntiEntropy.valuesResponse(dao, request));
+  }
+
+  /** Internal request of the anti-entropy, answered on the storage pool */
+  private void handleAntiEntropy(
+      @NotNull final Request request,
+      @NotNull final HttpSession session,
+      @NotNull final StorageResponse storageResponse
+  ) throws IOException
+  {
+    if (!Collaboration.isInternal(request)) {
+      sendBadRequest(session);
+      return;
+    }
+    if (dao.getTrees() == null) {
+      session.sendResponse(notFound());
+      return;
+    }
+    try {
+      localPool.execute(() -> {
+        Response response;
+        try {
+          response = storageResponse.get();
+        } catch (IOException ex) {
+          logger.error("Can't read the storage", ex);
+          response = serverError();
+        }
+        try {
+          session.sendResponse(response);
+        } catch (IOException ex) {
+          logger.debug("Can't send response", ex);
+        }
+      });
+    } catch (RejectedExecutionException ex) {
+      session.sendResponse(serverError());
+    }
+  }
+
+  /** Tell the other nodes the port of the binary protocol */
+  private void handleReplication(@NotNull final HttpSession session) throws IOException {
+    if (replication == null) {
+      session.sendResponse(notFound());
+    } else {
+      session.sendResponse(Response.ok(Integer.toString(replication.getPort())));
+    }
+  }
+
+  /**
+   * Show the background I/O throttle, or change it with the {@code rate} (bytes per second,
+   * 0 for no limit) and {@code target} (p99 latency of the local storage calls in milliseconds, 0 to
+   * never back off)
+   * parameters of a PUT request
+   */
+  private void handleAdminIo(
+      @NotNull final Request request,
+      @NotNull final HttpSession session
+  ) throws IOException
+  {
+    if (ioRateLimiter == null) {
+      session.sendResponse(notFound());
+      return;
+    }
+    switch (request.getMethod()) {
+      case Request.METHOD_GET:
+        break;
+      case Request.METHOD_PUT:
+        try {
+          String rate = getParameter(request, "rate");
+          String target = getParameter(request, "target");
+          if (rate.isEmpty() && target.isEmpty()) {
+            throw new IllegalArgumentException("Nothing to change");
+          }
+          if (!rate.isEmpty()) {
+            ioRateLimiter.setRate(Long.parseLong(rate));
+          }
+          if (!target.isEmpty()) {
+            localLatency.setTargetMillis(Long.parseLong(target));
+          }
+        } catch (IllegalArgumentException ex) {
+          logger.debug(ex);
+          sendBadRequest(session);
+          return;
+        }
+        break;
+      default:
+        session.sendResponse(notAllowed());
+        return;
+    }
+    String state = String.format(
+        "rate=%d\neffective=%d\ntarget=%d\np99=%d\n",
+        ioRateLimiter.getRate(),
+        ioRateLimiter.getEffectiveRate(),
+        localLatency.getTargetMillis(),
+        TimeUnit.NANOSECONDS.toMillis(localLatency.p99()));
+    session.sendResponse(Response.ok(state));
+  }
+
   private void handleStatus(@NotNull final HttpSession session) throws IOException {
     session.sendResponse(Response.ok("Server is running"));
   }
@@ -373,4 +1188,10 @@ public class OneNioHttpServer extends HttpServer {
         return "";
     }
   }
+
+  /** Response made from the storage, which may fail with an I/O error */
+  private interface StorageResponse {
+    @NotNull
+    Response get() throws IOException;
+  }
 }
@@ -0,0 +1,344 @@
+package ru.mail.polis.kirpichenkov;
+
+import one.nio.http.HttpClient;
+import one.nio.http.HttpException;
+import one.nio.http.Response;
+import one.nio.net.ConnectionString;
+import one.nio.pool.PoolException;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Another node of the cluster: its connection pool together with the counters of the calls to it.
+ * <p>
+ * Besides HTTP, the peer is called with the binary {@link ReplicationProtocol} once its port is
+ * known and the connection is up. Both are set up in the background, and the calls go over HTTP
+ * meanwhile, or for good if the peer doesn't speak the protocol.
+ * <p>
+ * The peer is sent heartbeats, which feed its {@link FailureDetector}. Calls are let through by a
+ * {@link CircuitBreaker}, which opens when the detector suspects the peer or the calls keep
+ * failing, so that a dead peer costs a failed call instead of a timeout.
+ * <p>
+ * The blocking HTTP calls run on threads of the peer's own, no more of them than the pool has
+ * connections, so that the calls to a peer which doesn't answer never hold up the calls to the
+ * others.
+ *
+ * @author Pavel Kirpichenkov
+ */
+class Peer implements Closeable {
+  private static final Logger logger = LogManager.getLogger(Peer.class);
+  /** Pause before connecting again after a failure */
+  private static final long RECONNECT_MILLIS = 1000;
+  /** Suspicion level at which the peer is taken for dead */
+  private static final double PHI_THRESHOLD =
+      Double.parseDouble(System.getProperty("kv.failureDetector.phi", "8"));
+  private final String url;
+  private final HttpClient client;
+  private final long timeout;
+  private final ScheduledExecutorService connections;
+  private final ScheduledExecutorService timer;
+  private final ThreadPoolExecutor calls;
+  private final FailureDetector detector;
+  private final CircuitBreaker breaker = new CircuitBreaker();
+  private final AtomicBoolean connecting = new AtomicBoolean();
+  @Nullable
+  private volatile ReplicationClient replication;
+  private volatile boolean closed;
+  private final AtomicInteger inFlight = new AtomicInteger();
+  private final LongAdder requests = new LongAdder();
+  private final LongAdder errors = new LongAdder();
+  private final LongAdder rejected = new LongAdder();
+  private final LatencyTracker latency = new LatencyTracker(null, 0);
+
+  /** Request to the peer made with its client */
+  interface Call {
+    @NotNull
+    Response invoke(@NotNull HttpClient client)
+        throws InterruptedException, HttpException, PoolException, IOException;
+  }
+
+  /**
+   * @param maxConnections size of the client's connection pool
+   * @param timeout timeout of the calls in milliseconds
+   * @param heartbeatMillis expected interval between the heartbeats
+   * @param connections executor connecting to the peer
+   * @param timer executor expiring the calls
+   */
+  Peer(
+      @NotNull final String url,
+      @NotNull final HttpClient client,
+      final int maxConnections,
+      final long timeout,
+      final long heartbeatMillis,
+      @NotNull final ScheduledExecutorService connections,
+      @NotNull final ScheduledExecutorService timer
+  ) {
+    this.url = url;
+    this.client = client;
+    this.timeout = timeout;
+    this.connections = connections;
+    this.timer = timer;
+    this.calls = new ThreadPoolExecutor(
+        maxConnections,
+        maxConnections,
+        timeout,
+        TimeUnit.MILLISECONDS,
+        new LinkedBlockingQueue<>(),
+        task -> {
+          Thread thread = new Thread(task, "calls to " + url);
+          thread.setDaemon(true);
+          return thread;
+        });
+    calls.allowCoreThreadTimeOut(true);
+    this.detector = new FailureDetector(TimeUnit.MILLISECONDS.toNanos(heartbeatMillis), System.nanoTime());
+  }
+
+  /**
+   * Decide whether to call the peer at all. A call let through must be made, so that its outcome
+   * reaches the circuit breaker.
+   *
+   * @return false if the peer is taken for dead and the call should fail at once
+   */
+  boolean allow() {
+    long now = System.nanoTime();
+    if (detector.phi(now) > PHI_THRESHOLD) {
+      breaker.trip(now);
+    }
+    if (breaker.allow(now)) {
+      return true;
+    }
+    rejected.increment();
+    return false;
+  }
+
+  /** Ping the peer and tell the failure detector and the circuit breaker how it went */
+  void heartbeat() {
+    if (ping()) {
+      detector.heartbeat(System.nanoTime());
+      breaker.alive();
+    } else {
+      breaker.failure(System.nanoTime());
+    }
+  }
+
+  /** Make the call, counting it as in flight while it lasts and as an error if it throws */
+  @NotNull
+  Response invoke(@NotNull final Call call)
+      throws InterruptedException, HttpException, PoolException, IOException
+  {
+    inFlight.incrementAndGet();
+    requests.increment();
+    long start = System.nanoTime();
+    try {
+      Response response = call.invoke(client);
+      latency.record(System.nanoTime() - start);
+      breaker.success();
+      return response;
+    } catch (Exception ex) {
+      errors.increment();
+      breaker.failure(System.nanoTime());
+      throw ex;
+    } finally {
+      inFlight.decrementAndGet();
+    }
+  }
+
+  /**
+   * Make the call with the binary protocol, unless there is no connection yet
+   *
+   * @return future of the reply or null, if the call should go over HTTP
+   */
+  @Nullable
+  CompletableFuture<Result> replicate(
+      final byte op,
+      @NotNull final byte[] key,
+      final long version,
+      @Nullable final byte[] value
+  ) {
+    ReplicationClient connection = replication;
+    if (connection == null || !connection.isOpen()) {
+      connect(0);
+      return null;
+    }
+    inFlight.incrementAndGet();
+    requests.increment();
+    long start = System.nanoTime();
+    return connection.call(op, key, version, value).whenComplete((result, ex) -> {
+      inFlight.decrementAndGet();
+      if (ex == null) {
+        latency.record(System.nanoTime() - start);
+        breaker.success();
+      } else {
+        errors.increment();
+        breaker.failure(System.nanoTime());
+      }
+    });
+  }
+
+  /**
+   * Make the calls in one batch with the binary protocol, unless there is no connection yet
+   *
+   * @return future of the replies in the order of the calls, or null if they should go over HTTP
+   */
+  @Nullable
+  CompletableFuture<List<Result>> batch(@NotNull final List<ReplicationProtocol.Operation> operations) {
+    ReplicationClient connection = replication;
+    if (connection == null || !connection.isOpen()) {
+      connect(0);
+      return null;
+    }
+    inFlight.incrementAndGet();
+    requests.increment();
+    List<CompletableFuture<Result>> replies = connection.batch(operations);
+    // The latency of a batch isn't that of a call, so it isn't tracked
+    return CompletableFuture.allOf(replies.toArray(new CompletableFuture<?>[0]))
+        .whenComplete((done, ex) -> {
+          inFlight.decrementAndGet();
+          if (ex == null) {
+            breaker.success();
+          } else {
+            errors.increment();
+            breaker.failure(System.nanoTime());
+          }
+        })
+        .thenApply(done -> {
+          List<Result> results = new ArrayList<>(replies.size());
+          for (CompletableFuture<Result> reply : replies) {
+            results.add(reply.join());
+          }
+          return results;
+        });
+  }
+
+  /** @return whether the peer answers the status request */
+  boolean ping() {
+    try {
+      return client.get("/v0/status").getStatus() == Collaboration.STATUS_OK;
+    } catch (Exception ex) {
+      return false;
+    }
+  }
+
+  @NotNull
+  String getUrl() {
+    return url;
+  }
+
+  /** Executor of the blocking calls to the peer */
+  @NotNull
+  ExecutorService getCalls() {
+    return calls;
+  }
+
+  /** Calls being made right now */
+  int getInFlight() {
+    return inFlight.get();
+  }
+
+  long getRequests() {
+    return requests.sum();
+  }
+
+  /** Calls failed without a response */
+  long getErrors() {
+    return errors.sum();
+  }
+
+  /** Latency of the successful calls */
+  @NotNull
+  LatencyTracker getLatency() {
+    return latency;
+  }
+
+  /** @return whether the circuit is closed, so that the calls are expected to succeed */
+  boolean isAvailable() {
+    return breaker.getState() == CircuitBreaker.State.CLOSED;
+  }
+
+  /** Calls failed at once, because the circuit was open */
+  long getRejected() {
+    return rejected.sum();
+  }
+
+  @Override
+  public void close() {
+    closed = true;
+    ReplicationClient connection = replication;
+    if (connection != null) {
+      connection.close();
+    }
+    calls.shutdown();
+    client.close();
+  }
+
+  /** Start connecting in the background, unless already doing that */
+  private void connect(final long delayMillis) {
+    if (closed || !connecting.compareAndSet(false, true)) {
+      return;
+    }
+    try {
+      connections.schedule(this::establish, delayMillis, TimeUnit.MILLISECONDS);
+    } catch (RejectedExecutionException ex) {
+      connecting.set(false);
+    }
+  }
+
+  private void establish() {
+    try {
+      Response response = client.get("/v0/replication");
+      if (response.getStatus() != Collaboration.STATUS_OK) {
+        // Leave the flag set, so that the peer is called over HTTP from now on
+        logger.info("{} doesn't accept replication connections", url);
+        return;
+      }
+      int port = Integer.parseInt(new String(response.getBody(), StandardCharsets.UTF_8).trim());
+      String host = new ConnectionString(url).getHost();
+      ReplicationClient connection = new ReplicationClient(host, port, timeout, timer);
+      if (closed) {
+        connection.close();
+      } else {
+        replication = connection;
+      }
+    } catch (Exception ex) {
+      logger.debug("Can't connect to {} for replication", url, ex);
+      connecting.set(false);
+      connect(RECONNECT_MILLIS);
+      return;
+    }
+    connecting.set(false);
+  }
+
+  @NotNull
+  @Override
+  public String toString() {
+    ReplicationClient connection = replication;
+    return String.format(
+        "%s: %d in flight, %d requests, %d errors, %d rejected, circuit %s, %d idle connections, %s",
+        url,
+        getInFlight(),
+        getRequests(),
+        getErrors(),
+        getRejected(),
+        breaker.getState(),
+        client.getIdleCount(),
+        connection == null ? "no replication connection" : connection.batchStats());
+  }
+}
@@ -0,0 +1,127 @@
+package ru.mail.polis.kirpichenkov;
+
+import one.nio.http.HttpClient;
+import one.nio.net.ConnectionString;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.Closeable;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keep-alive connection pools to the other nodes, one {@link Peer} per node. Pools are created
+ * lazily and safely from any thread, or in advance with {@link #warmUp}.
+ * <p>
+ * Every peer is sent heartbeats by a task of its own, and the heartbeats have a thread per peer,
+ * so that a peer which doesn't answer delays neither the heartbeats of the others nor the timer
+ * expiring the calls. Connections are set up on another thread, off the heartbeats.
+ *
+ * @author Pavel Kirpichenkov
+ */
+class PeerPools implements Closeable {
+  /** Maximum connections to one peer */
+  private static final int CONNECTIONS = Integer.getInteger("kv.peer.connections", 8);
+  /** Connections opened to every peer in advance */
+  private static final int WARM_CONNECTIONS = Integer.getInteger("kv.peer.warmConnections", 2);
+  /** Interval between the heartbeats sent to every peer */
+  private static final long HEARTBEAT_MILLIS = Long.getLong("kv.heartbeat.intervalMillis", 200);
+  private final long timeout;
+  private final ConcurrentMap<String, Peer> peers = new ConcurrentHashMap<>();
+  /** Expires the calls to the peers */
+  private final ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, task -> {
+    Thread thread = new Thread(task, "peers");
+    thread.setDaemon(true);
+    return thread;
+  });
+  /** Sends the heartbeats, grows by a thread with every peer */
+  private final ScheduledThreadPoolExecutor heartbeats = new ScheduledThreadPoolExecutor(1, task -> {
+    Thread thread = new Thread(task, "heartbeats");
+    thread.setDaemon(true);
+    return thread;
+  });
+  /** Connects to the peers */
+  private final ScheduledThreadPoolExecutor connections = new ScheduledThreadPoolExecutor(1, task -> {
+    Thread thread = new Thread(task, "peer connections");
+    thread.setDaemon(true);
+    return thread;
+  });
+
+  /** @param timeout timeout of connecting to and reading from a peer in milliseconds */
+  PeerPools(final long timeout) {
+    this.timeout = timeout;
+    timer.setRemoveOnCancelPolicy(true);
+  }
+
+  @NotNull
+  Peer get(@NotNull final String url) {
+    return peers.computeIfAbsent(url, key -> create(key, 0));
+  }
+
+  /**
+   * Create pools of the peers and open a few connections to each of them. Peers that aren't up
+   * yet are connected to later, on demand.
+   */
+  void warmUp(@NotNull final Collection<String> urls) {
+    for (String url : urls) {
+      peers.computeIfAbsent(url, key -> create(key, Math.min(WARM_CONNECTIONS, CONNECTIONS)));
+    }
+  }
+
+  /** Timer of the calls, for short tasks only */
+  @NotNull
+  ScheduledExecutorService getTimer() {
+    return timer;
+  }
+
+  @NotNull
+  Collection<Peer> all() {
+    return peers.values();
+  }
+
+  @Override
+  public void close() {
+    for (Peer peer : peers.values()) {
+      peer.close();
+    }
+    peers.clear();
+    heartbeats.shutdownNow();
+    connections.shutdownNow();
+    timer.shutdownNow();
+  }
+
+  @NotNull
+  private Peer create(
+      @NotNull final String url,
+      final int warmConnections
+  ) {
+    ConnectionString connection = new ConnectionString(
+        url
+            + "?timeout=" + timeout
+            + "&connectTimeout=" + timeout
+            + "&clientMinPoolSize=" + warmConnections
+            + "&clientMaxPoolSize=" + CONNECTIONS
+            + "&keepalive=true"
+            + "&jmx=false");
+    Peer peer = new Peer(
+        url,
+        new HttpClient(connection),
+        CONNECTIONS,
+        timeout,
+        HEARTBEAT_MILLIS,
+        connections,
+        timer);
+    synchronized (heartbeats) {
+      heartbeats.setCorePoolSize(Math.max(heartbeats.getCorePoolSize(), peers.size() + 1));
+    }
+    heartbeats.scheduleWithFixedDelay(
+        peer::heartbeat,
+        HEARTBEAT_MILLIS,
+        HEARTBEAT_MILLIS,
+        TimeUnit.MILLISECONDS);
+    return peer;
+  }
+}
@@ -0,0 +1,101 @@
+package ru.mail.polis.kirpichenkov;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Collects replica replies of one request. The request is answered as soon as the required number
+ * of successes is in, or as soon as it can't be reached any more; replies coming after that are
+ * reported separately once every replica has answered. Replicas which were never asked, like the
+ * spare ones of a hedged read, are left out with {@link #skip}.
+ *
+ * @author Pavel Kirpichenkov
+ */
+class QuorumCollector {
+  private final int acks;
+  private final int total;
+  private final List<Result> results;
+  private final List<Result> late = new ArrayList<>();
+  private final CompletableFuture<Result> response = new CompletableFuture<>();
+  private final CompletableFuture<List<Result>> lateReplies = new CompletableFuture<>();
+  private int successes;
+  private int failures;
+  private int skipped;
+  private boolean responded;
+
+  /**
+   * @param acks successes required to answer
+   * @param total number of replicas asked
+   */
+  QuorumCollector(
+      final int acks,
+      final int total
+  ) {
+    this.acks = acks;
+    this.total = total;
+    this.results = new ArrayList<>(total);
+  }
+
+  /** Merged result, an error if too many replicas failed */
+  @NotNull
+  CompletableFuture<Result> response() {
+    return response;
+  }
+
+  /** Replies received after the response was decided, completed when all replicas answered */
+  @NotNull
+  CompletableFuture<List<Result>> lateReplies() {
+    return lateReplies;
+  }
+
+  void add(@NotNull final Result result) {
+    Result merged = null;
+    List<Result> lateDone = null;
+    synchronized (this) {
+      if (responded) {
+        late.add(result);
+      } else {
+        results.add(result);
+        if (result.getStatus() == Result.Status.ERROR) {
+          failures++;
+        } else {
+          successes++;
+        }
+        if (successes >= acks || failures > total - acks) {
+          responded = true;
+          merged = Collaboration.mergeResults(results, acks);
+        }
+      }
+      lateDone = allReplied();
+    }
+    if (merged != null) {
+      response.complete(merged);
+    }
+    if (lateDone != null) {
+      lateReplies.complete(lateDone);
+    }
+  }
+
+  /** Don't wait for the replicas which won't be asked */
+  void skip(final int replicas) {
+    List<Result> lateDone;
+    synchronized (this) {
+      skipped += replicas;
+      lateDone = allReplied();
+    }
+    if (lateDone != null) {
+      lateReplies.complete(lateDone);
+    }
+  }
+
+  /** @return the late replies if every replica has answered or been skipped, null otherwise */
+  @Nullable
+  private List<Result> allReplied() {
+    return results.size() + late.size() + skipped == total ? Collections.unmodifiableList(late) : null;
+  }
+}
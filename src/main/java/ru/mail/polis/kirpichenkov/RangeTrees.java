@@ -0,0 +1,108 @@
+package ru.mail.polis.kirpichenkov;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * {@link MerkleTree}s of the storage split by the token ranges of the {@link HashRing}: the ranges
+ * replicated by the same nodes share a tree. Two nodes compare only the trees of the ranges both
+ * of them replicate, since the keys of the other ranges belong on one of them only, and trees
+ * holding them would never be equal.
+ * <p>
+ * The ring is the same on every node, so the trees are numbered the same way everywhere.
+ *
+ * @author Pavel Kirpichenkov
+ */
+class RangeTrees {
+  private final HashRing ring;
+  private final int depth;
+  /** Index of the tree of every token range */
+  private final int[] treeOfRange;
+  private final List<MerkleTree> trees = new ArrayList<>();
+  /** Nodes replicating the ranges of every tree */
+  private final List<Set<String>> replicas = new ArrayList<>();
+
+  /**
+   * @param replicationFactor number of the nodes replicating a token range
+   * @param depth depth of every tree, see {@link MerkleTree}
+   */
+  RangeTrees(
+      @NotNull final HashRing ring,
+      final int replicationFactor,
+      final int depth
+  ) {
+    this.ring = ring;
+    this.depth = depth;
+    this.treeOfRange = new int[ring.rangeCount()];
+    Map<Set<String>, Integer> indexes = new HashMap<>();
+    for (int range = 0; range < treeOfRange.length; range++) {
+      Set<String> nodes = new HashSet<>(ring.rangeReplicas(range, replicationFactor));
+      Integer index = indexes.get(nodes);
+      if (index == null) {
+        index = trees.size();
+        indexes.put(nodes, index);
+        trees.add(new MerkleTree(depth));
+        replicas.add(nodes);
+      }
+      treeOfRange[range] = index;
+    }
+  }
+
+  int getDepth() {
+    return depth;
+  }
+
+  /** Number of the trees */
+  int size() {
+    return trees.size();
+  }
+
+  @NotNull
+  MerkleTree get(final int tree) {
+    return trees.get(tree);
+  }
+
+  /** Index of the tree the key belongs to */
+  int treeOf(@NotNull final byte[] key) {
+    return treeOfRange[ring.range(key)];
+  }
+
+  /** @return indexes of the trees of the ranges replicated by both nodes, in ascending order */
+  @NotNull
+  List<Integer> shared(
+      @NotNull final String node,
+      @NotNull final String other
+  ) {
+    List<Integer> result = new ArrayList<>();
+    for (int tree = 0; tree < replicas.size(); tree++) {
+      Set<String> nodes = replicas.get(tree);
+      if (nodes.contains(node) && nodes.contains(other)) {
+        result.add(tree);
+      }
+    }
+    return result;
+  }
+
+  /** Account the key with the version in its tree */
+  void add(
+      @NotNull final byte[] key,
+      final long version
+  ) {
+    trees.get(treeOf(key)).add(key, version);
+  }
+
+  /** Replace the old version of the key with the new one in its tree */
+  void replace(
+      @NotNull final byte[] key,
+      final long oldVersion,
+      final long newVersion
+  ) {
+    trees.get(treeOf(key)).replace(key, oldVersion, newVersion);
+  }
+}
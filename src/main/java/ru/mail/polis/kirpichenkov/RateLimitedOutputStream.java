@@ -0,0 +1,42 @@
+package ru.mail.polis.kirpichenkov;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Stream taking every write from the {@link IoRateLimiter}. It is meant to be wrapped by a
+ * buffered stream, so the limiter is asked once per buffer rather than per byte.
+ *
+ * @author Pavel Kirpichenkov
+ */
+class RateLimitedOutputStream extends FilterOutputStream {
+  private final IoRateLimiter limiter;
+
+  RateLimitedOutputStream(
+      @NotNull final OutputStream out,
+      @NotNull final IoRateLimiter limiter
+  ) {
+    super(out);
+    this.limiter = limiter;
+  }
+
+  @Override
+  public void write(final int b) throws IOException {
+    limiter.acquire(1);
+    out.write(b);
+  }
+
+  @Override
+  public void write(
+      @NotNull final byte[] b,
+      final int off,
+      final int len
+  ) throws IOException
+  {
+    limiter.acquire(len);
+    out.write(b, off, len);
+  }
+}
@@ -0,0 +1,339 @@
+package ru.mail.polis.kirpichenkov;
+
+import one.nio.net.Socket;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Client side of the {@link ReplicationProtocol}: a single connection to a peer, shared by all the
+ * calls to it. Requests are written as they come, and a reader thread completes the calls as the
+ * replies arrive. A call fails exceptionally on timeout or when the connection breaks, which also
+ * fails all the other calls waiting for it.
+ * <p>
+ * Writes are gathered for a short window, or until there are enough of them, and sent as one
+ * {@link ReplicationProtocol#BATCH}, which then succeeds or times out as a whole. A write alone in
+ * its window goes as a plain request.
+ *
+ * @author Pavel Kirpichenkov
+ */
+class ReplicationClient implements Closeable {
+  private static final Logger logger = LogManager.getLogger(ReplicationClient.class);
+  /** Most writes sent in one batch, 1 to send every write by itself */
+  private static final int BATCH_SIZE = Integer.getInteger("kv.replication.batchSize", 64);
+  /** Time the first write of a batch waits for the others */
+  private static final long BATCH_MICROS = Long.getLong("kv.replication.batchMicros", 100);
+  private final Socket socket;
+  private final long timeout;
+  private final ScheduledExecutorService timer;
+  private final AtomicInteger nextId = new AtomicInteger();
+  private final Map<Integer, Call> calls = new ConcurrentHashMap<>();
+  /** Writes gathered for the next batch */
+  private List<Pending> batch = new ArrayList<>();
+  @Nullable
+  private ScheduledFuture<?> batchFlush;
+  private final LongAdder batches = new LongAdder();
+  private final LongAdder batchedWrites = new LongAdder();
+  private volatile boolean closed;
+
+  /** Call waiting for the reply: a single request or a batch of writes */
+  private static class Call {
+    final List<CompletableFuture<Result>> results;
+    final boolean batch;
+    ScheduledFuture<?> expiry;
+
+    Call(
+        @NotNull final List<CompletableFuture<Result>> results,
+        final boolean batch
+    ) {
+      this.results = results;
+      this.batch = batch;
+    }
+  }
+
+  /** Write waiting for its batch */
+  private static class Pending {
+    final ReplicationProtocol.Operation request;
+    final CompletableFuture<Result> result = new CompletableFuture<>();
+
+    Pending(@NotNull final ReplicationProtocol.Operation request) {
+      this.request = request;
+    }
+  }
+
+  /**
+   * Connect to the peer
+   *
+   * @param timeout timeout of connecting and of every call in milliseconds
+   * @param timer executor failing the calls on timeout
+   */
+  ReplicationClient(
+      @NotNull final String host,
+      final int port,
+      final long timeout,
+      @NotNull final ScheduledExecutorService timer
+  ) throws IOException
+  {
+    this.timeout = timeout;
+    this.timer = timer;
+    socket = Socket.create();
+    try {
+      socket.setTimeout((int) timeout);
+      socket.connect(InetAddress.getByName(host), port);
+      socket.setTimeout(0);
+      socket.setNoDelay(true);
+    } catch (IOException ex) {
+      socket.close();
+      throw ex;
+    }
+    Thread reader = new Thread(this::read, "replication-client:" + host + ":" + port);
+    reader.setDaemon(true);
+    reader.start();
+  }
+
+  boolean isOpen() {
+    return !closed;
+  }
+
+  /**
+   * Send the request
+   *
+   * @param version version of the written value, {@link ReplicationProtocol#NO_VERSION} to let
+   *     the peer choose it
+   * @return future of the reply
+   */
+  @NotNull
+  CompletableFuture<Result> call(
+      final byte op,
+      @NotNull final byte[] key,
+      final long version,
+      @Nullable final byte[] value
+  ) {
+    if (BATCH_SIZE > 1 && (op == ReplicationProtocol.PUT || op == ReplicationProtocol.DELETE)) {
+      return gather(new Pending(new ReplicationProtocol.Operation(op, key, version, value)));
+    }
+    CompletableFuture<Result> result = new CompletableFuture<>();
+    int id = register(new Call(Collections.singletonList(result), false));
+    send(id, ReplicationProtocol.request(id, op, key, version, value));
+    return result;
+  }
+
+  /**
+   * Send the requests in one batch at once
+   *
+   * @return futures of the replies in the order of the requests
+   */
+  @NotNull
+  List<CompletableFuture<Result>> batch(@NotNull final List<ReplicationProtocol.Operation> operations) {
+    List<CompletableFuture<Result>> results = new ArrayList<>(operations.size());
+    for (int ix = 0; ix < operations.size(); ix++) {
+      results.add(new CompletableFuture<>());
+    }
+    int id = register(new Call(results, true));
+    send(id, ReplicationProtocol.batchRequest(id, operations));
+    return results;
+  }
+
+  /** Batches of writes sent and the writes in them */
+  @NotNull
+  String batchStats() {
+    return batches.sum() + " batches of " + batchedWrites.sum() + " writes";
+  }
+
+  @Override
+  public void close() {
+    closed = true;
+    socket.close();
+    List<Pending> writes;
+    synchronized (this) {
+      writes = takeBatch();
+    }
+    for (Pending write : writes) {
+      write.result.completeExceptionally(new IOException("Replication connection closed"));
+    }
+    IOException ex = new IOException("Replication connection closed");
+    for (Integer id : calls.keySet()) {
+      fail(id, ex);
+    }
+  }
+
+  /** Add the write to the batch, sending the batch if it is full */
+  @NotNull
+  private CompletableFuture<Result> gather(@NotNull final Pending write) {
+    List<Pending> full = null;
+    boolean startWindow = false;
+    synchronized (this) {
+      batch.add(write);
+      if (batch.size() >= BATCH_SIZE) {
+        full = takeBatch();
+      } else if (batch.size() == 1) {
+        startWindow = true;
+      }
+    }
+    if (startWindow) {
+      try {
+        ScheduledFuture<?> flush = timer.schedule(this::flush, BATCH_MICROS, TimeUnit.MICROSECONDS);
+        synchronized (this) {
+          if (batchFlush == null && !batch.isEmpty()) {
+            batchFlush = flush;
+          } else {
+            flush.cancel(false);
+          }
+        }
+      } catch (RejectedExecutionException ex) {
+        flush();
+      }
+    }
+    if (full != null) {
+      sendBatch(full);
+    }
+    return write.result;
+  }
+
+  private void flush() {
+    List<Pending> writes;
+    synchronized (this) {
+      writes = takeBatch();
+    }
+    sendBatch(writes);
+  }
+
+  /** Must be called holding the lock of this client */
+  @NotNull
+  private List<Pending> takeBatch() {
+    List<Pending> writes = batch;
+    batch = new ArrayList<>();
+    if (batchFlush != null) {
+      batchFlush.cancel(false);
+      batchFlush = null;
+    }
+    return writes;
+  }
+
+  private void sendBatch(@NotNull final List<Pending> writes) {
+    if (writes.isEmpty()) {
+      return;
+    }
+    List<CompletableFuture<Result>> results = new ArrayList<>(writes.size());
+    List<ReplicationProtocol.Operation> requests = new ArrayList<>(writes.size());
+    for (Pending write : writes) {
+      results.add(write.result);
+      requests.add(write.request);
+    }
+    if (writes.size() == 1) {
+      ReplicationProtocol.Operation write = requests.get(0);
+      int id = register(new Call(results, false));
+      send(id, ReplicationProtocol.request(id, write.op, write.key, write.version, write.value));
+      return;
+    }
+    batches.increment();
+    batchedWrites.add(writes.size());
+    int id = register(new Call(results, true));
+    send(id, ReplicationProtocol.batchRequest(id, requests));
+  }
+
+  /** @return id of the call, which fails unless answered within the timeout */
+  private int register(@NotNull final Call call) {
+    int id = nextId.incrementAndGet();
+    calls.put(id, call);
+    call.expiry = timer.schedule(
+        () -> fail(id, new SocketTimeoutException("Replication call timed out")),
+        timeout,
+        TimeUnit.MILLISECONDS);
+    if (closed) {
+      fail(id, new IOException("Replication connection closed"));
+    }
+    return id;
+  }
+
+  private void send(
+      final int id,
+      @NotNull final byte[] frame
+  ) {
+    if (!ReplicationProtocol.fits(frame)) {
+      // The peer would drop the connection with all the calls on it
+      fail(id, new IOException("Frame of " + frame.length + " bytes is too long"));
+      return;
+    }
+    try {
+      synchronized (socket) {
+        socket.writeFully(frame, 0, frame.length);
+      }
+    } catch (IOException ex) {
+      fail(id, ex);
+      close();
+    }
+  }
+
+  private void read() {
+    byte[] header = new byte[Integer.BYTES];
+    try {
+      while (!closed) {
+        socket.readFully(header, 0, header.length);
+        byte[] frame = new byte[ReplicationProtocol.length(header)];
+        socket.readFully(frame, 0, frame.length);
+        ByteBuffer response = ByteBuffer.wrap(frame);
+        Call call = calls.remove(response.getInt());
+        if (call != null) {
+          call.expiry.cancel(false);
+          complete(call, response);
+        }
+      }
+    } catch (IOException ex) {
+      if (!closed) {
+        logger.debug("Replication connection broken", ex);
+      }
+    } finally {
+      close();
+    }
+  }
+
+  private static void complete(
+      @NotNull final Call call,
+      @NotNull final ByteBuffer response
+  ) throws IOException
+  {
+    if (!call.batch) {
+      call.results.get(0).complete(ReplicationProtocol.result(response));
+      return;
+    }
+    List<Result> results = ReplicationProtocol.results(response);
+    if (results.size() != call.results.size()) {
+      throw new IOException("Batch of " + call.results.size() + " answered with " + results.size());
+    }
+    for (int ix = 0; ix < results.size(); ix++) {
+      call.results.get(ix).complete(results.get(ix));
+    }
+  }
+
+  private void fail(
+      final int id,
+      @NotNull final Throwable cause
+  ) {
+    Call call = calls.remove(id);
+    if (call != null) {
+      for (CompletableFuture<Result> result : call.results) {
+        result.completeExceptionally(cause);
+      }
+    }
+  }
+}
@@ -0,0 +1,295 @@
+package ru.mail.polis.kirpichenkov;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import ru.mail.polis.kirpichenkov.Result.Status;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Binary protocol of the calls between the nodes. Every frame starts with its length, not counting
+ * the length itself, and the id of the request, so that many calls share one connection and the
+ * replies may come in any order.
+ * <pre>
+ * request:  [length][id][op: byte][key length][key][version: long][value length or -1][value]
+ * response: [length][id][status: byte][version: long][value length or -1][value]
+ * </pre>
+ * Versions are nanoseconds since the epoch, {@link #NO_VERSION} if there is none: the key is
+ * absent, or the replica should stamp the write with its own clock.
+ * <p>
+ * Requests may go together in one {@link #BATCH}, answered with the results of all of them in the
+ * same order:
+ * <pre>
+ * request:  [length][id][op: BATCH][count], then for every request
+ *           [op][key length][key][version][value length or -1][value]
+ * response: [length][id][count], then for every request
+ *           [status][version][value length or -1][value]
+ * </pre>
+ *
+ * @author Pavel Kirpichenkov
+ */
+final class ReplicationProtocol {
+  static final byte GET = 1;
+  static final byte PUT = 2;
+  static final byte DELETE = 3;
+  /** Like {@link #GET}, but the value is replied with its {@link Collaboration#digest} */
+  static final byte DIGEST = 4;
+  /** Several requests in one frame, like the writes gathered for a peer or a multi-get */
+  static final byte BATCH = 5;
+  static final long NO_VERSION = Long.MIN_VALUE;
+  /**
+   * Frames longer than that are taken for a broken stream before anything is allocated for them.
+   * Enough for the largest HTTP body, which bounds a write, a batch of them or a multi-get reply.
+   */
+  static final int MAX_FRAME = Integer.getInteger("kv.replication.maxFrameBytes", 24 * 1024 * 1024);
+  private static final int NO_VALUE = -1;
+  private static final byte OK = 0;
+  private static final byte ABSENT = 1;
+  private static final byte DELETED = 2;
+  private static final byte ERROR = 3;
+
+  private ReplicationProtocol() {
+    // Not instantiatable
+  }
+
+  /** Request of a batch */
+  static final class Operation {
+    final byte op;
+    @NotNull
+    final byte[] key;
+    final long version;
+    @Nullable
+    final byte[] value;
+
+    Operation(
+        final byte op,
+        @NotNull final byte[] key,
+        final long version,
+        @Nullable final byte[] value
+    ) {
+      this.op = op;
+      this.key = key;
+      this.version = version;
+      this.value = value;
+    }
+  }
+
+  @NotNull
+  static byte[] request(
+      final int id,
+      final byte op,
+      @NotNull final byte[] key,
+      final long version,
+      @Nullable final byte[] value
+  ) {
+    int length = Integer.BYTES + 1 + Integer.BYTES + key.length + Long.BYTES + Integer.BYTES
+        + (value == null ? 0 : value.length);
+    ByteBuffer frame = ByteBuffer.allocate(Integer.BYTES + length)
+        .putInt(length)
+        .putInt(id)
+        .put(op)
+        .putInt(key.length)
+        .put(key)
+        .putLong(version);
+    putValue(frame, value);
+    return frame.array();
+  }
+
+  @NotNull
+  static byte[] batchRequest(
+      final int id,
+      @NotNull final List<Operation> operations
+  ) {
+    int length = Integer.BYTES + 1 + Integer.BYTES;
+    for (Operation operation : operations) {
+      length += 1 + Integer.BYTES + operation.key.length + Long.BYTES + Integer.BYTES
+          + (operation.value == null ? 0 : operation.value.length);
+    }
+    ByteBuffer frame = ByteBuffer.allocate(Integer.BYTES + length)
+        .putInt(length)
+        .putInt(id)
+        .put(BATCH)
+        .putInt(operations.size());
+    for (Operation operation : operations) {
+      frame
+          .put(operation.op)
+          .putInt(operation.key.length)
+          .put(operation.key)
+          .putLong(operation.version);
+      putValue(frame, operation.value);
+    }
+    return frame.array();
+  }
+
+  /** Read the requests from the batch request frame positioned after the op */
+  @NotNull
+  static List<Operation> operations(@NotNull final ByteBuffer frame) throws IOException {
+    int count = count(frame, 1 + Integer.BYTES + Long.BYTES + Integer.BYTES);
+    List<Operation> operations = new ArrayList<>(count);
+    for (int ix = 0; ix < count; ix++) {
+      byte op = frame.get();
+      byte[] key = getValue(frame);
+      long version = frame.getLong();
+      byte[] value = getValue(frame);
+      if (key == null) {
+        throw new IOException("Request without key");
+      }
+      operations.add(new Operation(op, key, version, value));
+    }
+    return operations;
+  }
+
+  @NotNull
+  static byte[] batchResponse(
+      final int id,
+      @NotNull final List<Result> results
+  ) {
+    int length = Integer.BYTES + Integer.BYTES;
+    for (Result result : results) {
+      byte[] value = result.getStatus() == Status.OK ? result.getBody() : null;
+      length += 1 + Long.BYTES + Integer.BYTES + (value == null ? 0 : value.length);
+    }
+    ByteBuffer frame = ByteBuffer.allocate(Integer.BYTES + length)
+        .putInt(length)
+        .putInt(id)
+        .putInt(results.size());
+    for (Result result : results) {
+      frame
+          .put(statusCode(result.getStatus()))
+          .putLong(toVersion(result.getTimestamp()));
+      putValue(frame, result.getStatus() == Status.OK ? result.getBody() : null);
+    }
+    return frame.array();
+  }
+
+  /** Read the results from the batch response frame positioned after the id */
+  @NotNull
+  static List<Result> results(@NotNull final ByteBuffer frame) throws IOException {
+    int count = count(frame, 1 + Long.BYTES + Integer.BYTES);
+    List<Result> results = new ArrayList<>(count);
+    for (int ix = 0; ix < count; ix++) {
+      results.add(result(frame));
+    }
+    return results;
+  }
+
+  @NotNull
+  static byte[] response(
+      final int id,
+      @NotNull final Result result
+  ) {
+    byte[] value = result.getStatus() == Status.OK ? result.getBody() : null;
+    int length = Integer.BYTES + 1 + Long.BYTES + Integer.BYTES
+        + (value == null ? 0 : value.length);
+    ByteBuffer frame = ByteBuffer.allocate(Integer.BYTES + length)
+        .putInt(length)
+        .putInt(id)
+        .put(statusCode(result.getStatus()))
+        .putLong(toVersion(result.getTimestamp()));
+    putValue(frame, value);
+    return frame.array();
+  }
+
+  /** Read the result from the response frame positioned after the id */
+  @NotNull
+  static Result result(@NotNull final ByteBuffer frame) throws IOException {
+    Status status = status(frame.get());
+    long version = frame.getLong();
+    return new Result()
+        .setStatus(status)
+        .setTimestamp(version == NO_VERSION ? Instant.MIN : NanoClock.fromEpochNanos(version))
+        .setBody(getValue(frame));
+  }
+
+  /** Read the value positioned at its length, null if there is none */
+  @Nullable
+  static byte[] getValue(@NotNull final ByteBuffer frame) throws IOException {
+    int length = frame.getInt();
+    if (length == NO_VALUE) {
+      return null;
+    }
+    if (length < 0 || length > frame.remaining()) {
+      throw new IOException("Malformed frame");
+    }
+    byte[] value = new byte[length];
+    frame.get(value);
+    return value;
+  }
+
+  /** Read the frame length from the header, checking it */
+  static int length(@NotNull final byte[] header) throws IOException {
+    int length = ByteBuffer.wrap(header).getInt();
+    if (length < Integer.BYTES || length > MAX_FRAME) {
+      throw new IOException("Malformed frame length " + length);
+    }
+    return length;
+  }
+
+  /** @return whether the frame is short enough for the other side to accept it */
+  static boolean fits(@NotNull final byte[] frame) {
+    return frame.length - Integer.BYTES <= MAX_FRAME;
+  }
+
+  /** Read the number of the batch entries, checking it against the smallest entry size */
+  private static int count(
+      @NotNull final ByteBuffer frame,
+      final int minEntrySize
+  ) throws IOException
+  {
+    int count = frame.getInt();
+    if (count < 0 || count > frame.remaining() / minEntrySize) {
+      throw new IOException("Malformed batch of " + count);
+    }
+    return count;
+  }
+
+  private static void putValue(
+      @NotNull final ByteBuffer frame,
+      @Nullable final byte[] value
+  ) {
+    if (value == null) {
+      frame.putInt(NO_VALUE);
+    } else {
+      frame.putInt(value.length).put(value);
+    }
+  }
+
+  private static long toVersion(@Nullable final Instant timestamp) {
+    return timestamp == null || timestamp.equals(Instant.MIN)
+        ? NO_VERSION
+        : NanoClock.toEpochNanos(timestamp);
+  }
+
+  private static byte statusCode(@NotNull final Status status) {
+    switch (status) {
+      case OK:
+        return OK;
+      case ABSENT:
+        return ABSENT;
+      case DELETED:
+        return DELETED;
+      default:
+        return ERROR;
+    }
+  }
+
+  @NotNull
+  private static Status status(final byte code) throws IOException {
+    switch (code) {
+      case OK:
+        return Status.OK;
+      case ABSENT:
+        return Status.ABSENT;
+      case DELETED:
+        return Status.DELETED;
+      case ERROR:
+        return Status.ERROR;
+      default:
+        throw new IOException("Unknown status " + code);
+    }
+  }
+}
@@ -0,0 +1,215 @@
+package ru.mail.polis.kirpichenkov;
+
+import one.nio.net.Socket;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+
+import static ru.mail.polis.kirpichenkov.ReplicationProtocol.NO_VERSION;
+
+/**
+ * Server side of the {@link ReplicationProtocol}. Listens on a port of its own, which the other
+ * nodes learn from the HTTP server. Every connection gets a thread reading the requests, which are
+ * then served on the storage executor, and the replies are written back as soon as they are ready.
+ * The requests of a batch are served by a single task and answered together; a batch of writes
+ * only is made with one storage write.
+ *
+ * @author Pavel Kirpichenkov
+ */
+class ReplicationServer implements Closeable {
+  private static final Logger logger = LogManager.getLogger(ReplicationServer.class);
+  /** Port to listen on, 0 to take any free one */
+  private static final int PORT = Integer.getInteger("kv.replication.port", 0);
+  private static final int BACKLOG = 128;
+  private final InternalDao dao;
+  private final ExecutorService executor;
+  private final Set<Socket> connections = ConcurrentHashMap.newKeySet();
+  private Socket serverSocket;
+  private volatile boolean closed;
+
+  ReplicationServer(
+      @NotNull final InternalDao dao,
+      @NotNull final ExecutorService executor
+  ) {
+    this.dao = dao;
+    this.executor = executor;
+  }
+
+  void start() throws IOException {
+    serverSocket = Socket.createServerSocket();
+    serverSocket.setReuseAddr(true, false);
+    serverSocket.bind(InetAddress.getByName("0.0.0.0"), PORT, BACKLOG);
+    serverSocket.listen(BACKLOG);
+    Thread acceptor = new Thread(this::accept, "replication-acceptor:" + getPort());
+    acceptor.setDaemon(true);
+    acceptor.start();
+  }
+
+  int getPort() {
+    return serverSocket.getLocalAddress().getPort();
+  }
+
+  @Override
+  public void close() {
+    closed = true;
+    serverSocket.close();
+    for (Socket connection : connections) {
+      connection.close();
+    }
+  }
+
+  private void accept() {
+    while (!closed) {
+      try {
+        Socket connection = serverSocket.accept();
+        connection.setNoDelay(true);
+        connections.add(connection);
+        Thread reader = new Thread(() -> serve(connection), "replication-session");
+        reader.setDaemon(true);
+        reader.start();
+      } catch (IOException ex) {
+        if (!closed) {
+          logger.error("Can't accept replication connection", ex);
+        }
+      }
+    }
+  }
+
+  private void serve(@NotNull final Socket connection) {
+    byte[] header = new byte[Integer.BYTES];
+    try {
+      while (!closed) {
+        connection.readFully(header, 0, header.length);
+        byte[] frame = new byte[ReplicationProtocol.length(header)];
+        connection.readFully(frame, 0, frame.length);
+        ByteBuffer request = ByteBuffer.wrap(frame);
+        int id = request.getInt();
+        byte op = request.get();
+        if (op == ReplicationProtocol.BATCH) {
+          List<ReplicationProtocol.Operation> operations = ReplicationProtocol.operations(request);
+          try {
+            executor.execute(() -> replyBatch(connection, id, handle(operations)));
+          } catch (RejectedExecutionException ex) {
+            List<Result> errors = new ArrayList<>(operations.size());
+            for (int ix = 0; ix < operations.size(); ix++) {
+              errors.add(Collaboration.error());
+            }
+            replyBatch(connection, id, errors);
+          }
+          continue;
+        }
+        byte[] key = ReplicationProtocol.getValue(request);
+        long version = request.getLong();
+        byte[] value = ReplicationProtocol.getValue(request);
+        if (key == null) {
+          throw new IOException("Request without key");
+        }
+        try {
+          executor.execute(() -> reply(connection, id, handle(op, key, version, value)));
+        } catch (RejectedExecutionException ex) {
+          reply(connection, id, Collaboration.error());
+        }
+      }
+    } catch (IOException ex) {
+      logger.debug("Replication connection closed", ex);
+    } finally {
+      connections.remove(connection);
+      connection.close();
+    }
+  }
+
+  @NotNull
+  private Result handle(
+      final byte op,
+      @NotNull final byte[] key,
+      final long version,
+      @Nullable final byte[] value
+  ) {
+    switch (op) {
+      case ReplicationProtocol.GET:
+        return dao.get(key);
+      case ReplicationProtocol.DIGEST:
+        return Collaboration.digest(dao.get(key));
+      case ReplicationProtocol.PUT:
+        if (value == null) {
+          return Collaboration.error();
+        }
+        return version == NO_VERSION ? dao.upsert(key, value) : dao.upsert(key, value, version);
+      case ReplicationProtocol.DELETE:
+        return version == NO_VERSION ? dao.remove(key) : dao.remove(key, version);
+      default:
+        return Collaboration.error();
+    }
+  }
+
+  @NotNull
+  private List<Result> handle(@NotNull final List<ReplicationProtocol.Operation> operations) {
+    boolean writes = operations
+        .stream()
+        .allMatch(operation -> operation.op == ReplicationProtocol.PUT
+            || operation.op == ReplicationProtocol.DELETE);
+    if (writes) {
+      return dao.write(operations);
+    }
+    List<Result> results = new ArrayList<>(operations.size());
+    for (ReplicationProtocol.Operation operation : operations) {
+      results.add(handle(operation.op, operation.key, operation.version, operation.value));
+    }
+    return results;
+  }
+
+  private void reply(
+      @NotNull final Socket connection,
+      final int id,
+      @NotNull final Result result
+  ) {
+    byte[] frame = ReplicationProtocol.response(id, result);
+    write(connection, ReplicationProtocol.fits(frame)
+        ? frame
+        : ReplicationProtocol.response(id, Collaboration.error()));
+  }
+
+  /** Results too long for one frame are replied as errors */
+  private void replyBatch(
+      @NotNull final Socket connection,
+      final int id,
+      @NotNull final List<Result> results
+  ) {
+    byte[] frame = ReplicationProtocol.batchResponse(id, results);
+    if (!ReplicationProtocol.fits(frame)) {
+      logger.warn("Batch reply of {} bytes is too long", frame.length);
+      List<Result> errors = new ArrayList<>(results.size());
+      for (int ix = 0; ix < results.size(); ix++) {
+        errors.add(Collaboration.error());
+      }
+      frame = ReplicationProtocol.batchResponse(id, errors);
+    }
+    write(connection, frame);
+  }
+
+  private void write(
+      @NotNull final Socket connection,
+      @NotNull final byte[] frame
+  ) {
+    try {
+      synchronized (connection) {
+        connection.writeFully(frame, 0, frame.length);
+      }
+    } catch (IOException ex) {
+      logger.debug("Can't reply", ex);
+      connection.close();
+    }
+  }
+}
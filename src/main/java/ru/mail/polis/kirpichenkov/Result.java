@@ -3,7 +3,8 @@ package ru.mail.polis.kirpichenkov;
 import java.time.Instant;
 
 /**
- * Wrapper for the result, retrieved from local storage or another node
+ * Wrapper for the result, retrieved from local storage or another node. The body of a digest
+ * result is the hash of the value instead of the value itself, see {@link Collaboration#digest}.
  *
  * @author Pavel Kirpichenkov
  */
@@ -11,6 +12,7 @@ public class Result {
   private byte[] body;
   private Status status;
   private Instant timestamp;
+  private boolean digest;
 
   Result() {
     status = Status.ERROR;
@@ -28,6 +30,10 @@ public class Result {
     return status;
   }
 
+  boolean isDigest() {
+    return digest;
+  }
+
   Result setBody(final byte[] body) {
     this.body = body;
     return this;
@@ -43,6 +49,11 @@ public class Result {
     return this;
   }
 
+  Result setDigest(final boolean digest) {
+    this.digest = digest;
+    return this;
+  }
+
   enum Status {
     OK,
     ABSENT,
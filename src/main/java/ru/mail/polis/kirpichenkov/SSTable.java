@@ -0,0 +1,375 @@
+package ru.mail.polis.kirpichenkov;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * Immutable sorted file of cells.
+ * <p>
+ * Layout: {@code [cells][offsets][bloom filter][bloom filter size][count]}, where every cell is
+ * {@code [key length][key][timestamp][flags]([value length][value])} and the value part is absent
+ * for tombstones. Offsets are positions of the cells in the file, one {@code long} per cell.
+ * The {@link BloomFilter} is kept in memory while the table is open.
+ *
+ * @author Pavel Kirpichenkov
+ */
+class SSTable implements Closeable {
+  static final String SUFFIX = ".db";
+  static final String TMP_SUFFIX = ".tmp";
+  private static final byte FLAG_TOMBSTONE = 1;
+  private static final int BUFFER_SIZE = 64 * 1024;
+  private static final int TRAILER_SIZE = 2 * Integer.BYTES;
+  /** Tables are mapped into memory as a whole, so a table can't be bigger than a buffer */
+  static final long MAX_SIZE = Integer.MAX_VALUE;
+
+  private final File file;
+  private final int generation;
+  private final int level;
+  private final long sequence;
+  /** Whole file mapped read-only; slices of it are handed out as values */
+  private final ByteBuffer data;
+  private final int count;
+  private final int indexOffset;
+  private final BloomFilter bloomFilter;
+
+  private SSTable(
+      @NotNull final File file,
+      final int generation,
+      final int level,
+      final long sequence
+  ) throws IOException
+  {
+    this.file = file;
+    this.generation = generation;
+    this.level = level;
+    this.sequence = sequence;
+    try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+      long size = channel.size();
+      if (size < TRAILER_SIZE || size > MAX_SIZE) {
+        throw new IOException("Unexpected size " + size + " of table " + file);
+      }
+      // The mapping stays valid after the channel is closed
+      data = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+    }
+    int size = data.limit();
+    int bloomSize = data.getInt(size - TRAILER_SIZE);
+    count = data.getInt(size - Integer.BYTES);
+    int bloomOffset = size - TRAILER_SIZE - bloomSize;
+    long index = bloomOffset - (long) count * Long.BYTES;
+    if (count < 0 || bloomSize < 0 || bloomOffset < 0 || index < 0) {
+      throw new IOException("Corrupted table " + file);
+    }
+    indexOffset = (int) index;
+    bloomFilter = BloomFilter.readFrom(slice(bloomOffset, bloomSize));
+  }
+
+  /**
+   * Open existing table
+   *
+   * @param file table file
+   * @param generation unique number of the table file
+   * @param level compaction level, 0 for flushed tables
+   * @param sequence recency of the data: tables of the same level with bigger sequence shadow the
+   *     ones with smaller; a flushed table has its generation as the sequence
+   * @return opened table
+   * @throws IOException if file can't be read or has wrong format
+   */
+  @NotNull
+  static SSTable open(
+      @NotNull final File file,
+      final int generation,
+      final int level,
+      final long sequence
+  ) throws IOException
+  {
+    return new SSTable(file, generation, level, sequence);
+  }
+
+  /**
+   * Write cells to the table file. Cells are written to a temporary file first, which is then
+   * synced and atomically renamed, so a table is either completely present or absent.
+   *
+   * @param cells entries in ascending key order
+   * @param target final table file
+   * @param falsePositiveRate false positive rate of the table's bloom filter
+   * @param limiter limiter of the write bandwidth
+   */
+  static void write(
+      @NotNull final Iterator<Map.Entry<ByteBuffer, Cell>> cells,
+      @NotNull final File target,
+      final double falsePositiveRate,
+      @NotNull final IoRateLimiter limiter
+  ) throws IOException
+  {
+    write(cells, target, falsePositiveRate, limiter, MAX_SIZE);
+  }
+
+  /**
+   * Write cells to the table file until it grows over the size limit; cells left in the iterator
+   * go to the next table.
+   *
+   * @param maxBytes size after which no more cells are taken, must leave room for the last cell
+   *     and the index below {@link #MAX_SIZE}
+   * @see #write(Iterator, File, double, IoRateLimiter)
+   */
+  static void write(
+      @NotNull final Iterator<Map.Entry<ByteBuffer, Cell>> cells,
+      @NotNull final File target,
+      final double falsePositiveRate,
+      @NotNull final IoRateLimiter limiter,
+      final long maxBytes
+  ) throws IOException
+  {
+    File tmp = new File(target.getParentFile(), target.getName() + TMP_SUFFIX);
+    LongList offsets = new LongList();
+    LongList hashes = new LongList();
+    try (FileOutputStream fos = new FileOutputStream(tmp);
+         DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+             new RateLimitedOutputStream(fos, limiter),
+             BUFFER_SIZE))) {
+      long position = 0;
+      while (position < maxBytes && cells.hasNext()) {
+        Map.Entry<ByteBuffer, Cell> entry = cells.next();
+        ByteBuffer key = entry.getKey().duplicate();
+        Cell cell = entry.getValue();
+        offsets.add(position);
+        hashes.add(BloomFilter.hash(key));
+        out.writeInt(key.remaining());
+        position += Integer.BYTES + key.remaining();
+        write(out, key);
+        out.writeLong(cell.getTimestamp());
+        position += Long.BYTES;
+        if (cell.isTombstone()) {
+          out.writeByte(FLAG_TOMBSTONE);
+          position += Byte.BYTES;
+        } else {
+          ByteBuffer value = cell.getValue();
+          out.writeByte(0);
+          out.writeInt(value.remaining());
+          write(out, value);
+          position += Byte.BYTES + Integer.BYTES + value.remaining();
+        }
+      }
+      for (int ix = 0; ix < offsets.size(); ix++) {
+        out.writeLong(offsets.get(ix));
+      }
+      BloomFilter bloomFilter = BloomFilter.create(hashes.size(), falsePositiveRate);
+      for (int ix = 0; ix < hashes.size(); ix++) {
+        bloomFilter.add(hashes.get(ix));
+      }
+      bloomFilter.writeTo(out);
+      out.writeInt(bloomFilter.sizeInBytes());
+      out.writeInt(offsets.size());
+      out.flush();
+      fos.getFD().sync();
+    }
+    Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /**
+   * Find cell by key using binary search over the offsets index. The bloom filter is checked
+   * first, so most lookups of absent keys don't read the file at all. Found value is a slice of
+   * the mapped file, it is not copied.
+   *
+   * @param key key to find
+   * @param hash {@link BloomFilter#hash} of the key
+   * @return found cell or null if the table doesn't contain the key
+   */
+  @Nullable
+  Cell get(
+      @NotNull final byte[] key,
+      final long hash
+  ) {
+    if (!bloomFilter.mightContain(hash)) {
+      return null;
+    }
+    int low = 0;
+    int high = count - 1;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      int offset = offset(mid);
+      int cmp = compareKey(offset, key);
+      if (cmp < 0) {
+        low = mid + 1;
+      } else if (cmp > 0) {
+        high = mid - 1;
+      } else {
+        return readCell(offset + Integer.BYTES + key.length);
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Iterate over all cells; values are slices of the mapped file
+   *
+   * @return entries in ascending key order
+   */
+  @NotNull
+  Iterator<Map.Entry<ByteBuffer, Cell>> iterator() {
+    return new Iterator<Map.Entry<ByteBuffer, Cell>>() {
+      private int next;
+
+      @Override
+      public boolean hasNext() {
+        return next < count;
+      }
+
+      @Override
+      public Map.Entry<ByteBuffer, Cell> next() {
+        if (!hasNext()) {
+          throw new NoSuchElementException();
+        }
+        int offset = offset(next++);
+        ByteBuffer key = key(offset);
+        return new AbstractMap.SimpleImmutableEntry<>(
+            key,
+            readCell(offset + Integer.BYTES + key.remaining()));
+      }
+    };
+  }
+
+  /** @return smallest key of the table or null if it is empty */
+  @Nullable
+  ByteBuffer firstKey() {
+    return count == 0 ? null : key(offset(0));
+  }
+
+  /** @return biggest key of the table or null if it is empty */
+  @Nullable
+  ByteBuffer lastKey() {
+    return count == 0 ? null : key(offset(count - 1));
+  }
+
+  long sizeInBytes() {
+    return data.limit();
+  }
+
+  int getGeneration() {
+    return generation;
+  }
+
+  int getLevel() {
+    return level;
+  }
+
+  long getSequence() {
+    return sequence;
+  }
+
+  @NotNull
+  File getFile() {
+    return file;
+  }
+
+  /**
+   * Nothing to release explicitly: the mapping can't be unmapped safely while value slices may
+   * still be referenced, so it is released by the garbage collector.
+   */
+  @Override
+  public void close() {
+    // Mapping is released with the buffer
+  }
+
+  private static void write(
+      @NotNull final DataOutputStream out,
+      @NotNull final ByteBuffer buffer
+  ) throws IOException
+  {
+    if (buffer.hasArray()) {
+      out.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+    } else {
+      byte[] bytes = new byte[buffer.remaining()];
+      buffer.duplicate().get(bytes);
+      out.write(bytes);
+    }
+  }
+
+  private int offset(final int index) {
+    return (int) data.getLong(indexOffset + index * Long.BYTES);
+  }
+
+  @NotNull
+  private ByteBuffer key(final int offset) {
+    return slice(offset + Integer.BYTES, data.getInt(offset));
+  }
+
+  /** Compare key stored at the offset with the given one the same way {@link ByteBuffer} does */
+  private int compareKey(
+      final int offset,
+      @NotNull final byte[] key
+  ) {
+    int length = data.getInt(offset);
+    int start = offset + Integer.BYTES;
+    int common = Math.min(length, key.length);
+    for (int ix = 0; ix < common; ix++) {
+      int cmp = Byte.compare(data.get(start + ix), key[ix]);
+      if (cmp != 0) {
+        return cmp;
+      }
+    }
+    return length - key.length;
+  }
+
+  @NotNull
+  private Cell readCell(final int offset) {
+    long timestamp = data.getLong(offset);
+    byte flags = data.get(offset + Long.BYTES);
+    if ((flags & FLAG_TOMBSTONE) != 0) {
+      return Cell.tombstone(timestamp);
+    }
+    int valueOffset = offset + Long.BYTES + Byte.BYTES;
+    int length = data.getInt(valueOffset);
+    return Cell.value(slice(valueOffset + Integer.BYTES, length), timestamp);
+  }
+
+  @NotNull
+  private ByteBuffer slice(
+      final int offset,
+      final int length
+  ) {
+    ByteBuffer view = data.duplicate();
+    view.position(offset);
+    view.limit(offset + length);
+    return view.slice();
+  }
+
+  /** Growable list of primitive longs for the offsets index */
+  private static class LongList {
+    private long[] values = new long[1024];
+    private int size;
+
+    void add(final long value) {
+      if (size == values.length) {
+        long[] grown = new long[values.length * 2];
+        System.arraycopy(values, 0, grown, 0, size);
+        values = grown;
+      }
+      values[size++] = value;
+    }
+
+    long get(final int index) {
+      return values[index];
+    }
+
+    int size() {
+      return size;
+    }
+  }
+}
@@ -0,0 +1,147 @@
+package ru.mail.polis.kirpichenkov;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+import java.util.function.ToIntFunction;
+
+/**
+ * Coalescing of concurrent reads of the same key: the first reader runs the read, and those coming
+ * while it is in flight share its result.
+ * <p>
+ * A reader must not get a result read before a write it knows of. So every finished write bumps
+ * the counter of the key's stripe, and a read in flight is shared only while the counter stays as
+ * it was when the read started, the same way the {@link ValueCache} guards its entries.
+ *
+ * @author Pavel Kirpichenkov
+ */
+class SingleFlight<K, V> {
+  private static final int STRIPES = 1024;
+  private final ConcurrentMap<K, Flight<V>> flights = new ConcurrentHashMap<>();
+  private final AtomicLongArray writes = new AtomicLongArray(STRIPES);
+  private final ToIntFunction<K> hash;
+  private final LongAdder shared = new LongAdder();
+
+  /** Read which throws an I/O error */
+  interface Read<V> {
+    @Nullable
+    V read() throws IOException;
+  }
+
+  /** @param hash hash of the part of the key which writes invalidate */
+  SingleFlight(@NotNull final ToIntFunction<K> hash) {
+    this.hash = hash;
+  }
+
+  /** Run the read on this thread, or wait for the same read in flight */
+  @Nullable
+  V read(
+      @NotNull final K key,
+      @NotNull final Read<V> read
+  ) throws IOException
+  {
+    Flight<V> flight = new Flight<>(writes.get(stripe(key)));
+    Flight<V> joined = join(key, flight);
+    if (joined != flight) {
+      try {
+        return joined.result.join();
+      } catch (CompletionException ex) {
+        if (ex.getCause() instanceof IOException) {
+          throw (IOException) ex.getCause();
+        }
+        throw ex;
+      }
+    }
+    try {
+      V value = read.read();
+      flight.result.complete(value);
+      return value;
+    } catch (IOException | RuntimeException ex) {
+      flight.result.completeExceptionally(ex);
+      throw ex;
+    } finally {
+      flights.remove(key, flight);
+    }
+  }
+
+  /**
+   * Start the asynchronous read, or share the same read in flight
+   *
+   * @throws RuntimeException if the read fails to start, the readers sharing it get the same error
+   */
+  @NotNull
+  CompletableFuture<V> share(
+      @NotNull final K key,
+      @NotNull final Supplier<CompletableFuture<V>> read
+  ) {
+    Flight<V> flight = new Flight<>(writes.get(stripe(key)));
+    Flight<V> joined = join(key, flight);
+    if (joined != flight) {
+      return joined.result;
+    }
+    CompletableFuture<V> started;
+    try {
+      started = read.get();
+    } catch (RuntimeException | Error ex) {
+      // The readers which joined meanwhile fail the same way, and the next ones start over
+      flights.remove(key, flight);
+      flight.result.completeExceptionally(ex);
+      throw ex;
+    }
+    started.whenComplete((value, ex) -> {
+      flights.remove(key, flight);
+      if (ex == null) {
+        flight.result.complete(value);
+      } else {
+        flight.result.completeExceptionally(ex);
+      }
+    });
+    return flight.result;
+  }
+
+  /** The write of the key is done, reads from now on must not share the ones in flight */
+  void invalidate(@NotNull final K key) {
+    writes.incrementAndGet(stripe(key));
+  }
+
+  /** Reads which shared the result of another one */
+  long getShared() {
+    return shared.sum();
+  }
+
+  /** @return the read in flight to share, or the given one if it is to run */
+  @NotNull
+  private Flight<V> join(
+      @NotNull final K key,
+      @NotNull final Flight<V> flight
+  ) {
+    Flight<V> joined = flights.compute(
+        key,
+        (k, current) -> current != null && current.stamp == flight.stamp ? current : flight);
+    if (joined != flight) {
+      shared.increment();
+    }
+    return joined;
+  }
+
+  private int stripe(@NotNull final K key) {
+    return hash.applyAsInt(key) & (STRIPES - 1);
+  }
+
+  private static class Flight<V> {
+    private final long stamp;
+    private final CompletableFuture<V> result = new CompletableFuture<>();
+
+    Flight(final long stamp) {
+      this.stamp = stamp;
+    }
+  }
+}
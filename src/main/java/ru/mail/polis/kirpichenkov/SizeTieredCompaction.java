@@ -0,0 +1,67 @@
+package ru.mail.polis.kirpichenkov;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Merge tables of similar size, so that every key is rewritten a logarithmic number of times.
+ * All tables stay on level 0, and only neighbours in the sequence order are merged, so the merged
+ * table doesn't jump over the data of the tables left aside.
+ *
+ * @author Pavel Kirpichenkov
+ */
+class SizeTieredCompaction implements CompactionStrategy {
+  static final int MIN_THRESHOLD = 4;
+  static final int MAX_THRESHOLD = 32;
+  private static final double BUCKET_LOW = 0.5;
+  private static final double BUCKET_HIGH = 1.5;
+  private static final long MAX_TABLE_BYTES = 1024 * 1024 * 1024;
+
+  @Nullable
+  @Override
+  public Compaction pick(@NotNull final List<SSTable> tables) {
+    List<SSTable> level0 = new ArrayList<>();
+    for (SSTable table : tables) {
+      if (table.getLevel() == 0) {
+        level0.add(table);
+      }
+    }
+    for (int start = 0; start + MIN_THRESHOLD <= level0.size(); start++) {
+      long total = 0;
+      int end = start;
+      while (end < level0.size() && end - start < MAX_THRESHOLD) {
+        long size = level0.get(end).sizeInBytes();
+        if (end > start) {
+          double average = (double) total / (end - start);
+          if (size < average * BUCKET_LOW || size > average * BUCKET_HIGH) {
+            break;
+          }
+        }
+        total += size;
+        end++;
+      }
+      if (end - start >= MIN_THRESHOLD) {
+        // Parts of one split table share the sequence, they can only be merged together
+        while (start > 0 && sameSequence(level0, start - 1, start)) {
+          start--;
+        }
+        while (end < level0.size() && sameSequence(level0, end - 1, end)) {
+          end++;
+        }
+        return new Compaction(new ArrayList<>(level0.subList(start, end)), 0, MAX_TABLE_BYTES);
+      }
+    }
+    return null;
+  }
+
+  private static boolean sameSequence(
+      @NotNull final List<SSTable> tables,
+      final int first,
+      final int second
+  ) {
+    return tables.get(first).getSequence() == tables.get(second).getSequence();
+  }
+}
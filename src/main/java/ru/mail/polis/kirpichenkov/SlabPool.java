@@ -0,0 +1,48 @@
+package ru.mail.polis.kirpichenkov;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pool of equally sized direct buffers. Memtables take their memory from here and return it after
+ * the flush, so the storage doesn't allocate and free direct memory on every memtable switch.
+ *
+ * @author Pavel Kirpichenkov
+ */
+class SlabPool {
+  static final int SLAB_SIZE = 1024 * 1024;
+  private final Queue<ByteBuffer> free = new ConcurrentLinkedQueue<>();
+  private final AtomicInteger freeCount = new AtomicInteger();
+  private final int maxFree;
+
+  /** @param maxFree number of released slabs kept for reuse, the rest is left to the GC */
+  SlabPool(final int maxFree) {
+    this.maxFree = maxFree;
+  }
+
+  @NotNull
+  ByteBuffer acquire() {
+    ByteBuffer slab = free.poll();
+    if (slab == null) {
+      return ByteBuffer.allocateDirect(SLAB_SIZE);
+    }
+    freeCount.decrementAndGet();
+    return slab;
+  }
+
+  void release(@NotNull final ByteBuffer slab) {
+    if (slab.capacity() != SLAB_SIZE) {
+      return;
+    }
+    if (freeCount.incrementAndGet() > maxFree) {
+      freeCount.decrementAndGet();
+      return;
+    }
+    slab.clear();
+    free.offer(slab);
+  }
+}
@@ -0,0 +1,58 @@
+package ru.mail.polis.kirpichenkov;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Fixed table of locks, where a key is mapped to its lock by the {@link Murmur3} hash of its
+ * bytes. Writers of the same key are serialized, while writers of different keys meet on one lock
+ * only when their keys fall into the same stripe.
+ *
+ * @author Pavel Kirpichenkov
+ */
+class StripedLocks {
+  private final Lock[] locks;
+  private final int mask;
+
+  /** @param stripes number of locks, rounded up to a power of two */
+  StripedLocks(final int stripes) {
+    int size = stripes <= 1 ? 1 : Integer.highestOneBit(stripes - 1) << 1;
+    this.locks = new Lock[size];
+    for (int ix = 0; ix < size; ix++) {
+      locks[ix] = new ReentrantLock();
+    }
+    this.mask = size - 1;
+  }
+
+  @NotNull
+  Lock get(@NotNull final byte[] key) {
+    return locks[stripe(key)];
+  }
+
+  /**
+   * Locks of all the keys, each one once and in the order of the table, so that writers taking
+   * them one after another never wait for each other in a cycle
+   */
+  @NotNull
+  List<Lock> getAll(@NotNull final Collection<byte[]> keys) {
+    BitSet stripes = new BitSet(locks.length);
+    for (byte[] key : keys) {
+      stripes.set(stripe(key));
+    }
+    List<Lock> result = new ArrayList<>(stripes.cardinality());
+    for (int ix = stripes.nextSetBit(0); ix >= 0; ix = stripes.nextSetBit(ix + 1)) {
+      result.add(locks[ix]);
+    }
+    return result;
+  }
+
+  private int stripe(@NotNull final byte[] key) {
+    return (int) Murmur3.hash64(key) & mask;
+  }
+}
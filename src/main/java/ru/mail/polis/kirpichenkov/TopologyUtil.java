@@ -3,6 +3,7 @@ package ru.mail.polis.kirpichenkov;
 import org.javatuples.Pair;
 import org.jetbrains.annotations.NotNull;
 
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 
 /**
@@ -29,7 +30,7 @@ public class TopologyUtil {
   /**
    * Return N nodes of topology, associated with the given Id, using consistent hashing
    *
-   * @param orderedTopology all available nodes
+   * @param ring hash ring of all available nodes
    * @param id key from request
    * @param from requested number of nodes
    * @return collection of N nodes, responsible for the given Id
@@ -37,28 +38,18 @@ public class TopologyUtil {
    */
   @NotNull
   public static Collection<String> nodes(
-      @NotNull final List<String> orderedTopology,
+      @NotNull final HashRing ring,
       @NotNull final String id,
       final int from
   ) throws IllegalArgumentException
   {
-    if (orderedTopology.size() < 1) {
-      throw new IllegalArgumentException("Empty list of nodes in topology");
-    }
     if (id.equals("")) {
       throw new IllegalArgumentException("Empty id");
     }
-    if (from > orderedTopology.size()) {
+    if (from > ring.getNodes().size()) {
       throw new IllegalArgumentException("Not enough replicas");
     }
-    int hash = id.hashCode() & Integer.MAX_VALUE;
-    int size = orderedTopology.size();
-    int start = hash % size;
-    Collection<String> results = new ArrayList<>();
-    for (int ix = start; ix < start + from; ix++) {
-      results.add(orderedTopology.get(ix % size));
-    }
-    return results;
+    return ring.replicas(id.getBytes(StandardCharsets.UTF_8), from);
   }
 
   @NotNull
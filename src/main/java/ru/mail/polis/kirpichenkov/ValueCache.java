@@ -0,0 +1,78 @@
+package ru.mail.polis.kirpichenkov;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Cache of the recently read cells, values and tombstones with their versions, limited by the
+ * total size of keys and values.
+ * <p>
+ * A reader that missed the cache must not put back a value replaced while it was reading the
+ * storage. So every write bumps the counter of the key's stripe before invalidating the key, and
+ * the reader caches what it has read only if the counter hasn't changed since before the read.
+ *
+ * @author Pavel Kirpichenkov
+ */
+class ValueCache {
+  /** Rough heap overhead of the cache entry, key buffer and cell objects */
+  private static final int ENTRY_OVERHEAD = 96;
+  private static final int STRIPES = 1024;
+  private final Cache<ByteBuffer, Cell> cache;
+  private final AtomicLongArray writes = new AtomicLongArray(STRIPES);
+  private final boolean enabled;
+
+  /** @param capacity total size of the cached keys and values in bytes, 0 to cache nothing */
+  ValueCache(final long capacity) {
+    this.enabled = capacity > 0;
+    this.cache = Caffeine.newBuilder()
+        .maximumWeight(capacity)
+        .weigher((ByteBuffer key, Cell cell) -> key.remaining() + cell.sizeInBytes() + ENTRY_OVERHEAD)
+        .build();
+  }
+
+  @Nullable
+  Cell get(@NotNull final byte[] key) {
+    return enabled ? cache.getIfPresent(ByteBuffer.wrap(key)) : null;
+  }
+
+  /** @return stamp to pass to {@link #put} after reading the key from the storage */
+  long stamp(@NotNull final byte[] key) {
+    return writes.get(stripe(key));
+  }
+
+  /**
+   * Cache the cell read from the storage, unless the key was written since the stamp was taken.
+   * The value is copied, so the cache doesn't keep storage buffers alive.
+   */
+  void put(
+      @NotNull final byte[] key,
+      @NotNull final Cell cell,
+      final long stamp
+  ) {
+    if (!enabled) {
+      return;
+    }
+    Cell copy = cell.isTombstone() ? cell : Cell.value(cell.copyValue(), cell.getTimestamp());
+    int stripe = stripe(key);
+    cache.asMap().compute(
+        ByteBuffer.wrap(key),
+        (k, cached) -> writes.get(stripe) == stamp ? copy : cached);
+  }
+
+  /** Drop the key; must be called after the write to the storage is done */
+  void invalidate(@NotNull final byte[] key) {
+    writes.incrementAndGet(stripe(key));
+    if (enabled) {
+      cache.invalidate(ByteBuffer.wrap(key));
+    }
+  }
+
+  private static int stripe(@NotNull final byte[] key) {
+    return ByteBuffer.wrap(key).hashCode() & (STRIPES - 1);
+  }
+}
@@ -0,0 +1,66 @@
+package ru.mail.polis.kirpichenkov;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Storage, which keeps the version and the deletion mark together with the value, so that a
+ * single lookup answers whether the key is present, deleted or absent and since when.
+ * <p>
+ * Timestamps are nanoseconds since the epoch, see {@link NanoClock#toEpochNanos}.
+ *
+ * @author Pavel Kirpichenkov
+ */
+public interface VersionedKVDao extends BasePathGrantingKVDao {
+
+  /**
+   * @param key key to look up
+   * @return the latest cell (value or tombstone) or null if the key was never written
+   */
+  @Nullable
+  Cell getCell(@NotNull byte[] key) throws IOException;
+
+  void upsert(
+      @NotNull byte[] key,
+      @NotNull byte[] value,
+      long timestamp) throws IOException;
+
+  void remove(
+      @NotNull byte[] key,
+      long timestamp) throws IOException;
+
+  /**
+   * Apply the writes in their order. Storages with a log override it to make one append and sync
+   * for the whole batch; the writes may become visible to readers one by one all the same.
+   */
+  default void write(@NotNull WriteBatch batch) throws IOException {
+    for (WriteBatch.Mutation mutation : batch) {
+      byte[] value = mutation.getValue();
+      if (value == null) {
+        remove(mutation.getKey(), mutation.getTimestamp());
+      } else {
+        upsert(mutation.getKey(), value, mutation.getTimestamp());
+      }
+    }
+  }
+
+  /**
+   * Visit the latest cell of every key, tombstones included. Writes made during the scan may be
+   * visited or not.
+   */
+  void scan(@NotNull CellVisitor visitor) throws IOException;
+
+  /** Receiver of the cells found by {@link #scan} */
+  interface CellVisitor {
+    /**
+     * @param key key, valid only during the call
+     * @param cell cell, its value valid only during the call
+     */
+    void visit(
+        @NotNull ByteBuffer key,
+        @NotNull Cell cell) throws IOException;
+  }
+}
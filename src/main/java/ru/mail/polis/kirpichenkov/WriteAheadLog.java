@@ -0,0 +1,271 @@
+package ru.mail.polis.kirpichenkov;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of the memtable updates, used to restore the memtable after a crash.
+ * <p>
+ * Writers are not synced one by one: every writer adds its record to the pending batch and then
+ * waits until some writer (the first one to take the sync lock) writes the whole batch and calls
+ * fsync once for all of them. Record layout is {@code [body length][crc32 of body][body]}, where
+ * body is {@code [op][key length][key][timestamp][value]}. The records of a {@link WriteBatch} are
+ * appended together, though a crash may still leave only the first of them in the log: the batch
+ * wasn't acknowledged then.
+ *
+ * @author Pavel Kirpichenkov
+ */
+class WriteAheadLog implements Closeable {
+  private static final Logger logger = LogManager.getLogger(WriteAheadLog.class);
+  static final String SUFFIX = ".log";
+  private static final byte OP_UPSERT = 0;
+  private static final byte OP_REMOVE = 1;
+  private static final int HEADER_SIZE = 2 * Integer.BYTES;
+  private static final int MIN_BODY_SIZE = Byte.BYTES + Integer.BYTES + Long.BYTES;
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  private final File file;
+  private final FileChannel channel;
+  private final Object appendLock = new Object();
+  private final Object syncLock = new Object();
+  private List<ByteBuffer> pending = new ArrayList<>();
+  private long appended;
+  private volatile long synced;
+  /** First write error; the log refuses all appends after it, because the tail state is unknown */
+  @Nullable
+  private volatile IOException failure;
+
+  private WriteAheadLog(@NotNull final File file) throws IOException {
+    this.file = file;
+    this.channel = FileChannel.open(
+        file.toPath(),
+        StandardOpenOption.CREATE_NEW,
+        StandardOpenOption.WRITE);
+  }
+
+  /**
+   * Create new empty log
+   *
+   * @param file log file, must not exist
+   */
+  @NotNull
+  static WriteAheadLog create(@NotNull final File file) throws IOException {
+    return new WriteAheadLog(file);
+  }
+
+  /** Append upsert record and wait until it is on disk */
+  void upsert(
+      @NotNull final byte[] key,
+      @NotNull final byte[] value,
+      final long timestamp
+  ) throws IOException
+  {
+    append(record(OP_UPSERT, key, value, timestamp));
+  }
+
+  /** Append remove record and wait until it is on disk */
+  void remove(
+      @NotNull final byte[] key,
+      final long timestamp
+  ) throws IOException
+  {
+    append(record(OP_REMOVE, key, null, timestamp));
+  }
+
+  /** Append records of all the writes of the batch and wait until they are on disk */
+  void write(@NotNull final WriteBatch batch) throws IOException {
+    List<ByteBuffer> records = new ArrayList<>(batch.size());
+    int length = 0;
+    for (WriteBatch.Mutation mutation : batch) {
+      byte[] value = mutation.getValue();
+      ByteBuffer record = record(
+          value == null ? OP_REMOVE : OP_UPSERT,
+          mutation.getKey(),
+          value,
+          mutation.getTimestamp());
+      records.add(record);
+      length += record.remaining();
+    }
+    ByteBuffer joined = ByteBuffer.allocate(length);
+    for (ByteBuffer record : records) {
+      joined.put(record);
+    }
+    joined.flip();
+    append(joined);
+  }
+
+  @NotNull
+  File getFile() {
+    return file;
+  }
+
+  @Override
+  public void close() throws IOException {
+    channel.close();
+  }
+
+  /**
+   * Read all complete records from the log and apply them to the memtable. A torn or corrupted
+   * record ends the replay: everything after it was never acknowledged to a writer.
+   *
+   * @param file log to read
+   * @param target memtable to fill
+   * @return number of replayed records
+   */
+  static int replay(
+      @NotNull final File file,
+      @NotNull final MemTable target
+  ) throws IOException
+  {
+    int count = 0;
+    CRC32 crc = new CRC32();
+    try (DataInputStream in = new DataInputStream(
+        new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE))) {
+      while (true) {
+        byte[] body;
+        try {
+          int length = in.readInt();
+          int checksum = in.readInt();
+          if (length < MIN_BODY_SIZE || length > file.length()) {
+            logger.warn("Corrupted record length in {} after {} records", file, count);
+            break;
+          }
+          body = new byte[length];
+          in.readFully(body);
+          crc.reset();
+          crc.update(body, 0, body.length);
+          if ((int) crc.getValue() != checksum) {
+            logger.warn("Checksum mismatch in {} after {} records", file, count);
+            break;
+          }
+        } catch (EOFException ex) {
+          break;
+        }
+        apply(ByteBuffer.wrap(body), target);
+        count++;
+      }
+    }
+    return count;
+  }
+
+  private static void apply(
+      @NotNull final ByteBuffer body,
+      @NotNull final MemTable target
+  ) throws IOException
+  {
+    byte op = body.get();
+    byte[] key = new byte[body.getInt()];
+    body.get(key);
+    long timestamp = body.getLong();
+    switch (op) {
+      case OP_UPSERT:
+        byte[] value = new byte[body.remaining()];
+        body.get(value);
+        target.upsert(key, value, timestamp);
+        break;
+      case OP_REMOVE:
+        target.remove(key, timestamp);
+        break;
+      default:
+        throw new IOException("Unknown log operation " + op);
+    }
+  }
+
+  @NotNull
+  private static ByteBuffer record(
+      final byte op,
+      @NotNull final byte[] key,
+      @Nullable final byte[] value,
+      final long timestamp
+  ) {
+    int valueLength = value == null ? 0 : value.length;
+    int bodyLength = MIN_BODY_SIZE + key.length + valueLength;
+    ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + bodyLength);
+    buffer.putInt(bodyLength);
+    buffer.putInt(0);
+    buffer.put(op);
+    buffer.putInt(key.length);
+    buffer.put(key);
+    buffer.putLong(timestamp);
+    if (value != null) {
+      buffer.put(value);
+    }
+    CRC32 crc = new CRC32();
+    crc.update(buffer.array(), HEADER_SIZE, bodyLength);
+    buffer.putInt(Integer.BYTES, (int) crc.getValue());
+    buffer.flip();
+    return buffer;
+  }
+
+  private void append(@NotNull final ByteBuffer record) throws IOException {
+    long sequence;
+    synchronized (appendLock) {
+      checkFailure();
+      pending.add(record);
+      sequence = ++appended;
+    }
+    sync(sequence);
+  }
+
+  /**
+   * Make sure the record with the given sequence number is on disk. Whoever gets the sync lock
+   * first writes all the pending records, so waiting writers usually find their record synced.
+   */
+  private void sync(final long sequence) throws IOException {
+    if (synced >= sequence) {
+      return;
+    }
+    synchronized (syncLock) {
+      checkFailure();
+      if (synced >= sequence) {
+        return;
+      }
+      List<ByteBuffer> batch;
+      long last;
+      synchronized (appendLock) {
+        batch = pending;
+        last = appended;
+        pending = new ArrayList<>();
+      }
+      try {
+        ByteBuffer[] buffers = batch.toArray(new ByteBuffer[0]);
+        long remaining = 0;
+        for (ByteBuffer buffer : buffers) {
+          remaining += buffer.remaining();
+        }
+        while (remaining > 0) {
+          remaining -= channel.write(buffers);
+        }
+        channel.force(false);
+      } catch (IOException ex) {
+        failure = ex;
+        throw ex;
+      }
+      synced = last;
+      logger.trace("synced {} records to {}", batch::size, () -> file);
+    }
+  }
+
+  private void checkFailure() throws IOException {
+    IOException ex = failure;
+    if (ex != null) {
+      throw new IOException("Write-ahead log " + file + " is broken", ex);
+    }
+  }
+}
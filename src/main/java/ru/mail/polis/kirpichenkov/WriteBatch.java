@@ -0,0 +1,85 @@
+package ru.mail.polis.kirpichenkov;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Writes applied to the storage together, see {@link VersionedKVDao#write}. Writes of the same key
+ * are applied in the order they were added.
+ *
+ * @author Pavel Kirpichenkov
+ */
+public class WriteBatch implements Iterable<WriteBatch.Mutation> {
+  private final List<Mutation> mutations = new ArrayList<>();
+
+  @NotNull
+  public WriteBatch upsert(
+      @NotNull final byte[] key,
+      @NotNull final byte[] value,
+      final long timestamp
+  ) {
+    mutations.add(new Mutation(key, value, timestamp));
+    return this;
+  }
+
+  @NotNull
+  public WriteBatch remove(
+      @NotNull final byte[] key,
+      final long timestamp
+  ) {
+    mutations.add(new Mutation(key, null, timestamp));
+    return this;
+  }
+
+  public int size() {
+    return mutations.size();
+  }
+
+  public boolean isEmpty() {
+    return mutations.isEmpty();
+  }
+
+  @NotNull
+  @Override
+  public Iterator<Mutation> iterator() {
+    return mutations.iterator();
+  }
+
+  /** Upsert of the value, or removal if there is none */
+  public static class Mutation {
+    @NotNull
+    private final byte[] key;
+    @Nullable
+    private final byte[] value;
+    private final long timestamp;
+
+    Mutation(
+        @NotNull final byte[] key,
+        @Nullable final byte[] value,
+        final long timestamp
+    ) {
+      this.key = key;
+      this.value = value;
+      this.timestamp = timestamp;
+    }
+
+    @NotNull
+    public byte[] getKey() {
+      return key;
+    }
+
+    /** @return value, null for a removal */
+    @Nullable
+    public byte[] getValue() {
+      return value;
+    }
+
+    public long getTimestamp() {
+      return timestamp;
+    }
+  }
+}
@@ -0,0 +1,178 @@
+package ru.mail.polis.kirpichenkov;
+
+import one.nio.http.HttpClient;
+import one.nio.net.ConnectionString;
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import ru.mail.polis.KVService;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+
+/**
+ * Anti-entropy of this node with a running peer: the node has its storage and trees here, the peer
+ * is a server in the same process
+ *
+ * @author Pavel Kirpichenkov
+ */
+class AntiEntropyTest {
+  private TempDirectory localDirectory;
+  private TempDirectory peerDirectory;
+  private LsmKVDao localStorage;
+  private LsmKVDao peerStorage;
+  private InternalDao local;
+  private RangeTrees trees;
+  private KVService peer;
+  private HttpClient client;
+  private AntiEntropy antiEntropy;
+
+  @BeforeEach
+  void start() throws Exception {
+    String me = "http://localhost:" + freePort();
+    int peerPort = freePort();
+    String peerUrl = "http://localhost:" + peerPort;
+    Set<String> topology = new LinkedHashSet<>(Arrays.asList(me, peerUrl));
+    localDirectory = new TempDirectory();
+    peerDirectory = new TempDirectory();
+    localStorage = new LsmKVDao(localDirectory.getPath());
+    peerStorage = new LsmKVDao(peerDirectory.getPath());
+    trees = AntiEntropy.trees(new HashRing(TopologyUtil.ordered(topology), HashRing.VIRTUAL_NODES));
+    local = new InternalDao(localStorage, trees);
+    peer = KVServiceImpl.create(peerStorage, peerPort, topology);
+    peer.start();
+    client = new HttpClient(new ConnectionString(peerUrl + "?timeout=1000"));
+    antiEntropy = new AntiEntropy(local, trees, me, Collections.singletonList(peerUrl));
+  }
+
+  @AfterEach
+  void stop() throws IOException {
+    antiEntropy.close();
+    client.close();
+    peer.stop();
+    localStorage.close();
+    peerStorage.close();
+    localDirectory.close();
+    peerDirectory.close();
+  }
+
+  @Test
+  void takesKeysMissingHere() throws Exception {
+    writeOnPeer("missing", bytes("value"), 10);
+    deleteOnPeer("deleted", 20);
+    antiEntropy.round();
+    assertValue("missing", bytes("value"), 10);
+    assertEquals(Result.Status.DELETED, local.get(bytes("deleted")).getStatus());
+    assertEquals(20, version("deleted"));
+    assertEquals(peerRoot(), localRoot());
+  }
+
+  @Test
+  void takesNewerVersions() throws Exception {
+    local.upsert(bytes("value"), bytes("old"), 10);
+    local.upsert(bytes("tombstone"), bytes("old"), 10);
+    writeOnPeer("value", bytes("new"), 20);
+    deleteOnPeer("tombstone", 20);
+    antiEntropy.round();
+    assertValue("value", bytes("new"), 20);
+    assertEquals(Result.Status.DELETED, local.get(bytes("tombstone")).getStatus());
+    assertEquals(peerRoot(), localRoot());
+  }
+
+  @Test
+  void keepsNewerVersionsHere() throws Exception {
+    local.upsert(bytes("key"), bytes("new"), 20);
+    writeOnPeer("key", bytes("old"), 10);
+    antiEntropy.round();
+    assertValue("key", bytes("new"), 20);
+    assertNotEquals(peerRoot(), localRoot());
+  }
+
+  @Test
+  void fetchesManyValuesInBatches() throws Exception {
+    byte[] value = new byte[4096];
+    for (int ix = 0; ix < 600; ix++) {
+      value[0] = (byte) ix;
+      writeOnPeer("key" + ix, value, 10 + ix);
+    }
+    antiEntropy.round();
+    for (int ix = 0; ix < 600; ix++) {
+      value[0] = (byte) ix;
+      assertValue("key" + ix, value, 10 + ix);
+    }
+    assertEquals(peerRoot(), localRoot());
+  }
+
+  private void writeOnPeer(
+      @NotNull final String id,
+      @NotNull final byte[] value,
+      final long version
+  ) throws Exception
+  {
+    int status = client.put(Collaboration.entityPath(id), value, headers(version)).getStatus();
+    assertEquals(201, status);
+  }
+
+  private void deleteOnPeer(
+      @NotNull final String id,
+      final long version
+  ) throws Exception
+  {
+    assertEquals(202, client.delete(Collaboration.entityPath(id), headers(version)).getStatus());
+  }
+
+  @NotNull
+  private static String[] headers(final long version) {
+    return new String[] {
+        Collaboration.INTERNAL_HEADER,
+        Collaboration.TIMESTAMP_HEADER + ": " + NanoClock.fromEpochNanos(version)
+    };
+  }
+
+  private void assertValue(
+      @NotNull final String id,
+      @NotNull final byte[] value,
+      final long version
+  ) {
+    Result result = local.get(bytes(id));
+    assertEquals(Result.Status.OK, result.getStatus(), id);
+    assertArrayEquals(value, result.getBody(), id);
+    assertEquals(version, version(id), id);
+  }
+
+  private long version(@NotNull final String id) {
+    return NanoClock.toEpochNanos(local.get(bytes(id)).getTimestamp());
+  }
+
+  private long localRoot() {
+    return trees.get(0).level(0)[0];
+  }
+
+  private long peerRoot() throws Exception {
+    String path = AntiEntropy.TREE_PATH + "?level=0&trees=0";
+    byte[] body = client.get(path, Collaboration.INTERNAL_HEADER).getBody();
+    return ByteBuffer.wrap(body).getLong();
+  }
+
+  @NotNull
+  private static byte[] bytes(@NotNull final String text) {
+    return text.getBytes(StandardCharsets.UTF_8);
+  }
+
+  private static int freePort() throws IOException {
+    try (ServerSocket socket = new ServerSocket(0)) {
+      return socket.getLocalPort();
+    }
+  }
+}
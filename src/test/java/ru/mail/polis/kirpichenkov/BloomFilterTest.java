@@ -0,0 +1,91 @@
+package ru.mail.polis.kirpichenkov;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Per-table Bloom filter
+ *
+ * @author Pavel Kirpichenkov
+ */
+class BloomFilterTest {
+  private static final int KEYS = 10_000;
+  private static final double FALSE_POSITIVE_RATE = 0.01;
+
+  @Test
+  void containsAddedKeys() {
+    BloomFilter filter = filled();
+    for (int ix = 0; ix < KEYS; ix++) {
+      assertTrue(filter.mightContain(hash("key" + ix)));
+    }
+  }
+
+  @Test
+  void keepsFalsePositiveRate() {
+    BloomFilter filter = filled();
+    int falsePositives = 0;
+    for (int ix = 0; ix < KEYS; ix++) {
+      if (filter.mightContain(hash("absent" + ix))) {
+        falsePositives++;
+      }
+    }
+    assertTrue(falsePositives < KEYS * FALSE_POSITIVE_RATE * 2, "False positives: " + falsePositives);
+  }
+
+  @Test
+  void hashesArraysAndBuffersAlike() {
+    byte[] key = "prefix-key".getBytes(StandardCharsets.UTF_8);
+    ByteBuffer slice = ByteBuffer.wrap(key, 7, 3).slice();
+    ByteBuffer direct = ByteBuffer.allocateDirect(3);
+    direct.put(key, 7, 3).flip();
+    long expected = BloomFilter.hash("key".getBytes(StandardCharsets.UTF_8));
+    assertEquals(expected, BloomFilter.hash(slice));
+    assertEquals(expected, BloomFilter.hash(direct));
+  }
+
+  @Test
+  void survivesSerialization() throws IOException {
+    BloomFilter filter = filled();
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (DataOutputStream out = new DataOutputStream(bytes)) {
+      filter.writeTo(out);
+    }
+    assertEquals(filter.sizeInBytes(), bytes.size());
+    ByteBuffer in = ByteBuffer.wrap(bytes.toByteArray());
+    BloomFilter read = BloomFilter.readFrom(in);
+    assertFalse(in.hasRemaining());
+    for (int ix = 0; ix < KEYS; ix++) {
+      assertTrue(read.mightContain(hash("key" + ix)));
+      assertEquals(filter.mightContain(hash("absent" + ix)), read.mightContain(hash("absent" + ix)));
+    }
+  }
+
+  @Test
+  void rejectsCorruptedFilter() {
+    ByteBuffer in = ByteBuffer.allocate(2 * Integer.BYTES + Long.BYTES);
+    in.putInt(3).putInt(1000).flip();
+    assertThrows(IOException.class, () -> BloomFilter.readFrom(in));
+  }
+
+  private static BloomFilter filled() {
+    BloomFilter filter = BloomFilter.create(KEYS, FALSE_POSITIVE_RATE);
+    for (int ix = 0; ix < KEYS; ix++) {
+      filter.add(hash("key" + ix));
+    }
+    return filter;
+  }
+
+  private static long hash(final String key) {
+    return BloomFilter.hash(key.getBytes(StandardCharsets.UTF_8));
+  }
+}
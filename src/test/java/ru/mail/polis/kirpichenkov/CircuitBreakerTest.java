@@ -0,0 +1,72 @@
+package ru.mail.polis.kirpichenkov;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Circuit breaker of the calls to a peer, with the default settings
+ *
+ * @author Pavel Kirpichenkov
+ */
+class CircuitBreakerTest {
+  private static final long OPEN = TimeUnit.SECONDS.toNanos(1);
+
+  @Test
+  void opensAfterFailuresInRow() {
+    CircuitBreaker breaker = new CircuitBreaker();
+    breaker.failure(0);
+    breaker.failure(0);
+    breaker.success();
+    breaker.failure(0);
+    breaker.failure(0);
+    assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    breaker.failure(0);
+    assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+    assertFalse(breaker.allow(OPEN - 1));
+  }
+
+  @Test
+  void probesAfterPauseAndClosesOnSuccesses() {
+    CircuitBreaker breaker = new CircuitBreaker();
+    breaker.trip(0);
+    assertTrue(breaker.allow(OPEN));
+    assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+    assertFalse(breaker.allow(OPEN), "Only one probe at first");
+    breaker.success();
+    assertTrue(breaker.allow(OPEN));
+    assertTrue(breaker.allow(OPEN));
+    assertFalse(breaker.allow(OPEN));
+    for (int ix = 0; ix < 3; ix++) {
+      breaker.success();
+    }
+    assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+  }
+
+  @Test
+  void failedProbeOpensAgain() {
+    CircuitBreaker breaker = new CircuitBreaker();
+    breaker.trip(0);
+    assertTrue(breaker.allow(OPEN));
+    breaker.failure(OPEN);
+    assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+    assertFalse(breaker.allow(2 * OPEN - 1));
+    assertTrue(breaker.allow(2 * OPEN));
+  }
+
+  @Test
+  void heartbeatStartsProbesAtOnce() {
+    CircuitBreaker breaker = new CircuitBreaker();
+    breaker.trip(0);
+    breaker.alive();
+    assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+    assertTrue(breaker.allow(0));
+    assertFalse(breaker.allow(0));
+    breaker.alive();
+    assertTrue(breaker.allow(0), "Lost probe is forgotten");
+  }
+}
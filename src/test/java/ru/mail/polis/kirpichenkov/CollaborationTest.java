@@ -0,0 +1,122 @@
+package ru.mail.polis.kirpichenkov;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Test;
+import ru.mail.polis.kirpichenkov.Result.Status;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Digests and merging of the replies of the replicas
+ *
+ * @author Pavel Kirpichenkov
+ */
+class CollaborationTest {
+  @Test
+  void digestOfSameValueMatches() {
+    Result data = value(new byte[]{1, 2, 3}, 10);
+    Result digest = Collaboration.digest(value(new byte[]{1, 2, 3}, 20));
+    assertTrue(digest.isDigest());
+    assertTrue(Collaboration.sameValue(digest, data));
+  }
+
+  @Test
+  void digestOfOtherValueDiffers() {
+    Result data = value(new byte[]{1, 2, 3}, 10);
+    Result digest = Collaboration.digest(value(new byte[]{1, 2, 4}, 10));
+    assertFalse(Collaboration.sameValue(digest, data));
+  }
+
+  @Test
+  void digestDiffersWithoutData() {
+    Result digest = Collaboration.digest(value(new byte[]{1}, 10));
+    assertFalse(Collaboration.sameValue(digest, null));
+    assertFalse(Collaboration.sameValue(digest, Collaboration.error()));
+    assertFalse(Collaboration.sameValue(digest, result(Status.DELETED, 5)));
+  }
+
+  @Test
+  void digestKeepsOtherResults() {
+    Result deleted = result(Status.DELETED, 5);
+    assertSame(deleted, Collaboration.digest(deleted));
+  }
+
+  @Test
+  void mergePrefersNewest() {
+    Result older = value(new byte[]{1}, 10);
+    Result newer = result(Status.DELETED, 20);
+    Result merged = Collaboration.mergeResults(Arrays.asList(older, newer, Collaboration.error()), 2);
+    assertSame(newer, merged);
+  }
+
+  @Test
+  void mergePrefersValueToDigestOfSameVersion() {
+    Result data = value(new byte[]{1}, 10);
+    Result digest = Collaboration.digest(value(new byte[]{1}, 10));
+    assertSame(data, Collaboration.mergeResults(Arrays.asList(digest, data), 2));
+  }
+
+  @Test
+  void mergeFailsWithoutEnoughAcks() {
+    Result reply = value(new byte[]{1}, 10);
+    Result merged = Collaboration.mergeResults(Arrays.asList(reply, Collaboration.error()), 2);
+    assertEquals(Status.ERROR, merged.getStatus());
+    assertEquals(reply.getTimestamp(), merged.getTimestamp());
+    assertEquals(Status.OK, reply.getStatus());
+  }
+
+  @Test
+  void replicasOfSameVersionAreNotStale() {
+    Map<String, Result> replies = new HashMap<>();
+    replies.put("a", value(new byte[]{1}, 10));
+    replies.put("b", Collaboration.digest(value(new byte[]{1}, 10)));
+    replies.put("c", Collaboration.error());
+    Result newest = Collaboration.mergeResults(replies.values(), 1);
+    assertTrue(Collaboration.staleReplicas(replies, newest).isEmpty());
+  }
+
+  @Test
+  void olderReplicasAreStale() {
+    Map<String, Result> replies = new HashMap<>();
+    replies.put("a", value(new byte[]{1}, 10));
+    replies.put("b", result(Status.ABSENT, 0));
+    replies.put("c", value(new byte[]{2}, 20));
+    Result newest = Collaboration.mergeResults(replies.values(), 1);
+    assertEquals(
+        Arrays.asList("a", "b"),
+        sorted(Collaboration.staleReplicas(replies, newest)));
+  }
+
+  @NotNull
+  private static List<String> sorted(@NotNull final List<String> list) {
+    Collections.sort(list);
+    return list;
+  }
+
+  @NotNull
+  private static Result value(
+      @NotNull final byte[] body,
+      final long epochNanos
+  ) {
+    return result(Status.OK, epochNanos).setBody(body);
+  }
+
+  @NotNull
+  private static Result result(
+      @NotNull final Status status,
+      final long epochNanos
+  ) {
+    return new Result()
+        .setStatus(status)
+        .setTimestamp(NanoClock.fromEpochNanos(epochNanos));
+  }
+}
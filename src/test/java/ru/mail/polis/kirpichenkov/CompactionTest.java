@@ -0,0 +1,189 @@
+package ru.mail.polis.kirpichenkov;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Compaction strategies, the manifest committing a compaction and compaction of a live storage
+ *
+ * @author Pavel Kirpichenkov
+ */
+class CompactionTest {
+  @Test
+  void sizeTieredMergesSimilarTables() throws IOException {
+    try (TempDirectory directory = new TempDirectory()) {
+      List<SSTable> tables = new ArrayList<>();
+      // Newest first, the way reads check them
+      tables.add(table(directory.getPath(), 6, 0, 6, 10_000, "a"));
+      for (int generation = 5; generation >= 2; generation--) {
+        tables.add(table(directory.getPath(), generation, 0, generation, 100, "a"));
+      }
+      SizeTieredCompaction strategy = new SizeTieredCompaction();
+      assertNull(strategy.pick(tables.subList(0, SizeTieredCompaction.MIN_THRESHOLD)));
+      Compaction compaction = strategy.pick(tables);
+      assertNotNull(compaction);
+      assertEquals(tables.subList(1, 5), compaction.getInputs());
+      assertEquals(0, compaction.getOutputLevel());
+    }
+  }
+
+  @Test
+  void leveledMergesLevel0WithOverlappingTables() throws IOException {
+    try (TempDirectory directory = new TempDirectory()) {
+      List<SSTable> tables = new ArrayList<>();
+      for (int generation = 10; generation > 10 - LeveledCompaction.LEVEL0_TRIGGER; generation--) {
+        tables.add(table(directory.getPath(), generation, 0, generation, 10, "d", "f"));
+      }
+      SSTable overlapping = table(directory.getPath(), 2, 1, 1, 10, "e", "g");
+      SSTable aside = table(directory.getPath(), 1, 1, 1, 10, "a", "b");
+      tables.add(overlapping);
+      tables.add(aside);
+      LeveledCompaction strategy = new LeveledCompaction(1024 * 1024);
+      assertNull(strategy.pick(tables.subList(1, tables.size())));
+      Compaction compaction = strategy.pick(tables);
+      assertNotNull(compaction);
+      assertEquals(LeveledCompaction.LEVEL0_TRIGGER + 1, compaction.getInputs().size());
+      assertTrue(compaction.getInputs().contains(overlapping));
+      assertFalse(compaction.getInputs().contains(aside));
+      assertEquals(1, compaction.getOutputLevel());
+    }
+  }
+
+  @Test
+  void leveledPushesOldestTableOfFullLevel() throws IOException {
+    try (TempDirectory directory = new TempDirectory()) {
+      long tableBytes = 64;
+      List<SSTable> tables = new ArrayList<>();
+      for (int generation = 20; generation > 0; generation--) {
+        String key = String.format("k%02d", generation);
+        tables.add(table(directory.getPath(), generation, 1, generation, 100, key));
+      }
+      SSTable below = table(directory.getPath(), 30, 2, 0, 100, "k01", "k05");
+      tables.add(below);
+      Compaction compaction = new LeveledCompaction(tableBytes).pick(tables);
+      assertNotNull(compaction);
+      assertEquals(Arrays.asList(tables.get(19), below), compaction.getInputs());
+      assertEquals(2, compaction.getOutputLevel());
+    }
+  }
+
+  @Test
+  void storageFinishesCommittedCompaction() throws IOException {
+    try (TempDirectory directory = new TempDirectory()) {
+      File path = directory.getPath();
+      write(new File(path, "1" + SSTable.SUFFIX), "a", "old", 1);
+      write(new File(path, "2" + SSTable.SUFFIX), "b", "old", 2);
+      String output = "3-0-2" + SSTable.SUFFIX;
+      write(new File(path, output + CompactionManifest.PENDING_SUFFIX), "a", "new", 3);
+      CompactionManifest.write(
+          new File(path, "4" + CompactionManifest.SUFFIX),
+          Arrays.asList("1" + SSTable.SUFFIX, "2" + SSTable.SUFFIX),
+          Collections.singletonList(output));
+      try (LsmKVDao dao = new LsmKVDao(path)) {
+        assertArrayEquals(bytes("new"), dao.get(bytes("a")));
+        assertThrows(NoSuchElementException.class, () -> dao.get(bytes("b")));
+      }
+      assertFalse(new File(path, "1" + SSTable.SUFFIX).exists());
+      assertFalse(new File(path, "4" + CompactionManifest.SUFFIX).exists());
+      assertTrue(new File(path, output).exists());
+    }
+  }
+
+  @Test
+  void storageDropsAbortedCompaction() throws IOException {
+    try (TempDirectory directory = new TempDirectory()) {
+      File path = directory.getPath();
+      write(new File(path, "1" + SSTable.SUFFIX), "a", "old", 1);
+      File pending = new File(path, "3-0-1" + SSTable.SUFFIX + CompactionManifest.PENDING_SUFFIX);
+      write(pending, "a", "new", 3);
+      try (LsmKVDao dao = new LsmKVDao(path)) {
+        assertArrayEquals(bytes("old"), dao.get(bytes("a")));
+      }
+      assertFalse(pending.exists());
+    }
+  }
+
+  @Test
+  void storageCompactsFlushedTables() throws Exception {
+    int keys = 2000;
+    try (TempDirectory directory = new TempDirectory()) {
+      try (LsmKVDao dao = new LsmKVDao(directory.getPath(), 4096, new SizeTieredCompaction())) {
+        for (int round = 0; round < 3; round++) {
+          for (int ix = 0; ix < keys; ix++) {
+            dao.upsert(bytes("key" + ix), bytes("value" + round + ":" + ix));
+          }
+        }
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (dao.getMetrics().getCompactions() == 0 && System.currentTimeMillis() < deadline) {
+          Thread.sleep(10);
+        }
+        assertTrue(dao.getMetrics().getCompactions() > 0);
+      }
+      try (LsmKVDao dao = new LsmKVDao(directory.getPath())) {
+        for (int ix = 0; ix < keys; ix++) {
+          assertArrayEquals(bytes("value2:" + ix), dao.get(bytes("key" + ix)));
+        }
+      }
+    }
+  }
+
+  /** Table with the given keys, padded to about {@code size} bytes */
+  @NotNull
+  private static SSTable table(
+      @NotNull final File directory,
+      final int generation,
+      final int level,
+      final long sequence,
+      final int size,
+      @NotNull final String... keys
+  ) throws IOException
+  {
+    List<Map.Entry<ByteBuffer, Cell>> cells = new ArrayList<>();
+    for (String key : keys) {
+      cells.add(new AbstractMap.SimpleImmutableEntry<>(
+          ByteBuffer.wrap(bytes(key)),
+          Cell.value(new byte[size / keys.length], 1)));
+    }
+    File file = new File(directory, generation + "-" + level + "-" + sequence + SSTable.SUFFIX);
+    SSTable.write(cells.iterator(), file, 0.01, new IoRateLimiter(0));
+    return SSTable.open(file, generation, level, sequence);
+  }
+
+  private static void write(
+      @NotNull final File file,
+      @NotNull final String key,
+      @NotNull final String value,
+      final long timestamp
+  ) throws IOException
+  {
+    Map.Entry<ByteBuffer, Cell> cell = new AbstractMap.SimpleImmutableEntry<>(
+        ByteBuffer.wrap(bytes(key)),
+        Cell.value(bytes(value), timestamp));
+    SSTable.write(Collections.singletonList(cell).iterator(), file, 0.01, new IoRateLimiter(0));
+  }
+
+  @NotNull
+  private static byte[] bytes(@NotNull final String text) {
+    return text.getBytes(StandardCharsets.UTF_8);
+  }
+}
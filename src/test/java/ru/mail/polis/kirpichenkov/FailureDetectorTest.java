@@ -0,0 +1,51 @@
+package ru.mail.polis.kirpichenkov;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Phi accrual failure detector
+ *
+ * @author Pavel Kirpichenkov
+ */
+class FailureDetectorTest {
+  private static final long INTERVAL = TimeUnit.MILLISECONDS.toNanos(200);
+
+  @Test
+  void phiGrowsWithSilence() {
+    FailureDetector detector = new FailureDetector(INTERVAL, 0);
+    for (int beat = 1; beat <= 10; beat++) {
+      detector.heartbeat(beat * INTERVAL);
+    }
+    long last = 10 * INTERVAL;
+    assertEquals(0, detector.phi(last), 1e-9);
+    double phi = detector.phi(last + INTERVAL);
+    assertEquals(Math.log10(Math.E), phi, 1e-9);
+    assertEquals(10 * phi, detector.phi(last + 10 * INTERVAL), 1e-9);
+  }
+
+  @Test
+  void adaptsToSlowerHeartbeats() {
+    FailureDetector fast = new FailureDetector(INTERVAL, 0);
+    FailureDetector slow = new FailureDetector(INTERVAL, 0);
+    for (int beat = 1; beat <= 100; beat++) {
+      fast.heartbeat(beat * INTERVAL);
+      slow.heartbeat(beat * 2 * INTERVAL);
+    }
+    long silence = 4 * INTERVAL;
+    assertTrue(fast.phi(100 * INTERVAL + silence) > slow.phi(200 * INTERVAL + silence));
+  }
+
+  @Test
+  void outageIsNotTakenForUsualInterval() {
+    FailureDetector detector = new FailureDetector(INTERVAL, 0);
+    detector.heartbeat(INTERVAL);
+    long back = INTERVAL + TimeUnit.MINUTES.toNanos(1);
+    detector.heartbeat(back);
+    assertEquals(Math.log10(Math.E), detector.phi(back + INTERVAL), 1e-9);
+  }
+}
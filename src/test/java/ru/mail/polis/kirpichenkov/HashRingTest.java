@@ -0,0 +1,107 @@
+package ru.mail.polis.kirpichenkov;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Consistent hash ring with virtual nodes
+ *
+ * @author Pavel Kirpichenkov
+ */
+class HashRingTest {
+  private static final int KEYS = 10_000;
+
+  @Test
+  void picksDistinctReplicas() {
+    HashRing ring = new HashRing(nodes(5), HashRing.VIRTUAL_NODES);
+    for (int ix = 0; ix < KEYS; ix++) {
+      List<String> replicas = ring.replicas(key(ix), 3);
+      assertEquals(3, replicas.size());
+      assertEquals(3, new HashSet<>(replicas).size());
+    }
+    assertEquals(5, new HashSet<>(ring.replicas(key(0), 5)).size());
+    assertThrows(IllegalArgumentException.class, () -> ring.replicas(key(0), 6));
+  }
+
+  @Test
+  void placesKeysSameOnEveryNode() {
+    HashRing ring = new HashRing(nodes(3), HashRing.VIRTUAL_NODES);
+    HashRing other = new HashRing(nodes(3), HashRing.VIRTUAL_NODES);
+    for (int ix = 0; ix < KEYS; ix++) {
+      assertEquals(ring.replicas(key(ix), 2), other.replicas(key(ix), 2));
+      assertEquals(ring.replicas(key(ix), 2), ring.rangeReplicas(ring.range(key(ix)), 2));
+      assertTrue(ring.range(key(ix)) < ring.rangeCount());
+    }
+  }
+
+  @Test
+  void movesFewKeysWhenNodeIsAdded() {
+    HashRing before = new HashRing(nodes(4), HashRing.VIRTUAL_NODES);
+    HashRing after = new HashRing(nodes(5), HashRing.VIRTUAL_NODES);
+    int moved = 0;
+    for (int ix = 0; ix < KEYS; ix++) {
+      String owner = before.replicas(key(ix), 1).get(0);
+      String newOwner = after.replicas(key(ix), 1).get(0);
+      if (!owner.equals(newOwner)) {
+        assertEquals("http://node4", newOwner);
+        moved++;
+      }
+    }
+    // About a fifth of the keys go to the new node
+    assertTrue(moved > KEYS / 10 && moved < KEYS * 3 / 10, "Moved " + moved);
+  }
+
+  @Test
+  void sharesRingFairly() {
+    HashRing ring = new HashRing(nodes(5), HashRing.VIRTUAL_NODES);
+    double[] shares = ring.ownership();
+    assertEquals(1, Arrays.stream(shares).sum(), 1e-9);
+    for (double share : shares) {
+      assertTrue(share > 0.1 && share < 0.3, "Share " + share);
+    }
+    int[] primaries = new int[5];
+    for (int ix = 0; ix < KEYS; ix++) {
+      primaries[ring.getNodes().indexOf(ring.replicas(key(ix), 1).get(0))]++;
+    }
+    for (int count : primaries) {
+      assertTrue(count > KEYS / 10 && count < KEYS * 3 / 10, "Keys " + count);
+    }
+  }
+
+  @Test
+  void singleNodeOwnsEverything() {
+    HashRing ring = new HashRing(nodes(1), 1);
+    assertEquals(1, ring.ownership()[0], 1e-9);
+    assertEquals(nodes(1), ring.replicas(key(0), 1));
+  }
+
+  @Test
+  void rejectsEmptyRing() {
+    assertThrows(IllegalArgumentException.class, () -> new HashRing(new ArrayList<>(), 1));
+    assertThrows(IllegalArgumentException.class, () -> new HashRing(nodes(1), 0));
+  }
+
+  @NotNull
+  private static List<String> nodes(final int count) {
+    List<String> nodes = new ArrayList<>(count);
+    for (int ix = 0; ix < count; ix++) {
+      nodes.add("http://node" + ix);
+    }
+    return nodes;
+  }
+
+  @NotNull
+  private static byte[] key(final int ix) {
+    return ("key" + ix).getBytes(StandardCharsets.UTF_8);
+  }
+}
@@ -0,0 +1,114 @@
+package ru.mail.polis.kirpichenkov;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import ru.mail.polis.kirpichenkov.Result.Status;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Read asking spare replicas only when the fastest ones fail or are slow
+ *
+ * @author Pavel Kirpichenkov
+ */
+class HedgedReadTest {
+  private static final List<String> NODES = Arrays.asList("a", "b", "c");
+  private static final long NO_HEDGE = TimeUnit.HOURS.toNanos(1);
+  private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor();
+  private final Map<String, CompletableFuture<Result>> calls = new ConcurrentHashMap<>();
+
+  @AfterEach
+  void stopTimer() {
+    timer.shutdownNow();
+  }
+
+  @Test
+  void asksOnlyFastestReplicas() {
+    HedgedRead read = read(2, NO_HEDGE);
+    read.start();
+    assertEquals(2, calls.size());
+    assertTrue(calls.containsKey("a") && calls.containsKey("b"));
+
+    calls.get("a").complete(value(10));
+    calls.get("b").complete(value(20));
+    assertEquals(20, NanoClock.toEpochNanos(read.getCollector().response().join().getTimestamp()));
+    // The spare replica is never asked
+    assertTrue(read.getCollector().lateReplies().join().isEmpty());
+    assertEquals(2, calls.size());
+    assertEquals(0, read.getHedges());
+  }
+
+  @Test
+  void asksSpareReplicaInsteadOfFailed() {
+    HedgedRead read = read(2, NO_HEDGE);
+    read.start();
+    calls.get("a").complete(Collaboration.error());
+    assertTrue(calls.containsKey("c"));
+    calls.get("b").complete(value(10));
+    assertFalse(read.getCollector().response().isDone());
+    calls.get("c").complete(value(20));
+    assertEquals(Status.OK, read.getCollector().response().join().getStatus());
+    assertEquals(0, read.getHedges());
+  }
+
+  @Test
+  void asksSpareReplicaInsteadOfSlow() throws Exception {
+    HedgedRead read = read(1, TimeUnit.MILLISECONDS.toNanos(10));
+    read.start();
+    long deadline = System.currentTimeMillis() + 5_000;
+    while (!calls.containsKey("b") && System.currentTimeMillis() < deadline) {
+      Thread.sleep(1);
+    }
+    assertTrue(calls.containsKey("b"));
+    Result fast = value(10);
+    calls.get("b").complete(fast);
+    assertSame(fast, read.getCollector().response().join());
+    assertTrue(read.getHedges() >= 1);
+
+    // The slow replica still answers; everyone asked or skipped completes the late replies
+    calls.get("a").complete(value(5));
+    for (CompletableFuture<Result> call : calls.values()) {
+      call.complete(value(1));
+    }
+    assertTrue(read.getCollector().lateReplies().get(5, TimeUnit.SECONDS).size() >= 1);
+  }
+
+  @NotNull
+  private HedgedRead read(
+      final int acks,
+      final long delayNanos
+  ) {
+    Map<String, Long> delays = new HashMap<>();
+    for (String node : NODES) {
+      delays.put(node, delayNanos);
+    }
+    return new HedgedRead(
+        NODES,
+        acks,
+        node -> calls.computeIfAbsent(node, n -> new CompletableFuture<>()),
+        delays::get,
+        timer);
+  }
+
+  @NotNull
+  private static Result value(final long epochNanos) {
+    return new Result()
+        .setStatus(Status.OK)
+        .setBody(new byte[]{(byte) epochNanos})
+        .setTimestamp(NanoClock.fromEpochNanos(epochNanos));
+  }
+}
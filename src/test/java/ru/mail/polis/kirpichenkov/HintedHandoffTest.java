@@ -0,0 +1,190 @@
+package ru.mail.polis.kirpichenkov;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Test;
+import ru.mail.polis.KVService;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Delivery of the hints, torn and broken ones included
+ *
+ * @author Pavel Kirpichenkov
+ */
+class HintedHandoffTest {
+  private static final long DELIVERY_MILLIS = TimeUnit.SECONDS.toMillis(10);
+
+  @Test
+  void deliversHintsBeforeTornTail() throws Exception {
+    try (TempDirectory local = new TempDirectory(); TempDirectory remote = new TempDirectory()) {
+      int port = freePort();
+      String target = "http://localhost:" + port;
+      keepHints(local.getPath(), target, 3);
+      File file = hintsFile(local.getPath(), ".hints");
+      long intact = file.length();
+      // Half of a frame, as left by a crash in the middle of an append
+      try (FileOutputStream out = new FileOutputStream(file, true)) {
+        out.write(new byte[] {0, 0, 0, 40, 0, 0});
+      }
+
+      LsmKVDao dao = new LsmKVDao(remote.getPath());
+      KVService service = KVServiceImpl.create(dao, port, Collections.singleton(target));
+      service.start();
+      PeerPools peers = new PeerPools(Collaboration.TIMEOUT);
+      HintedHandoff hints = new HintedHandoff(local.getPath(), peers);
+      try {
+        assertEquals(intact, file.length());
+        awaitDelivery(local.getPath());
+        for (int ix = 0; ix < 3; ix++) {
+          Cell cell = dao.getCell(key(ix));
+          assertNotNull(cell);
+          assertArrayEquals(key(ix), cell.copyValue());
+          assertEquals(ix + 1, cell.getTimestamp());
+        }
+      } finally {
+        hints.close();
+        peers.close();
+        service.stop();
+        dao.close();
+      }
+    }
+  }
+
+  @Test
+  void finishesDeliveryAtBrokenFrame() throws Exception {
+    try (TempDirectory local = new TempDirectory(); TempDirectory remote = new TempDirectory()) {
+      int port = freePort();
+      String target = "http://localhost:" + port;
+      keepHints(local.getPath(), target, 2);
+      File file = hintsFile(local.getPath(), ".hints");
+      // Damage the second hint and leave the file as if its delivery had started
+      try (RandomAccessFile hints = new RandomAccessFile(file, "rw")) {
+        hints.seek(file.length() - Integer.BYTES - 1);
+        hints.write(hints.read() ^ 0xff);
+      }
+      File replay = new File(file.getParentFile(), file.getName().replace(".hints", ".replay"));
+      assertTrue(file.renameTo(replay));
+
+      LsmKVDao dao = new LsmKVDao(remote.getPath());
+      KVService service = KVServiceImpl.create(dao, port, Collections.singleton(target));
+      service.start();
+      PeerPools peers = new PeerPools(Collaboration.TIMEOUT);
+      HintedHandoff hints = new HintedHandoff(local.getPath(), peers);
+      try {
+        awaitDelivery(local.getPath());
+        assertNotNull(dao.getCell(key(0)));
+        assertNull(dao.getCell(key(1)));
+      } finally {
+        hints.close();
+        peers.close();
+        service.stop();
+        dao.close();
+      }
+    }
+  }
+
+  @Test
+  void hintsWriteWithItsVersion() throws Exception {
+    try (TempDirectory remote = new TempDirectory()) {
+      int port = freePort();
+      String target = "http://localhost:" + port;
+      try (LocalCluster cluster = new LocalCluster(1, Collections.singletonList(target))) {
+        assertEquals(201, cluster.put(0, "hinted", key(0), "1/2").getStatus());
+        Cell written = cluster.dao(0).getCell("hinted".getBytes(StandardCharsets.UTF_8));
+        assertNotNull(written);
+
+        LsmKVDao dao = new LsmKVDao(remote.getPath());
+        KVService service = KVServiceImpl.create(dao, port, Collections.singleton(target));
+        service.start();
+        try {
+          Cell delivered = awaitCell(dao, "hinted".getBytes(StandardCharsets.UTF_8));
+          assertArrayEquals(key(0), delivered.copyValue());
+          assertEquals(written.getTimestamp(), delivered.getTimestamp());
+        } finally {
+          service.stop();
+          dao.close();
+        }
+      }
+    }
+  }
+
+  /** Keep hints for the target, which is down, so that they stay in the file */
+  private static void keepHints(
+      final File basePath,
+      final String target,
+      final int count
+  ) throws IOException
+  {
+    PeerPools peers = new PeerPools(Collaboration.TIMEOUT);
+    HintedHandoff hints = new HintedHandoff(basePath, peers);
+    for (int ix = 0; ix < count; ix++) {
+      hints.hint(target, ReplicationProtocol.PUT, key(ix), ix + 1, key(ix));
+    }
+    hints.close();
+    peers.close();
+  }
+
+  private static void awaitDelivery(final File basePath) throws InterruptedException {
+    File directory = new File(basePath, HintedHandoff.DIRECTORY);
+    long deadline = System.currentTimeMillis() + DELIVERY_MILLIS;
+    while (System.currentTimeMillis() < deadline) {
+      String[] files = directory.list();
+      if (files != null && files.length == 0) {
+        return;
+      }
+      Thread.sleep(50);
+    }
+    throw new AssertionError("Hints are not delivered");
+  }
+
+  @NotNull
+  private static Cell awaitCell(
+      final LsmKVDao dao,
+      final byte[] key
+  ) throws Exception
+  {
+    long deadline = System.currentTimeMillis() + DELIVERY_MILLIS;
+    while (System.currentTimeMillis() < deadline) {
+      Cell cell = dao.getCell(key);
+      if (cell != null) {
+        return cell;
+      }
+      Thread.sleep(50);
+    }
+    throw new AssertionError("Hint is not delivered");
+  }
+
+  private static File hintsFile(
+      final File basePath,
+      final String suffix
+  ) {
+    File[] files = new File(basePath, HintedHandoff.DIRECTORY).listFiles();
+    assertNotNull(files);
+    assertEquals(1, files.length);
+    assertTrue(files[0].getName().endsWith(suffix));
+    return files[0];
+  }
+
+  private static byte[] key(final int ix) {
+    return ("key" + ix).getBytes(StandardCharsets.UTF_8);
+  }
+
+  private static int freePort() throws IOException {
+    try (ServerSocket socket = new ServerSocket(0)) {
+      return socket.getLocalPort();
+    }
+  }
+}
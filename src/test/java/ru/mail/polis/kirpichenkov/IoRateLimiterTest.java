@@ -0,0 +1,96 @@
+package ru.mail.polis.kirpichenkov;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Background I/O rate limiter and the latency tracker driving it
+ *
+ * @author Pavel Kirpichenkov
+ */
+class IoRateLimiterTest {
+  private static final int RATE = 1024 * 1024;
+
+  @Test
+  void unlimitedDoesNotWait() throws Exception {
+    IoRateLimiter limiter = new IoRateLimiter(0);
+    long start = System.nanoTime();
+    for (int ix = 0; ix < 1000; ix++) {
+      limiter.acquire(RATE);
+    }
+    assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(100));
+  }
+
+  @Test
+  void limitsStreamBandwidth() throws Exception {
+    IoRateLimiter limiter = new IoRateLimiter(RATE);
+    ByteArrayOutputStream target = new ByteArrayOutputStream();
+    byte[] chunk = new byte[16 * 1024];
+    long start = System.nanoTime();
+    try (OutputStream out = new RateLimitedOutputStream(target, limiter)) {
+      // Burst allowance of the bucket aside, 3/10 of a second worth of data
+      for (int ix = 0; ix < 3 * RATE / 10 / chunk.length; ix++) {
+        out.write(chunk);
+      }
+    }
+    long elapsed = System.nanoTime() - start;
+    assertEquals(3 * RATE / 10 / chunk.length * chunk.length, target.size());
+    assertTrue(elapsed >= TimeUnit.MILLISECONDS.toNanos(250), "Elapsed " + elapsed);
+  }
+
+  @Test
+  void backsOffAndRecovers() {
+    IoRateLimiter limiter = new IoRateLimiter(RATE);
+    limiter.backOff();
+    assertEquals(RATE / 2, limiter.getEffectiveRate());
+    for (int ix = 0; ix < 10; ix++) {
+      limiter.backOff();
+    }
+    assertEquals(RATE / 16, limiter.getEffectiveRate());
+    for (int ix = 0; ix < 20; ix++) {
+      limiter.recover();
+    }
+    assertEquals(RATE, limiter.getEffectiveRate());
+    assertEquals(RATE, limiter.getRate());
+  }
+
+  @Test
+  void rejectsNegativeRate() {
+    assertThrows(IllegalArgumentException.class, () -> new IoRateLimiter(-1));
+  }
+
+  @Test
+  void interruptedWriterFails() {
+    IoRateLimiter limiter = new IoRateLimiter(1024);
+    Thread.currentThread().interrupt();
+    try {
+      assertThrows(InterruptedIOException.class, () -> limiter.acquire(1024 * 1024));
+      assertTrue(Thread.currentThread().isInterrupted());
+    } finally {
+      Thread.interrupted();
+    }
+  }
+
+  @Test
+  void trackerSlowsLimiterDownOverTarget() throws Exception {
+    IoRateLimiter limiter = new IoRateLimiter(RATE);
+    LatencyTracker tracker = new LatencyTracker(limiter, 1);
+    for (int ix = 0; ix < 100; ix++) {
+      tracker.record(ix >= 98 ? TimeUnit.MILLISECONDS.toNanos(50) : 1000);
+    }
+    assertEquals(TimeUnit.MILLISECONDS.toNanos(50), tracker.percentile(1));
+    assertEquals(1000, tracker.percentile(0.5));
+    assertEquals(TimeUnit.MILLISECONDS.toNanos(50), tracker.p99());
+    Thread.sleep(1100);
+    tracker.record(1000);
+    assertEquals(RATE / 2, limiter.getEffectiveRate());
+  }
+}
@@ -0,0 +1,124 @@
+package ru.mail.polis.kirpichenkov;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * File per key storage: versioned records and the files of the older format
+ *
+ * @author Pavel Kirpichenkov
+ */
+class KVDaoImplTest {
+  private static final byte[] KEY = "key".getBytes(StandardCharsets.UTF_8);
+  private static final byte[] VALUE = "value".getBytes(StandardCharsets.UTF_8);
+
+  @Test
+  void keepsVersionAndTombstone() throws IOException {
+    try (TempDirectory dir = new TempDirectory()) {
+      KVDaoImpl dao = new KVDaoImpl(dir.getPath());
+      dao.upsert(KEY, VALUE, 42);
+      Cell cell = dao.getCell(KEY);
+      assertNotNull(cell);
+      assertFalse(cell.isTombstone());
+      assertEquals(42, cell.getTimestamp());
+      assertArrayEquals(VALUE, cell.copyValue());
+
+      dao.remove(KEY, 43);
+      cell = dao.getCell(KEY);
+      assertNotNull(cell);
+      assertTrue(cell.isTombstone());
+      assertEquals(43, cell.getTimestamp());
+      assertNull(dao.getCell("other".getBytes(StandardCharsets.UTF_8)));
+    }
+  }
+
+  @Test
+  void readsValueOfOlderFormat() throws IOException {
+    try (TempDirectory dir = new TempDirectory()) {
+      File file = KeyConverter.keyToFile(KEY, dir.getPath());
+      writeLegacy(file, VALUE, 1_000);
+      KVDaoImpl dao = new KVDaoImpl(dir.getPath());
+      Cell cell = dao.getCell(KEY);
+      assertNotNull(cell);
+      assertFalse(cell.isTombstone());
+      assertArrayEquals(VALUE, cell.copyValue());
+      assertEquals(TimeUnit.MILLISECONDS.toNanos(1_000), cell.getTimestamp());
+      assertArrayEquals(VALUE, dao.get(KEY));
+    }
+  }
+
+  @Test
+  void readsTombstoneOfOlderFormat() throws IOException {
+    try (TempDirectory dir = new TempDirectory()) {
+      byte[] deleted = "deleted".getBytes(StandardCharsets.UTF_8);
+      writeLegacy(KeyConverter.keyToFile(KEY, dir.getPath()), VALUE, 1_000);
+      writeLegacy(KeyConverter.keyToTombstone(KEY, dir.getPath()), new byte[0], 2_000);
+      writeLegacy(KeyConverter.keyToTombstone(deleted, dir.getPath()), new byte[0], 3_000);
+      KVDaoImpl dao = new KVDaoImpl(dir.getPath());
+
+      Cell cell = dao.getCell(KEY);
+      assertNotNull(cell);
+      assertTrue(cell.isTombstone());
+      assertEquals(TimeUnit.MILLISECONDS.toNanos(2_000), cell.getTimestamp());
+
+      List<String> keys = new ArrayList<>();
+      List<Boolean> tombstones = new ArrayList<>();
+      dao.scan((key, scanned) -> {
+        byte[] bytes = new byte[key.remaining()];
+        key.duplicate().get(bytes);
+        keys.add(new String(bytes, StandardCharsets.UTF_8));
+        tombstones.add(scanned.isTombstone());
+      });
+      assertEquals(2, keys.size());
+      assertTrue(keys.contains("key"));
+      assertTrue(keys.contains("deleted"));
+      assertFalse(tombstones.contains(false));
+    }
+  }
+
+  @Test
+  void writeReplacesOlderFormat() throws IOException {
+    try (TempDirectory dir = new TempDirectory()) {
+      File tombstone = KeyConverter.keyToTombstone(KEY, dir.getPath());
+      writeLegacy(tombstone, new byte[0], 2_000);
+      KVDaoImpl dao = new KVDaoImpl(dir.getPath());
+      dao.upsert(KEY, VALUE, TimeUnit.MILLISECONDS.toNanos(3_000));
+      assertFalse(tombstone.exists());
+      assertArrayEquals(VALUE, dao.get(KEY));
+      byte[] content = Files.readAllBytes(KeyConverter.keyToFile(KEY, dir.getPath()).toPath());
+      long version = ByteBuffer.wrap(content, Integer.BYTES, Long.BYTES).getLong();
+      assertEquals(TimeUnit.MILLISECONDS.toNanos(3_000), version);
+      // Nothing but the key file is left in its directory
+      File[] files = KeyConverter.keyToFile(KEY, dir.getPath()).getParentFile().listFiles();
+      assertNotNull(files);
+      assertEquals(1, files.length);
+    }
+  }
+
+  private static void writeLegacy(
+      final File file,
+      final byte[] content,
+      final long modifiedMillis
+  ) throws IOException
+  {
+    assertTrue(file.getParentFile().isDirectory() || file.getParentFile().mkdirs());
+    Files.write(file.toPath(), content);
+    Files.setLastModifiedTime(file.toPath(), FileTime.fromMillis(modifiedMillis));
+  }
+}
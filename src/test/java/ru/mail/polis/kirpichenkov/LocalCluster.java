@@ -0,0 +1,146 @@
+package ru.mail.polis.kirpichenkov;
+
+import one.nio.http.HttpClient;
+import one.nio.http.Response;
+import one.nio.net.ConnectionString;
+import org.jetbrains.annotations.NotNull;
+import ru.mail.polis.KVService;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Nodes of a test cluster in this process, each with its own storage and a client to call it
+ *
+ * @author Pavel Kirpichenkov
+ */
+class LocalCluster implements AutoCloseable {
+  private static final long TIMEOUT = TimeUnit.SECONDS.toMillis(1);
+  private final List<TempDirectory> directories = new ArrayList<>();
+  private final List<LsmKVDao> daos = new ArrayList<>();
+  private final List<KVService> services = new ArrayList<>();
+  private final List<HttpClient> clients = new ArrayList<>();
+  private final List<String> urls = new ArrayList<>();
+  private final Set<Integer> stopped = new HashSet<>();
+
+  LocalCluster(final int size) throws Exception {
+    this(size, Collections.emptyList());
+  }
+
+  /** @param absent urls of the nodes in the topology which aren't started here */
+  LocalCluster(
+      final int size,
+      @NotNull final List<String> absent
+  ) throws Exception
+  {
+    Set<String> topology = new LinkedHashSet<>();
+    List<Integer> ports = new ArrayList<>();
+    for (int ix = 0; ix < size; ix++) {
+      int port = freePort();
+      ports.add(port);
+      urls.add("http://localhost:" + port);
+      topology.add(urls.get(ix));
+    }
+    topology.addAll(absent);
+    for (int ix = 0; ix < size; ix++) {
+      TempDirectory directory = new TempDirectory();
+      directories.add(directory);
+      LsmKVDao dao = new LsmKVDao(directory.getPath());
+      daos.add(dao);
+      KVService service = KVServiceImpl.create(dao, ports.get(ix), topology);
+      service.start();
+      services.add(service);
+      clients.add(new HttpClient(new ConnectionString(urls.get(ix) + "?timeout=" + TIMEOUT)));
+    }
+  }
+
+  @NotNull
+  LsmKVDao dao(final int node) {
+    return daos.get(node);
+  }
+
+  @NotNull
+  String url(final int node) {
+    return urls.get(node);
+  }
+
+  @NotNull
+  HttpClient client(final int node) {
+    return clients.get(node);
+  }
+
+  @NotNull
+  Response put(
+      final int node,
+      @NotNull final String id,
+      @NotNull final byte[] value,
+      @NotNull final String replicas
+  ) throws Exception
+  {
+    return client(node).put(path(id, replicas), value);
+  }
+
+  @NotNull
+  Response get(
+      final int node,
+      @NotNull final String id,
+      @NotNull final String replicas
+  ) throws Exception
+  {
+    return client(node).get(path(id, replicas));
+  }
+
+  @NotNull
+  Response delete(
+      final int node,
+      @NotNull final String id,
+      @NotNull final String replicas
+  ) throws Exception
+  {
+    return client(node).delete(path(id, replicas));
+  }
+
+  /** Stop the node, leaving its storage to be checked */
+  void stop(final int node) {
+    if (stopped.add(node)) {
+      services.get(node).stop();
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    for (HttpClient client : clients) {
+      client.close();
+    }
+    for (int node = 0; node < services.size(); node++) {
+      stop(node);
+    }
+    for (LsmKVDao dao : daos) {
+      dao.close();
+    }
+    for (TempDirectory directory : directories) {
+      directory.close();
+    }
+  }
+
+  @NotNull
+  private static String path(
+      @NotNull final String id,
+      @NotNull final String replicas
+  ) {
+    return "/v0/entity?id=" + id + "&replicas=" + replicas;
+  }
+
+  private static int freePort() throws IOException {
+    try (ServerSocket socket = new ServerSocket(0)) {
+      return socket.getLocalPort();
+    }
+  }
+}
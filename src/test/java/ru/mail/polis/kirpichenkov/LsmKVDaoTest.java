@@ -0,0 +1,146 @@
+package ru.mail.polis.kirpichenkov;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Log-structured storage: memtable, flushed tables and their merge
+ *
+ * @author Pavel Kirpichenkov
+ */
+class LsmKVDaoTest {
+  /** Small enough to flush every few writes */
+  private static final long FLUSH_THRESHOLD = 4 * 1024;
+  private static final int KEYS = 500;
+
+  @Test
+  void readsOwnWrites() throws Exception {
+    try (TempDirectory directory = new TempDirectory();
+         LsmKVDao dao = new LsmKVDao(directory.getPath())) {
+      dao.upsert(bytes("a"), bytes("1"));
+      dao.upsert(bytes("a"), bytes("2"));
+      assertArrayEquals(bytes("2"), dao.get(bytes("a")));
+      dao.remove(bytes("a"));
+      assertThrows(NoSuchElementException.class, () -> dao.get(bytes("a")));
+      assertThrows(NoSuchElementException.class, () -> dao.get(bytes("b")));
+    }
+  }
+
+  @Test
+  void keepsVersionsAndTombstones() throws Exception {
+    try (TempDirectory directory = new TempDirectory();
+         LsmKVDao dao = new LsmKVDao(directory.getPath())) {
+      dao.upsert(bytes("a"), bytes("1"), 10);
+      dao.remove(bytes("b"), 20);
+      Cell a = dao.getCell(bytes("a"));
+      assertNotNull(a);
+      assertEquals(10, a.getTimestamp());
+      Cell b = dao.getCell(bytes("b"));
+      assertNotNull(b);
+      assertTrue(b.isTombstone());
+      assertEquals(20, b.getTimestamp());
+      assertNull(dao.getCell(bytes("c")));
+    }
+  }
+
+  @Test
+  void readsAcrossFlushedTablesAfterReopen() throws Exception {
+    try (TempDirectory directory = new TempDirectory()) {
+      try (LsmKVDao dao = open(directory.getPath())) {
+        for (int ix = 0; ix < KEYS; ix++) {
+          dao.upsert(key(ix), value(ix));
+        }
+        for (int ix = 0; ix < KEYS; ix += 2) {
+          dao.remove(key(ix));
+        }
+        for (int ix = 1; ix < KEYS; ix += 4) {
+          dao.upsert(key(ix), bytes("new"));
+        }
+      }
+      File[] tables = directory.getPath().listFiles((dir, name) -> name.endsWith(SSTable.SUFFIX));
+      assertNotNull(tables);
+      assertTrue(tables.length > 0);
+      try (LsmKVDao dao = open(directory.getPath())) {
+        for (int ix = 0; ix < KEYS; ix++) {
+          byte[] key = key(ix);
+          if (ix % 2 == 0) {
+            assertThrows(NoSuchElementException.class, () -> dao.get(key));
+          } else {
+            assertArrayEquals(ix % 4 == 1 ? bytes("new") : value(ix), dao.get(key));
+          }
+        }
+      }
+    }
+  }
+
+  @Test
+  void scanVisitsLatestCellsInKeyOrder() throws Exception {
+    try (TempDirectory directory = new TempDirectory();
+         LsmKVDao dao = open(directory.getPath())) {
+      for (int ix = KEYS - 1; ix >= 0; ix--) {
+        dao.upsert(key(ix), value(ix), 10);
+      }
+      dao.upsert(key(7), bytes("new"), 20);
+      dao.remove(key(8), 20);
+      List<String> keys = new ArrayList<>();
+      dao.scan((key, cell) -> {
+        String text = StandardCharsets.UTF_8.decode(key.duplicate()).toString();
+        keys.add(text);
+        if (text.equals(string(key(7)))) {
+          assertArrayEquals(bytes("new"), cell.copyValue());
+        } else if (text.equals(string(key(8)))) {
+          assertTrue(cell.isTombstone());
+        } else {
+          assertFalse(cell.isTombstone());
+          assertEquals(10, cell.getTimestamp());
+        }
+      });
+      assertEquals(KEYS, keys.size());
+      for (int ix = 1; ix < keys.size(); ix++) {
+        assertTrue(keys.get(ix - 1).compareTo(keys.get(ix)) < 0);
+      }
+    }
+  }
+
+  @NotNull
+  private static LsmKVDao open(@NotNull final File path) throws Exception {
+    return new LsmKVDao(path, FLUSH_THRESHOLD, new SizeTieredCompaction());
+  }
+
+  @NotNull
+  private static byte[] key(final int ix) {
+    return bytes(String.format("key%05d", ix));
+  }
+
+  @NotNull
+  private static byte[] value(final int ix) {
+    byte[] value = new byte[64];
+    ByteBuffer.wrap(value).putInt(ix);
+    return value;
+  }
+
+  @NotNull
+  private static String string(@NotNull final byte[] bytes) {
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  @NotNull
+  private static byte[] bytes(@NotNull final String text) {
+    return text.getBytes(StandardCharsets.UTF_8);
+  }
+}
@@ -0,0 +1,117 @@
+package ru.mail.polis.kirpichenkov;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Off-heap memtable and the slab pool behind it
+ *
+ * @author Pavel Kirpichenkov
+ */
+class MemTableTest {
+  @Test
+  void keepsLatestCell() {
+    MemTable table = new MemTable(new SlabPool(2));
+    table.upsert(bytes("a"), bytes("1"), 1);
+    table.upsert(bytes("a"), bytes("2"), 2);
+    table.remove(bytes("b"), 3);
+
+    Cell a = table.get(bytes("a"));
+    assertNotNull(a);
+    assertArrayEquals(bytes("2"), a.copyValue());
+    assertEquals(2, a.getTimestamp());
+    Cell b = table.get(bytes("b"));
+    assertNotNull(b);
+    assertTrue(b.isTombstone());
+    assertEquals(3, b.getTimestamp());
+    assertNull(table.get(bytes("c")));
+    table.free();
+  }
+
+  @Test
+  void iteratesInKeyOrder() {
+    MemTable table = new MemTable(new SlabPool(2));
+    for (String key : new String[] {"c", "a", "b"}) {
+      table.upsert(bytes(key), bytes(key + key), 1);
+    }
+    List<String> keys = new ArrayList<>();
+    Iterator<Map.Entry<ByteBuffer, Cell>> iterator = table.iterator();
+    while (iterator.hasNext()) {
+      Map.Entry<ByteBuffer, Cell> entry = iterator.next();
+      String key = string(entry.getKey());
+      keys.add(key);
+      assertEquals(key + key, string(entry.getValue().getValue()));
+    }
+    assertEquals(3, keys.size());
+    assertEquals("a", keys.get(0));
+    assertEquals("b", keys.get(1));
+    assertEquals("c", keys.get(2));
+    table.free();
+  }
+
+  @Test
+  void readValuesOutliveFree() {
+    SlabPool pool = new SlabPool(2);
+    MemTable table = new MemTable(pool);
+    table.upsert(bytes("key"), bytes("value"), 1);
+    Cell cell = table.get(bytes("key"));
+    table.free();
+    assertNull(table.get(bytes("key")));
+    // The memory is reused by the next memtable, the copy read before stays intact
+    MemTable next = new MemTable(pool);
+    next.upsert(bytes("key"), bytes("other"), 2);
+    assertNotNull(cell);
+    assertArrayEquals(bytes("value"), cell.copyValue());
+    next.free();
+  }
+
+  @Test
+  void storesRecordsBiggerThanSlab() {
+    MemTable table = new MemTable(new SlabPool(2));
+    byte[] value = new byte[SlabPool.SLAB_SIZE + 1];
+    value[value.length - 1] = 42;
+    table.upsert(bytes("big"), value, 1);
+    Cell cell = table.get(bytes("big"));
+    assertNotNull(cell);
+    assertArrayEquals(value, cell.copyValue());
+    assertTrue(table.sizeInBytes() > SlabPool.SLAB_SIZE);
+    table.free();
+  }
+
+  @Test
+  void poolReusesReleasedSlabs() {
+    SlabPool pool = new SlabPool(1);
+    ByteBuffer first = pool.acquire();
+    ByteBuffer second = pool.acquire();
+    assertTrue(first.isDirect());
+    pool.release(first);
+    pool.release(second);
+    assertSame(first, pool.acquire());
+    ByteBuffer fresh = pool.acquire();
+    assertFalse(fresh == first || fresh == second);
+  }
+
+  private static byte[] bytes(final String string) {
+    return string.getBytes(StandardCharsets.UTF_8);
+  }
+
+  private static String string(final ByteBuffer buffer) {
+    byte[] bytes = new byte[buffer.remaining()];
+    buffer.duplicate().get(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+}
@@ -0,0 +1,74 @@
+package ru.mail.polis.kirpichenkov;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Hash tree of the keys and versions
+ *
+ * @author Pavel Kirpichenkov
+ */
+class MerkleTreeTest {
+  @Test
+  void sameContentInAnyOrderGivesSameTree() {
+    MerkleTree first = new MerkleTree(4);
+    MerkleTree second = new MerkleTree(4);
+    for (int ix = 0; ix < 100; ix++) {
+      first.add(key(ix), ix);
+      second.add(key(99 - ix), 99 - ix);
+    }
+    for (int level = 0; level <= 4; level++) {
+      assertArrayEquals(first.level(level), second.level(level));
+    }
+  }
+
+  @Test
+  void differingLeafPointsAtKey() {
+    MerkleTree first = new MerkleTree(6);
+    MerkleTree second = new MerkleTree(6);
+    for (int ix = 0; ix < 100; ix++) {
+      first.add(key(ix), 1);
+      second.add(key(ix), 1);
+    }
+    second.replace(key(42), 1, 2);
+    assertNotEquals(first.level(0)[0], second.level(0)[0]);
+    long[] firstLeaves = first.level(6);
+    long[] secondLeaves = second.level(6);
+    for (int leaf = 0; leaf < firstLeaves.length; leaf++) {
+      if (leaf == first.leaf(key(42))) {
+        assertNotEquals(firstLeaves[leaf], secondLeaves[leaf]);
+      } else {
+        assertEquals(firstLeaves[leaf], secondLeaves[leaf]);
+      }
+    }
+  }
+
+  @Test
+  void replaceUndoesAdd() {
+    MerkleTree tree = new MerkleTree(3);
+    MerkleTree expected = new MerkleTree(3);
+    tree.add(key(1), 10);
+    tree.replace(key(1), 10, 20);
+    expected.add(key(1), 20);
+    assertArrayEquals(expected.level(3), tree.level(3));
+  }
+
+  @Test
+  void levelsHaveTwiceAsManyNodes() {
+    MerkleTree tree = new MerkleTree(5);
+    for (int level = 0; level <= 5; level++) {
+      assertEquals(1 << level, tree.level(level).length);
+    }
+    assertThrows(IllegalArgumentException.class, () -> tree.level(6));
+  }
+
+  private static byte[] key(final int ix) {
+    return ("key" + ix).getBytes(StandardCharsets.UTF_8);
+  }
+}
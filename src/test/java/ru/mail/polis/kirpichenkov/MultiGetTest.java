@@ -0,0 +1,182 @@
+package ru.mail.polis.kirpichenkov;
+
+import one.nio.http.Response;
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Test;
+import ru.mail.polis.kirpichenkov.Result.Status;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Read of many keys with one call per node
+ *
+ * @author Pavel Kirpichenkov
+ */
+class MultiGetTest {
+  @Test
+  void groupsKeysByNode() {
+    Map<String, List<String>> replicas = new HashMap<>();
+    replicas.put("a", Arrays.asList("n1", "n2"));
+    replicas.put("b", Arrays.asList("n2", "n3"));
+    replicas.put("c", Arrays.asList("n3", "n1"));
+    MultiGet multiGet = new MultiGet(Arrays.asList("a", "b", "c"), 1, replicas::get);
+    assertEquals(Arrays.asList(0, 2), multiGet.getGroups().get("n1"));
+    assertEquals(Arrays.asList(0, 1), multiGet.getGroups().get("n2"));
+    assertEquals(Arrays.asList(1, 2), multiGet.getGroups().get("n3"));
+    assertEquals("b", new String(multiGet.getOperation(1).key, StandardCharsets.UTF_8));
+  }
+
+  @Test
+  void mergesRepliesPerKey() throws IOException {
+    MultiGet multiGet = new MultiGet(
+        Arrays.asList("a", "b", "c"),
+        2,
+        key -> Arrays.asList("n1", "n2"));
+    CompletableFuture<byte[]> response = multiGet.response();
+    multiGet.reply("n1", Arrays.asList(0, 1, 2), CompletableFuture.completedFuture(Arrays.asList(
+        value("old", 10),
+        result(Status.ABSENT, 0),
+        value("c", 10))));
+    assertFalse(response.isDone());
+    CompletableFuture<List<Result>> failed = new CompletableFuture<>();
+    multiGet.reply("n2", Arrays.asList(0, 1, 2), failed);
+    assertFalse(response.isDone());
+    failed.completeExceptionally(new IOException("Node is down"));
+    List<Entry> entries = decode(response.join());
+    assertEquals(3, entries.size());
+    for (Entry entry : entries) {
+      assertEquals(Collaboration.STATUS_NOT_ENOUGH_REPLICAS, entry.status);
+    }
+  }
+
+  @Test
+  void answersEveryKeyInRequestOrder() throws IOException {
+    MultiGet multiGet = new MultiGet(
+        Arrays.asList("a", "b", "c"),
+        1,
+        key -> Collections.singletonList("n1"));
+    multiGet.reply("n1", Arrays.asList(2, 0, 1), CompletableFuture.completedFuture(Arrays.asList(
+        result(Status.DELETED, 20),
+        value("a", 10),
+        result(Status.ABSENT, 0))));
+    List<Entry> entries = decode(multiGet.response().join());
+    assertEquals("a", entries.get(0).key);
+    assertEquals(Collaboration.STATUS_OK, entries.get(0).status);
+    assertEquals("a", entries.get(0).value);
+    assertEquals("b", entries.get(1).key);
+    assertEquals(Collaboration.STATUS_NOT_FOUND, entries.get(1).status);
+    assertEquals("c", entries.get(2).key);
+    assertEquals(Collaboration.STATUS_NOT_FOUND, entries.get(2).status);
+  }
+
+  @Test
+  void readsKeysFromCluster() throws Exception {
+    try (LocalCluster cluster = new LocalCluster(3)) {
+      for (int ix = 0; ix < 10; ix++) {
+        assertEquals(201, cluster.put(0, "key" + ix, bytes("value" + ix), "2/3").getStatus());
+      }
+      cluster.delete(1, "key3", "3/3");
+      Response response = cluster.client(2).get(
+          "/v0/entities?id=key0&id=key3&id=absent&id=key9&replicas=2/3");
+      assertEquals(200, response.getStatus());
+      List<Entry> entries = decode(response.getBody());
+      assertEquals(4, entries.size());
+      assertEquals("value0", entries.get(0).value);
+      assertEquals(Collaboration.STATUS_NOT_FOUND, entries.get(1).status);
+      assertEquals(Collaboration.STATUS_NOT_FOUND, entries.get(2).status);
+      assertEquals("absent", entries.get(2).key);
+      assertEquals("value9", entries.get(3).value);
+
+      response = cluster.client(0).post("/v0/entities?replicas=3/3", bytes("key1\nkey2\n"));
+      entries = decode(response.getBody());
+      assertEquals(Arrays.asList("value1", "value2"), Arrays.asList(entries.get(0).value, entries.get(1).value));
+      assertTrue(entries.stream().allMatch(entry -> entry.status == Collaboration.STATUS_OK));
+
+      assertEquals(400, cluster.client(0).get("/v0/entities?replicas=2/3").getStatus());
+    }
+  }
+
+  /** Parsed entry of the response */
+  static final class Entry {
+    final String key;
+    final int status;
+    final String value;
+
+    private Entry(
+        @NotNull final String key,
+        final int status,
+        final String value
+    ) {
+      this.key = key;
+      this.status = status;
+      this.value = value;
+    }
+  }
+
+  /** @param withValues whether the statuses are followed by the values, as in a read */
+  @NotNull
+  static List<Entry> decode(
+      @NotNull final byte[] body,
+      final boolean withValues
+  ) {
+    List<Entry> entries = new ArrayList<>();
+    ByteBuffer buffer = ByteBuffer.wrap(body);
+    while (buffer.hasRemaining()) {
+      byte[] key = new byte[buffer.getInt()];
+      buffer.get(key);
+      int status = buffer.getInt();
+      String value = null;
+      if (withValues) {
+        int length = buffer.getInt();
+        if (length >= 0) {
+          byte[] bytes = new byte[length];
+          buffer.get(bytes);
+          value = new String(bytes, StandardCharsets.UTF_8);
+        }
+      }
+      entries.add(new Entry(new String(key, StandardCharsets.UTF_8), status, value));
+    }
+    return entries;
+  }
+
+  @NotNull
+  private static List<Entry> decode(@NotNull final byte[] body) {
+    return decode(body, true);
+  }
+
+  @NotNull
+  private static Result value(
+      @NotNull final String value,
+      final long epochNanos
+  ) {
+    return result(Status.OK, epochNanos).setBody(bytes(value));
+  }
+
+  @NotNull
+  private static Result result(
+      @NotNull final Status status,
+      final long epochNanos
+  ) {
+    return new Result()
+        .setStatus(status)
+        .setTimestamp(NanoClock.fromEpochNanos(epochNanos));
+  }
+
+  @NotNull
+  private static byte[] bytes(@NotNull final String text) {
+    return text.getBytes(StandardCharsets.UTF_8);
+  }
+}
@@ -0,0 +1,189 @@
+package ru.mail.polis.kirpichenkov;
+
+import one.nio.http.Response;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.junit.jupiter.api.Test;
+import ru.mail.polis.KVService;
+import ru.mail.polis.kirpichenkov.Result.Status;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Bulk writes: parsing of the request, the batch write of a node and the endpoint
+ *
+ * @author Pavel Kirpichenkov
+ */
+class MultiPutTest {
+  @Test
+  void parsesWrites() throws IOException {
+    byte[] body = body(
+        "a", "1",
+        "b", null,
+        "c", "");
+    List<ReplicationProtocol.Operation> operations = MultiPut.parse(body, 42);
+    assertEquals(3, operations.size());
+    assertEquals(ReplicationProtocol.PUT, operations.get(0).op);
+    assertArrayEquals(bytes("a"), operations.get(0).key);
+    assertArrayEquals(bytes("1"), operations.get(0).value);
+    assertEquals(ReplicationProtocol.DELETE, operations.get(1).op);
+    assertNull(operations.get(1).value);
+    assertArrayEquals(new byte[0], operations.get(2).value);
+    for (ReplicationProtocol.Operation operation : operations) {
+      assertEquals(42, operation.version);
+    }
+    assertTrue(MultiPut.parse(new byte[0], 42).isEmpty());
+  }
+
+  @Test
+  void rejectsMalformedBody() throws IOException {
+    byte[] valid = body("a", "value");
+    assertThrows(IllegalArgumentException.class, () -> MultiPut.parse(Arrays.copyOf(valid, 2), 1));
+    assertThrows(IllegalArgumentException.class, () -> MultiPut.parse(Arrays.copyOf(valid, valid.length - 1), 1));
+    assertThrows(IllegalArgumentException.class, () -> MultiPut.parse(body("", "value"), 1));
+
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (DataOutputStream out = new DataOutputStream(bytes)) {
+      out.writeInt(1);
+      out.write('a');
+      out.writeInt(-2);
+    }
+    assertThrows(IllegalArgumentException.class, () -> MultiPut.parse(bytes.toByteArray(), 1));
+  }
+
+  @Test
+  void nodeWritesBatchInOrder() throws IOException {
+    try (TempDirectory directory = new TempDirectory();
+         LsmKVDao storage = new LsmKVDao(directory.getPath())) {
+      InternalDao dao = new InternalDao(storage);
+      dao.upsert(bytes("newer"), bytes("kept"), 100);
+      List<Result> results = dao.write(Arrays.asList(
+          operation(ReplicationProtocol.PUT, "a", ReplicationProtocol.NO_VERSION, "1"),
+          operation(ReplicationProtocol.PUT, "a", ReplicationProtocol.NO_VERSION, "2"),
+          operation(ReplicationProtocol.DELETE, "b", 10, null),
+          operation(ReplicationProtocol.PUT, "newer", 50, "lost"),
+          operation(ReplicationProtocol.GET, "c", ReplicationProtocol.NO_VERSION, null)));
+      assertEquals(5, results.size());
+      assertEquals(Status.OK, results.get(0).getStatus());
+      assertEquals(NanoClock.fromEpochNanos(10), results.get(2).getTimestamp());
+      assertEquals(NanoClock.fromEpochNanos(100), results.get(3).getTimestamp());
+      assertEquals(Status.ERROR, results.get(4).getStatus());
+
+      assertArrayEquals(bytes("2"), dao.get(bytes("a")).getBody());
+      assertEquals(Status.DELETED, dao.get(bytes("b")).getStatus());
+      assertArrayEquals(bytes("kept"), dao.get(bytes("newer")).getBody());
+    }
+  }
+
+  @Test
+  void writesKeysToCluster() throws Exception {
+    try (LocalCluster cluster = new LocalCluster(3)) {
+      assertEquals(201, cluster.put(0, "gone", bytes("value"), "3/3").getStatus());
+      Response response = cluster.client(1).put(
+          "/v0/entities?replicas=2/3",
+          body("a", "1", "b", "2", "gone", null));
+      assertEquals(200, response.getStatus());
+      List<MultiGetTest.Entry> entries = MultiGetTest.decode(response.getBody(), false);
+      assertEquals(3, entries.size());
+      assertEquals("a", entries.get(0).key);
+      assertEquals(Collaboration.STATUS_CREATED, entries.get(0).status);
+      assertEquals(Collaboration.STATUS_CREATED, entries.get(1).status);
+      assertEquals(Collaboration.STATUS_ACCEPTED, entries.get(2).status);
+
+      assertArrayEquals(bytes("1"), cluster.get(2, "a", "2/3").getBody());
+      assertArrayEquals(bytes("2"), cluster.get(0, "b", "2/3").getBody());
+      assertEquals(404, cluster.get(0, "gone", "2/3").getStatus());
+      assertEquals(400, cluster.client(0).put("/v0/entities?replicas=2/3", new byte[]{0, 0}).getStatus());
+    }
+  }
+
+  @Test
+  void hintsMissedWritesWithBatchVersion() throws Exception {
+    try (TempDirectory remote = new TempDirectory()) {
+      int port = freePort();
+      String target = "http://localhost:" + port;
+      try (LocalCluster cluster = new LocalCluster(1, Collections.singletonList(target))) {
+        Response response = cluster.client(0).put("/v0/entities?replicas=1/2", body("a", "1", "b", "2"));
+        assertEquals(200, response.getStatus());
+        Cell written = cluster.dao(0).getCell(bytes("a"));
+        assertNotNull(written);
+
+        LsmKVDao dao = new LsmKVDao(remote.getPath());
+        KVService service = KVServiceImpl.create(dao, port, Collections.singleton(target));
+        service.start();
+        try {
+          long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(10);
+          while ((dao.getCell(bytes("a")) == null || dao.getCell(bytes("b")) == null)
+              && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+          }
+          for (String key : Arrays.asList("a", "b")) {
+            Cell delivered = dao.getCell(bytes(key));
+            assertNotNull(delivered, "Hint of " + key + " is not delivered");
+            assertEquals(written.getTimestamp(), delivered.getTimestamp());
+          }
+        } finally {
+          service.stop();
+          dao.close();
+        }
+      }
+    }
+  }
+
+  /** @param pairs keys followed by their values, null for a deletion */
+  @NotNull
+  private static byte[] body(@NotNull final String... pairs) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (DataOutputStream out = new DataOutputStream(bytes)) {
+      for (int ix = 0; ix < pairs.length; ix += 2) {
+        byte[] key = bytes(pairs[ix]);
+        out.writeInt(key.length);
+        out.write(key);
+        if (pairs[ix + 1] == null) {
+          out.writeInt(-1);
+        } else {
+          byte[] value = bytes(pairs[ix + 1]);
+          out.writeInt(value.length);
+          out.write(value);
+        }
+      }
+    }
+    return bytes.toByteArray();
+  }
+
+  @NotNull
+  private static ReplicationProtocol.Operation operation(
+      final byte op,
+      @NotNull final String key,
+      final long version,
+      @Nullable final String value
+  ) {
+    return new ReplicationProtocol.Operation(op, bytes(key), version, value == null ? null : bytes(value));
+  }
+
+  @NotNull
+  private static byte[] bytes(@NotNull final String text) {
+    return text.getBytes(StandardCharsets.UTF_8);
+  }
+
+  private static int freePort() throws IOException {
+    try (ServerSocket socket = new ServerSocket(0)) {
+      return socket.getLocalPort();
+    }
+  }
+}
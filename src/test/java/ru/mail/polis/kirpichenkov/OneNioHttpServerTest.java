@@ -0,0 +1,83 @@
+package ru.mail.polis.kirpichenkov;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Coordination of the requests to the replicas of a three node cluster
+ *
+ * @author Pavel Kirpichenkov
+ */
+class OneNioHttpServerTest {
+  private static LocalCluster cluster;
+
+  @BeforeAll
+  static void start() throws Exception {
+    cluster = new LocalCluster(3);
+  }
+
+  @AfterAll
+  static void stop() throws IOException {
+    cluster.close();
+  }
+
+  @Test
+  void putKeepsOneVersionOnAllReplicas() throws Exception {
+    String id = "put-version";
+    assertEquals(201, cluster.put(0, id, new byte[]{1, 2, 3}, "3/3").getStatus());
+    Cell cell = sameCell(id);
+    assertTrue(!cell.isTombstone());
+  }
+
+  @Test
+  void deleteKeepsOneVersionOnAllReplicas() throws Exception {
+    String id = "delete-version";
+    assertEquals(201, cluster.put(1, id, new byte[]{1}, "3/3").getStatus());
+    long written = sameCell(id).getTimestamp();
+    assertEquals(202, cluster.delete(2, id, "3/3").getStatus());
+    Cell cell = sameCell(id);
+    assertTrue(cell.isTombstone());
+    assertTrue(cell.getTimestamp() > written);
+  }
+
+  @Test
+  void readFindsNothingToRepairAfterWrite() throws Exception {
+    String id = "read-version";
+    assertEquals(201, cluster.put(2, id, new byte[]{4, 2}, "3/3").getStatus());
+    long written = sameCell(id).getTimestamp();
+    assertEquals(200, cluster.get(0, id, "3/3").getStatus());
+    assertEquals(written, sameCell(id).getTimestamp());
+  }
+
+  @Test
+  void hashTreeIsServedToNodesOnly() throws Exception {
+    String tree = AntiEntropy.TREE_PATH + "?level=0&trees=0";
+    assertEquals(400, cluster.client(0).get(tree).getStatus());
+    assertEquals(200, cluster.client(0).get(tree, Collaboration.INTERNAL_HEADER).getStatus());
+    assertEquals(400, cluster.client(0).get(AntiEntropy.KEYS_PATH + "?tree=0&leaves=0").getStatus());
+    assertEquals(400, cluster.client(0).post(AntiEntropy.VALUES_PATH, new byte[0]).getStatus());
+  }
+
+  /** Cell of the key, which must be the same on every replica */
+  @NotNull
+  private static Cell sameCell(@NotNull final String id) throws IOException {
+    byte[] key = id.getBytes();
+    Set<Long> versions = new HashSet<>();
+    Cell cell = null;
+    for (int node = 0; node < 3; node++) {
+      cell = cluster.dao(node).getCell(key);
+      versions.add(cell.getTimestamp());
+    }
+    assertEquals(1, versions.size(), "Versions of the replicas " + versions);
+    return cell;
+  }
+}
@@ -0,0 +1,117 @@
+package ru.mail.polis.kirpichenkov;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Pools of the peers, their counters and heartbeats
+ *
+ * @author Pavel Kirpichenkov
+ */
+class PeerPoolsTest {
+  private static final long TIMEOUT = 500;
+  private static final int SILENT_PEERS = 10;
+
+  @Test
+  void silentPeersDoNotDelayHeartbeatsOfOthers() throws Exception {
+    List<ServerSocket> sockets = new ArrayList<>();
+    try (LocalCluster cluster = new LocalCluster(1);
+         PeerPools pools = new PeerPools(TIMEOUT)) {
+      // Connections to these sockets are accepted by the system, but nothing ever answers them
+      List<Peer> silent = new ArrayList<>();
+      for (int ix = 0; ix < SILENT_PEERS; ix++) {
+        ServerSocket socket = new ServerSocket(0);
+        sockets.add(socket);
+        silent.add(pools.get("http://localhost:" + socket.getLocalPort()));
+      }
+      Peer live = pools.get(cluster.url(0));
+      // Pinged one after another, the silent peers would keep the live one waiting for 5 seconds
+      long end = System.currentTimeMillis() + 8 * TIMEOUT;
+      while (System.currentTimeMillis() < end) {
+        assertTrue(live.allow(), "Live peer suspected");
+        Thread.sleep(50);
+      }
+      assertTrue(live.isAvailable());
+      for (Peer peer : silent) {
+        assertFalse(peer.allow(), peer.getUrl());
+      }
+    } finally {
+      for (ServerSocket socket : sockets) {
+        socket.close();
+      }
+    }
+  }
+
+  @Test
+  void sharesPeerBetweenThreads() throws Exception {
+    int threads = 8;
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try (PeerPools pools = new PeerPools(TIMEOUT)) {
+      CountDownLatch start = new CountDownLatch(1);
+      Set<Peer> peers = ConcurrentHashMap.newKeySet();
+      List<Future<?>> futures = new ArrayList<>();
+      for (int ix = 0; ix < threads; ix++) {
+        futures.add(executor.submit(() -> {
+          start.await();
+          peers.add(pools.get("http://localhost:1"));
+          return null;
+        }));
+      }
+      start.countDown();
+      for (Future<?> future : futures) {
+        future.get();
+      }
+      assertEquals(1, peers.size());
+      assertEquals(1, pools.all().size());
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  void countsCalls() throws Exception {
+    try (LocalCluster cluster = new LocalCluster(1);
+         PeerPools pools = new PeerPools(TIMEOUT)) {
+      Peer peer = pools.get(cluster.url(0));
+      assertEquals(200, peer.invoke(client -> client.get("/v0/status")).getStatus());
+      assertThrows(IOException.class, () -> peer.invoke(client -> {
+        throw new IOException("Broken");
+      }));
+      assertEquals(2, peer.getRequests());
+      assertEquals(1, peer.getErrors());
+      assertEquals(0, peer.getInFlight());
+      assertTrue(peer.getLatency().p99() > 0);
+    }
+  }
+
+  @Test
+  void rejectsCallsAfterFailures() throws Exception {
+    try (ServerSocket socket = new ServerSocket(0);
+         PeerPools pools = new PeerPools(TIMEOUT)) {
+      Peer peer = pools.get("http://localhost:" + socket.getLocalPort());
+      while (peer.allow()) {
+        assertThrows(IOException.class, () -> peer.invoke(client -> {
+          throw new IOException("Broken");
+        }));
+      }
+      assertFalse(peer.isAvailable());
+      assertTrue(peer.getErrors() > 0);
+      assertEquals(1, peer.getRejected());
+    }
+  }
+}
@@ -0,0 +1,79 @@
+package ru.mail.polis.kirpichenkov;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Test;
+import ru.mail.polis.kirpichenkov.Result.Status;
+
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Collection of the replica replies up to the quorum
+ *
+ * @author Pavel Kirpichenkov
+ */
+class QuorumCollectorTest {
+  @Test
+  void respondsOnceQuorumIsIn() {
+    QuorumCollector collector = new QuorumCollector(2, 3);
+    Result older = value(10);
+    Result newer = value(20);
+    collector.add(older);
+    assertFalse(collector.response().isDone());
+    collector.add(newer);
+    assertSame(newer, collector.response().join());
+    assertFalse(collector.lateReplies().isDone());
+
+    Result late = value(30);
+    collector.add(late);
+    assertEquals(Collections.singletonList(late), collector.lateReplies().join());
+    assertSame(newer, collector.response().join());
+  }
+
+  @Test
+  void failsOnceQuorumIsUnreachable() {
+    QuorumCollector collector = new QuorumCollector(2, 3);
+    collector.add(Collaboration.error());
+    assertFalse(collector.response().isDone());
+    collector.add(Collaboration.error());
+    assertEquals(Status.ERROR, collector.response().join().getStatus());
+    collector.add(value(10));
+    assertEquals(1, collector.lateReplies().join().size());
+  }
+
+  @Test
+  void toleratesFailuresBelowQuorum() {
+    QuorumCollector collector = new QuorumCollector(2, 3);
+    collector.add(Collaboration.error());
+    collector.add(value(10));
+    assertFalse(collector.response().isDone());
+    collector.add(value(20));
+    assertEquals(Status.OK, collector.response().join().getStatus());
+    List<Result> late = collector.lateReplies().join();
+    assertTrue(late.isEmpty());
+  }
+
+  @Test
+  void finishesLateRepliesWithSkippedReplicas() {
+    QuorumCollector collector = new QuorumCollector(1, 3);
+    collector.add(value(10));
+    assertTrue(collector.response().isDone());
+    collector.skip(1);
+    assertFalse(collector.lateReplies().isDone());
+    collector.skip(1);
+    assertTrue(collector.lateReplies().join().isEmpty());
+  }
+
+  @NotNull
+  private static Result value(final long epochNanos) {
+    return new Result()
+        .setStatus(Status.OK)
+        .setBody(new byte[]{(byte) epochNanos})
+        .setTimestamp(NanoClock.fromEpochNanos(epochNanos));
+  }
+}
@@ -0,0 +1,88 @@
+package ru.mail.polis.kirpichenkov;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Hash trees split by the token ranges of the ring
+ *
+ * @author Pavel Kirpichenkov
+ */
+class RangeTreesTest {
+  private static final List<String> NODES =
+      Arrays.asList("http://a:8080", "http://b:8080", "http://c:8080", "http://d:8080");
+
+  @Test
+  void fullReplicationKeepsOneTree() {
+    RangeTrees trees = new RangeTrees(new HashRing(NODES, 16), NODES.size(), 4);
+    assertEquals(1, trees.size());
+    assertEquals(Arrays.asList(0), trees.shared(NODES.get(0), NODES.get(3)));
+  }
+
+  @Test
+  void treeOfKeyIsSharedByItsReplicasOnly() {
+    HashRing ring = new HashRing(NODES, 16);
+    RangeTrees trees = new RangeTrees(ring, 2, 4);
+    assertTrue(trees.size() > 1);
+    for (int ix = 0; ix < 200; ix++) {
+      byte[] key = key(ix);
+      Set<String> replicas = new HashSet<>(ring.replicas(key, 2));
+      int tree = trees.treeOf(key);
+      for (String node : NODES) {
+        for (String other : NODES) {
+          if (node.equals(other)) {
+            continue;
+          }
+          boolean both = replicas.contains(node) && replicas.contains(other);
+          assertEquals(both, trees.shared(node, other).contains(tree), node + " " + other);
+        }
+      }
+    }
+  }
+
+  @Test
+  void sameTreesOnEveryNode() {
+    RangeTrees first = new RangeTrees(new HashRing(NODES, 16), 2, 4);
+    RangeTrees second = new RangeTrees(new HashRing(NODES, 16), 2, 4);
+    assertEquals(first.size(), second.size());
+    for (int ix = 0; ix < 200; ix++) {
+      assertEquals(first.treeOf(key(ix)), second.treeOf(key(ix)));
+    }
+  }
+
+  @Test
+  void writeChangesTreeOfKeyOnly() {
+    RangeTrees trees = new RangeTrees(new HashRing(NODES, 16), 2, 4);
+    long[] roots = roots(trees);
+    trees.add(key(1), 10);
+    long[] changed = roots(trees);
+    for (int tree = 0; tree < trees.size(); tree++) {
+      if (tree == trees.treeOf(key(1))) {
+        assertNotEquals(roots[tree], changed[tree]);
+      } else {
+        assertEquals(roots[tree], changed[tree]);
+      }
+    }
+  }
+
+  private static long[] roots(final RangeTrees trees) {
+    long[] roots = new long[trees.size()];
+    for (int tree = 0; tree < roots.length; tree++) {
+      roots[tree] = trees.get(tree).level(0)[0];
+    }
+    return roots;
+  }
+
+  private static byte[] key(final int ix) {
+    return ("key" + ix).getBytes(StandardCharsets.UTF_8);
+  }
+}
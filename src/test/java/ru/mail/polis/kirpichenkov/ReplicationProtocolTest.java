@@ -0,0 +1,134 @@
+package ru.mail.polis.kirpichenkov;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Framing of the binary protocol between the nodes
+ *
+ * @author Pavel Kirpichenkov
+ */
+class ReplicationProtocolTest {
+  private static final byte[] KEY = "key".getBytes(StandardCharsets.UTF_8);
+  private static final byte[] VALUE = "value".getBytes(StandardCharsets.UTF_8);
+
+  @Test
+  void requestRoundTrip() throws IOException {
+    ByteBuffer frame =
+        body(ReplicationProtocol.request(7, ReplicationProtocol.PUT, KEY, 42, VALUE));
+    assertEquals(7, frame.getInt());
+    assertEquals(ReplicationProtocol.PUT, frame.get());
+    assertArrayEquals(KEY, ReplicationProtocol.getValue(frame));
+    assertEquals(42, frame.getLong());
+    assertArrayEquals(VALUE, ReplicationProtocol.getValue(frame));
+    assertFalse(frame.hasRemaining());
+
+    frame = body(ReplicationProtocol.request(8, ReplicationProtocol.DELETE, KEY, 43, null));
+    frame.getInt();
+    frame.get();
+    ReplicationProtocol.getValue(frame);
+    frame.getLong();
+    assertNull(ReplicationProtocol.getValue(frame));
+  }
+
+  @Test
+  void responseRoundTrip() throws IOException {
+    Result ok = new Result()
+        .setStatus(Result.Status.OK)
+        .setTimestamp(NanoClock.fromEpochNanos(42))
+        .setBody(VALUE);
+    ByteBuffer frame = body(ReplicationProtocol.response(7, ok));
+    assertEquals(7, frame.getInt());
+    Result result = ReplicationProtocol.result(frame);
+    assertEquals(Result.Status.OK, result.getStatus());
+    assertEquals(NanoClock.fromEpochNanos(42), result.getTimestamp());
+    assertArrayEquals(VALUE, result.getBody());
+
+    Result absent = new Result().setStatus(Result.Status.ABSENT).setTimestamp(Instant.MIN);
+    frame = body(ReplicationProtocol.response(8, absent));
+    frame.getInt();
+    result = ReplicationProtocol.result(frame);
+    assertEquals(Result.Status.ABSENT, result.getStatus());
+    assertEquals(Instant.MIN, result.getTimestamp());
+  }
+
+  @Test
+  void batchRoundTrip() throws IOException {
+    List<ReplicationProtocol.Operation> operations = Arrays.asList(
+        new ReplicationProtocol.Operation(ReplicationProtocol.PUT, KEY, 1, VALUE),
+        new ReplicationProtocol.Operation(ReplicationProtocol.DELETE, VALUE, 2, null));
+    ByteBuffer frame = body(ReplicationProtocol.batchRequest(9, operations));
+    assertEquals(9, frame.getInt());
+    assertEquals(ReplicationProtocol.BATCH, frame.get());
+    List<ReplicationProtocol.Operation> read = ReplicationProtocol.operations(frame);
+    assertEquals(2, read.size());
+    assertEquals(ReplicationProtocol.PUT, read.get(0).op);
+    assertArrayEquals(KEY, read.get(0).key);
+    assertEquals(1, read.get(0).version);
+    assertArrayEquals(VALUE, read.get(0).value);
+    assertEquals(ReplicationProtocol.DELETE, read.get(1).op);
+    assertNull(read.get(1).value);
+
+    List<Result> results = Arrays.asList(
+        new Result().setStatus(Result.Status.OK).setTimestamp(NanoClock.fromEpochNanos(1)),
+        Collaboration.error());
+    frame = body(ReplicationProtocol.batchResponse(9, results));
+    assertEquals(9, frame.getInt());
+    List<Result> replies = ReplicationProtocol.results(frame);
+    assertEquals(Result.Status.OK, replies.get(0).getStatus());
+    assertEquals(Result.Status.ERROR, replies.get(1).getStatus());
+  }
+
+  @Test
+  void rejectsBadLengthsBeforeAllocating() {
+    assertThrows(IOException.class, () -> ReplicationProtocol.length(header(-1)));
+    assertThrows(IOException.class, () -> ReplicationProtocol.length(header(0)));
+    byte[] tooLong = header(ReplicationProtocol.MAX_FRAME + 1);
+    assertThrows(IOException.class, () -> ReplicationProtocol.length(tooLong));
+    assertThrows(IOException.class, () -> ReplicationProtocol.length(header(Integer.MAX_VALUE)));
+    assertTrue(ReplicationProtocol.MAX_FRAME <= 32 * 1024 * 1024);
+  }
+
+  @Test
+  void rejectsMalformedValuesAndBatches() {
+    ByteBuffer value = ByteBuffer.allocate(8).putInt(100).putInt(0);
+    value.flip();
+    assertThrows(IOException.class, () -> ReplicationProtocol.getValue(value));
+    ByteBuffer batch = ByteBuffer.allocate(8).putInt(1_000_000).putInt(0);
+    batch.flip();
+    assertThrows(IOException.class, () -> ReplicationProtocol.operations(batch));
+  }
+
+  @Test
+  void tooLongFrameDoesNotFit() {
+    byte[] small = ReplicationProtocol.request(1, ReplicationProtocol.PUT, KEY, 1, VALUE);
+    assertTrue(ReplicationProtocol.fits(small));
+    byte[] huge = new byte[ReplicationProtocol.MAX_FRAME];
+    assertFalse(ReplicationProtocol.fits(ReplicationProtocol.request(1, ReplicationProtocol.PUT, KEY, 1, huge)));
+  }
+
+  /** @return frame after its length, checking the length */
+  private static ByteBuffer body(final byte[] frame) throws IOException {
+    assertEquals(frame.length - Integer.BYTES, ReplicationProtocol.length(frame));
+    ByteBuffer buffer = ByteBuffer.wrap(frame);
+    buffer.getInt();
+    return buffer;
+  }
+
+  private static byte[] header(final int length) {
+    return ByteBuffer.allocate(Integer.BYTES).putInt(length).array();
+  }
+}
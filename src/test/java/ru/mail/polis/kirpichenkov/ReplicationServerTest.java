@@ -0,0 +1,135 @@
+package ru.mail.polis.kirpichenkov;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Calls over a multiplexed connection of the binary protocol
+ *
+ * @author Pavel Kirpichenkov
+ */
+class ReplicationServerTest {
+  private static final byte[] KEY = "key".getBytes(StandardCharsets.UTF_8);
+  private TempDirectory dir;
+  private LsmKVDao storage;
+  private ExecutorService executor;
+  private ScheduledExecutorService timer;
+  private ReplicationServer server;
+  private ReplicationClient client;
+
+  @BeforeEach
+  void start() throws IOException {
+    dir = new TempDirectory();
+    storage = new LsmKVDao(dir.getPath());
+    executor = Executors.newFixedThreadPool(2);
+    timer = Executors.newSingleThreadScheduledExecutor();
+    server = new ReplicationServer(new InternalDao(storage), executor);
+    server.start();
+    client = new ReplicationClient("localhost", server.getPort(), 1000, timer);
+  }
+
+  @AfterEach
+  void stop() throws IOException {
+    client.close();
+    server.close();
+    executor.shutdownNow();
+    timer.shutdownNow();
+    storage.close();
+    dir.close();
+  }
+
+  @Test
+  void writesKeepTheGivenVersion() throws Exception {
+    byte[] value = "value".getBytes(StandardCharsets.UTF_8);
+    Result put = client.call(ReplicationProtocol.PUT, KEY, 42, value).get();
+    assertEquals(Result.Status.OK, put.getStatus());
+    Result get = client.call(ReplicationProtocol.GET, KEY, ReplicationProtocol.NO_VERSION, null).get();
+    assertEquals(Result.Status.OK, get.getStatus());
+    assertArrayEquals(value, get.getBody());
+    assertEquals(NanoClock.fromEpochNanos(42), get.getTimestamp());
+
+    // An older write doesn't replace the value
+    client.call(ReplicationProtocol.DELETE, KEY, 41, null).get();
+    get = client.call(ReplicationProtocol.GET, KEY, ReplicationProtocol.NO_VERSION, null).get();
+    assertEquals(Result.Status.OK, get.getStatus());
+
+    Result digest = client.call(ReplicationProtocol.DIGEST, KEY, ReplicationProtocol.NO_VERSION, null).get();
+    assertEquals(Long.BYTES, digest.getBody().length);
+  }
+
+  @Test
+  void concurrentCallsShareTheConnection() throws Exception {
+    List<CompletableFuture<Result>> writes = new ArrayList<>();
+    for (int ix = 0; ix < 100; ix++) {
+      byte[] key = ("key" + ix).getBytes(StandardCharsets.UTF_8);
+      writes.add(client.call(ReplicationProtocol.PUT, key, ix + 1, key));
+    }
+    for (CompletableFuture<Result> write : writes) {
+      assertEquals(Result.Status.OK, write.get().getStatus());
+    }
+    List<CompletableFuture<Result>> reads = client.batch(Arrays.asList(
+        new ReplicationProtocol.Operation(ReplicationProtocol.GET, "key1".getBytes(), 0, null),
+        new ReplicationProtocol.Operation(ReplicationProtocol.GET, "absent".getBytes(), 0, null)));
+    assertArrayEquals("key1".getBytes(), reads.get(0).get().getBody());
+    assertEquals(Result.Status.ABSENT, reads.get(1).get().getStatus());
+  }
+
+  @Test
+  void tooLongCallFailsAlone() throws Exception {
+    byte[] huge = new byte[ReplicationProtocol.MAX_FRAME];
+    CompletableFuture<Result> call = client.call(ReplicationProtocol.GET, huge, 0, null);
+    ExecutionException ex = assertThrows(ExecutionException.class, call::get);
+    assertTrue(ex.getCause() instanceof IOException);
+    assertTrue(client.isOpen());
+    Result get = client.call(ReplicationProtocol.GET, KEY, ReplicationProtocol.NO_VERSION, null).get();
+    assertEquals(Result.Status.ABSENT, get.getStatus());
+  }
+
+  @Test
+  void concurrentWritesGoInBatches() throws Exception {
+    List<CompletableFuture<Result>> writes = new ArrayList<>();
+    for (int ix = 0; ix < 1000; ix++) {
+      byte[] key = ("key" + ix % 10).getBytes(StandardCharsets.UTF_8);
+      writes.add(client.call(ReplicationProtocol.PUT, key, ix + 1, ("value" + ix).getBytes(StandardCharsets.UTF_8)));
+    }
+    for (CompletableFuture<Result> write : writes) {
+      assertEquals(Result.Status.OK, write.get().getStatus());
+    }
+    assertTrue(batches() > 0, client.batchStats());
+    assertTrue(batches() < writes.size(), client.batchStats());
+    // Every key ends up with its latest write, however the writes were batched
+    for (int ix = 0; ix < 10; ix++) {
+      byte[] key = ("key" + ix).getBytes(StandardCharsets.UTF_8);
+      Result get = client.call(ReplicationProtocol.GET, key, ReplicationProtocol.NO_VERSION, null).get();
+      assertArrayEquals(("value" + (990 + ix)).getBytes(StandardCharsets.UTF_8), get.getBody());
+    }
+  }
+
+  @Test
+  void lonelyWriteGoesAlone() throws Exception {
+    Result put = client.call(ReplicationProtocol.PUT, KEY, 1, KEY).get();
+    assertEquals(Result.Status.OK, put.getStatus());
+    assertEquals(0, batches());
+  }
+
+  private long batches() {
+    return Long.parseLong(client.batchStats().split(" ")[0]);
+  }
+}
@@ -0,0 +1,122 @@
+package ru.mail.polis.kirpichenkov;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Sorted table file
+ *
+ * @author Pavel Kirpichenkov
+ */
+class SSTableTest {
+  private static final int KEYS = 1000;
+
+  @Test
+  void findsWrittenCells() throws Exception {
+    try (TempDirectory directory = new TempDirectory()) {
+      SSTable table = write(new File(directory.getPath(), "1" + SSTable.SUFFIX), cells(KEYS));
+      for (int ix = 0; ix < KEYS; ix++) {
+        byte[] key = key(ix);
+        Cell cell = table.get(key, BloomFilter.hash(key));
+        assertNotNull(cell);
+        assertEquals(ix, cell.getTimestamp());
+        if (ix % 3 == 0) {
+          assertTrue(cell.isTombstone());
+        } else {
+          assertArrayEquals(value(ix), cell.copyValue());
+        }
+      }
+      byte[] absent = bytes("absent");
+      assertNull(table.get(absent, BloomFilter.hash(absent)));
+    }
+  }
+
+  @Test
+  void iteratesInKeyOrder() throws Exception {
+    try (TempDirectory directory = new TempDirectory()) {
+      SSTable table = write(new File(directory.getPath(), "1" + SSTable.SUFFIX), cells(KEYS));
+      Iterator<Map.Entry<ByteBuffer, Cell>> iterator = table.iterator();
+      for (int ix = 0; ix < KEYS; ix++) {
+        assertTrue(iterator.hasNext());
+        assertEquals(ByteBuffer.wrap(key(ix)), iterator.next().getKey());
+      }
+      assertFalse(iterator.hasNext());
+      assertEquals(ByteBuffer.wrap(key(0)), table.firstKey());
+      assertEquals(ByteBuffer.wrap(key(KEYS - 1)), table.lastKey());
+    }
+  }
+
+  @Test
+  void splitsAtSizeLimit() throws Exception {
+    try (TempDirectory directory = new TempDirectory()) {
+      Iterator<Map.Entry<ByteBuffer, Cell>> cells = cells(KEYS).iterator();
+      IoRateLimiter limiter = new IoRateLimiter(0);
+      List<SSTable> tables = new ArrayList<>();
+      for (int generation = 0; cells.hasNext(); generation++) {
+        File file = new File(directory.getPath(), generation + SSTable.SUFFIX);
+        SSTable.write(cells, file, 0.01, limiter, 16 * 1024);
+        tables.add(SSTable.open(file, generation, 0, generation));
+      }
+      assertTrue(tables.size() > 1);
+      int count = 0;
+      for (SSTable table : tables) {
+        assertTrue(table.sizeInBytes() < 32 * 1024);
+        for (Iterator<Map.Entry<ByteBuffer, Cell>> it = table.iterator(); it.hasNext(); it.next()) {
+          count++;
+        }
+      }
+      assertEquals(KEYS, count);
+    }
+  }
+
+  @NotNull
+  private static SSTable write(
+      @NotNull final File file,
+      @NotNull final List<Map.Entry<ByteBuffer, Cell>> cells
+  ) throws Exception
+  {
+    SSTable.write(cells.iterator(), file, 0.01, new IoRateLimiter(0));
+    return SSTable.open(file, 1, 0, 1);
+  }
+
+  @NotNull
+  private static List<Map.Entry<ByteBuffer, Cell>> cells(final int count) {
+    List<Map.Entry<ByteBuffer, Cell>> cells = new ArrayList<>(count);
+    for (int ix = 0; ix < count; ix++) {
+      Cell cell = ix % 3 == 0 ? Cell.tombstone(ix) : Cell.value(value(ix), ix);
+      cells.add(new AbstractMap.SimpleImmutableEntry<>(ByteBuffer.wrap(key(ix)), cell));
+    }
+    return cells;
+  }
+
+  @NotNull
+  private static byte[] key(final int ix) {
+    return bytes(String.format("key%05d", ix));
+  }
+
+  @NotNull
+  private static byte[] value(final int ix) {
+    return bytes("value" + ix);
+  }
+
+  @NotNull
+  private static byte[] bytes(@NotNull final String text) {
+    return text.getBytes(StandardCharsets.UTF_8);
+  }
+}
@@ -0,0 +1,149 @@
+package ru.mail.polis.kirpichenkov;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Coalescing of concurrent reads
+ *
+ * @author Pavel Kirpichenkov
+ */
+class SingleFlightTest {
+  @Test
+  void sharesReadInFlight() {
+    SingleFlight<String, String> flights = new SingleFlight<>(String::hashCode);
+    CompletableFuture<String> read = new CompletableFuture<>();
+    AtomicInteger started = new AtomicInteger();
+    CompletableFuture<String> first = flights.share("k", () -> {
+      started.incrementAndGet();
+      return read;
+    });
+    CompletableFuture<String> second = flights.share("k", () -> {
+      started.incrementAndGet();
+      return CompletableFuture.completedFuture("other");
+    });
+    read.complete("value");
+    assertEquals("value", first.join());
+    assertEquals("value", second.join());
+    assertEquals(1, started.get());
+    assertEquals(1, flights.getShared());
+  }
+
+  @Test
+  void writeStopsSharing() {
+    SingleFlight<String, String> flights = new SingleFlight<>(String::hashCode);
+    CompletableFuture<String> read = new CompletableFuture<>();
+    CompletableFuture<String> first = flights.share("k", () -> read);
+    flights.invalidate("k");
+    CompletableFuture<String> second =
+        flights.share("k", () -> CompletableFuture.completedFuture("written"));
+    assertNotSame(first, second);
+    assertEquals("written", second.join());
+    assertFalse(first.isDone());
+  }
+
+  @Test
+  void finishedReadIsNotShared() {
+    SingleFlight<String, String> flights = new SingleFlight<>(String::hashCode);
+    assertEquals("1", flights.share("k", () -> CompletableFuture.completedFuture("1")).join());
+    assertEquals("2", flights.share("k", () -> CompletableFuture.completedFuture("2")).join());
+    assertEquals(0, flights.getShared());
+  }
+
+  @Test
+  void readFailingToStartIsForgotten() {
+    SingleFlight<String, String> flights = new SingleFlight<>(String::hashCode);
+    assertThrows(IllegalStateException.class, () -> flights.share("k", () -> {
+      throw new IllegalStateException("rejected");
+    }));
+    CompletableFuture<String> next =
+        flights.share("k", () -> CompletableFuture.completedFuture("value"));
+    assertEquals("value", next.join());
+    assertEquals(0, flights.getShared());
+  }
+
+  @Test
+  void failedReadIsForgotten() {
+    SingleFlight<String, String> flights = new SingleFlight<>(String::hashCode);
+    CompletableFuture<String> failed = new CompletableFuture<>();
+    failed.completeExceptionally(new IOException("broken"));
+    assertTrue(flights.share("k", () -> failed).isCompletedExceptionally());
+    assertEquals("value", flights.share("k", () -> CompletableFuture.completedFuture("value")).join());
+  }
+
+  @Test
+  void blockingReadersShareResult() throws Exception {
+    SingleFlight<String, String> flights = new SingleFlight<>(String::hashCode);
+    CountDownLatch reading = new CountDownLatch(1);
+    CompletableFuture<Void> release = new CompletableFuture<>();
+    AtomicInteger reads = new AtomicInteger();
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    try {
+      Future<String> first = executor.submit(() -> flights.read("k", () -> {
+        reads.incrementAndGet();
+        reading.countDown();
+        release.join();
+        return "value";
+      }));
+      assertTrue(reading.await(5, TimeUnit.SECONDS));
+      Future<String> second = executor.submit(() -> flights.read("k", () -> {
+        reads.incrementAndGet();
+        return "other";
+      }));
+      while (flights.getShared() == 0) {
+        Thread.sleep(1);
+      }
+      release.complete(null);
+      assertEquals("value", first.get(5, TimeUnit.SECONDS));
+      assertEquals("value", second.get(5, TimeUnit.SECONDS));
+      assertEquals(1, reads.get());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  void blockingReadersShareError() throws Exception {
+    SingleFlight<String, String> flights = new SingleFlight<>(String::hashCode);
+    CountDownLatch reading = new CountDownLatch(1);
+    CompletableFuture<Void> release = new CompletableFuture<>();
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    try {
+      Future<String> first = executor.submit(() -> flights.read("k", () -> {
+        reading.countDown();
+        release.join();
+        throw new IOException("broken");
+      }));
+      assertTrue(reading.await(5, TimeUnit.SECONDS));
+      Future<String> second = executor.submit(() -> flights.read("k", () -> "other"));
+      while (flights.getShared() == 0) {
+        Thread.sleep(1);
+      }
+      release.complete(null);
+      ExecutionException firstError =
+          assertThrows(ExecutionException.class, () -> first.get(5, TimeUnit.SECONDS));
+      ExecutionException secondError =
+          assertThrows(ExecutionException.class, () -> second.get(5, TimeUnit.SECONDS));
+      assertTrue(firstError.getCause() instanceof IOException);
+      assertSame(firstError.getCause(), secondError.getCause());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+}
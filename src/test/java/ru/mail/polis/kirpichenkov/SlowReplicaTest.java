@@ -0,0 +1,93 @@
+package ru.mail.polis.kirpichenkov;
+
+import one.nio.http.HttpClient;
+import one.nio.http.Response;
+import one.nio.net.ConnectionString;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Coordination of the requests in a cluster with a replica that accepts connections but never
+ * answers
+ *
+ * @author Pavel Kirpichenkov
+ */
+class SlowReplicaTest {
+  private ServerSocket silent;
+  private LocalCluster cluster;
+
+  @BeforeEach
+  void start() throws Exception {
+    silent = new ServerSocket(0);
+    cluster = new LocalCluster(
+        2,
+        Collections.singletonList("http://localhost:" + silent.getLocalPort()));
+  }
+
+  @AfterEach
+  void stop() throws IOException {
+    cluster.close();
+    silent.close();
+  }
+
+  @Test
+  void waitingForReplicaDoesNotBlockOtherRequests() throws Exception {
+    int requests = 16;
+    ExecutorService executor = Executors.newFixedThreadPool(requests);
+    HttpClient client = new HttpClient(new ConnectionString(cluster.url(0) + "?timeout=10000"));
+    try {
+      List<Future<Response>> waiting = new ArrayList<>();
+      for (int ix = 0; ix < requests; ix++) {
+        String path = "/v0/entity?id=blocked" + ix + "&replicas=3/3";
+        waiting.add(executor.submit(() -> client.put(path, new byte[]{1})));
+      }
+      // Every worker of the node would be waiting for the silent replica, if it waited itself
+      long start = System.nanoTime();
+      for (int ix = 0; ix < 10; ix++) {
+        assertEquals(200, cluster.client(0).get("/v0/status").getStatus());
+      }
+      long elapsed = System.nanoTime() - start;
+      assertTrue(
+          elapsed < TimeUnit.MILLISECONDS.toNanos(Collaboration.TIMEOUT),
+          "Took " + TimeUnit.NANOSECONDS.toMillis(elapsed) + " ms");
+      for (Future<Response> response : waiting) {
+        assertEquals(504, response.get(10, TimeUnit.SECONDS).getStatus());
+      }
+    } finally {
+      executor.shutdown();
+      client.close();
+    }
+  }
+
+  @Test
+  void quorumIsAnsweredWithoutWaitingForSilentReplica() throws Exception {
+    for (int ix = 0; ix < 5; ix++) {
+      String id = "quorum" + ix;
+      byte[] value = {(byte) ix};
+      long start = System.nanoTime();
+      assertEquals(201, cluster.put(ix % 2, id, value, "2/3").getStatus());
+      Response get = cluster.get(1 - ix % 2, id, "2/3");
+      long elapsed = System.nanoTime() - start;
+      assertEquals(200, get.getStatus());
+      assertArrayEquals(value, get.getBody());
+      assertTrue(
+          elapsed < TimeUnit.MILLISECONDS.toNanos(Collaboration.TIMEOUT),
+          "Took " + TimeUnit.NANOSECONDS.toMillis(elapsed) + " ms");
+    }
+  }
+}
@@ -0,0 +1,92 @@
+package ru.mail.polis.kirpichenkov;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Striped lock table of the internal storage
+ *
+ * @author Pavel Kirpichenkov
+ */
+class StripedLocksTest {
+  @Test
+  void mapsEqualKeysToOneLock() {
+    StripedLocks locks = new StripedLocks(64);
+    assertSame(locks.get(bytes("key")), locks.get(bytes("key")));
+  }
+
+  @Test
+  void spreadsKeysOverStripes() {
+    StripedLocks locks = new StripedLocks(64);
+    List<Lock> distinct = locks.getAll(keys(10_000));
+    assertEquals(64, distinct.size());
+    assertNotSame(distinct.get(0), distinct.get(1));
+  }
+
+  @Test
+  void roundsStripesUpToPowerOfTwo() {
+    assertEquals(1, new StripedLocks(1).getAll(keys(100)).size());
+    assertEquals(128, new StripedLocks(100).getAll(keys(10_000)).size());
+  }
+
+  @Test
+  void takesSharedStripeOnce() {
+    StripedLocks locks = new StripedLocks(1);
+    List<Lock> all = locks.getAll(Arrays.asList(bytes("a"), bytes("b"), bytes("a")));
+    assertEquals(Collections.singletonList(locks.get(bytes("a"))), all);
+  }
+
+  @Test
+  void batchesInOppositeOrderDoNotDeadlock() throws Exception {
+    StripedLocks locks = new StripedLocks(16);
+    List<byte[]> keys = keys(100);
+    List<byte[]> reversed = new ArrayList<>(keys);
+    Collections.reverse(reversed);
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    try {
+      List<Future<?>> futures = new ArrayList<>();
+      for (List<byte[]> batch : Arrays.asList(keys, reversed)) {
+        futures.add(executor.submit(() -> {
+          for (int round = 0; round < 10_000; round++) {
+            List<Lock> taken = locks.getAll(batch);
+            taken.forEach(Lock::lock);
+            taken.forEach(Lock::unlock);
+          }
+        }));
+      }
+      for (Future<?> future : futures) {
+        future.get(10, TimeUnit.SECONDS);
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+    assertTrue(executor.awaitTermination(1, TimeUnit.SECONDS));
+  }
+
+  private static List<byte[]> keys(final int count) {
+    List<byte[]> keys = new ArrayList<>(count);
+    for (int ix = 0; ix < count; ix++) {
+      keys.add(bytes("key" + ix));
+    }
+    return keys;
+  }
+
+  private static byte[] bytes(final String text) {
+    return text.getBytes(StandardCharsets.UTF_8);
+  }
+}
@@ -0,0 +1,57 @@
+package ru.mail.polis.kirpichenkov;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * Storage directory of a test, removed with everything in it on close
+ *
+ * @author Pavel Kirpichenkov
+ */
+class TempDirectory implements AutoCloseable {
+  private final File path;
+
+  TempDirectory() throws IOException {
+    this.path = Files.createTempDirectory("highload-kv").toFile();
+  }
+
+  @NotNull
+  File getPath() {
+    return path;
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (!path.exists()) {
+      return;
+    }
+    Files.walkFileTree(path.toPath(), new SimpleFileVisitor<Path>() {
+      @Override
+      public FileVisitResult visitFile(
+          final Path file,
+          final BasicFileAttributes attrs
+      ) throws IOException
+      {
+        Files.delete(file);
+        return FileVisitResult.CONTINUE;
+      }
+
+      @Override
+      public FileVisitResult postVisitDirectory(
+          final Path dir,
+          final IOException ex
+      ) throws IOException
+      {
+        Files.delete(dir);
+        return FileVisitResult.CONTINUE;
+      }
+    });
+  }
+}
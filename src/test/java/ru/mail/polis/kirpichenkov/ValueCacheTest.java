@@ -0,0 +1,101 @@
+package ru.mail.polis.kirpichenkov;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Byte-weighted cache of the read cells
+ *
+ * @author Pavel Kirpichenkov
+ */
+class ValueCacheTest {
+  @Test
+  void keepsReadCells() {
+    ValueCache cache = new ValueCache(1024 * 1024);
+    byte[] key = bytes("a");
+    byte[] value = bytes("value");
+    cache.put(key, Cell.value(value, 1), cache.stamp(key));
+    cache.put(bytes("b"), Cell.tombstone(2), cache.stamp(bytes("b")));
+
+    Cell cell = cache.get(key);
+    assertNotNull(cell);
+    assertArrayEquals(value, cell.copyValue());
+    assertEquals(1, cell.getTimestamp());
+    Cell tombstone = cache.get(bytes("b"));
+    assertNotNull(tombstone);
+    assertTrue(tombstone.isTombstone());
+  }
+
+  @Test
+  void copiesCachedValue() {
+    ValueCache cache = new ValueCache(1024 * 1024);
+    byte[] key = bytes("a");
+    byte[] value = bytes("value");
+    cache.put(key, Cell.value(value, 1), cache.stamp(key));
+    value[0] = 'X';
+    Cell cell = cache.get(key);
+    assertNotNull(cell);
+    assertArrayEquals(bytes("value"), cell.copyValue());
+    assertNotSame(value, cell.copyValue());
+  }
+
+  @Test
+  void dropsReadRacingWithWrite() {
+    ValueCache cache = new ValueCache(1024 * 1024);
+    byte[] key = bytes("a");
+    long stamp = cache.stamp(key);
+    // The write lands while the reader is still reading the old value
+    cache.invalidate(key);
+    cache.put(key, Cell.value(bytes("old"), 1), stamp);
+    assertNull(cache.get(key));
+
+    cache.put(key, Cell.value(bytes("new"), 2), cache.stamp(key));
+    assertNotNull(cache.get(key));
+    cache.invalidate(key);
+    assertNull(cache.get(key));
+  }
+
+  @Test
+  void disabledCacheKeepsNothing() {
+    ValueCache cache = new ValueCache(0);
+    byte[] key = bytes("a");
+    cache.put(key, Cell.value(bytes("value"), 1), cache.stamp(key));
+    assertNull(cache.get(key));
+  }
+
+  @Test
+  void staysWithinCapacity() throws InterruptedException {
+    int capacity = 16 * 1024;
+    int entries = 1000;
+    ValueCache cache = new ValueCache(capacity);
+    byte[] value = new byte[1024];
+    for (int ix = 0; ix < entries; ix++) {
+      byte[] key = bytes("key" + ix);
+      cache.put(key, Cell.value(value, 1), cache.stamp(key));
+    }
+    int cached = entries;
+    // Eviction runs asynchronously after the writes
+    for (int attempt = 0; attempt < 100 && cached > capacity / value.length; attempt++) {
+      Thread.sleep(10);
+      cached = 0;
+      for (int ix = 0; ix < entries; ix++) {
+        if (cache.get(bytes("key" + ix)) != null) {
+          cached++;
+        }
+      }
+    }
+    assertTrue(cached > 0 && cached <= capacity / value.length, "Cached " + cached);
+  }
+
+  private static byte[] bytes(final String text) {
+    return text.getBytes(StandardCharsets.UTF_8);
+  }
+}
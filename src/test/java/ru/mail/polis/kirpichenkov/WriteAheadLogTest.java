@@ -0,0 +1,153 @@
+package ru.mail.polis.kirpichenkov;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Group-committed write-ahead log and its replay
+ *
+ * @author Pavel Kirpichenkov
+ */
+class WriteAheadLogTest {
+  @Test
+  void replaysAllRecords() throws Exception {
+    try (TempDirectory directory = new TempDirectory()) {
+      File file = new File(directory.getPath(), "1" + WriteAheadLog.SUFFIX);
+      try (WriteAheadLog log = WriteAheadLog.create(file)) {
+        log.upsert(bytes("a"), bytes("1"), 1);
+        log.upsert(bytes("a"), bytes("2"), 2);
+        log.remove(bytes("b"), 3);
+        log.write(new WriteBatch()
+            .upsert(bytes("c"), bytes("3"), 4)
+            .remove(bytes("a"), 5));
+      }
+      MemTable table = new MemTable(new SlabPool(1));
+      assertEquals(5, WriteAheadLog.replay(file, table));
+      assertTrue(cell(table, "a").isTombstone());
+      assertEquals(5, cell(table, "a").getTimestamp());
+      assertTrue(cell(table, "b").isTombstone());
+      assertArrayEquals(bytes("3"), cell(table, "c").copyValue());
+      table.free();
+    }
+  }
+
+  @Test
+  void keepsConcurrentWrites() throws Exception {
+    int writers = 16;
+    int writes = 200;
+    try (TempDirectory directory = new TempDirectory()) {
+      File file = new File(directory.getPath(), "1" + WriteAheadLog.SUFFIX);
+      ExecutorService executor = Executors.newFixedThreadPool(writers);
+      try (WriteAheadLog log = WriteAheadLog.create(file)) {
+        List<Future<?>> futures = new ArrayList<>();
+        for (int writer = 0; writer < writers; writer++) {
+          final int id = writer;
+          futures.add(executor.submit(() -> {
+            for (int ix = 0; ix < writes; ix++) {
+              log.upsert(bytes(id + ":" + ix), bytes("v" + ix), ix);
+            }
+            return null;
+          }));
+        }
+        for (Future<?> future : futures) {
+          future.get();
+        }
+      } finally {
+        executor.shutdown();
+      }
+      MemTable table = new MemTable(new SlabPool(1));
+      assertEquals(writers * writes, WriteAheadLog.replay(file, table));
+      for (int writer = 0; writer < writers; writer++) {
+        for (int ix = 0; ix < writes; ix++) {
+          assertArrayEquals(bytes("v" + ix), cell(table, writer + ":" + ix).copyValue());
+        }
+      }
+      table.free();
+    }
+  }
+
+  @Test
+  void stopsAtTornTail() throws Exception {
+    try (TempDirectory directory = new TempDirectory()) {
+      File file = write(directory.getPath());
+      long length = file.length();
+      try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+        raf.setLength(length - 3);
+      }
+      MemTable table = new MemTable(new SlabPool(1));
+      assertEquals(2, WriteAheadLog.replay(file, table));
+      assertNotNull(table.get(bytes("b")));
+      assertNull(table.get(bytes("c")));
+      table.free();
+    }
+  }
+
+  @Test
+  void stopsAtCorruptRecord() throws Exception {
+    try (TempDirectory directory = new TempDirectory()) {
+      File file = write(directory.getPath());
+      try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+        // Last byte of the first record's value
+        long position = recordSize("a", "1") - 1;
+        raf.seek(position);
+        int value = raf.read();
+        raf.seek(position);
+        raf.write(value ^ 0xFF);
+      }
+      MemTable table = new MemTable(new SlabPool(1));
+      assertEquals(0, WriteAheadLog.replay(file, table));
+      assertTrue(table.isEmpty());
+      table.free();
+    }
+  }
+
+  @NotNull
+  private static File write(@NotNull final File directory) throws Exception {
+    File file = new File(directory, "1" + WriteAheadLog.SUFFIX);
+    try (WriteAheadLog log = WriteAheadLog.create(file)) {
+      log.upsert(bytes("a"), bytes("1"), 1);
+      log.upsert(bytes("b"), bytes("2"), 2);
+      log.upsert(bytes("c"), bytes("3"), 3);
+    }
+    assertEquals(3 * recordSize("a", "1"), file.length());
+    return file;
+  }
+
+  /** {@code [length][crc][op][key length][key][timestamp][value]} */
+  private static int recordSize(
+      @NotNull final String key,
+      @NotNull final String value
+  ) {
+    return 2 * Integer.BYTES + Byte.BYTES + Integer.BYTES + key.length() + Long.BYTES + value.length();
+  }
+
+  @NotNull
+  private static Cell cell(
+      @NotNull final MemTable table,
+      @NotNull final String key
+  ) {
+    Cell cell = table.get(bytes(key));
+    assertNotNull(cell);
+    return cell;
+  }
+
+  @NotNull
+  private static byte[] bytes(@NotNull final String text) {
+    return text.getBytes(StandardCharsets.UTF_8);
+  }
+}